@@ -0,0 +1,106 @@
+package com.wfraser.security.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.module.ModuleFinder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * OTPBenchmarkRunner runs the generic-otp benchmark suite once per
+ * thread count, writing one JSON result file per run so results can be
+ * compared across commits
+ * 
+ * Usage: <code>java -jar target/benchmarks.jar [resultDirectory] [threads...] [-Dotp.bench.include=regex]</code>
+ * 
+ * With no thread counts given the suite runs at 1 thread, half the available 
+ * processors and all available processors. Throughput, sampled latency 
+ * percentiles and the gc profiler's allocation rate are recorded. When the JDK
+ * has the incubator Vector API the forks are started with it, so the built in 
+ * HMAC hashes windows and batches several lanes at once; run with 
+ * <code>-Dotp.bench.vector=false</code> to measure without it. Any other
+ * JMH options can be used by running <code>org.openjdk.jmh.Main</code> from the same jar.
+ * 
+ * After the JMH runs {@link OTPStartupBenchmark} records startup time and 
+ * footprint to <code>startup.json</code>, under the java given by 
+ * <code>-Dotp.bench.java</code> such as a jlinked runtime, or skipped with
+ * <code>-Dotp.bench.startup=false</code>.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPBenchmarkRunner {
+
+	private OTPBenchmarkRunner() {
+	}
+
+	public static void main( final String[] args ) throws RunnerException, IOException, InterruptedException {
+		final File resultDirectory = new File( args.length > 0 ? args[0] : "target/jmh-results" );
+		if( !resultDirectory.isDirectory() && !resultDirectory.mkdirs() )
+			throw new IllegalArgumentException( "Can not create " + resultDirectory );
+
+		final boolean vector = Boolean.parseBoolean( System.getProperty( "otp.bench.vector", "true" ) )
+				&& ModuleFinder.ofSystem().find( "jdk.incubator.vector" ).isPresent();
+		for( int threads : threadCounts( args ) )
+		{
+			final ChainedOptionsBuilder options = new OptionsBuilder()
+					.include( System.getProperty( "otp.bench.include", OTPBenchmarkRunner.class.getPackage().getName() + ".*" ) )
+					.exclude( OTPBenchmarkRunner.class.getSimpleName() )
+					.threads( threads )
+					.forks( Integer.getInteger( "otp.bench.forks", 1 ) )
+					.warmupIterations( Integer.getInteger( "otp.bench.warmups", 3 ) )
+					.warmupTime( TimeValue.seconds( 1 ) )
+					.measurementIterations( Integer.getInteger( "otp.bench.iterations", 5 ) )
+					.measurementTime( TimeValue.seconds( 1 ) )
+					.addProfiler( GCProfiler.class )
+					.resultFormat( ResultFormatType.JSON )
+					.result( new File( resultDirectory, "jmh-" + threads + "t.json" ).getPath() );
+			if( vector )
+			{
+				options.jvmArgsAppend( "--add-modules", "jdk.incubator.vector" );
+			}
+			new Runner( options.build() ).run();
+		}
+		if( Boolean.parseBoolean( System.getProperty( "otp.bench.startup", "true" ) ) )
+		{
+			OTPStartupBenchmark.run( resultDirectory, System.getProperty( "otp.bench.java", OTPStartupBenchmark.defaultJava() ) );
+		}
+	}
+
+	/**
+	 * Gets the thread counts to run at, from the arguments or 
+	 * 1, half and all available processors
+	 * 
+	 * @param args	the String[] of program arguments
+	 * 
+	 * @return List of distinct thread counts
+	 */
+	private static List<Integer> threadCounts( final String[] args ) {
+		final List<Integer> counts = new ArrayList<>();
+		for( int i = 1; i < args.length; i++ )
+		{
+			counts.add( Integer.valueOf( args[i] ) );
+		}
+		if( counts.isEmpty() )
+		{
+			final int processors = Runtime.getRuntime().availableProcessors();
+			for( int count : new int[] { 1, processors / 2, processors } )
+			{
+				if( count > 0 && !counts.contains( count ) )
+					counts.add( count );
+			}
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,178 @@
+package com.wfraser.security.benchmarks;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.otp.OTPBatchValidator;
+import com.wfraser.security.otp.OTPCounterMetrics;
+import com.wfraser.security.otp.OTPDriftTable;
+import com.wfraser.security.otp.OTPImplementation;
+import com.wfraser.security.otp.OTPManualClock;
+import com.wfraser.security.otp.OTPOptions;
+import com.wfraser.security.otp.OTPUserCredentialProvider;
+
+/**
+ * OTPImplementationBenchmark measures code generation and validation
+ * on a single shared {@link OTPImplementation} across a range of
+ * <code>allowedSteps</code> windows
+ * 
+ * A rejected code is the worst case for validation as every step in the 
+ * window is checked. The <code>Metrics</code> variants record every call 
+ * with {@link OTPCounterMetrics} to measure the cost of instrumentation.
+ * The <code>DriftTable</code> variants check the most likely step first.
+ * The <code>BuiltInHmac</code> variants hash from cached HMAC midstates
+ * rather than through JCE, hashing whole windows at once when the forks 
+ * have the Vector API. The <code>Batch</code> variants validate rejected 
+ * codes of {@value #_BATCH_SIZE} users in one call, the built in HMAC 
+ * filling the vector lanes with the windows of several users. The 
+ * <code>Counter</code> variant validates a counter based user with a 
+ * look ahead of <code>allowedSteps</code> counters.
+ * 
+ * Time based instances share an {@link OTPManualClock} fixed at the time of
+ * setup, so the accepted code stays in its step for the whole run rather
+ * than expiring after the first period.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class OTPImplementationBenchmark {
+
+	static final String _SECRET_KEY = "CKW5OXOSEB2KLRVWXGBRJIQR5TNKQ54L";
+	static final String _USER_ID = "USERA";
+	static final String _COMPANY = "COMPANYA";
+	static final int _BATCH_SIZE = 256;
+
+	@Param( { "1", "2", "5", "10" } )
+	public int allowedSteps;
+
+	private OTPImplementation otp;
+	private OTPImplementation cachedWindowOtp;
+	private OTPImplementation metricsOtp;
+	private OTPImplementation driftOtp;
+	private OTPImplementation counterOtp;
+	private OTPImplementation builtInOtp;
+	private OTPImplementation[] batchOtps;
+	private OTPImplementation[] builtInBatchOtps;
+	private String[] batchCodes;
+	private OTPBatchValidator batchValidator;
+	private String validCode;
+	private String invalidCode;
+
+	@Setup
+	public void setup() throws OTPGenericException {
+		OTPUserCredentialProvider user = OTPUserCredentialProvider.createAuthenticatorUserObject( _SECRET_KEY, _USER_ID, _COMPANY, allowedSteps );
+		final OTPOptions fixed = OTPOptions.defaults().withClock( new OTPManualClock( System.currentTimeMillis() ) );
+		otp = OTPImplementation.createInstance( user, fixed );
+		cachedWindowOtp = OTPImplementation.createInstance( user, fixed.withCodeWindowCache( true ) );
+		metricsOtp = OTPImplementation.createInstance( user, fixed.withMetrics( OTPCounterMetrics.createInstance() ) );
+		driftOtp = OTPImplementation.createInstance( user, fixed.withDriftTable( OTPDriftTable.createInstance( 16 ) ) );
+		builtInOtp = OTPImplementation.createInstance( user, fixed.withBuiltInHmac( true ) );
+		counterOtp = OTPImplementation.createInstance( OTPUserCredentialProvider.createCounterUserObject( _SECRET_KEY, _USER_ID, _COMPANY, allowedSteps ) );
+		validCode = otp.getOTP();
+		int candidate = Integer.parseInt( validCode );
+		do {
+			candidate = ( candidate + 1 ) % 1000000;
+			invalidCode = String.format( "%06d", candidate );
+		} while( otp.validate( invalidCode ) );
+		batchOtps = new OTPImplementation[_BATCH_SIZE];
+		builtInBatchOtps = new OTPImplementation[_BATCH_SIZE];
+		batchCodes = new String[_BATCH_SIZE];
+		for( int i = 0; i < _BATCH_SIZE; i++ )
+		{
+			OTPUserCredentialProvider batchUser = OTPUserCredentialProvider.createAuthenticatorUserObject( _SECRET_KEY, _USER_ID + i, _COMPANY, allowedSteps );
+			batchOtps[i] = OTPImplementation.createInstance( batchUser, fixed );
+			builtInBatchOtps[i] = OTPImplementation.createInstance( batchUser, fixed.withBuiltInHmac( true ) );
+			batchCodes[i] = invalidCode;
+		}
+		batchValidator = OTPBatchValidator.createInstance();
+	}
+
+	@Benchmark
+	public String getOTP() {
+		return otp.getOTP();
+	}
+
+	@Benchmark
+	public Boolean validateAccepted() {
+		return otp.validate( validCode );
+	}
+
+	@Benchmark
+	public Boolean validateRejected() {
+		return otp.validate( invalidCode );
+	}
+
+	@Benchmark
+	public Boolean validateRejectedCodeWindowCache() {
+		return cachedWindowOtp.validate( invalidCode );
+	}
+
+	@Benchmark
+	public String getOTPMetrics() {
+		return metricsOtp.getOTP();
+	}
+
+	@Benchmark
+	public Boolean validateAcceptedMetrics() {
+		return metricsOtp.validate( validCode );
+	}
+
+	@Benchmark
+	public Boolean validateRejectedMetrics() {
+		return metricsOtp.validate( invalidCode );
+	}
+
+	@Benchmark
+	public Boolean validateAcceptedDriftTable() {
+		return driftOtp.validate( validCode );
+	}
+
+	@Benchmark
+	public Boolean validateRejectedDriftTable() {
+		return driftOtp.validate( invalidCode );
+	}
+
+	@Benchmark
+	public Boolean validateRejectedCounter() {
+		return counterOtp.validate( invalidCode );
+	}
+
+	@Benchmark
+	public String getOTPBuiltInHmac() {
+		return builtInOtp.getOTP();
+	}
+
+	@Benchmark
+	public Boolean validateRejectedBuiltInHmac() {
+		return builtInOtp.validate( invalidCode );
+	}
+
+	@Benchmark
+	@OperationsPerInvocation( _BATCH_SIZE )
+	public BitSet validateRejectedBatch() {
+		return batchValidator.validate( batchOtps, batchCodes );
+	}
+
+	@Benchmark
+	@OperationsPerInvocation( _BATCH_SIZE )
+	public BitSet validateRejectedBatchBuiltInHmac() {
+		return batchValidator.validate( builtInBatchOtps, batchCodes );
+	}
+}
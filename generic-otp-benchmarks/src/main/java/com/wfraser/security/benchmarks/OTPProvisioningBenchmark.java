@@ -0,0 +1,137 @@
+package com.wfraser.security.benchmarks;
+
+import java.io.OutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.wfraser.security.enrollment.OTPQRFormat;
+import com.wfraser.security.enrollment.OTPQRRenderer;
+import com.wfraser.security.enrollment.OTPQRUtils;
+import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.otp.OTPChallengeStore;
+import com.wfraser.security.otp.OTPImplementation;
+import com.wfraser.security.otp.OTPUserCredentialProvider;
+import com.wfraser.security.otp.OTPValidationEngine;
+import com.wfraser.security.utils.OTPKeyGenerator;
+import com.wfraser.security.utils.OTPUtils;
+
+/**
+ * OTPProvisioningBenchmark measures the per user set up costs, creating
+ * an {@link OTPImplementation} cold and warm, decoding the secret key and the
+ * {@link OTPUtils} and {@link OTPQRUtils} enrollment calls
+ * 
+ * The cold path builds the credential and the implementation on every call, 
+ * the warm path looks the user up in an {@link OTPValidationEngine} cache.
+ * Bulk key generation is reported per key. QR codes are measured through the
+ * cached default renderer and an uncached one, as PNG and SVG. Sent codes
+ * are issued and verified against an {@link OTPChallengeStore} already
+ * holding a million pending challenges.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class OTPProvisioningBenchmark {
+
+	private static final int _PENDING_CHALLENGES = 1 << 20;
+
+	private OTPUserCredentialProvider user;
+	private OTPValidationEngine engine;
+	private String url;
+	private OTPKeyGenerator keyGenerator;
+	private byte[] keyBuffer;
+	private OTPQRRenderer uncachedRenderer;
+	private OTPChallengeStore challenges;
+	private String[] challengeUsers;
+
+	@Setup
+	public void setup() throws OTPGenericException {
+		user = OTPUserCredentialProvider.createAuthenticatorUserObject( OTPImplementationBenchmark._SECRET_KEY, 
+				OTPImplementationBenchmark._USER_ID, OTPImplementationBenchmark._COMPANY, 2 );
+		engine = OTPValidationEngine.createInstance( userID -> user, 16, 1, TimeUnit.HOURS );
+		url = OTPUtils.getAuthenticatorURL( user );
+		keyGenerator = OTPKeyGenerator.getDefault();
+		keyBuffer = new byte[1000 * keyGenerator.getKeyLength()];
+		uncachedRenderer = OTPQRRenderer.createInstance( 0, 0, TimeUnit.SECONDS );
+		challenges = OTPChallengeStore.createInstance( _PENDING_CHALLENGES * 2, 10, TimeUnit.MINUTES );
+		challengeUsers = new String[_PENDING_CHALLENGES];
+		for( int i = 0; i < challengeUsers.length; i++ )
+		{
+			challengeUsers[i] = OTPImplementationBenchmark._USER_ID + i;
+			challenges.issue( challengeUsers[i] );
+		}
+	}
+
+	@Benchmark
+	public OTPImplementation createInstanceCold() throws OTPGenericException {
+		return OTPImplementation.createInstance( OTPUserCredentialProvider.createAuthenticatorUserObject( 
+				OTPImplementationBenchmark._SECRET_KEY, OTPImplementationBenchmark._USER_ID, OTPImplementationBenchmark._COMPANY, 2 ) );
+	}
+
+	@Benchmark
+	public OTPImplementation createInstanceWarm() throws OTPGenericException {
+		return engine.getInstance( OTPImplementationBenchmark._USER_ID );
+	}
+
+	@Benchmark
+	public byte[] getSecretByteArray() {
+		return user.getSecretByteArray();
+	}
+
+	@Benchmark
+	public String generateSecretKey() {
+		return OTPUtils.generateSecretKey();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation( 1000 )
+	public byte[] generateKeysBulk() {
+		keyGenerator.generateKeys( keyBuffer, 0, 1000 );
+		return keyBuffer;
+	}
+
+	@Benchmark
+	public String getAuthenticatorURL() throws OTPGenericException {
+		return OTPUtils.getAuthenticatorURL( user );
+	}
+
+	@Benchmark
+	public void getAuthenticatorQRCode() throws OTPGenericException {
+		OTPQRUtils.getAuthenticatorQRCode( url, OutputStream.nullOutputStream(), 150 );
+	}
+
+	@Benchmark
+	public void getAuthenticatorQRCodeUncached() throws OTPGenericException {
+		uncachedRenderer.render( url, 150, OTPQRFormat.PNG, OutputStream.nullOutputStream() );
+	}
+
+	@Benchmark
+	public String getAuthenticatorQRCodeSVG() throws OTPGenericException {
+		return OTPQRUtils.getAuthenticatorQRCodeSVG( url, 150 );
+	}
+
+	@Benchmark
+	public String getAuthenticatorQRCodeSVGUncached() throws OTPGenericException {
+		return uncachedRenderer.toSVG( url, 150 );
+	}
+
+	@Benchmark
+	public boolean issueAndVerifyChallenge() throws OTPGenericException {
+		final String userID = challengeUsers[ThreadLocalRandom.current().nextInt( challengeUsers.length )];
+		return challenges.verify( userID, challenges.issue( userID ) );
+	}
+}
@@ -0,0 +1,166 @@
+package com.wfraser.security.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * OTPStartupBenchmark measures how quickly a fresh JVM does its first piece
+ * of OTP work and how much memory it takes, for a validation only service
+ * using the core module and for one that also renders enrollment QR codes
+ *
+ * Usage: <code>java -cp target/benchmarks.jar com.wfraser.security.benchmarks.OTPStartupBenchmark [resultDirectory] [javaExecutable]</code>
+ *
+ * Each mode of {@link OTPStartupProbe} is started <code>-Dotp.bench.startups</code>
+ * times (10 by default) and the medians of the time from starting the process
+ * to the work being done and of the peak resident memory are reported, with
+ * the number of classes loaded counted from one further run with class load
+ * logging. Results are written to <code>startup.json</code> in the result
+ * directory. The probe runs from this jar but loads only the classes its mode
+ * touches, so the validate mode measures the core alone. Pass the java of a
+ * jlinked runtime to measure the core in it; modes the runtime lacks the
+ * modules for are reported as failed.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPStartupBenchmark {
+
+	private static final String[] _MODES = { "validate", "enroll" };
+
+	private OTPStartupBenchmark() {
+	}
+
+	public static void main( final String[] args ) throws IOException, InterruptedException {
+		final File resultDirectory = new File( args.length > 0 ? args[0] : "target/jmh-results" );
+		if( !resultDirectory.isDirectory() && !resultDirectory.mkdirs() )
+			throw new IllegalArgumentException( "Can not create " + resultDirectory );
+		run( resultDirectory, args.length > 1 ? args[1] : defaultJava() );
+	}
+
+	/**
+	 * Runs every mode and writes startup.json
+	 *
+	 * @param resultDirectory	the {@link File} directory to write to
+	 * @param java				the String path of the java executable to start
+	 *
+	 * @throws IOException when the probe can not be started or the results written
+	 * @throws InterruptedException when interrupted waiting for a probe
+	 */
+	static void run( final File resultDirectory, final String java ) throws IOException, InterruptedException {
+		final int startups = Integer.getInteger( "otp.bench.startups", 10 );
+		final StringBuilder json = new StringBuilder( "[" );
+		for( String mode : _MODES )
+		{
+			final List<Long> millis = new ArrayList<>();
+			final List<Long> resident = new ArrayList<>();
+			boolean failed = false;
+			for( int i = 0; i < startups && !failed; i++ )
+			{
+				final long started = System.currentTimeMillis();
+				final String line = probe( java, mode );
+				if( line == null )
+				{
+					failed = true;
+				} else {
+					millis.add( value( line, "done" ) - started );
+					resident.add( value( line, "rss" ) );
+				}
+			}
+			final int classes = failed ? -1 : countLoadedClasses( java, mode );
+			if( json.length() > 1 )
+				json.append( ',' );
+			json.append( "\n\t{ \"mode\": \"" ).append( mode )
+					.append( "\", \"java\": \"" ).append( java.replace( "\\", "\\\\" ) )
+					.append( "\", \"failed\": " ).append( failed )
+					.append( ", \"startupMillis\": " ).append( failed ? -1 : median( millis ) )
+					.append( ", \"peakResidentKiB\": " ).append( failed ? -1 : median( resident ) )
+					.append( ", \"classesLoaded\": " ).append( classes ).append( " }" );
+			System.out.println( failed ? "startup " + mode + ": failed" : "startup " + mode + ": " + median( millis ) + " ms, "
+					+ median( resident ) + " KiB peak resident, " + classes + " classes" );
+		}
+		json.append( "\n]\n" );
+		try( Writer writer = Files.newBufferedWriter( new File( resultDirectory, "startup.json" ).toPath(), StandardCharsets.UTF_8 ) ) {
+			writer.write( json.toString() );
+		}
+	}
+
+	/**
+	 * Starts the probe and waits for it
+	 *
+	 * @param java		the String path of the java executable
+	 * @param mode		the String probe mode
+	 * @param options	the String JVM options added before the class
+	 *
+	 * @return String of the probe's result line, or null when it failed
+	 */
+	private static String probe( final String java, final String mode, final String... options ) throws IOException, InterruptedException {
+		final List<String> command = new ArrayList<>();
+		command.add( java );
+		command.addAll( Arrays.asList( options ) );
+		command.addAll( Arrays.asList( "-cp", System.getProperty( "java.class.path" ), OTPStartupProbe.class.getName(), mode ) );
+		final Process process = new ProcessBuilder( command ).redirectErrorStream( true ).start();
+		String result = null;
+		try( BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream(), StandardCharsets.UTF_8 ) ) ) {
+			String line;
+			while( ( line = reader.readLine() ) != null )
+			{
+				if( line.startsWith( "done=" ) )
+					result = line;
+			}
+		}
+		return process.waitFor() == 0 ? result : null;
+	}
+
+	/**
+	 * Runs the probe once more logging each class loaded
+	 *
+	 * @param java	the String path of the java executable
+	 * @param mode	the String probe mode
+	 *
+	 * @return int of the number of classes loaded, or -1 when the run failed
+	 */
+	private static int countLoadedClasses( final String java, final String mode ) throws IOException, InterruptedException {
+		final File log = File.createTempFile( "otp-classes", ".log" );
+		try {
+			if( probe( java, mode, "-Xlog:class+load=info:file=" + log.getPath() ) == null )
+				return -1;
+			try( Stream<String> lines = Files.lines( log.toPath() ) ) {
+				return (int) lines.count();
+			}
+		} finally {
+			Files.deleteIfExists( log.toPath() );
+		}
+	}
+
+	private static long value( final String line, final String name ) {
+		for( String field : line.split( " " ) )
+		{
+			if( field.startsWith( name + "=" ) )
+				return Long.parseLong( field.substring( name.length() + 1 ) );
+		}
+		return -1;
+	}
+
+	private static long median( final List<Long> values ) {
+		final List<Long> sorted = new ArrayList<>( values );
+		Collections.sort( sorted );
+		return sorted.get( sorted.size() / 2 );
+	}
+
+	static String defaultJava() {
+		return System.getProperty( "java.home" ) + File.separator + "bin" + File.separator + "java";
+	}
+}
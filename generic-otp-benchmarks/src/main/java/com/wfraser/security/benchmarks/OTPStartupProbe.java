@@ -0,0 +1,76 @@
+package com.wfraser.security.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.wfraser.security.enrollment.OTPQRUtils;
+import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.otp.OTPImplementation;
+import com.wfraser.security.otp.OTPUserCredentialProvider;
+import com.wfraser.security.utils.OTPUtils;
+
+/**
+ * OTPStartupProbe is started in a fresh JVM by {@link OTPStartupBenchmark}
+ * to do the first piece of work a service does after starting, then report
+ * when it finished and the peak resident memory of the process
+ *
+ * Usage: <code>OTPStartupProbe validate|enroll</code>
+ *
+ * <code>validate</code> creates one user and validates a code, touching only
+ * the core module. <code>enroll</code> also builds the otpauth URL and renders
+ * its PNG QR code through the enrollment module, loading ZXing and AWT. The
+ * probe prints one line, <code>done=&lt;epoch millis&gt; rss=&lt;KiB&gt;</code>,
+ * with rss -1 where /proc is not available. It holds no JMH references so
+ * nothing else is loaded.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPStartupProbe {
+
+	private static final Path _STATUS = Paths.get( "/proc/self/status" );
+	private static final String _PEAK_RSS = "VmHWM:";
+
+	private OTPStartupProbe() {
+	}
+
+	public static void main( final String[] args ) throws OTPGenericException, IOException {
+		final OTPUserCredentialProvider user = OTPUserCredentialProvider.createAuthenticatorUserObject( OTPImplementationBenchmark._SECRET_KEY,
+				OTPImplementationBenchmark._USER_ID, OTPImplementationBenchmark._COMPANY, 2 );
+		final OTPImplementation otp = OTPImplementation.createInstance( user );
+		if( !otp.validate( otp.getOTP() ) )
+			throw new IllegalStateException( "code was not accepted" );
+		if( args.length > 0 && "enroll".equals( args[0] ) )
+		{
+			OTPQRUtils.getAuthenticatorQRCode( OTPUtils.getAuthenticatorURL( user ), new ByteArrayOutputStream(), 150 );
+		}
+		final long done = System.currentTimeMillis();
+		System.out.println( "done=" + done + " rss=" + peakResidentKiB() );
+	}
+
+	/**
+	 * Reads the peak resident set size of this process
+	 *
+	 * @return long of the peak in KiB, or -1 when unknown
+	 */
+	private static long peakResidentKiB() {
+		if( !Files.isReadable( _STATUS ) )
+			return -1;
+		try {
+			for( String line : Files.readAllLines( _STATUS ) )
+			{
+				if( line.startsWith( _PEAK_RSS ) )
+					return Long.parseLong( line.substring( _PEAK_RSS.length() ).replace( "kB", "" ).trim() );
+			}
+		} catch ( IOException | NumberFormatException e ) {
+			return -1;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,81 @@
+package com.wfraser.security.enrollment;
+
+import com.wfraser.security.otp.OTPUserCredentialProvider;
+
+/**
+ * OTPEnrollment is the output of {@link OTPEnrollmentPipeline} for one user,
+ * the new credentials with their otpauth URL and, when requested, QR code
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPEnrollment {
+
+	private final OTPUserCredentialProvider credential;
+	private final String url;
+	private final OTPQRFormat format;
+	private final byte[] qrCode;
+
+	/**
+	 * Class Constructor
+	 *
+	 * @param credential	the {@link OTPUserCredentialProvider} of the new user
+	 * @param url			the String otpauth URL
+	 * @param format		the {@link OTPQRFormat} of the QR code, or null
+	 * @param qrCode		the byte[] of the rendered QR code, or null
+	 */
+	OTPEnrollment( final OTPUserCredentialProvider credential, final String url, final OTPQRFormat format, final byte[] qrCode ) {
+		this.credential = credential;
+		this.url = url;
+		this.format = format;
+		this.qrCode = qrCode;
+	}
+
+	/**
+	 * Getter for the User's ID
+	 *
+	 * @return the String of the User's ID
+	 */
+	public String getUserID() {
+		return credential.getUserID();
+	}
+
+	/**
+	 * Getter for the new credentials, to be stored by the application
+	 *
+	 * @return the {@link OTPUserCredentialProvider} of the user
+	 */
+	public OTPUserCredentialProvider getCredential() {
+		return credential;
+	}
+
+	/**
+	 * Getter for the otpauth URL
+	 *
+	 * @return the String of the URL
+	 */
+	public String getURL() {
+		return url;
+	}
+
+	/**
+	 * Getter for the format of the QR code
+	 *
+	 * @return the {@link OTPQRFormat} or null when no QR code was rendered
+	 */
+	public OTPQRFormat getQRFormat() {
+		return format;
+	}
+
+	/**
+	 * Getter for the rendered QR code
+	 *
+	 * @return the byte[] of the QR code or null when no QR code was rendered
+	 */
+	public byte[] getQRCode() {
+		return qrCode;
+	}
+}
@@ -0,0 +1,235 @@
+package com.wfraser.security.enrollment;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.otp.OTPAlgorithm;
+import com.wfraser.security.otp.OTPUserCredentialProvider;
+import com.wfraser.security.utils.OTPUtils;
+
+/**
+ * OTPEnrollmentPipeline enrolls a stream of users in bulk, generating each
+ * user's key, otpauth URL and QR code in parallel and handing them to an
+ * {@link OTPEnrollmentSink} as they are ready
+ *
+ * User IDs are read in batches, each batch enrolled on one of a fixed number
+ * of worker threads. Reading stops while two batches per worker are in flight,
+ * so the pipeline holds at most one rendered QR code per worker however long
+ * the stream, and a slow sink slows the reading of user IDs rather than
+ * filling memory. The sink is called by one worker at a time.
+ *
+ * QR codes are rendered without a cache, as every URL holds a new secret key
+ * and is only rendered once, so the encoded codes do not stay in memory.
+ *
+ * Pipelines are immutable, each <code>with</code> method returning a copy,
+ * and may be reused for any number of runs.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPEnrollmentPipeline {
+
+	public static final int _DEFAULT_QR_SIZE = 200;
+	public static final int _DEFAULT_BATCH_SIZE = 64;
+
+	private static final OTPQRRenderer _RENDERER = OTPQRRenderer.createInstance( 0, 0, TimeUnit.SECONDS );
+
+	private final String company;
+	private final int steps;
+	private final OTPAlgorithm algorithm;
+	private final int digits;
+	private final int period;
+	private final OTPQRFormat format;
+	private final int heightAndWidth;
+	private final int parallelism;
+	private final int batchSize;
+
+	/**
+	 * Creates a pipeline enrolling users of the given company with the default
+	 * algorithm, code and step length, rendering {@value #_DEFAULT_QR_SIZE} pixel
+	 * PNG QR codes on one worker per processor
+	 *
+	 * @param company		the String for the company name
+	 * @param steps			the int for the number of steps to be valid for
+	 *
+	 * @return instance of {@link OTPEnrollmentPipeline}
+	 *
+	 * @throws OTPGenericException when the company is blank
+	 */
+	public static OTPEnrollmentPipeline createInstance( final String company, final int steps ) throws OTPGenericException {
+		if( company == null || company.equals( "" ) )
+			throw new OTPGenericException( OTPGenericException._USER_AND_KEY_BLANK );
+		return new OTPEnrollmentPipeline( company, steps, OTPUserCredentialProvider._DEFAULT_ALGORITHM, OTPUserCredentialProvider._DEFAULT_DIGITS,
+				OTPUserCredentialProvider._DEFAULT_PERIOD, OTPQRFormat.PNG, _DEFAULT_QR_SIZE,
+				Math.max( 1, Runtime.getRuntime().availableProcessors() ), _DEFAULT_BATCH_SIZE );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 */
+	private OTPEnrollmentPipeline( final String company, final int steps, final OTPAlgorithm algorithm, final int digits, final int period,
+			final OTPQRFormat format, final int heightAndWidth, final int parallelism, final int batchSize ) {
+		this.company = company;
+		this.steps = steps;
+		this.algorithm = algorithm;
+		this.digits = digits;
+		this.period = period;
+		this.format = format;
+		this.heightAndWidth = heightAndWidth;
+		this.parallelism = parallelism;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the algorithm, code length and step length of new users
+	 *
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 *
+	 * @return a copy of the pipeline with the given parameters
+	 */
+	public OTPEnrollmentPipeline withAlgorithm( final OTPAlgorithm algorithm, final int digits, final int period ) {
+		return new OTPEnrollmentPipeline( company, steps, algorithm, digits, period, format, heightAndWidth, parallelism, batchSize );
+	}
+
+	/**
+	 * Sets the format and size of the QR codes rendered
+	 *
+	 * @param format			the {@link OTPQRFormat} to render, or null to not render QR codes
+	 * @param heightAndWidth	the int size of the code in pixels
+	 *
+	 * @return a copy of the pipeline with the given QR codes
+	 */
+	public OTPEnrollmentPipeline withQRCode( final OTPQRFormat format, final int heightAndWidth ) {
+		return new OTPEnrollmentPipeline( company, steps, algorithm, digits, period, format, heightAndWidth, parallelism, batchSize );
+	}
+
+	/**
+	 * Sets the number of worker threads and the number of users each enrolls at a time
+	 *
+	 * @param parallelism	the int number of worker threads
+	 * @param batchSize		the int number of users per batch
+	 *
+	 * @return a copy of the pipeline with the given parallelism
+	 */
+	public OTPEnrollmentPipeline withParallelism( final int parallelism, final int batchSize ) {
+		if( parallelism < 1 || batchSize < 1 )
+			throw new IllegalArgumentException( "parallelism and batchSize must be positive" );
+		return new OTPEnrollmentPipeline( company, steps, algorithm, digits, period, format, heightAndWidth, parallelism, batchSize );
+	}
+
+	/**
+	 * Enrolls every user in the stream
+	 *
+	 * @param userIDs	the {@link Stream} of User IDs, read once
+	 * @param sink		the {@link OTPEnrollmentSink} receiving each enrollment, not closed by the pipeline
+	 *
+	 * @return long of the number of users enrolled
+	 *
+	 * @throws OTPGenericException when a user can not be enrolled or the sink fails, after the batches in flight finish
+	 */
+	public long enroll( final Stream<String> userIDs, final OTPEnrollmentSink sink ) throws OTPGenericException {
+		return enroll( userIDs.iterator(), sink );
+	}
+
+	/**
+	 * Enrolls every user returned by the iterator
+	 *
+	 * @param userIDs	the {@link Iterator} of User IDs
+	 * @param sink		the {@link OTPEnrollmentSink} receiving each enrollment, not closed by the pipeline
+	 *
+	 * @return long of the number of users enrolled
+	 *
+	 * @throws OTPGenericException when a user can not be enrolled or the sink fails, after the batches in flight finish
+	 */
+	public long enroll( final Iterator<String> userIDs, final OTPEnrollmentSink sink ) throws OTPGenericException {
+		final int maxInFlight = parallelism * 2;
+		final Semaphore inFlight = new Semaphore( maxInFlight );
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final LongAdder enrolled = new LongAdder();
+		final Object sinkLock = new Object();
+		final AtomicInteger threads = new AtomicInteger();
+		final ExecutorService workers = Executors.newFixedThreadPool( parallelism, runnable -> {
+			final Thread thread = new Thread( runnable, "otp-enroll-" + threads.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		try {
+			while( failure.get() == null && userIDs.hasNext() )
+			{
+				final List<String> batch = new ArrayList<>( batchSize );
+				while( batch.size() < batchSize && userIDs.hasNext() )
+				{
+					batch.add( userIDs.next() );
+				}
+				inFlight.acquire();
+				workers.execute( () -> {
+					try {
+						for( String userID : batch )
+						{
+							if( failure.get() != null )
+								return;
+							final OTPEnrollment enrollment = enroll( userID );
+							synchronized( sinkLock ) {
+								sink.write( enrollment );
+							}
+							enrolled.increment();
+						}
+					} catch( Throwable t ) {
+						failure.compareAndSet( null, t );
+					} finally {
+						inFlight.release();
+					}
+				} );
+			}
+			inFlight.acquire( maxInFlight );
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			failure.compareAndSet( null, e );
+		} finally {
+			workers.shutdownNow();
+		}
+		if( failure.get() != null )
+		{
+			final Throwable cause = failure.get();
+			if( cause instanceof OTPGenericException )
+				throw (OTPGenericException) cause;
+			throw new OTPGenericException( OTPGenericException._ERROR_ENROLLING, cause );
+		}
+		return enrolled.sum();
+	}
+
+	/**
+	 * Enrolls one user
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return {@link OTPEnrollment} of the user
+	 *
+	 * @throws OTPGenericException when the user can not be enrolled
+	 */
+	public OTPEnrollment enroll( final String userID ) throws OTPGenericException {
+		final OTPUserCredentialProvider credential = OTPUserCredentialProvider.createNewAuthenticatorUserObject( userID, steps, company, algorithm, digits, period );
+		final String url = OTPUtils.getAuthenticatorURL( credential );
+		if( format == null )
+			return new OTPEnrollment( credential, url, null, null );
+		final ByteArrayOutputStream image = new ByteArrayOutputStream( 1024 );
+		_RENDERER.render( url, heightAndWidth, format, image );
+		return new OTPEnrollment( credential, url, format, image.toByteArray() );
+	}
+}
@@ -0,0 +1,175 @@
+package com.wfraser.security.enrollment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * OTPEnrollmentSink receives each {@link OTPEnrollment} produced by
+ * {@link OTPEnrollmentPipeline} as soon as it is ready
+ *
+ * The pipeline never calls {@link #write(OTPEnrollment)} from two threads
+ * at once, so implementations need not be thread safe. The zip and directory
+ * sinks write, per user, the QR code as <code>&lt;user&gt;.&lt;extension&gt;</code>
+ * and the otpauth URL as <code>&lt;user&gt;.url</code>, with characters other
+ * than letters, digits, '.', '-', '_' and '@' in the user's ID replaced by '_'.
+ * When any character is replaced, '~' and 16 hex digits of the SHA-256 of the
+ * ID are appended, so IDs such as "a/b", "a:b" and "a_b" get distinct names.
+ * Should two users of one sink still share a name, as when an ID is enrolled
+ * twice, the sink fails rather than overwriting the first user's files.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+@FunctionalInterface
+public interface OTPEnrollmentSink extends Closeable {
+
+	/**
+	 * Writes the enrollment of one user
+	 *
+	 * @param enrollment	the {@link OTPEnrollment} to write
+	 *
+	 * @throws IOException when the enrollment can not be written
+	 */
+	void write( OTPEnrollment enrollment ) throws IOException;
+
+	@Override
+	default void close() throws IOException {
+
+	}
+
+	/**
+	 * Creates a sink writing a zip archive to the given stream. Closing the
+	 * sink finishes the archive but leaves the stream open
+	 *
+	 * @param outputStream	the {@link OutputStream} to write the archive to
+	 *
+	 * @return {@link OTPEnrollmentSink} of the archive
+	 */
+	static OTPEnrollmentSink zip( final OutputStream outputStream ) {
+		final ZipOutputStream zip = new ZipOutputStream( outputStream, StandardCharsets.UTF_8 );
+		final Set<String> written = new HashSet<>();
+		return new OTPEnrollmentSink() {
+			@Override
+			public void write( final OTPEnrollment enrollment ) throws IOException {
+				final String name = uniqueFileName( enrollment.getUserID(), written );
+				zip.putNextEntry( new ZipEntry( name + ".url" ) );
+				zip.write( enrollment.getURL().getBytes( StandardCharsets.UTF_8 ) );
+				zip.closeEntry();
+				if( enrollment.getQRCode() != null )
+				{
+					zip.putNextEntry( new ZipEntry( name + "." + enrollment.getQRFormat().getExtension() ) );
+					zip.write( enrollment.getQRCode() );
+					zip.closeEntry();
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				zip.finish();
+				zip.flush();
+			}
+		};
+	}
+
+	/**
+	 * Creates a sink writing files into the given directory, creating it when needed
+	 *
+	 * @param directory		the {@link Path} of the directory
+	 *
+	 * @return {@link OTPEnrollmentSink} of the directory
+	 *
+	 * @throws IOException when the directory can not be created
+	 */
+	static OTPEnrollmentSink directory( final Path directory ) throws IOException {
+		Files.createDirectories( directory );
+		final Set<String> written = new HashSet<>();
+		return enrollment -> {
+			final String name = uniqueFileName( enrollment.getUserID(), written );
+			Files.write( directory.resolve( name + ".url" ), enrollment.getURL().getBytes( StandardCharsets.UTF_8 ) );
+			if( enrollment.getQRCode() != null )
+				Files.write( directory.resolve( name + "." + enrollment.getQRFormat().getExtension() ), enrollment.getQRCode() );
+		};
+	}
+
+	/**
+	 * Gets the file name of a user, checking no earlier user of the sink had it
+	 *
+	 * @param userID	the String for the User's ID
+	 * @param written	the {@link Set} of names already used by the sink
+	 *
+	 * @return String of the file name without extension
+	 *
+	 * @throws IOException when the name was already used
+	 */
+	private static String uniqueFileName( final String userID, final Set<String> written ) throws IOException {
+		final String name = fileName( userID );
+		if( !written.add( name ) )
+			throw new IOException( "enrollment file name already written: " + name );
+		return name;
+	}
+
+	/**
+	 * Makes a user's ID safe to use as a file name, appending a hash of 
+	 * the ID when any character had to be replaced
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return String of the file name without extension
+	 */
+	static String fileName( final String userID ) {
+		final char[] name = userID.toCharArray();
+		boolean replaced = name.length == 0;
+		for( int i = 0; i < name.length; i++ )
+		{
+			final char c = name[i];
+			if( !( ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) || ( c >= '0' && c <= '9' )
+					|| c == '.' || c == '-' || c == '_' || c == '@' ) )
+			{
+				name[i] = '_';
+				replaced = true;
+			}
+		}
+		if( name.length > 0 && name[0] == '.' )
+		{
+			name[0] = '_';
+			replaced = true;
+		}
+		return replaced ? new String( name ) + '~' + idHash( userID ) : new String( name );
+	}
+
+	/**
+	 * Gets the first 8 bytes of the SHA-256 of a user's ID in hex
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return String of 16 hex digits
+	 */
+	private static String idHash( final String userID ) {
+		final byte[] digest;
+		try {
+			digest = MessageDigest.getInstance( "SHA-256" ).digest( userID.getBytes( StandardCharsets.UTF_8 ) );
+		} catch( NoSuchAlgorithmException e ) {
+			throw new IllegalStateException( e );
+		}
+		final char[] hex = new char[16];
+		for( int i = 0; i < 8; i++ )
+		{
+			hex[i * 2] = Character.forDigit( ( digest[i] >> 4 ) & 0xf, 16 );
+			hex[i * 2 + 1] = Character.forDigit( digest[i] & 0xf, 16 );
+		}
+		return new String( hex );
+	}
+}
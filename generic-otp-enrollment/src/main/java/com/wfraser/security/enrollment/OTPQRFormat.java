@@ -0,0 +1,51 @@
+package com.wfraser.security.enrollment;
+
+/**
+ * OTPQRFormat lists the output formats of {@link OTPQRRenderer}
+ *
+ * <ul>
+ * <li> <code>PNG</code> a PNG image of the requested size, encoded through AWT
+ * <li> <code>SVG</code> an SVG document of one path, scaled to the requested size by the viewer
+ * <li> <code>MATRIX</code> the raw modules, a big endian int width and height
+ * 		followed by each row packed eight modules to a byte, most significant bit first,
+ * 		with a set bit for a dark module
+ * </ul>
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public enum OTPQRFormat {
+
+	PNG( "png", "image/png" ),
+	SVG( "svg", "image/svg+xml" ),
+	MATRIX( "qrm", "application/octet-stream" );
+
+	private final String extension;
+	private final String mediaType;
+
+	private OTPQRFormat( final String extension, final String mediaType ) {
+		this.extension = extension;
+		this.mediaType = mediaType;
+	}
+
+	/**
+	 * Getter for the file extension of the format
+	 *
+	 * @return the String extension without a leading dot
+	 */
+	public String getExtension() {
+		return extension;
+	}
+
+	/**
+	 * Getter for the media type of the format
+	 *
+	 * @return the String media type
+	 */
+	public String getMediaType() {
+		return mediaType;
+	}
+}
@@ -0,0 +1,379 @@
+package com.wfraser.security.enrollment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.client.j2se.MatrixToImageWriter;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.utils.OTPBoundedCache;
+
+/**
+ * OTPQRRenderer renders otpauth URLs as QR codes in several {@link OTPQRFormat}s
+ *
+ * PNG images are scaled to the requested size and encoded through AWT. SVG
+ * and the raw module matrix are built from the QR modules alone, one unit per
+ * module, and never touch AWT, making them far cheaper to produce. The
+ * caller's {@link OutputStream} is never closed, so a response can be
+ * streamed directly.
+ *
+ * Encoded {@link BitMatrix} results are kept in a bounded {@link OTPBoundedCache}
+ * by URL and size, so a user reloading their enrollment page does not pay for
+ * encoding again. As an otpauth URL carries the user's secret, entries expire
+ * a short time after they are written.
+ *
+ * Instances are thread safe.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPQRRenderer {
+
+	/*
+	 *	Quiet zone around the code in modules, as required by ISO 18004
+	 */
+	private static final int _MARGIN = 4;
+
+	private static final Map<EncodeHintType, Object> _MODULE_HINTS = new EnumMap<>( EncodeHintType.class );
+	static {
+		_MODULE_HINTS.put( EncodeHintType.MARGIN, _MARGIN );
+	}
+
+	/*
+	 *	Cache bounds of the default renderer
+	 */
+	public static final int _DEFAULT_CACHE_SIZE = 1024;
+	public static final long _DEFAULT_CACHE_SECONDS = 300;
+
+	private final OTPBoundedCache<MatrixKey, BitMatrix> matrices;
+
+	/**
+	 * Holder for the lazily created default renderer
+	 */
+	private static final class DefaultHolder {
+		static final OTPQRRenderer _INSTANCE = createInstance( _DEFAULT_CACHE_SIZE, _DEFAULT_CACHE_SECONDS, TimeUnit.SECONDS );
+	}
+
+	/**
+	 * Gets the shared renderer, caching up to {@value #_DEFAULT_CACHE_SIZE} 
+	 * codes for {@value #_DEFAULT_CACHE_SECONDS} seconds
+	 *
+	 * @return the default {@link OTPQRRenderer}
+	 */
+	public static OTPQRRenderer getDefault() {
+		return DefaultHolder._INSTANCE;
+	}
+
+	/**
+	 * Creates a renderer with its own cache of encoded codes
+	 *
+	 * @param maximumSize		the int maximum number of codes cached, 0 to not cache
+	 * @param expireAfterWrite	the long time a code is cached for
+	 * @param unit				the {@link TimeUnit} of expireAfterWrite
+	 *
+	 * @return instance of {@link OTPQRRenderer}
+	 */
+	public static OTPQRRenderer createInstance( final int maximumSize, final long expireAfterWrite, final TimeUnit unit ) {
+		return new OTPQRRenderer( maximumSize > 0 ? new OTPBoundedCache<>( maximumSize, expireAfterWrite, unit ) : null );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 *
+	 * @param matrices	the {@link OTPBoundedCache} of encoded codes, or null
+	 */
+	private OTPQRRenderer( final OTPBoundedCache<MatrixKey, BitMatrix> matrices ) {
+		this.matrices = matrices;
+	}
+
+	/**
+	 * Renders a URL as a QR code to the given stream, leaving the stream open
+	 *
+	 * @param url				the String of the otpauth URL
+	 * @param heightAndWidth	the int size of the code in pixels
+	 * @param format			the {@link OTPQRFormat} to write
+	 * @param outputStream		the {@link OutputStream} to write to, which is not closed
+	 *
+	 * @throws OTPGenericException when the URL can not be encoded or the stream can not be written
+	 */
+	public void render( final String url, final int heightAndWidth, final OTPQRFormat format, final OutputStream outputStream ) throws OTPGenericException {
+		try {
+			switch( format ) {
+				case PNG:
+					MatrixToImageWriter.writeToStream( encode( url, heightAndWidth ), "png", outputStream );
+					break;
+				case SVG:
+					final Writer writer = new OutputStreamWriter( outputStream, StandardCharsets.UTF_8 );
+					writer.write( toSVG( encodeModules( url ), heightAndWidth ) );
+					writer.flush();
+					break;
+				default:
+					outputStream.write( toModuleBytes( encodeModules( url ) ) );
+					break;
+			}
+		} catch( IOException | WriterException e ) {
+			throw new OTPGenericException( OTPGenericException._ERROR_GETTING_QRCODE, e );
+		}
+	}
+
+	/**
+	 * Renders a URL as an SVG document
+	 *
+	 * @param url				the String of the otpauth URL
+	 * @param heightAndWidth	the int displayed size in pixels
+	 *
+	 * @return String of the SVG document
+	 *
+	 * @throws OTPGenericException when the URL can not be encoded
+	 */
+	public String toSVG( final String url, final int heightAndWidth ) throws OTPGenericException {
+		try {
+			return toSVG( encodeModules( url ), heightAndWidth );
+		} catch( WriterException e ) {
+			throw new OTPGenericException( OTPGenericException._ERROR_GETTING_QRCODE, e );
+		}
+	}
+
+	/**
+	 * Renders a URL as a base64 data URI, ready for the src of an HTML image
+	 *
+	 * @param url				the String of the otpauth URL
+	 * @param heightAndWidth	the int size of the code in pixels
+	 * @param format			the {@link OTPQRFormat} of the image, PNG or SVG
+	 *
+	 * @return String of the data URI
+	 *
+	 * @throws OTPGenericException when the URL can not be encoded
+	 */
+	public String toDataURI( final String url, final int heightAndWidth, final OTPQRFormat format ) throws OTPGenericException {
+		if( format == OTPQRFormat.MATRIX )
+			throw new IllegalArgumentException( "data URIs are only supported for images" );
+		final byte[] image;
+		if( format == OTPQRFormat.SVG )
+		{
+			image = toSVG( url, heightAndWidth ).getBytes( StandardCharsets.UTF_8 );
+		} else {
+			final ByteArrayOutputStream png = new ByteArrayOutputStream( 1024 );
+			render( url, heightAndWidth, OTPQRFormat.PNG, png );
+			image = png.toByteArray();
+		}
+		return "data:" + format.getMediaType() + ";base64," + Base64.getEncoder().encodeToString( image );
+	}
+
+	/**
+	 * Renders a URL as the packed modules of the {@link OTPQRFormat#MATRIX} layout
+	 *
+	 * @param url	the String of the otpauth URL
+	 *
+	 * @return byte[] of the packed modules
+	 *
+	 * @throws OTPGenericException when the URL can not be encoded
+	 */
+	public byte[] toModuleBitmap( final String url ) throws OTPGenericException {
+		try {
+			return toModuleBytes( encodeModules( url ) );
+		} catch( WriterException e ) {
+			throw new OTPGenericException( OTPGenericException._ERROR_GETTING_QRCODE, e );
+		}
+	}
+
+	/**
+	 * Gets the modules of a URL's QR code, one unit per module including the quiet zone
+	 *
+	 * @param url	the String of the otpauth URL
+	 *
+	 * @return a copy of the {@link BitMatrix} of modules
+	 *
+	 * @throws OTPGenericException when the URL can not be encoded
+	 */
+	public BitMatrix getModules( final String url ) throws OTPGenericException {
+		try {
+			return encodeModules( url ).clone();
+		} catch( WriterException e ) {
+			throw new OTPGenericException( OTPGenericException._ERROR_GETTING_QRCODE, e );
+		}
+	}
+
+	/**
+	 * Removes every cached code
+	 */
+	public void invalidateAll() {
+		if( matrices != null )
+			matrices.invalidateAll();
+	}
+
+	/**
+	 * Getter for the number of renders that used a cached code
+	 *
+	 * @return long of the hit count
+	 */
+	public long getCacheHitCount() {
+		return matrices == null ? 0 : matrices.getHitCount();
+	}
+
+	/**
+	 * Getter for the number of renders that had to encode the code
+	 *
+	 * @return long of the miss count
+	 */
+	public long getCacheMissCount() {
+		return matrices == null ? 0 : matrices.getMissCount();
+	}
+
+	/**
+	 * Encodes a URL scaled to the given size. The result may be
+	 * cached and must not be modified
+	 *
+	 * @throws WriterException
+	 */
+	BitMatrix encode( final String url, final int heightAndWidth ) throws WriterException {
+		return cached( url, heightAndWidth );
+	}
+
+	/**
+	 * Encodes a URL at one unit per module, including the quiet zone. 
+	 * The result may be cached and must not be modified
+	 *
+	 * @throws WriterException
+	 */
+	BitMatrix encodeModules( final String url ) throws WriterException {
+		return cached( url, 0 );
+	}
+
+	/**
+	 * Gets an encoded code from the cache, encoding it on a miss. A size
+	 * of 0 encodes at one unit per module
+	 *
+	 * @throws WriterException
+	 */
+	private BitMatrix cached( final String url, final int heightAndWidth ) throws WriterException {
+		final MatrixKey key = matrices == null ? null : new MatrixKey( url, heightAndWidth );
+		if( key != null )
+		{
+			final BitMatrix matrix = matrices.get( key );
+			if( matrix != null )
+				return matrix;
+		}
+		final BitMatrix matrix = heightAndWidth > 0
+				? new MultiFormatWriter().encode( url, BarcodeFormat.QR_CODE, heightAndWidth, heightAndWidth )
+				: new QRCodeWriter().encode( url, BarcodeFormat.QR_CODE, 0, 0, _MODULE_HINTS );
+		if( key != null )
+			matrices.put( key, matrix );
+		return matrix;
+	}
+
+	/**
+	 * Builds an SVG document drawing each horizontal run of dark modules
+	 * as one sub path
+	 *
+	 * @param modules			the {@link BitMatrix} of modules
+	 * @param heightAndWidth	the int displayed size in pixels
+	 *
+	 * @return String of the SVG document
+	 */
+	static String toSVG( final BitMatrix modules, final int heightAndWidth ) {
+		final int width = modules.getWidth();
+		final int height = modules.getHeight();
+		final StringBuilder svg = new StringBuilder( width * height );
+		svg.append( "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" ).append( heightAndWidth )
+			.append( "\" height=\"" ).append( heightAndWidth )
+			.append( "\" viewBox=\"0 0 " ).append( width ).append( ' ' ).append( height )
+			.append( "\" shape-rendering=\"crispEdges\"><rect width=\"100%\" height=\"100%\" fill=\"#fff\"/><path fill=\"#000\" d=\"" );
+		for( int y = 0; y < height; y++ )
+		{
+			int x = 0;
+			while( x < width )
+			{
+				if( !modules.get( x, y ) )
+				{
+					x++;
+					continue;
+				}
+				final int start = x;
+				while( x < width && modules.get( x, y ) )
+				{
+					x++;
+				}
+				svg.append( 'M' ).append( start ).append( ' ' ).append( y )
+					.append( 'h' ).append( x - start ).append( "v1h-" ).append( x - start ).append( 'z' );
+			}
+		}
+		return svg.append( "\"/></svg>" ).toString();
+	}
+
+	/**
+	 * Packs the modules into the {@link OTPQRFormat#MATRIX} layout
+	 *
+	 * @param modules	the {@link BitMatrix} of modules
+	 *
+	 * @return byte[] of the packed modules
+	 */
+	static byte[] toModuleBytes( final BitMatrix modules ) {
+		final int width = modules.getWidth();
+		final int height = modules.getHeight();
+		final int rowBytes = ( width + 7 ) >>> 3;
+		final byte[] bytes = new byte[8 + rowBytes * height];
+		putInt( bytes, 0, width );
+		putInt( bytes, 4, height );
+		for( int y = 0; y < height; y++ )
+		{
+			final int row = 8 + y * rowBytes;
+			for( int x = 0; x < width; x++ )
+			{
+				if( modules.get( x, y ) )
+					bytes[row + ( x >>> 3 )] |= (byte) ( 0x80 >>> ( x & 7 ) );
+			}
+		}
+		return bytes;
+	}
+
+	private static void putInt( final byte[] bytes, final int offset, final int value ) {
+		bytes[offset] = (byte) ( value >>> 24 );
+		bytes[offset + 1] = (byte) ( value >>> 16 );
+		bytes[offset + 2] = (byte) ( value >>> 8 );
+		bytes[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * MatrixKey identifies an encoded code by URL and size
+	 */
+	private static final class MatrixKey {
+
+		private final String url;
+		private final int size;
+
+		MatrixKey( final String url, final int size ) {
+			this.url = url;
+			this.size = size;
+		}
+
+		@Override
+		public boolean equals( final Object other ) {
+			if( !( other instanceof MatrixKey ) )
+				return false;
+			final MatrixKey key = (MatrixKey) other;
+			return key.size == size && key.url.equals( url );
+		}
+
+		@Override
+		public int hashCode() {
+			return url.hashCode() * 31 + size;
+		}
+	}
+}
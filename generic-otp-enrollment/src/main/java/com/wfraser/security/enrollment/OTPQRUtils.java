@@ -0,0 +1,63 @@
+package com.wfraser.security.enrollment;
+
+import java.io.OutputStream;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.utils.OTPUtils;
+
+/**
+ * OTPQRUtils holds the QR Code calls that were part of {@link OTPUtils},
+ * rendering the URL from {@link OTPUtils#getAuthenticatorURL} for an
+ * authenticator app to scan
+ *
+ * Both use {@link OTPQRRenderer#getDefault()}, so the encoded QR Code is
+ * cached for a short time and repeated requests for the same URL skip the
+ * encoding. No lock is held, so QR codes for different users can be
+ * generated in parallel.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPQRUtils {
+
+	/**
+	 * Private constructor to prevent instantiation
+	 */
+	private OTPQRUtils() {
+
+	}
+
+	/**
+	 * Takes a Google Authenticator URL and generates a PNG QR Code representation
+	 * then feeds that representation to the chosen {@link OutputStream}. The output
+	 * stream is left open, so a response can be streamed directly, and must be
+	 * closed by the caller.
+	 *
+	 * @param url				the String of the Google Authenticator URL
+	 * @param outputStream		the chosen {@link OutputStream} type to feed to
+	 * @param heightAndWidth	the chosen hight and width of the QRCode
+	 *
+	 * @throws OTPGenericException
+	 */
+	public static void getAuthenticatorQRCode( String url, OutputStream outputStream, int heightAndWidth ) throws OTPGenericException {
+		OTPQRRenderer.getDefault().render( url, heightAndWidth, OTPQRFormat.PNG, outputStream );
+	}
+
+	/**
+	 * Takes a Google Authenticator URL and generates an SVG QR Code,
+	 * which is far cheaper to produce than a PNG image
+	 *
+	 * @param url				the String of the Google Authenticator URL
+	 * @param heightAndWidth	the chosen hight and width of the QRCode
+	 *
+	 * @return String of the SVG document
+	 *
+	 * @throws OTPGenericException
+	 */
+	public static String getAuthenticatorQRCodeSVG( String url, int heightAndWidth ) throws OTPGenericException {
+		return OTPQRRenderer.getDefault().toSVG( url, heightAndWidth );
+	}
+}
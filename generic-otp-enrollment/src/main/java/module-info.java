@@ -0,0 +1,14 @@
+/*
+ *	QR codes and bulk enrollment for the generic-otp core. ZXing has no
+ *	module descriptor, so it is read as the automatic modules named in its
+ *	manifests, and PNG rendering needs java.desktop for AWT and ImageIO.
+ */
+module com.wfraser.security.enrollment {
+
+	requires transitive com.wfraser.security.otp;
+	requires com.google.zxing;
+	requires com.google.zxing.javase;
+	requires java.desktop;
+
+	exports com.wfraser.security.enrollment;
+}
@@ -0,0 +1,187 @@
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+
+import com.wfraser.security.enrollment.OTPEnrollmentPipeline;
+import com.wfraser.security.enrollment.OTPEnrollmentSink;
+import com.wfraser.security.enrollment.OTPQRFormat;
+import com.wfraser.security.enrollment.OTPQRRenderer;
+import com.wfraser.security.enrollment.OTPQRUtils;
+import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.otp.OTPImplementation;
+import com.wfraser.security.utils.OTPUtils;
+
+import test.entities.OTPUserImpl;
+
+public class OTPEnrollmentTests {
+
+	@Test
+	public void testBulkEnrollment() throws OTPGenericException, IOException
+	{
+		OTPEnrollmentPipeline pipeline = OTPEnrollmentPipeline.createInstance("COMPANYA", 2)
+				.withQRCode(OTPQRFormat.SVG, 150).withParallelism(4, 8);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		OTPEnrollmentSink sink = OTPEnrollmentSink.zip(stream);
+		assertEquals(200, pipeline.enroll(IntStream.range(0, 200).mapToObj(i -> "user" + i), sink));
+		sink.close();
+		Set<String> names = new HashSet<>();
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(stream.toByteArray()))) {
+			ZipEntry entry;
+			while((entry = zip.getNextEntry()) != null)
+			{
+				names.add(entry.getName());
+				String content = new String(zip.readAllBytes(), StandardCharsets.UTF_8);
+				assertTrue(content.startsWith(entry.getName().endsWith(".svg") ? "<svg" : "otpauth://totp/"));
+			}
+		}
+		assertEquals(400, names.size());
+		assertTrue(names.contains("user199.svg"));
+		Path directory = Files.createTempDirectory("otp");
+		try (OTPEnrollmentSink files = OTPEnrollmentSink.directory(directory)) {
+			pipeline.withQRCode(OTPQRFormat.MATRIX, 0).enroll(Arrays.asList("a/b").iterator(), files);
+		}
+		String name = OTPEnrollmentSink.fileName("a/b");
+		assertTrue(name.startsWith("a_b~"));
+		byte[] matrix = Files.readAllBytes(directory.resolve(name + ".qrm"));
+		int width = ((matrix[0] & 0xff) << 24) | ((matrix[1] & 0xff) << 16) | ((matrix[2] & 0xff) << 8) | (matrix[3] & 0xff);
+		assertEquals(8 + ((width + 7) / 8) * width, matrix.length);
+		assertTrue(new String(Files.readAllBytes(directory.resolve(name + ".url")), StandardCharsets.UTF_8).startsWith("otpauth://totp/COMPANYA%3Aa%2Fb"));
+		Files.delete(directory.resolve(name + ".qrm"));
+		Files.delete(directory.resolve(name + ".url"));
+		Files.delete(directory);
+	}
+
+	@Test
+	public void testFileNameClashes() throws OTPGenericException, IOException
+	{
+		OTPEnrollmentPipeline pipeline = OTPEnrollmentPipeline.createInstance("COMPANYA", 2);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		try (OTPEnrollmentSink sink = OTPEnrollmentSink.zip(stream)) {
+			assertEquals(4, pipeline.enroll(Arrays.asList("a/b", "a_b", "a:b", ".a").iterator(), sink));
+		}
+		Set<String> names = new HashSet<>();
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(stream.toByteArray()))) {
+			ZipEntry entry;
+			while((entry = zip.getNextEntry()) != null)
+			{
+				names.add(entry.getName());
+			}
+		}
+		assertEquals(8, names.size());
+		assertTrue(names.contains("a_b.url"));
+		Path directory = Files.createTempDirectory("otp");
+		try (OTPEnrollmentSink files = OTPEnrollmentSink.directory(directory)) {
+			pipeline.enroll(Arrays.asList("USERA", "USERA").iterator(), files);
+			fail("enrolled two users into one file name");
+		} catch (OTPGenericException e) {
+			assertEquals(OTPGenericException._ERROR_ENROLLING, e.getMessage());
+		}
+		assertTrue(Files.exists(directory.resolve("USERA.url")));
+		try (Stream<Path> written = Files.list(directory)) {
+			for (Path file : written.collect(Collectors.toList()))
+			{
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	@Test
+	public void testBarcode() throws OTPGenericException
+	{
+		OTPUserImpl user = new OTPUserImpl(true, false);
+		String barcode =  OTPUtils.getAuthenticatorURL(user.getProvider());
+		FileOutputStream fileOut = null;
+		try {
+			fileOut = new FileOutputStream("C:\\tmp\\temp.png");
+			OTPQRUtils.getAuthenticatorQRCode(barcode, fileOut, 150);
+		} catch (FileNotFoundException e) {
+		} finally {
+			try {
+				fileOut.close();
+			} catch (IOException e) {
+			}
+		}
+		File file = new File("C:\\tmp\\temp.png");
+		assertTrue(file.exists());
+	}
+
+	@Test
+	public void testQRRendering() throws OTPGenericException, IOException
+	{
+		OTPUserImpl user = new OTPUserImpl(true, false);
+		String url = OTPUtils.getAuthenticatorURL(user.getProvider());
+		OTPQRRenderer renderer = OTPQRRenderer.createInstance(16, 1, TimeUnit.MINUTES);
+		boolean[] closed = new boolean[1];
+		ByteArrayOutputStream stream = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		renderer.render(url, 150, OTPQRFormat.PNG, stream);
+		renderer.render(url, 150, OTPQRFormat.PNG, stream);
+		assertFalse(closed[0]);
+		assertEquals(1, renderer.getCacheHitCount());
+		assertTrue(renderer.toDataURI(url, 150, OTPQRFormat.PNG).startsWith("data:image/png;base64,iVBORw0KGgo"));
+		String svg = renderer.toSVG(url, 150);
+		assertTrue(svg.startsWith("<svg") && svg.contains("width=\"150\""));
+		byte[] bitmap = renderer.toModuleBitmap(url);
+		int width = renderer.getModules(url).getWidth();
+		assertEquals(width, bitmap[3] & 0xff);
+		assertEquals(8 + ((width + 7) / 8) * width, bitmap.length);
+		OTPQRUtils.getAuthenticatorQRCode(url, stream, 150);
+		assertFalse(closed[0]);
+	}
+
+	@Test
+	public void testGoogleAuth() throws OTPGenericException {
+
+		OTPUserImpl user = new OTPUserImpl(false, true);
+		String barcode =  OTPUtils.getAuthenticatorURL(user.getProvider());		
+		FileOutputStream fileOut = null;
+		System.out.println(user.getProvider().getSecretKey());
+		try {
+			fileOut = new FileOutputStream("C:\\tmp\\temp.png");
+			OTPQRUtils.getAuthenticatorQRCode(barcode, fileOut, 150);
+		} catch (FileNotFoundException e) {
+		} finally {
+			try {
+				fileOut.close();
+			} catch (IOException e) {
+			}
+		}
+		System.out.println("Open C:\\tmp\\temp.png and scan with google auth");
+		String input = "";
+		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+		try {
+			input = reader.readLine();
+		} catch (IOException e) {
+		}
+		OTPImplementation otp = OTPImplementation.createInstance(user.getProvider());
+		assertTrue(otp.validate(input));
+
+	}
+
+}
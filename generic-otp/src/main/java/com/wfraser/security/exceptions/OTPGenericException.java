@@ -20,6 +20,14 @@ public class OTPGenericException extends Exception {
 	public static final String _ERROR_GETTING_URL = "FATAL: Error in getting URL for Google Authenticator";
 	public static String _ERROR_GETTING_QRCODE = "FATAL: Error in getting QRCode for Google Authenticator";
 	public static String _ERROR_CREATING_OTP_INSTANCE = "FATAL: Error creating instacnce of OTPImplementation";
+	public static final String _ERROR_GENERATING_KEY = "FATAL: Error creating secret key generator";
+	public static final String _INVALID_OTP_CONFIGURATION = "FATAL: OTPUserCredentailProvider algorithm, digits or period not supported.";
+	public static final String _CREDENTIAL_STORE_FULL = "FATAL: Credential store has no free records.";
+	public static final String _ERROR_READING_KEY_STORE = "FATAL: Error reading or writing the key store.";
+	public static final String _INVALID_MASTER_KEY = "FATAL: Master key must be a 128, 192 or 256 bit AES key.";
+	public static final String _ERROR_WRAPPING_KEY = "FATAL: Error wrapping or unwrapping a secret key.";
+	public static final String _ERROR_ENROLLING = "FATAL: Error enrolling users.";
+	public static final String _CHALLENGE_STORE_FULL = "FATAL: Challenge store has no free records.";
 	
 	private static final long serialVersionUID = 5180940924673148608L;
 
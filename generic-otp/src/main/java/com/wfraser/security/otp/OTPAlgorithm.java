@@ -0,0 +1,60 @@
+package com.wfraser.security.otp;
+
+import org.apache.commons.codec.digest.HmacAlgorithms;
+
+/**
+ * OTPAlgorithm lists the HMAC algorithms supported for code generation
+ * as defined by RFC 6238
+ * 
+ * Each algorithm carries the JCE name used to create the Mac and the 
+ * name used for the <code>algorithm</code> parameter of an otpauth URL.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public enum OTPAlgorithm {
+
+	SHA1( HmacAlgorithms.HMAC_SHA_1, "SHA1", 20 ),
+	SHA256( HmacAlgorithms.HMAC_SHA_256, "SHA256", 32 ),
+	SHA512( HmacAlgorithms.HMAC_SHA_512, "SHA512", 64 );
+
+	private final String macName;
+	private final String urlName;
+	private final int keyLength;
+
+	private OTPAlgorithm( final HmacAlgorithms algorithm, final String urlName, final int keyLength ) {
+		this.macName = algorithm.getName();
+		this.urlName = urlName;
+		this.keyLength = keyLength;
+	}
+
+	/**
+	 * Getter for the JCE Mac algorithm name
+	 * 
+	 * @return the String name used with {@link javax.crypto.Mac#getInstance(String)}
+	 */
+	public String getMacName() {
+		return macName;
+	}
+
+	/**
+	 * Getter for the otpauth URL algorithm name
+	 * 
+	 * @return the String name used in the <code>algorithm</code> URL parameter
+	 */
+	public String getUrlName() {
+		return urlName;
+	}
+
+	/**
+	 * Getter for the recommended secret key length, matching the hash output length
+	 * 
+	 * @return the int of the recommended key length in bytes
+	 */
+	public int getKeyLength() {
+		return keyLength;
+	}
+}
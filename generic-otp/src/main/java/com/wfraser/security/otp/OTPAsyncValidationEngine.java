@@ -0,0 +1,296 @@
+package com.wfraser.security.otp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+
+/**
+ * OTPAsyncValidationEngine runs the validation and generation of an
+ * {@link OTPValidationEngine} on an {@link Executor}, returning
+ * {@link CompletableFuture}s so reactive callers never block their own threads
+ * on key lookups, replay stores or throttles
+ *
+ * The default executor runs each call on a virtual thread when the runtime
+ * supports them (Java 21 and later), otherwise on a shared pool of daemon threads.
+ *
+ * Concurrent calls for the same user and step share one computation of the
+ * window codes, each then matching its own code and being recorded with the
+ * replay store on its own, so a burst of attempts for one user costs a single
+ * set of HMACs. Combined with {@link OTPOptions#withCodeWindowCache(boolean)}
+ * the codes are also kept between bursts within the step.
+ *
+ * Futures complete exceptionally with a {@link CompletionException} wrapping
+ * the {@link OTPGenericException} when a user can not be loaded.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPAsyncValidationEngine {
+
+	private final OTPValidationEngine engine;
+	private final Executor executor;
+	private final ConcurrentHashMap<WindowKey, CompletableFuture<int[]>> inflight = new ConcurrentHashMap<>();
+	private final OTPImplementation.WindowSource window = this::coalesce;
+	private final LongAdder coalesced = new LongAdder();
+
+	/**
+	 * Holder for the lazily created default executor
+	 */
+	private static final class DefaultExecutorHolder {
+		static final Executor _INSTANCE = createDefaultExecutor();
+	}
+
+	/**
+	 * Creates an async engine over the given engine using the default executor
+	 *
+	 * @param engine	the {@link OTPValidationEngine} doing the work
+	 *
+	 * @return instance of {@link OTPAsyncValidationEngine}
+	 */
+	public static OTPAsyncValidationEngine createInstance( final OTPValidationEngine engine ) {
+		return createInstance( engine, DefaultExecutorHolder._INSTANCE );
+	}
+
+	/**
+	 * Creates an async engine over the given engine
+	 *
+	 * @param engine	the {@link OTPValidationEngine} doing the work
+	 * @param executor	the {@link Executor} running each call
+	 *
+	 * @return instance of {@link OTPAsyncValidationEngine}
+	 */
+	public static OTPAsyncValidationEngine createInstance( final OTPValidationEngine engine, final Executor executor ) {
+		if( engine == null || executor == null )
+			throw new IllegalArgumentException( "engine and executor are required" );
+		return new OTPAsyncValidationEngine( engine, executor );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 *
+	 * @param engine	the {@link OTPValidationEngine} doing the work
+	 * @param executor	the {@link Executor} running each call
+	 */
+	private OTPAsyncValidationEngine( final OTPValidationEngine engine, final Executor executor ) {
+		this.engine = engine;
+		this.executor = executor;
+	}
+
+	/**
+	 * Validates a code for a user
+	 *
+	 * @param userID	the String for the User's ID
+	 * @param input		the String code submitted by the user
+	 *
+	 * @return {@link CompletableFuture} of true when a valid code was used
+	 */
+	public CompletableFuture<Boolean> validate( final String userID, final String input ) {
+		return verify( userID, input, null ).thenApply( result -> result == OTPValidationResult.ACCEPTED );
+	}
+
+	/**
+	 * Validates a code for a user, reporting why an attempt failed
+	 *
+	 * @param userID	the String for the User's ID
+	 * @param input		the String code submitted by the user
+	 * @param source	the String identifying the source of the attempt, may be null
+	 *
+	 * @return {@link CompletableFuture} of the {@link OTPValidationResult}
+	 */
+	public CompletableFuture<OTPValidationResult> verify( final String userID, final String input, final String source ) {
+		return CompletableFuture.supplyAsync( () -> {
+			try {
+				return engine.verify( userID, input, source, window );
+			} catch( OTPGenericException e ) {
+				throw new CompletionException( e );
+			}
+		}, executor );
+	}
+
+	/**
+	 * Generates the current code for a user
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return {@link CompletableFuture} of the code, or of null when the user is unknown
+	 */
+	public CompletableFuture<String> getOTP( final String userID ) {
+		return CompletableFuture.supplyAsync( () -> {
+			try {
+				final OTPImplementation otp = engine.getInstance( userID );
+				if( otp == null )
+					return null;
+				final long step = otp.currentStep();
+				final int[] codes = coalesce( otp, step );
+				return codes.length > 0 ? otp.formatCode( codes[codes.length - 1] ) : otp.getOTP();
+			} catch( OTPGenericException e ) {
+				throw new CompletionException( e );
+			}
+		}, executor );
+	}
+
+	/**
+	 * Validates a code for a user as a {@link Flow.Publisher} of a single result
+	 *
+	 * @param userID	the String for the User's ID
+	 * @param input		the String code submitted by the user
+	 * @param source	the String identifying the source of the attempt, may be null
+	 *
+	 * @return {@link Flow.Publisher} of the {@link OTPValidationResult}, validating once requested
+	 */
+	public Flow.Publisher<OTPValidationResult> verifyPublisher( final String userID, final String input, final String source ) {
+		return subscriber -> publish( verify( userID, input, source ) ).subscribe( subscriber );
+	}
+
+	/**
+	 * Generates the current code for a user as a {@link Flow.Publisher} of a single code
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return {@link Flow.Publisher} of the code, completing empty when the user is unknown
+	 */
+	public Flow.Publisher<String> getOTPPublisher( final String userID ) {
+		return subscriber -> publish( getOTP( userID ) ).subscribe( subscriber );
+	}
+
+	/**
+	 * Getter for the number of calls that shared window codes computed by another call
+	 *
+	 * @return long of the coalesced call count
+	 */
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * Gets the window codes for a user and step, joining a computation
+	 * already in flight for the same user and step
+	 *
+	 * @param otp	the {@link OTPImplementation} of the user
+	 * @param step	long of the current time step
+	 *
+	 * @return int[] of the window codes
+	 */
+	private int[] coalesce( final OTPImplementation otp, final long step ) {
+		final WindowKey key = new WindowKey( otp, step );
+		final CompletableFuture<int[]> mine = new CompletableFuture<>();
+		final CompletableFuture<int[]> existing = inflight.putIfAbsent( key, mine );
+		if( existing != null )
+		{
+			coalesced.increment();
+			return existing.join();
+		}
+		try {
+			final int[] codes = otp.windowCodes( step );
+			mine.complete( codes );
+			return codes;
+		} catch( RuntimeException e ) {
+			mine.completeExceptionally( e );
+			throw e;
+		} finally {
+			inflight.remove( key, mine );
+		}
+	}
+
+	/**
+	 * Wraps a future as a {@link Flow.Publisher} of at most one item. Nothing
+	 * is signalled until the subscriber requests an item, and a null result
+	 * completes without an item
+	 *
+	 * @param future	the {@link CompletableFuture} to publish
+	 *
+	 * @return {@link Flow.Publisher} of the result
+	 */
+	private static <T> Flow.Publisher<T> publish( final CompletableFuture<T> future ) {
+		return subscriber -> {
+			final AtomicBoolean done = new AtomicBoolean();
+			subscriber.onSubscribe( new Flow.Subscription() {
+				@Override
+				public void request( final long n ) {
+					if( n <= 0 )
+					{
+						if( done.compareAndSet( false, true ) )
+							subscriber.onError( new IllegalArgumentException( "request must be positive" ) );
+						return;
+					}
+					future.whenComplete( ( value, error ) -> {
+						if( !done.compareAndSet( false, true ) )
+							return;
+						if( error != null )
+						{
+							subscriber.onError( error instanceof CompletionException && error.getCause() != null ? error.getCause() : error );
+							return;
+						}
+						if( value != null )
+							subscriber.onNext( value );
+						subscriber.onComplete();
+					} );
+				}
+
+				@Override
+				public void cancel() {
+					done.set( true );
+				}
+			} );
+		};
+	}
+
+	/**
+	 * Creates a virtual thread per task executor when the runtime has one,
+	 * found reflectively as the library targets Java 11, otherwise a cached
+	 * pool of daemon threads
+	 *
+	 * @return the default {@link Executor}
+	 */
+	private static Executor createDefaultExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+		} catch( ReflectiveOperationException | RuntimeException e ) {
+			final AtomicInteger count = new AtomicInteger();
+			return Executors.newCachedThreadPool( runnable -> {
+				final Thread thread = new Thread( runnable, "otp-async-" + count.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			} );
+		}
+	}
+
+	/**
+	 * WindowKey identifies the window of one {@link OTPImplementation} at one step
+	 */
+	private static final class WindowKey {
+
+		private final OTPImplementation otp;
+		private final long step;
+
+		WindowKey( final OTPImplementation otp, final long step ) {
+			this.otp = otp;
+			this.step = step;
+		}
+
+		@Override
+		public boolean equals( final Object other ) {
+			if( !( other instanceof WindowKey ) )
+				return false;
+			final WindowKey key = (WindowKey) other;
+			return key.otp == otp && key.step == step;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode( otp ) * 31 + Long.hashCode( step );
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package com.wfraser.security.otp;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+
+/**
+ * OTPBatchValidator validates many (user, code) pairs in a single call
+ * 
+ * The clock is read once for the whole batch, codes are parsed without 
+ * creating Strings and results are written straight into the words of 
+ * the returned {@link BitSet}. Batches larger than the parallel threshold 
+ * are split on 64 entry boundaries and spread over a {@link ForkJoinPool}, 
+ * each task owning its own words of the result so no synchronisation is needed.
+ * When the Vector API is available, users with the built in HMAC and no code 
+ * window cache have their windows hashed together, the steps of several users 
+ * filling the lanes of one {@link OTPMultiBufferHmac}, while every other user 
+ * is validated on its own.
+ * 
+ * The validator's own clock is the only one read, so it overrides the clock 
+ * each user was created with. Users should share the validator's clock, as 
+ * {@link OTPValidationEngine} ensures by reading both from its {@link OTPOptions}.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPBatchValidator {
+
+	private static final int _DEFAULT_PARALLEL_THRESHOLD = 1024;
+
+	private final ForkJoinPool pool;
+	private final int parallelThreshold;
+	private final OTPClock clock;
+
+	/**
+	 * Creates an instance of {@link OTPBatchValidator} that validates
+	 * on the calling thread only
+	 * 
+	 * @return instance of {@link OTPBatchValidator}
+	 */
+	public static OTPBatchValidator createInstance() {
+		return new OTPBatchValidator( null, Integer.MAX_VALUE, OTPClock.SYSTEM );
+	}
+
+	/**
+	 * Creates an instance of {@link OTPBatchValidator} that validates
+	 * on the calling thread only, reading the time from the given clock
+	 * 
+	 * @param clock		the {@link OTPClock} read once per batch
+	 * 
+	 * @return instance of {@link OTPBatchValidator}
+	 */
+	public static OTPBatchValidator createInstance( final OTPClock clock ) {
+		return new OTPBatchValidator( null, Integer.MAX_VALUE, clock == null ? OTPClock.SYSTEM : clock );
+	}
+
+	/**
+	 * Creates an instance of {@link OTPBatchValidator} that spreads
+	 * batches over the common {@link ForkJoinPool}
+	 * 
+	 * @return instance of {@link OTPBatchValidator}
+	 */
+	public static OTPBatchValidator createParallelInstance() {
+		return new OTPBatchValidator( ForkJoinPool.commonPool(), _DEFAULT_PARALLEL_THRESHOLD, OTPClock.SYSTEM );
+	}
+
+	/**
+	 * Creates an instance of {@link OTPBatchValidator} that spreads
+	 * batches over the given {@link ForkJoinPool}
+	 * 
+	 * @param pool					the {@link ForkJoinPool} to validate on
+	 * @param parallelThreshold		the int batch size above which work is split across the pool
+	 * 
+	 * @return instance of {@link OTPBatchValidator}
+	 * 
+	 * @throws OTPGenericException when the pool is missing or the threshold is not positive
+	 */
+	public static OTPBatchValidator createParallelInstance( final ForkJoinPool pool, final int parallelThreshold ) throws OTPGenericException {
+		return createParallelInstance( pool, parallelThreshold, OTPClock.SYSTEM );
+	}
+
+	/**
+	 * Creates an instance of {@link OTPBatchValidator} that spreads
+	 * batches over the given {@link ForkJoinPool}, reading the time from the given clock
+	 * 
+	 * @param pool					the {@link ForkJoinPool} to validate on
+	 * @param parallelThreshold		the int batch size above which work is split across the pool
+	 * @param clock					the {@link OTPClock} read once per batch
+	 * 
+	 * @return instance of {@link OTPBatchValidator}
+	 * 
+	 * @throws OTPGenericException when the pool is missing or the threshold is not positive
+	 */
+	public static OTPBatchValidator createParallelInstance( final ForkJoinPool pool, final int parallelThreshold, final OTPClock clock ) throws OTPGenericException {
+		if( pool == null || parallelThreshold < 1 )
+			throw new OTPGenericException( OTPGenericException._ERROR_CREATING_OTP_INSTANCE );
+		return new OTPBatchValidator( pool, parallelThreshold, clock == null ? OTPClock.SYSTEM : clock );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 * 
+	 * @param pool					the {@link ForkJoinPool} or null for the calling thread
+	 * @param parallelThreshold		the int batch size above which work is split
+	 * @param clock					the {@link OTPClock} read once per batch
+	 */
+	private OTPBatchValidator( final ForkJoinPool pool, final int parallelThreshold, final OTPClock clock ) {
+		this.pool = pool;
+		this.clock = clock;
+		this.parallelThreshold = Math.max( 64, parallelThreshold );
+	}
+
+	/**
+	 * Validates each code against the {@link OTPImplementation} at the same index
+	 * 
+	 * @param users		the {@link OTPImplementation} per entry, null entries fail validation
+	 * @param inputs	the String code per entry
+	 * 
+	 * @return {@link BitSet} with bit i set when entry i holds a valid code
+	 */
+	public BitSet validate( final OTPImplementation[] users, final String[] inputs ) {
+		if( users.length != inputs.length )
+			throw new IllegalArgumentException( "users and inputs must be the same length" );
+		return run( new Batch() {
+			public OTPImplementation user( int index ) { return users[index]; }
+			public String input( int index ) { return inputs[index]; }
+		}, users.length );
+	}
+
+	/**
+	 * Validates each code against the {@link OTPImplementation} at the same index
+	 * 
+	 * @param users		the {@link OTPImplementation} per entry, null entries fail validation
+	 * @param inputs	the String code per entry
+	 * 
+	 * @return {@link BitSet} with bit i set when entry i holds a valid code
+	 */
+	public BitSet validate( final List<OTPImplementation> users, final List<String> inputs ) {
+		if( users.size() != inputs.size() )
+			throw new IllegalArgumentException( "users and inputs must be the same length" );
+		return validate( users.toArray( new OTPImplementation[0] ), inputs.toArray( new String[0] ) );
+	}
+
+	/**
+	 * Runs the batch on the calling thread or across the pool, at the time of
+	 * this validator's clock rather than that of each user
+	 * 
+	 * @param batch		the {@link Batch} being validated
+	 * @param length	the int number of entries
+	 * 
+	 * @return {@link BitSet} of the results
+	 */
+	private BitSet run( final Batch batch, final int length ) {
+		final long[] words = new long[( length + 63 ) >>> 6];
+		final long now = clock.currentTimeMillis();
+		if( pool == null || length <= parallelThreshold )
+		{
+			validateRange( batch, now, words, 0, length );
+		} else {
+			pool.invoke( new BatchTask( batch, now, words, 0, length ) );
+		}
+		return BitSet.valueOf( words );
+	}
+
+	/**
+	 * Validates the entries [from, to) writing into the result words
+	 * 
+	 * @param batch		the {@link Batch} being validated
+	 * @param now		the long time in milliseconds shared by the batch, used in place of each user's clock
+	 * @param words		the long[] words of the result
+	 * @param from		the int first entry
+	 * @param to		the int entry after the last
+	 */
+	private static void validateRange( final Batch batch, final long now, final long[] words, final int from, final int to ) {
+		final LaneBatch lanes = new LaneBatch( words, from, to );
+		for( int i = from; i < to; i++ )
+		{
+			final OTPImplementation user = batch.user( i );
+			if( user == null )
+				continue;
+			final int code = user.parseCode( batch.input( i ) );
+			if( code < 0 )
+				continue;
+			final long step = user.getStep( now );
+			if( !lanes.add( i, user, code, step ) && user.validate( code, step ) )
+			{
+				words[i >>> 6] |= 1L << i;
+			}
+		}
+		lanes.finish();
+	}
+
+	/**
+	 * Batch gives index based access to the entries being validated
+	 */
+	private interface Batch {
+
+		OTPImplementation user( int index );
+
+		String input( int index );
+	}
+
+	/**
+	 * LaneBatch hashes the windows of users with the built in HMAC across 
+	 * users, loading the steps of each window into the next free lanes and 
+	 * hashing once every lane is loaded. An entry is validated as soon as 
+	 * its whole window is hashed. SHA-1 and SHA-256 users fill separate 
+	 * working sets
+	 */
+	private static final class LaneBatch {
+
+		private final long[] words;
+		private final int from;
+		private final int length;
+		private final boolean available = OTPMultiBufferHmac.isAvailable();
+		private final Lanes[] lanes = new Lanes[2];
+		private OTPImplementation[] users;
+		private int[] codes;
+		private long[] steps;
+		private int[][] windows;
+		private int[] remaining;
+
+		LaneBatch( final long[] words, final int from, final int to ) {
+			this.words = words;
+			this.from = from;
+			this.length = to - from;
+		}
+
+		/**
+		 * Loads the window of an entry into the lanes when the user can share them
+		 * 
+		 * @param index		the int entry
+		 * @param user		the {@link OTPImplementation} of the entry
+		 * @param code		the int code to validate
+		 * @param step		the long current step of the user
+		 * 
+		 * @return 	true - the entry will be validated by the batch
+		 * 			false - the entry must be validated on its own
+		 */
+		boolean add( final int index, final OTPImplementation user, final int code, final long step ) {
+			final OTPMidstateHmac engine = available ? user.laneEngine() : null;
+			if( engine == null )
+				return false;
+			if( users == null )
+			{
+				users = new OTPImplementation[length];
+				codes = new int[length];
+				steps = new long[length];
+				windows = new int[length][];
+				remaining = new int[length];
+			}
+			final int slot = index - from;
+			final int size = user.windowSize();
+			users[slot] = user;
+			codes[slot] = code;
+			steps[slot] = step;
+			windows[slot] = new int[size];
+			remaining[slot] = size;
+			final int kind = engine.sha256 ? 1 : 0;
+			if( lanes[kind] == null )
+			{
+				lanes[kind] = new Lanes( OTPMultiBufferHmac.createInstance( engine ) );
+			}
+			final Lanes set = lanes[kind];
+			final long firstStep = step - size + 1;
+			for( int i = 0; i < size; i++ )
+			{
+				set.buffer.load( set.count, engine, firstStep + i );
+				set.slots[set.count] = slot;
+				set.positions[set.count] = i;
+				if( ++set.count == set.slots.length )
+				{
+					hash( set );
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Hashes the lanes still loaded
+		 */
+		void finish() {
+			for( Lanes set : lanes )
+			{
+				if( set != null && set.count > 0 )
+				{
+					hash( set );
+				}
+			}
+		}
+
+		private void hash( final Lanes set ) {
+			set.buffer.hash( set.count );
+			for( int lane = 0; lane < set.count; lane++ )
+			{
+				final int slot = set.slots[lane];
+				windows[slot][set.positions[lane]] = users[slot].truncate( set.buffer.truncate( lane ) );
+				if( --remaining[slot] == 0 )
+				{
+					validate( slot );
+				}
+			}
+			set.count = 0;
+		}
+
+		private void validate( final int slot ) {
+			final OTPImplementation user = users[slot];
+			user.hmacsComputed( windows[slot].length );
+			if( user.validate( codes[slot], steps[slot], windows[slot] ) )
+			{
+				final int index = from + slot;
+				words[index >>> 6] |= 1L << index;
+			}
+			users[slot] = null;
+			windows[slot] = null;
+		}
+	}
+
+	/**
+	 * Lanes is a multi buffer working set and the entry and window 
+	 * position loaded into each of its lanes
+	 */
+	private static final class Lanes {
+
+		final OTPMultiBufferHmac buffer;
+		final int[] slots;
+		final int[] positions;
+		int count;
+
+		Lanes( final OTPMultiBufferHmac buffer ) {
+			this.buffer = buffer;
+			this.slots = new int[buffer.getLanes()];
+			this.positions = new int[buffer.getLanes()];
+		}
+	}
+
+	/**
+	 * BatchTask splits a range of entries on 64 entry boundaries
+	 * so every leaf owns whole words of the result
+	 */
+	private final class BatchTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient Batch batch;
+		private final long now;
+		private final long[] words;
+		private final int from;
+		private final int to;
+
+		BatchTask( final Batch batch, final long now, final long[] words, final int from, final int to ) {
+			this.batch = batch;
+			this.now = now;
+			this.words = words;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if( to - from <= parallelThreshold )
+			{
+				validateRange( batch, now, words, from, to );
+				return;
+			}
+			final int middle = ( ( from + ( ( to - from ) >>> 1 ) ) + 63 ) & ~63;
+			invokeAll( new BatchTask( batch, now, words, from, middle ), new BatchTask( batch, now, words, middle, to ) );
+		}
+	}
+}
@@ -0,0 +1,509 @@
+package com.wfraser.security.otp;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.utils.OTPKeyGenerator;
+
+/**
+ * OTPChallengeStore issues one time codes to be sent by SMS or email and
+ * verifies them when the user responds, without keeping a secret or an
+ * {@link OTPImplementation} per user
+ *
+ * Each code is the HMAC-SHA256 of a unique issue number under a random key
+ * held only by the store, truncated to the configured digits as in RFC 4226.
+ * A pending challenge is then only the user key, the issue number and the
+ * failed attempts, kept in primitive open addressing tables, one per stripe,
+ * with each stripe guarded by its own lock. Issuing again for a user replaces
+ * the user's pending challenge. Verifying is a single lookup that removes the
+ * challenge when the code matches or the attempts run out.
+ *
+ * The user key is the SipHash-2-4 of the user's ID keyed with random bits
+ * drawn for each store, so an ID sharing another user's key, and with it the
+ * other user's challenge, can not be searched for outside the process.
+ *
+ * Challenges expire on a hashed timer wheel rather than a scheduled task per
+ * challenge. Each stripe's wheel has one bucket per tick, 1/{@value #_TICKS_PER_TTL}
+ * of the time to live, and each bucket is a list threaded through the table
+ * slots, so expiring or removing a challenge never allocates. A stripe's wheel
+ * is advanced by every call on that stripe, and {@link #expire()} advances all
+ * of them for callers that want idle stripes emptied too. A challenge expires
+ * between its time to live and one tick later.
+ *
+ * The number of pending challenges is bounded, so memory is too.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPChallengeStore {
+
+	public static final int _DEFAULT_DIGITS = 6;
+	public static final int _DEFAULT_MAX_ATTEMPTS = 3;
+
+	private static final int _TICKS_PER_TTL = 64;
+	private static final int _MAX_STRIPES = 64;
+	private static final int _MIN_STRIPE_CAPACITY = 16;
+	private static final int[] _DIGITS_POWER = { 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000 };
+
+	private final Stripe[] stripes;
+	private final int stripeShift;
+	private final OTPMidstateHmac engine;
+	private final long seed0 = OTPUserKeys.seed();
+	private final long seed1 = OTPUserKeys.seed();
+	private final OTPClock clock;
+	private final long tickMillis;
+	private final int ttlTicks;
+	private final int digits;
+	private final int modulus;
+	private final int maxAttempts;
+
+	/**
+	 * Creates a store of 6 digit codes allowing 3 attempts, using the system clock
+	 *
+	 * @param maxChallenges		the int largest number of pending challenges
+	 * @param timeToLive		the long time a challenge may be answered in
+	 * @param unit				the {@link TimeUnit} of the time to live
+	 *
+	 * @return instance of {@link OTPChallengeStore}
+	 */
+	public static OTPChallengeStore createInstance( final int maxChallenges, final long timeToLive, final TimeUnit unit ) {
+		return createInstance( maxChallenges, timeToLive, unit, _DEFAULT_DIGITS, _DEFAULT_MAX_ATTEMPTS, OTPClock.SYSTEM );
+	}
+
+	/**
+	 * Creates a store
+	 *
+	 * @param maxChallenges		the int largest number of pending challenges
+	 * @param timeToLive		the long time a challenge may be answered in
+	 * @param unit				the {@link TimeUnit} of the time to live
+	 * @param digits			the int number of digits in a code, between 6 and 8
+	 * @param maxAttempts		the int number of wrong codes after which a challenge is removed, 1 to 127
+	 * @param clock				the {@link OTPClock} used to expire challenges
+	 *
+	 * @return instance of {@link OTPChallengeStore}
+	 */
+	public static OTPChallengeStore createInstance( final int maxChallenges, final long timeToLive, final TimeUnit unit,
+			final int digits, final int maxAttempts, final OTPClock clock ) {
+		if( maxChallenges < 1 )
+			throw new IllegalArgumentException( "maxChallenges must be positive" );
+		if( unit.toMillis( timeToLive ) < 1 )
+			throw new IllegalArgumentException( "timeToLive must be at least a millisecond" );
+		if( digits < 6 || digits > 8 )
+			throw new IllegalArgumentException( "digits must be between 6 and 8" );
+		if( maxAttempts < 1 || maxAttempts > Byte.MAX_VALUE )
+			throw new IllegalArgumentException( "maxAttempts must be between 1 and " + Byte.MAX_VALUE );
+		return new OTPChallengeStore( maxChallenges, unit.toMillis( timeToLive ), digits, maxAttempts, clock == null ? OTPClock.SYSTEM : clock );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 *
+	 * @param maxChallenges		the int largest number of pending challenges
+	 * @param ttlMillis			the long time to live in milliseconds
+	 * @param digits			the int number of digits in a code
+	 * @param maxAttempts		the int number of wrong codes allowed
+	 * @param clock				the {@link OTPClock} used to expire challenges
+	 */
+	private OTPChallengeStore( final int maxChallenges, final long ttlMillis, final int digits, final int maxAttempts, final OTPClock clock ) {
+		final byte[] key = OTPKeyGenerator.getDefault().generateKeyBytes();
+		this.engine = OTPMidstateHmac.createInstance( OTPAlgorithm.SHA256, key );
+		Arrays.fill( key, (byte) 0 );
+		this.clock = clock;
+		this.tickMillis = Math.max( 1, ttlMillis / _TICKS_PER_TTL );
+		this.ttlTicks = (int) ( ( ttlMillis + tickMillis - 1 ) / tickMillis ) + 1;
+		this.digits = digits;
+		this.modulus = _DIGITS_POWER[digits];
+		this.maxAttempts = maxAttempts;
+		final int stripeCount = Math.min( _MAX_STRIPES, Integer.highestOneBit( Math.max( 1, Runtime.getRuntime().availableProcessors() ) * 4 - 1 ) );
+		this.stripes = new Stripe[stripeCount];
+		this.stripeShift = 64 - Integer.numberOfTrailingZeros( stripeCount );
+		final int perStripe = Math.max( 1, ( maxChallenges + stripeCount - 1 ) / stripeCount );
+		final int wheelSize = tableSizeFor( ttlTicks + 2 );
+		final long tick = clock.currentTimeMillis() / tickMillis;
+		for( int i = 0; i < stripeCount; i++ )
+		{
+			stripes[i] = new Stripe( i, perStripe, wheelSize, tick, engine.newWorkBuffer() );
+		}
+	}
+
+	/**
+	 * Issues a code for a user, replacing any challenge pending for the user
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return String of the code to send to the user
+	 *
+	 * @throws OTPGenericException when the store already holds its maximum number of challenges
+	 */
+	public String issue( final String userID ) throws OTPGenericException {
+		final long key = userKey( userID );
+		final Stripe stripe = stripe( key );
+		final int code;
+		synchronized( stripe ) {
+			final long tick = clock.currentTimeMillis() / tickMillis;
+			stripe.advance( tick );
+			final long sequence = stripe.issue( key, tick + ttlTicks );
+			if( sequence == 0 )
+				throw new OTPGenericException( OTPGenericException._CHALLENGE_STORE_FULL );
+			code = code( sequence, stripe.work );
+		}
+		return formatCode( code );
+	}
+
+	/**
+	 * Verifies a code sent to a user. The challenge is removed when the code
+	 * matches, so a code is accepted only once, and when the user has run out
+	 * of attempts
+	 *
+	 * @param userID	the String for the User's ID
+	 * @param input		the String of the code entered by the user
+	 *
+	 * @return 	true - the code of the user's pending challenge was entered
+	 * 			false - there is no pending challenge or the code is wrong
+	 */
+	public boolean verify( final String userID, final String input ) {
+		final int code = parseCode( input );
+		final long key = userKey( userID );
+		final Stripe stripe = stripe( key );
+		synchronized( stripe ) {
+			stripe.advance( clock.currentTimeMillis() / tickMillis );
+			final int index = stripe.find( key );
+			if( index < 0 )
+				return false;
+			if( code >= 0 && code( stripe.sequences[index], stripe.work ) == code )
+			{
+				stripe.remove( index );
+				return true;
+			}
+			if( ++stripe.attempts[index] >= maxAttempts )
+			{
+				stripe.remove( index );
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Withdraws the challenge pending for a user, if any
+	 *
+	 * @param userID	the String for the User's ID
+	 */
+	public void cancel( final String userID ) {
+		final long key = userKey( userID );
+		final Stripe stripe = stripe( key );
+		synchronized( stripe ) {
+			final int index = stripe.find( key );
+			if( index >= 0 )
+				stripe.remove( index );
+		}
+	}
+
+	/**
+	 * Advances the timer wheel of every stripe, removing expired challenges.
+	 * Calls on a stripe already do this, so this is only needed to release
+	 * the memory of stripes no longer in use
+	 *
+	 * @return int of the number of challenges removed
+	 */
+	public int expire() {
+		final long tick = clock.currentTimeMillis() / tickMillis;
+		int removed = 0;
+		for( Stripe stripe : stripes )
+		{
+			synchronized( stripe ) {
+				removed += stripe.advance( tick );
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Gets the number of pending challenges, including expired challenges
+	 * on stripes not used since they expired
+	 *
+	 * @return int of the number of challenges
+	 */
+	public int size() {
+		int size = 0;
+		for( Stripe stripe : stripes )
+		{
+			synchronized( stripe ) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the keyed hash of a user's ID under this store's seed
+	 */
+	private long userKey( final String userID ) {
+		return OTPUserKeys.keyed( userID, seed0, seed1 );
+	}
+
+	private Stripe stripe( final long key ) {
+		return stripes[stripeShift == 64 ? 0 : (int) ( key >>> stripeShift )];
+	}
+
+	/**
+	 * Computes the code of an issue number
+	 *
+	 * @param sequence	the long issue number
+	 * @param work		int[] of the stripe's work buffer
+	 *
+	 * @return int value of the code
+	 */
+	private int code( final long sequence, final int[] work ) {
+		return engine.truncate( sequence, work ) % modulus;
+	}
+
+	/**
+	 * Converts a numeric code into its char form, using "0" for padding
+	 *
+	 * @param code	the int value of the code
+	 *
+	 * @return String of the code
+	 */
+	private String formatCode( int code ) {
+		final char[] chars = new char[digits];
+		for( int i = chars.length - 1; i >= 0; i-- )
+		{
+			chars[i] = (char) ( '0' + code % 10 );
+			code /= 10;
+		}
+		return new String( chars );
+	}
+
+	/**
+	 * Parses an entered code into its numeric form
+	 *
+	 * @param input	the String of the entered code
+	 *
+	 * @return int value of the code, or -1 when the input can not be a code
+	 */
+	private int parseCode( final String input ) {
+		if( input == null || input.length() != digits )
+			return -1;
+		int code = 0;
+		for( int i = 0; i < input.length(); i++ )
+		{
+			final char c = input.charAt( i );
+			if( c < '0' || c > '9' )
+				return -1;
+			code = code * 10 + ( c - '0' );
+		}
+		return code;
+	}
+
+	/**
+	 * Gets the power of two table size holding at least the given number of slots
+	 *
+	 * @param slots	the int number of slots
+	 *
+	 * @return int of the table size
+	 */
+	private static int tableSizeFor( final int slots ) {
+		return slots <= 1 ? 1 : Integer.highestOneBit( slots - 1 ) << 1;
+	}
+
+	/**
+	 * Stripe is a linear probing table of user key, issue number and failed
+	 * attempts, always accessed while holding the stripe's lock, and the timer
+	 * wheel expiring its challenges. A key of zero marks an empty slot and an
+	 * attempts value of -1 a removed one, skipped by lookups until the table is
+	 * rebuilt. The hash work buffer is shared by calls holding the lock.
+	 * Every live slot is linked into the bucket of the tick it expires
+	 * at, the links being slot indexes in the next and previous arrays
+	 */
+	private static final class Stripe {
+
+		private static final byte _REMOVED = -1;
+		private static final int _NONE = -1;
+
+		private final int number;
+		private final int maxSize;
+		private final int[] heads;
+		final int[] work;
+		private long tick;
+		private long issued;
+		private long[] keys;
+		long[] sequences;
+		byte[] attempts;
+		private int[] buckets;
+		private int[] next;
+		private int[] previous;
+		int size;
+		private int removed;
+
+		Stripe( final int number, final int maxSize, final int wheelSize, final long tick, final int[] work ) {
+			this.number = number;
+			this.work = work;
+			this.maxSize = maxSize;
+			this.heads = new int[wheelSize];
+			Arrays.fill( heads, _NONE );
+			this.tick = tick;
+			allocate( Math.max( tableSizeFor( maxSize * 2 ), _MIN_STRIPE_CAPACITY ) );
+		}
+
+		/**
+		 * Finds the slot of a user's challenge
+		 *
+		 * @param key	the long user key
+		 *
+		 * @return int of the slot, or -1 when the user has no challenge
+		 */
+		int find( final long key ) {
+			final int mask = keys.length - 1;
+			int index = (int) key & mask;
+			while( keys[index] != 0 )
+			{
+				if( keys[index] == key && attempts[index] != _REMOVED )
+					return index;
+				index = ( index + 1 ) & mask;
+			}
+			return _NONE;
+		}
+
+		/**
+		 * Records a new challenge for a user, replacing any pending one
+		 *
+		 * @param key			the long user key
+		 * @param expiryTick	the long tick the challenge expires at
+		 *
+		 * @return long of the challenge's issue number, or 0 when the stripe is full
+		 */
+		long issue( final long key, final long expiryTick ) {
+			int index = find( key );
+			if( index >= 0 )
+			{
+				unlink( index );
+			} else {
+				if( size >= maxSize )
+					return 0;
+				if( size + removed + 1 > ( keys.length >>> 1 ) + ( keys.length >>> 2 ) )
+					rebuild();
+				final int mask = keys.length - 1;
+				index = (int) key & mask;
+				while( keys[index] != 0 && attempts[index] != _REMOVED )
+				{
+					index = ( index + 1 ) & mask;
+				}
+				if( keys[index] != 0 )
+					removed--;
+				keys[index] = key;
+				size++;
+			}
+			// the stripe number in the low bits keeps issue numbers unique across stripes
+			final long sequence = ( ++issued << 6 ) | number;
+			sequences[index] = sequence;
+			attempts[index] = 0;
+			link( index, (int) expiryTick & ( heads.length - 1 ) );
+			return sequence;
+		}
+
+		/**
+		 * Removes the challenge in a slot
+		 *
+		 * @param index	the int slot
+		 */
+		void remove( final int index ) {
+			unlink( index );
+			attempts[index] = _REMOVED;
+			sequences[index] = 0;
+			size--;
+			removed++;
+		}
+
+		/**
+		 * Moves the wheel on to the given tick, removing the challenges in
+		 * each bucket passed. Every challenge expires within one turn of the
+		 * wheel, so after a full turn all of them have
+		 *
+		 * @param now	the long current tick
+		 *
+		 * @return int of the number of challenges removed
+		 */
+		int advance( final long now ) {
+			if( now <= tick )
+				return 0;
+			final int before = size;
+			final long last = Math.min( now, tick + heads.length );
+			for( long t = tick + 1; t <= last; t++ )
+			{
+				final int bucket = (int) t & ( heads.length - 1 );
+				while( heads[bucket] != _NONE )
+				{
+					remove( heads[bucket] );
+				}
+			}
+			tick = now;
+			return before - size;
+		}
+
+		private void link( final int index, final int bucket ) {
+			buckets[index] = bucket;
+			previous[index] = _NONE;
+			next[index] = heads[bucket];
+			if( heads[bucket] != _NONE )
+				previous[heads[bucket]] = index;
+			heads[bucket] = index;
+		}
+
+		private void unlink( final int index ) {
+			if( previous[index] != _NONE )
+			{
+				next[previous[index]] = next[index];
+			} else {
+				heads[buckets[index]] = next[index];
+			}
+			if( next[index] != _NONE )
+				previous[next[index]] = previous[index];
+		}
+
+		/**
+		 * Rebuilds the table without removed slots, doubling it when the
+		 * live challenges still fill more than half of it, and relinks
+		 * every challenge into its bucket
+		 */
+		private void rebuild() {
+			final long[] oldKeys = keys;
+			final long[] oldSequences = sequences;
+			final byte[] oldAttempts = attempts;
+			final int[] oldBuckets = buckets;
+			allocate( size * 2 + 2 > oldKeys.length ? oldKeys.length << 1 : oldKeys.length );
+			Arrays.fill( heads, _NONE );
+			final int mask = keys.length - 1;
+			for( int i = 0; i < oldKeys.length; i++ )
+			{
+				if( oldKeys[i] != 0 && oldAttempts[i] != _REMOVED )
+				{
+					int index = (int) oldKeys[i] & mask;
+					while( keys[index] != 0 )
+					{
+						index = ( index + 1 ) & mask;
+					}
+					keys[index] = oldKeys[i];
+					sequences[index] = oldSequences[i];
+					attempts[index] = oldAttempts[i];
+					link( index, oldBuckets[i] );
+					size++;
+				}
+			}
+		}
+
+		private void allocate( final int capacity ) {
+			keys = new long[capacity];
+			sequences = new long[capacity];
+			attempts = new byte[capacity];
+			buckets = new int[capacity];
+			next = new int[capacity];
+			previous = new int[capacity];
+			size = 0;
+			removed = 0;
+		}
+	}
+}
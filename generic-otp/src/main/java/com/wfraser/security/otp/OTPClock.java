@@ -0,0 +1,42 @@
+package com.wfraser.security.otp;
+
+/**
+ * OTPClock is the source of time used to work out the current step
+ * 
+ * The default {@link #SYSTEM} clock reads {@link System#currentTimeMillis()}.
+ * {@link OTPTickingClock} caches the current step so hot path callers read
+ * a volatile long, and {@link OTPManualClock} gives deterministic time for
+ * tests and benchmarks.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+@FunctionalInterface
+public interface OTPClock {
+
+	/**
+	 * The system clock
+	 */
+	OTPClock SYSTEM = System::currentTimeMillis;
+
+	/**
+	 * Gets the current time
+	 * 
+	 * @return long of the time in milliseconds from the beginning of the epoc
+	 */
+	long currentTimeMillis();
+
+	/**
+	 * Gets the current step for a given step length
+	 * 
+	 * @param periodMillis	the long length of a step in milliseconds
+	 * 
+	 * @return long of the current time step
+	 */
+	default long currentStep( final long periodMillis ) {
+		return currentTimeMillis() / periodMillis;
+	}
+}
@@ -0,0 +1,115 @@
+package com.wfraser.security.otp;
+
+/**
+ * OTPCodeWindow keeps the codes of the current validation window
+ * of a single user as a small int array
+ * 
+ * The window is an immutable snapshot published through a volatile field.
+ * When the step rolls over the still valid codes are carried into a new 
+ * snapshot and only the codes of the new steps are computed, so a steady
+ * stream of validations costs one HMAC per step rather than one per 
+ * allowed step per attempt.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+final class OTPCodeWindow {
+
+	/**
+	 * CodeGenerator computes the codes of a run of consecutive steps
+	 */
+	interface CodeGenerator {
+
+		/**
+		 * Computes the codes of consecutive steps into part of an array
+		 * 
+		 * @param firstStep		the long of the first step
+		 * @param codes			the int[] written to
+		 * @param from			the int index of the first step's code
+		 * @param count			the int number of steps
+		 */
+		void generate( long firstStep, int[] codes, int from, int count );
+	}
+
+	private final int size;
+	private volatile Snapshot current;
+
+	/**
+	 * Class Constructor
+	 * 
+	 * @param size	the int number of steps in the window
+	 */
+	OTPCodeWindow( final int size ) {
+		this.size = Math.max( 0, size );
+	}
+
+	/**
+	 * Gets the number of steps in the window
+	 * 
+	 * @return int of the window size
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the cached codes of the window ending at the given step
+	 * 
+	 * @param step		the long of the last step in the window
+	 * 
+	 * @return int[] of the codes, index 0 being the oldest step, or null when not cached
+	 */
+	int[] cached( final long step ) {
+		final Snapshot snapshot = current;
+		return snapshot != null && snapshot.step == step ? snapshot.codes : null;
+	}
+
+	/**
+	 * Gets the codes of the window ending at the given step, advancing
+	 * the cached window when the step has moved on
+	 * 
+	 * @param step		the long of the last step in the window
+	 * @param generator	the {@link CodeGenerator} for any steps not yet computed
+	 * 
+	 * @return int[] of the codes, index 0 being the oldest step
+	 */
+	int[] advance( final long step, final CodeGenerator generator ) {
+		final Snapshot snapshot = current;
+		if( snapshot != null && snapshot.step == step )
+		{
+			return snapshot.codes;
+		}
+		final int[] codes = new int[size];
+		final long firstStep = step - size + 1;
+		if( snapshot != null && snapshot.step < step && step - snapshot.step < size )
+		{
+			final int carried = size - (int) ( step - snapshot.step );
+			System.arraycopy( snapshot.codes, size - carried, codes, 0, carried );
+			generator.generate( firstStep + carried, codes, carried, size - carried );
+		} else {
+			generator.generate( firstStep, codes, 0, size );
+		}
+		if( snapshot == null || snapshot.step < step )
+		{
+			current = new Snapshot( step, codes );
+		}
+		return codes;
+	}
+
+	/**
+	 * Snapshot is the codes of one window and the step it ends at
+	 */
+	private static final class Snapshot {
+
+		final long step;
+		final int[] codes;
+
+		Snapshot( final long step, final int[] codes ) {
+			this.step = step;
+			this.codes = codes;
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package com.wfraser.security.otp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * OTPCounterMetrics is an {@link OTPMetrics} keeping lock free counters,
+ * latency histograms and a histogram of matched step offsets
+ *
+ * Counters are {@link LongAdder}s so concurrent request threads do not
+ * contend. Histogram buckets are striped the same way, each thread counting
+ * into the {@link AtomicLongArray} of its stripe and reads summing the
+ * stripes, so threads recording similar latencies do not share a slot.
+ * Latencies are recorded in log linear buckets, sixteen per power
+ * of two, so percentiles are reported within about 6% of the true value
+ * whatever the range. Matched offsets beyond {@value #_MAX_OFFSET} steps
+ * are counted against the largest offset.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPCounterMetrics implements OTPMetrics {
+
+	public static final int _MAX_OFFSET = 64;
+
+	private final LongAdder generated = new LongAdder();
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder replayed = new LongAdder();
+	private final LongAdder hmacs = new LongAdder();
+	private final LongAdder codeWindowHits = new LongAdder();
+	private final LongAdder codeWindowMisses = new LongAdder();
+	private final LongAdder userCacheHits = new LongAdder();
+	private final LongAdder userCacheMisses = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final Histogram generateLatency = new Histogram();
+	private final Histogram validateLatency = new Histogram();
+	private final StripedCounts offsets = new StripedCounts( _MAX_OFFSET * 2 + 1 );
+
+	/**
+	 * Creates an instance of {@link OTPCounterMetrics} with every count at zero
+	 *
+	 * @return instance of {@link OTPCounterMetrics}
+	 */
+	public static OTPCounterMetrics createInstance() {
+		return new OTPCounterMetrics();
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 */
+	private OTPCounterMetrics() {
+
+	}
+
+	@Override
+	public void onGenerate( final long nanos ) {
+		generated.increment();
+		generateLatency.record( nanos );
+	}
+
+	@Override
+	public void onValidate( final String userID, final long nanos, final int matchedOffset, final boolean accepted ) {
+		validateLatency.record( nanos );
+		if( accepted )
+			this.accepted.increment();
+		else if( matchedOffset == _NO_MATCH )
+			rejected.increment();
+		else
+			replayed.increment();
+		if( matchedOffset != _NO_MATCH )
+			offsets.increment( Math.max( -_MAX_OFFSET, Math.min( _MAX_OFFSET, matchedOffset ) ) + _MAX_OFFSET );
+	}
+
+	@Override
+	public void onHmac( final int count ) {
+		hmacs.add( count );
+	}
+
+	@Override
+	public void onCodeWindow( final boolean hit ) {
+		( hit ? codeWindowHits : codeWindowMisses ).increment();
+	}
+
+	@Override
+	public void onUserCache( final boolean hit ) {
+		( hit ? userCacheHits : userCacheMisses ).increment();
+	}
+
+	@Override
+	public void onThrottle( final String userID ) {
+		throttled.increment();
+	}
+
+	/**
+	 * Getter for the number of codes generated
+	 *
+	 * @return long of the generation count
+	 */
+	public long getGeneratedCount() {
+		return generated.sum();
+	}
+
+	/**
+	 * Getter for the number of codes validated
+	 *
+	 * @return long of the validation count
+	 */
+	public long getValidatedCount() {
+		return accepted.sum() + rejected.sum() + replayed.sum();
+	}
+
+	/**
+	 * Getter for the number of codes accepted
+	 *
+	 * @return long of the accepted count
+	 */
+	public long getAcceptedCount() {
+		return accepted.sum();
+	}
+
+	/**
+	 * Getter for the number of codes that matched no step in the window
+	 *
+	 * @return long of the rejected count
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Getter for the number of codes matching a step already used
+	 *
+	 * @return long of the replayed count
+	 */
+	public long getReplayedCount() {
+		return replayed.sum();
+	}
+
+	/**
+	 * Getter for the number of HMACs computed
+	 *
+	 * @return long of the HMAC count
+	 */
+	public long getHmacCount() {
+		return hmacs.sum();
+	}
+
+	/**
+	 * Getter for the number of reads of an already cached code window
+	 *
+	 * @return long of the code window hit count
+	 */
+	public long getCodeWindowHitCount() {
+		return codeWindowHits.sum();
+	}
+
+	/**
+	 * Getter for the number of reads advancing the code window
+	 *
+	 * @return long of the code window miss count
+	 */
+	public long getCodeWindowMissCount() {
+		return codeWindowMisses.sum();
+	}
+
+	/**
+	 * Getter for the number of user lookups served from the engine's cache
+	 *
+	 * @return long of the user cache hit count
+	 */
+	public long getUserCacheHitCount() {
+		return userCacheHits.sum();
+	}
+
+	/**
+	 * Getter for the number of user lookups loading from the key store
+	 *
+	 * @return long of the user cache miss count
+	 */
+	public long getUserCacheMissCount() {
+		return userCacheMisses.sum();
+	}
+
+	/**
+	 * Getter for the number of throttled attempts
+	 *
+	 * @return long of the throttled count
+	 */
+	public long getThrottledCount() {
+		return throttled.sum();
+	}
+
+	/**
+	 * Gets the number of matched codes from the given offset
+	 *
+	 * @param offset	the int offset from the current step, negative for earlier steps
+	 *
+	 * @return long of the count, offsets beyond {@value #_MAX_OFFSET} are included in the largest
+	 */
+	public long getOffsetCount( final int offset ) {
+		if( offset < -_MAX_OFFSET || offset > _MAX_OFFSET )
+			return 0;
+		return offsets.sum( offset + _MAX_OFFSET );
+	}
+
+	/**
+	 * Gets a percentile of the generation latency
+	 *
+	 * @param percentile	the double percentile, between 0 and 100
+	 *
+	 * @return long of the latency in nanoseconds, 0 when nothing was recorded
+	 */
+	public long getGenerateLatency( final double percentile ) {
+		return generateLatency.percentile( percentile );
+	}
+
+	/**
+	 * Gets a percentile of the validation latency
+	 *
+	 * @param percentile	the double percentile, between 0 and 100
+	 *
+	 * @return long of the latency in nanoseconds, 0 when nothing was recorded
+	 */
+	public long getValidateLatency( final double percentile ) {
+		return validateLatency.percentile( percentile );
+	}
+
+	/**
+	 * Histogram counts values in log linear buckets, values below 16 exactly
+	 * and then 16 buckets between each power of two
+	 */
+	private static final class Histogram {
+
+		private static final int _SUB_BITS = 4;
+		private static final int _SUB_BUCKETS = 1 << _SUB_BITS;
+
+		private final StripedCounts buckets = new StripedCounts( ( 64 - _SUB_BITS + 1 ) * _SUB_BUCKETS );
+
+		void record( final long value ) {
+			buckets.increment( index( Math.max( 0, value ) ) );
+		}
+
+		long percentile( final double percentile ) {
+			final long[] counts = buckets.sums();
+			long total = 0;
+			for( int i = 0; i < counts.length; i++ )
+			{
+				total += counts[i];
+			}
+			if( total == 0 )
+				return 0;
+			final long target = Math.max( 1, (long) Math.ceil( total * Math.min( 100, Math.max( 0, percentile ) ) / 100 ) );
+			long seen = 0;
+			for( int i = 0; i < counts.length; i++ )
+			{
+				seen += counts[i];
+				if( seen >= target )
+					return upperBound( i );
+			}
+			return upperBound( counts.length - 1 );
+		}
+
+		private static int index( final long value ) {
+			if( value < _SUB_BUCKETS )
+				return (int) value;
+			final int exponent = 63 - Long.numberOfLeadingZeros( value );
+			final int sub = (int) ( value >>> ( exponent - _SUB_BITS ) ) & ( _SUB_BUCKETS - 1 );
+			return ( exponent - _SUB_BITS + 1 ) * _SUB_BUCKETS + sub;
+		}
+
+		private static long upperBound( final int index ) {
+			if( index < _SUB_BUCKETS )
+				return index;
+			final int shift = index / _SUB_BUCKETS - 1;
+			final long lower = (long) ( _SUB_BUCKETS + index % _SUB_BUCKETS ) << shift;
+			return lower + ( 1L << shift ) - 1;
+		}
+	}
+
+	/**
+	 * StripedCounts is an array of counts split into one {@link AtomicLongArray}
+	 * per stripe, each thread mapped to a stripe by its ID. Reads sum every stripe
+	 */
+	private static final class StripedCounts {
+
+		private static final int _MAX_STRIPES = 8;
+
+		private final AtomicLongArray[] stripes;
+		private final int mask;
+
+		StripedCounts( final int length ) {
+			final int count = Math.min( _MAX_STRIPES, Integer.highestOneBit( Math.max( 1, Runtime.getRuntime().availableProcessors() ) * 2 - 1 ) );
+			this.stripes = new AtomicLongArray[count];
+			this.mask = count - 1;
+			for( int i = 0; i < count; i++ )
+			{
+				stripes[i] = new AtomicLongArray( length );
+			}
+		}
+
+		void increment( final int index ) {
+			final long id = Thread.currentThread().getId();
+			stripes[(int) ( id ^ ( id >>> 16 ) ) & mask].getAndIncrement( index );
+		}
+
+		long sum( final int index ) {
+			long sum = 0;
+			for( AtomicLongArray stripe : stripes )
+			{
+				sum += stripe.get( index );
+			}
+			return sum;
+		}
+
+		long[] sums() {
+			final long[] sums = new long[stripes[0].length()];
+			for( AtomicLongArray stripe : stripes )
+			{
+				for( int i = 0; i < sums.length; i++ )
+				{
+					sums[i] += stripe.get( i );
+				}
+			}
+			return sums;
+		}
+	}
+}
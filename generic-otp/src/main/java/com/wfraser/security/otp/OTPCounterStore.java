@@ -0,0 +1,42 @@
+package com.wfraser.security.otp;
+
+/**
+ * OTPCounterStore holds the next expected counter of each counter based
+ * (HOTP) user, configured with {@link OTPOptions#withCounterStore(OTPCounterStore)}
+ *
+ * A counter only moves forward, and only through {@link #advance(String, long, long)},
+ * which must be atomic so a code validated by two requests at once is accepted
+ * by only one. Users are identified by their ID so counters can be persisted
+ * alongside the user's other records, such as a database column updated with
+ * a conditional write. The in memory {@link OTPMemoryCounterStore} loses its
+ * counters on restart.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public interface OTPCounterStore {
+
+	/**
+	 * Gets the next counter expected from a user's token
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return long of the counter, 0 for a user not yet seen
+	 */
+	long getCounter( String userID );
+
+	/**
+	 * Atomically moves a user's counter forward when it still holds the expected value
+	 *
+	 * @param userID	the String for the User's ID
+	 * @param expected	the long counter read by {@link #getCounter(String)}
+	 * @param next		the long new counter, greater than expected
+	 *
+	 * @return 	true - the counter was moved forward
+	 * 			false - the counter had already been changed
+	 */
+	boolean advance( String userID, long expected, long next );
+}
@@ -0,0 +1,426 @@
+package com.wfraser.security.otp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+
+/**
+ * OTPCredentialTable is a flat, fixed capacity {@link OTPKeyStore} holding
+ * the raw keys and code parameters of a large number of users
+ *
+ * Users are found by the 64 bit hash of their ID in a linear probing table
+ * made of two long arrays, the hash and the packed algorithm, digits, period,
+ * allowed steps and key length, plus one {@link ByteBuffer} holding every
+ * key in a fixed width slot. A user therefore costs two longs and the key
+ * width, with no per user objects, Strings or Base32, and the key buffer
+ * may be placed off the heap.
+ *
+ * As only the hash of a user's ID is kept, IDs are not recoverable from the
+ * table and two IDs sharing a hash would share a record. The hash is the keyed
+ * SipHash-2-4 of the ID, seeded with random bits drawn for each table, so an ID
+ * colliding with another user's can not be searched for outside the process,
+ * and by chance a collision is vanishingly unlikely below billions of users.
+ *
+ * Lookups take an optimistic read, copying the record and retrying under
+ * the read lock only if a write raced with them.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPCredentialTable implements OTPKeyStore {
+
+	private static final OTPAlgorithm[] _ALGORITHMS = OTPAlgorithm.values();
+	private static final int _MAX_ALLOWED_STEPS = 0xffff;
+	private static final long _COUNTER_BASED = 0x8;
+
+	private final long[] hashes;
+	private final long[] params;
+	private final ByteBuffer keys;
+	private final int keyWidth;
+	private final int mask;
+	private final int capacity;
+	private final long seed0 = OTPUserKeys.seed();
+	private final long seed1 = OTPUserKeys.seed();
+	private final StampedLock lock = new StampedLock();
+	private int size;
+
+	/**
+	 * Creates a table on the heap for keys of up to 20 bytes, the SHA-1 key length
+	 *
+	 * @param capacity	the int maximum number of users held
+	 *
+	 * @return instance of {@link OTPCredentialTable}
+	 */
+	public static OTPCredentialTable createInstance( final int capacity ) {
+		return createInstance( capacity, OTPAlgorithm.SHA1.getKeyLength(), false );
+	}
+
+	/**
+	 * Creates a table for keys of up to the given length
+	 *
+	 * @param capacity		the int maximum number of users held
+	 * @param maxKeyLength	the int longest key in bytes that will be stored
+	 * @param offHeap		true to hold the keys in direct memory rather than on the heap
+	 *
+	 * @return instance of {@link OTPCredentialTable}
+	 */
+	public static OTPCredentialTable createInstance( final int capacity, final int maxKeyLength, final boolean offHeap ) {
+		if( capacity < 1 || maxKeyLength < 1 || maxKeyLength > 0xff )
+			throw new IllegalArgumentException( "capacity and maxKeyLength must be positive and keys no longer than 255 bytes" );
+		final long slots = Long.highestOneBit( Math.max( 2, capacity + ( capacity / 3 ) ) - 1L ) << 1;
+		if( slots * maxKeyLength > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "capacity is too large for the key length" );
+		return new OTPCredentialTable( capacity, (int) slots, maxKeyLength, offHeap );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 *
+	 * @param capacity		the int maximum number of users held
+	 * @param slots			the power of two int number of table slots
+	 * @param keyWidth		the int width of a key slot in bytes
+	 * @param offHeap		true to hold the keys in direct memory
+	 */
+	private OTPCredentialTable( final int capacity, final int slots, final int keyWidth, final boolean offHeap ) {
+		this.capacity = capacity;
+		this.hashes = new long[slots];
+		this.params = new long[slots];
+		this.keyWidth = keyWidth;
+		this.mask = slots - 1;
+		this.keys = offHeap ? ByteBuffer.allocateDirect( slots * keyWidth ) : ByteBuffer.allocate( slots * keyWidth );
+	}
+
+	/**
+	 * Adds or replaces the record of a user from their credentials
+	 *
+	 * @param credential	the {@link OTPUserCredentialProvider} of the user
+	 *
+	 * @throws OTPGenericException when the key is too long or the table is full
+	 */
+	public void put( final OTPUserCredentialProvider credential ) throws OTPGenericException {
+		put( credential.getUserID(), credential.secret(), credential.getAllowedSteps(),
+				credential.getAlgorithm(), credential.getDigits(), credential.getPeriod(), credential.isCounterBased() );
+	}
+
+	/**
+	 * Adds or replaces the record of a user
+	 *
+	 * @param userID		the String for the User's ID
+	 * @param secretKey		the byte[] of the raw secret key, copied into the table
+	 * @param steps			the int for the number of steps to be valid for
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 *
+	 * @throws OTPGenericException when the record is not valid or the table is full
+	 */
+	public void put( final String userID, final byte[] secretKey, final int steps,
+			final OTPAlgorithm algorithm, final int digits, final int period ) throws OTPGenericException {
+		put( userID, secretKey, steps, algorithm, digits, period, false );
+	}
+
+	/**
+	 * Adds or replaces the record of a time based or counter based user
+	 *
+	 * @param userID		the String for the User's ID
+	 * @param secretKey		the byte[] of the raw secret key, copied into the table
+	 * @param steps			the int for the number of steps, or counters, to be valid for
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 * @param counterBased	the boolean for an RFC 4226 HOTP user
+	 *
+	 * @throws OTPGenericException when the record is not valid or the table is full
+	 */
+	public void put( final String userID, final byte[] secretKey, final int steps,
+			final OTPAlgorithm algorithm, final int digits, final int period, final boolean counterBased ) throws OTPGenericException {
+		if( userID == null || userID.equals( "" ) || secretKey == null || secretKey.length == 0 )
+			throw new OTPGenericException( OTPGenericException._USER_AND_KEY_BLANK );
+		if( secretKey.length > keyWidth || steps < 0 || steps > _MAX_ALLOWED_STEPS )
+			throw new OTPGenericException( OTPGenericException._INVALID_OTP_CONFIGURATION );
+		final long packed = pack( algorithm, digits, period, steps, secretKey.length, counterBased );
+		final long hash = hash( userID );
+		final long stamp = lock.writeLock();
+		try {
+			int index = (int) hash & mask;
+			while( hashes[index] != 0 && hashes[index] != hash )
+			{
+				index = ( index + 1 ) & mask;
+			}
+			if( hashes[index] == 0 )
+			{
+				if( size == capacity )
+					throw new OTPGenericException( OTPGenericException._CREDENTIAL_STORE_FULL );
+				size++;
+			}
+			final int offset = index * keyWidth;
+			for( int i = 0; i < keyWidth; i++ )
+			{
+				keys.put( offset + i, i < secretKey.length ? secretKey[i] : 0 );
+			}
+			params[index] = packed;
+			hashes[index] = hash;
+		} finally {
+			lock.unlockWrite( stamp );
+		}
+	}
+
+	/**
+	 * Removes the record of a user, overwriting their key
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return true when the user was held
+	 */
+	public boolean remove( final String userID ) {
+		final long hash = hash( userID );
+		final long stamp = lock.writeLock();
+		try {
+			int index = (int) hash & mask;
+			while( hashes[index] != hash )
+			{
+				if( hashes[index] == 0 )
+					return false;
+				index = ( index + 1 ) & mask;
+			}
+			// shift later records of the same probe run back so lookups never stop early
+			int next = ( index + 1 ) & mask;
+			while( hashes[next] != 0 )
+			{
+				final int home = (int) hashes[next] & mask;
+				if( ( ( next - home ) & mask ) >= ( ( next - index ) & mask ) )
+				{
+					move( next, index );
+					index = next;
+				}
+				next = ( next + 1 ) & mask;
+			}
+			clearSlot( index );
+			size--;
+			return true;
+		} finally {
+			lock.unlockWrite( stamp );
+		}
+	}
+
+	/**
+	 * Looks up the credentials of a user, built fresh from the table on each call.
+	 * The returned provider has no company, so is suited to validation rather than export
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return			the {@link OTPUserCredentialProvider} for the user, or null if the user is unknown
+	 *
+	 * @throws OTPGenericException when the stored record is not valid
+	 */
+	@Override
+	public OTPUserCredentialProvider getCredential( final String userID ) throws OTPGenericException {
+		if( userID == null )
+			return null;
+		final long hash = hash( userID );
+		final byte[] key = new byte[keyWidth];
+		long packed;
+		long stamp = lock.tryOptimisticRead();
+		packed = read( hash, key );
+		if( !lock.validate( stamp ) )
+		{
+			stamp = lock.readLock();
+			try {
+				packed = read( hash, key );
+			} finally {
+				lock.unlockRead( stamp );
+			}
+		}
+		if( packed == 0 )
+			return null;
+		try {
+			return OTPUserCredentialProvider.createRawKeyUserObject( Arrays.copyOf( key, keyLength( packed ) ), userID, null,
+					allowedSteps( packed ), algorithm( packed ), digits( packed ), period( packed ), counterBased( packed ) );
+		} finally {
+			Arrays.fill( key, (byte) 0 );
+		}
+	}
+
+	/**
+	 * Wipes a credential returned by {@link #getCredential(String)}, which
+	 * holds its own copy of the key
+	 *
+	 * @param credential	the {@link OTPUserCredentialProvider} no longer needed
+	 */
+	@Override
+	public void release( final OTPUserCredentialProvider credential ) {
+		credential.wipe();
+	}
+
+	/**
+	 * Checks whether a user is held
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return true when the user is held
+	 */
+	public boolean contains( final String userID ) {
+		final long hash = hash( userID );
+		final long stamp = lock.readLock();
+		try {
+			return find( hash ) >= 0;
+		} finally {
+			lock.unlockRead( stamp );
+		}
+	}
+
+	/**
+	 * Removes every record, overwriting all keys
+	 */
+	public void clear() {
+		final long stamp = lock.writeLock();
+		try {
+			for( int i = 0; i <= mask; i++ )
+			{
+				clearSlot( i );
+			}
+			size = 0;
+		} finally {
+			lock.unlockWrite( stamp );
+		}
+	}
+
+	/**
+	 * Gets the number of users held
+	 *
+	 * @return int of the number of users
+	 */
+	public int size() {
+		final long stamp = lock.readLock();
+		try {
+			return size;
+		} finally {
+			lock.unlockRead( stamp );
+		}
+	}
+
+	/**
+	 * Getter for the maximum number of users held
+	 *
+	 * @return int of the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the keyed hash of a user's ID under this table's seed
+	 */
+	private long hash( final String userID ) {
+		return OTPUserKeys.keyed( userID, seed0, seed1 );
+	}
+
+	/**
+	 * Copies the key of a user into the given array
+	 *
+	 * @param hash	the long hash of the User's ID
+	 * @param key	the byte[] of the key width to copy into
+	 *
+	 * @return long of the packed parameters or 0 when the user is not held
+	 */
+	private long read( final long hash, final byte[] key ) {
+		final int index = find( hash );
+		if( index < 0 )
+			return 0;
+		final long packed = params[index];
+		final int offset = index * keyWidth;
+		for( int i = 0; i < keyWidth; i++ )
+		{
+			key[i] = keys.get( offset + i );
+		}
+		return packed;
+	}
+
+	private int find( final long hash ) {
+		int index = (int) hash & mask;
+		for( int probes = 0; probes <= mask; probes++ )
+		{
+			final long current = hashes[index];
+			if( current == hash )
+				return index;
+			if( current == 0 )
+				return -1;
+			index = ( index + 1 ) & mask;
+		}
+		return -1;
+	}
+
+	private void move( final int from, final int to ) {
+		hashes[to] = hashes[from];
+		params[to] = params[from];
+		final int source = from * keyWidth;
+		final int target = to * keyWidth;
+		for( int i = 0; i < keyWidth; i++ )
+		{
+			keys.put( target + i, keys.get( source + i ) );
+		}
+	}
+
+	private void clearSlot( final int index ) {
+		hashes[index] = 0;
+		params[index] = 0;
+		final int offset = index * keyWidth;
+		for( int i = 0; i < keyWidth; i++ )
+		{
+			keys.put( offset + i, (byte) 0 );
+		}
+	}
+
+	/*
+	 *	Packed parameter layout, never 0 for a valid record as digits is at least 6
+	 *
+	 *	bits  0-2	algorithm ordinal
+	 *	bit     3	counter based
+	 *	bits  4-7	digits
+	 *	bits  8-15	key length
+	 *	bits 16-31	allowed steps
+	 *	bits 32-63	period in seconds
+	 */
+
+	/**
+	 * Packs the code parameters of a record into a long
+	 *
+	 * @throws OTPGenericException when the configuration is not supported
+	 */
+	static long pack( final OTPAlgorithm algorithm, final int digits, final int period, final int steps, final int keyLength,
+			final boolean counterBased ) throws OTPGenericException {
+		if( algorithm == null || digits < OTPUserCredentialProvider._MIN_DIGITS || digits > OTPUserCredentialProvider._MAX_DIGITS || period < 1 )
+			throw new OTPGenericException( OTPGenericException._INVALID_OTP_CONFIGURATION );
+		return algorithm.ordinal() | ( counterBased ? _COUNTER_BASED : 0 ) | ( (long) digits << 4 ) | ( (long) ( keyLength & 0xff ) << 8 )
+				| ( (long) ( steps & _MAX_ALLOWED_STEPS ) << 16 ) | ( (long) period << 32 );
+	}
+
+	static OTPAlgorithm algorithm( final long packed ) {
+		return _ALGORITHMS[(int) ( packed & 0x7 ) % _ALGORITHMS.length];
+	}
+
+	static boolean counterBased( final long packed ) {
+		return ( packed & _COUNTER_BASED ) != 0;
+	}
+
+	static int digits( final long packed ) {
+		return (int) ( packed >>> 4 ) & 0xf;
+	}
+
+	static int keyLength( final long packed ) {
+		return (int) ( packed >>> 8 ) & 0xff;
+	}
+
+	static int allowedSteps( final long packed ) {
+		return (int) ( packed >>> 16 ) & _MAX_ALLOWED_STEPS;
+	}
+
+	static int period( final long packed ) {
+		return (int) ( packed >>> 32 );
+	}
+}
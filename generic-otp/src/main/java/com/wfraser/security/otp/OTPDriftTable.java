@@ -0,0 +1,304 @@
+package com.wfraser.security.otp;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * OTPDriftTable records the step offset at which each user's codes were
+ * last accepted, so validation can check the steps a user's device is
+ * most likely on first
+ *
+ * Only users whose device clock has drifted are held, a user whose code
+ * matches the current step again is removed. Records are a user key and a
+ * single byte offset in primitive open addressing tables, one per stripe.
+ * Each stripe is guarded by a {@link StampedLock}, reads are optimistic and
+ * take no lock unless a write to the same stripe happens at the same time.
+ *
+ * Configure with {@link OTPOptions#withDriftTable(OTPDriftTable)} and share
+ * one table across every instance validating the same users.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPDriftTable {
+
+	public static final int _DEFAULT_MAX_DRIFT = 4;
+	public static final int _MAX_DRIFT = 127;
+
+	private static final int _MAX_STRIPES = 64;
+	private static final int _MIN_STRIPE_CAPACITY = 16;
+
+	private final Stripe[] stripes;
+	private final int stripeShift;
+	private final int maxDrift;
+
+	/**
+	 * Creates a table sized for the given number of drifted users, following
+	 * drift of up to {@value #_DEFAULT_MAX_DRIFT} steps
+	 *
+	 * @param expectedUsers		the int number of users expected to have drifted
+	 *
+	 * @return instance of {@link OTPDriftTable}
+	 */
+	public static OTPDriftTable createInstance( final int expectedUsers ) {
+		return createInstance( expectedUsers, _DEFAULT_MAX_DRIFT );
+	}
+
+	/**
+	 * Creates a table sized for the given number of drifted users
+	 *
+	 * @param expectedUsers		the int number of users expected to have drifted
+	 * @param maxDrift			the int largest number of steps, ahead or behind, a device
+	 * 							may drift and still be followed, between 0 and {@value #_MAX_DRIFT}
+	 *
+	 * @return instance of {@link OTPDriftTable}
+	 */
+	public static OTPDriftTable createInstance( final int expectedUsers, final int maxDrift ) {
+		if( maxDrift < 0 || maxDrift > _MAX_DRIFT )
+			throw new IllegalArgumentException( "maxDrift must be between 0 and " + _MAX_DRIFT );
+		return new OTPDriftTable( expectedUsers, maxDrift );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 *
+	 * @param expectedUsers		the int number of users expected to have drifted
+	 * @param maxDrift			the int largest offset followed
+	 */
+	private OTPDriftTable( final int expectedUsers, final int maxDrift ) {
+		final int stripeCount = Math.min( _MAX_STRIPES, Integer.highestOneBit( Math.max( 1, Runtime.getRuntime().availableProcessors() ) * 4 - 1 ) );
+		this.stripes = new Stripe[stripeCount];
+		this.stripeShift = 64 - Integer.numberOfTrailingZeros( stripeCount );
+		final int perStripe = Math.max( _MIN_STRIPE_CAPACITY, tableSizeFor( Math.max( 1, expectedUsers ) / stripeCount * 2 ) );
+		for( int i = 0; i < stripeCount; i++ )
+		{
+			stripes[i] = new Stripe( perStripe );
+		}
+		this.maxDrift = maxDrift;
+	}
+
+	/**
+	 * Gets the offset at which a user's codes were last accepted
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return int of the offset in steps, negative for a device running slow, 0 when not held
+	 */
+	public int getDrift( final String userID ) {
+		return drift( OTPUserKeys.of( userID ) );
+	}
+
+	/**
+	 * Forgets the drift of a user, to be called when the user's device or key changes
+	 *
+	 * @param userID	the String for the User's ID
+	 */
+	public void reset( final String userID ) {
+		record( OTPUserKeys.of( userID ), 0 );
+	}
+
+	/**
+	 * Getter for the largest offset followed
+	 *
+	 * @return int of the maximum drift in steps
+	 */
+	public int getMaxDrift() {
+		return maxDrift;
+	}
+
+	/**
+	 * Gets the number of drifted users held
+	 *
+	 * @return int of the number of records
+	 */
+	public int size() {
+		int size = 0;
+		for( Stripe stripe : stripes )
+		{
+			final long stamp = stripe.lock.readLock();
+			try {
+				size += stripe.size;
+			} finally {
+				stripe.lock.unlockRead( stamp );
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the drift of a user key
+	 *
+	 * @param key	the long user key from {@link OTPUserKeys#of(String)}
+	 *
+	 * @return int of the offset in steps, 0 when not held
+	 */
+	int drift( final long key ) {
+		final Stripe stripe = stripe( key );
+		long stamp = stripe.lock.tryOptimisticRead();
+		int drift = stripe.find( key );
+		if( !stripe.lock.validate( stamp ) )
+		{
+			stamp = stripe.lock.readLock();
+			try {
+				drift = stripe.find( key );
+			} finally {
+				stripe.lock.unlockRead( stamp );
+			}
+		}
+		return drift;
+	}
+
+	/**
+	 * Records the offset at which a user's code was accepted, limited
+	 * to the maximum drift, removing the user when it is 0. Nothing is
+	 * written when the offset is unchanged
+	 *
+	 * @param key		the long user key from {@link OTPUserKeys#of(String)}
+	 * @param drift		the int offset in steps
+	 */
+	void record( final long key, final int drift ) {
+		final int limited = Math.max( -maxDrift, Math.min( maxDrift, drift ) );
+		if( drift( key ) == limited )
+			return;
+		final Stripe stripe = stripe( key );
+		final long stamp = stripe.lock.writeLock();
+		try {
+			stripe.record( key, (byte) limited );
+		} finally {
+			stripe.lock.unlockWrite( stamp );
+		}
+	}
+
+	private Stripe stripe( final long key ) {
+		return stripes[stripeShift == 64 ? 0 : (int) ( key >>> stripeShift )];
+	}
+
+	/**
+	 * Gets the power of two table size holding at least the given number of slots
+	 *
+	 * @param slots	the int number of slots
+	 *
+	 * @return int of the table size
+	 */
+	private static int tableSizeFor( final int slots ) {
+		return slots <= 1 ? 1 : Integer.highestOneBit( slots - 1 ) << 1;
+	}
+
+	/**
+	 * Stripe is a linear probing table of user key and offset. A key of zero
+	 * marks an empty slot. The arrays are replaced together on resize so an
+	 * optimistic reader always sees a matching pair
+	 */
+	private static final class Stripe {
+
+		final StampedLock lock = new StampedLock();
+		private volatile Table table;
+		private int size;
+
+		Stripe( final int capacity ) {
+			table = new Table( capacity );
+		}
+
+		int find( final long key ) {
+			final Table current = table;
+			final int mask = current.keys.length - 1;
+			int index = (int) key & mask;
+			for( int probes = 0; probes <= mask; probes++ )
+			{
+				final long held = current.keys[index];
+				if( held == key )
+					return current.drifts[index];
+				if( held == 0 )
+					return 0;
+				index = ( index + 1 ) & mask;
+			}
+			return 0;
+		}
+
+		void record( final long key, final byte drift ) {
+			final long[] keys = table.keys;
+			final int mask = keys.length - 1;
+			int index = (int) key & mask;
+			while( keys[index] != 0 && keys[index] != key )
+			{
+				index = ( index + 1 ) & mask;
+			}
+			if( drift == 0 )
+			{
+				if( keys[index] == key )
+					remove( index );
+				return;
+			}
+			if( keys[index] == 0 )
+			{
+				if( size + 1 > ( keys.length >>> 1 ) + ( keys.length >>> 2 ) )
+				{
+					resize();
+					record( key, drift );
+					return;
+				}
+				size++;
+			}
+			table.drifts[index] = drift;
+			keys[index] = key;
+		}
+
+		private void remove( int index ) {
+			final long[] keys = table.keys;
+			final byte[] drifts = table.drifts;
+			final int mask = keys.length - 1;
+			// shift later records of the same probe run back so lookups never stop early
+			int next = ( index + 1 ) & mask;
+			while( keys[next] != 0 )
+			{
+				final int home = (int) keys[next] & mask;
+				if( ( ( next - home ) & mask ) >= ( ( next - index ) & mask ) )
+				{
+					keys[index] = keys[next];
+					drifts[index] = drifts[next];
+					index = next;
+				}
+				next = ( next + 1 ) & mask;
+			}
+			keys[index] = 0;
+			drifts[index] = 0;
+			size--;
+		}
+
+		private void resize() {
+			final Table old = table;
+			final Table grown = new Table( old.keys.length << 1 );
+			final int mask = grown.keys.length - 1;
+			for( int i = 0; i < old.keys.length; i++ )
+			{
+				if( old.keys[i] != 0 )
+				{
+					int index = (int) old.keys[i] & mask;
+					while( grown.keys[index] != 0 )
+					{
+						index = ( index + 1 ) & mask;
+					}
+					grown.keys[index] = old.keys[i];
+					grown.drifts[index] = old.drifts[i];
+				}
+			}
+			table = grown;
+		}
+	}
+
+	/**
+	 * Table is the pair of arrays of a stripe
+	 */
+	private static final class Table {
+
+		final long[] keys;
+		final byte[] drifts;
+
+		Table( final int capacity ) {
+			keys = new long[capacity];
+			drifts = new byte[capacity];
+		}
+	}
+}
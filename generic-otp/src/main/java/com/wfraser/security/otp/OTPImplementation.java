@@ -1,12 +1,7 @@
 package com.wfraser.security.otp;
 
-import java.math.BigInteger;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-
-import org.apache.commons.codec.digest.HmacAlgorithms;
 
 import com.wfraser.security.exceptions.OTPGenericException;
 
@@ -23,6 +18,14 @@ import com.wfraser.security.exceptions.OTPGenericException;
  * 
  * This class is used by calling the static createInstance
  * 
+ * Instances are thread safe, a single instance per user can be shared 
+ * by all request threads. Initialised Macs are pooled by {@link OTPMacPool}
+ * so concurrent callers neither lock nor re-initialise the Mac.
+ * 
+ * A counter based user, see {@link OTPUserCredentialProvider#isCounterBased()},
+ * is validated by RFC 4226 HOTP against the counter held in the configured 
+ * {@link OTPCounterStore} instead of the clock.
+ * 
  * 
  * @author 	William Frasewr
  * @version	%I%, %G%
@@ -32,9 +35,45 @@ import com.wfraser.security.exceptions.OTPGenericException;
 public final class OTPImplementation {
 
 
-	private final String _OTP_METHOD_ALGO = HmacAlgorithms.HMAC_SHA_1.getName();
+	/*
+	 *	Powers of ten used to truncate the HMAC to the configured number of digits
+	 */
+	private static final int[] _DIGITS_POWER = { 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000 };
+
+	/*
+	 *	Returned by match when no step in the window generates the code
+	 */
+	static final long _NO_MATCH = Long.MIN_VALUE;
+
+	/*
+	 *	Offsets from a user's recorded drift checked before the rest of the window, most likely first
+	 */
+	private static final int[] _NEAR_DRIFT = { 0, -1, 1 };
+
+	/*
+	 *	Window codes of a counter based user, whose codes never depend on the step
+	 */
+	private static final int[] _NO_CODES = new int[0];
+
+	/*
+	 *	Fewest steps hashed together by the Vector API, shorter runs are quicker hashed one step at a time
+	 */
+	private static final int _MIN_VECTOR_STEPS = 3;
+
 	private final OTPUserCredentialProvider authenticatingUser;
-	private final Mac mac;
+	private final int digits;
+	private final int modulus;
+	private final long periodMillis;
+	private final OTPClock clock;
+	private final OTPReplayStore replayStore;
+	private final long userKey;
+	private final OTPMacPool macPool;
+	private final OTPCodeWindow codeWindow;
+	private final OTPMetrics metrics;
+	private final OTPDriftTable driftTable;
+	private final OTPCounterStore counterStore;
+	private final OTPCodeWindow counterWindow;
+	private final OTPCodeWindow resyncWindow;
 
 	/**
 	 * Creates an instance of {@link OTPImplementation} using a given {@link OTPUserCredentialProvider}
@@ -46,9 +85,24 @@ public final class OTPImplementation {
 	 * @throws OTPGenericException 
 	 */
 	public static OTPImplementation createInstance( OTPUserCredentialProvider authUser ) throws OTPGenericException {
+		return createInstance( authUser, OTPOptions.defaults() );
+	}
+
+	/**
+	 * Creates an instance of {@link OTPImplementation} using a given {@link OTPUserCredentialProvider}
+	 * and {@link OTPOptions}
+	 * 
+	 * @param authUser		{@link OTPUserCredentialProvider} preconfigured 
+	 * @param options		{@link OTPOptions} for the optional behaviour
+	 * 
+	 * @return instance of {@link OTPImplementation} preconfigured for OTP generation and validation 
+	 * 
+	 * @throws OTPGenericException 
+	 */
+	public static OTPImplementation createInstance( OTPUserCredentialProvider authUser, OTPOptions options ) throws OTPGenericException {
 
 		try {
-			return new OTPImplementation( authUser );
+			return new OTPImplementation( authUser, options == null ? OTPOptions.defaults() : options );
 		} catch ( InvalidKeyException | NoSuchAlgorithmException e ) {
 			throw new OTPGenericException( OTPGenericException._ERROR_CREATING_OTP_INSTANCE, e );
 		}
@@ -57,13 +111,66 @@ public final class OTPImplementation {
 	/**
 	 * Generates an OTP based on the RFC 6238 and RFC 4226
 	 * 
-	 * @return String representing 6 digit code
+	 * @return String representing the code, 6 digits unless configured otherwise
 	 */
 	public String getOTP()
 	{
-		return getOTP( getStepAsBytes( getCurrentStep() ) );
+		if( metrics == null )
+		{
+			return generate();
+		}
+		final long start = System.nanoTime();
+		final String otp = generate();
+		metrics.onGenerate( System.nanoTime() - start );
+		if( counterStore == null && ( codeWindow == null || authenticatingUser.getAllowedSteps() <= 0 ) )
+		{
+			metrics.onHmac( 1 );
+		}
+		return otp;
+	}
+
+	/**
+	 * Generates the OTP of the current step, from the code window cache when enabled
+	 * 
+	 * @return String representing the code
+	 */
+	private String generate()
+	{
+		if( counterStore != null )
+		{
+			return formatCode( counterCodes( counterWindow, counterStore.getCounter( authenticatingUser.getUserID() ) )[0] );
+		}
+		if( codeWindow != null && authenticatingUser.getAllowedSteps() > 0 )
+		{
+			final int[] codes = getWindowCodes( codeWindow, getCurrentStep() );
+			return formatCode( codes[codes.length - 1] );
+		}
+		final OTPMacPool.MacContext context = macPool.acquire();
+		try {
+			return formatCode( generateCode( context, getCurrentStep() ) );
+		} finally {
+			macPool.release( context );
+		}
 	}
 	
+	/**
+	 * Generates the code of a given counter, or of a given step for a time 
+	 * based user, as defined by RFC 4226
+	 * 
+	 * @param counter long of the counter
+	 * 
+	 * @return String representing the code, 6 digits unless configured otherwise
+	 */
+	public String getOTP(long counter)
+	{
+		final OTPMacPool.MacContext context = macPool.acquire();
+		try {
+			return formatCode( generateCode( context, counter ) );
+		} finally {
+			macPool.release( context );
+		}
+	}
+
 	/**
 	 * Validates a given code against the valid generated codes
 	 * 
@@ -73,19 +180,548 @@ public final class OTPImplementation {
 	 * 			False - A valid code was not used
 	 */
 	public Boolean validate(String input) {
-		input = padding(input, 6);
-		long step = getCurrentStep(); 
+		final int code = parseCode( input );
+		return code >= 0 && validate( code );
+	}
+
+	/**
+	 * Validates a given numeric code against the valid generated codes
+	 * without creating any intermediate Strings
+	 * 
+	 * @param code int of the code to compare
+	 * 
+	 * @return 	true - A valid code has been used
+	 * 			false - A valid code was not used
+	 */
+	public boolean validate(int code) {
+		return validate( code, getCurrentStep() );
+	}
+
+	/**
+	 * Validates a given numeric code against the codes of the window 
+	 * ending at the given step, allowing batch callers to read the clock once.
+	 * When a {@link OTPReplayStore} is configured the matched step is 
+	 * recorded and a code from the same or an earlier step is rejected
+	 * 
+	 * @param code int of the code to compare
+	 * @param step long of the current time step
+	 * 
+	 * @return 	true - A valid code has been used
+	 * 			false - A valid code was not used
+	 */
+	boolean validate(int code, long step) {
+		if( counterStore != null )
+		{
+			return validateCounter( code );
+		}
+		if( metrics == null )
+		{
+			return accept( match( code, step ), step );
+		}
+		final long start = System.nanoTime();
+		final long matchedStep = match( code, step );
+		final boolean accepted = accept( matchedStep, step );
+		measured( start, matchedStep, step, accepted );
+		return accepted;
+	}
+
+	/**
+	 * Validates a given numeric code against codes already generated for 
+	 * the window ending at the given step, allowing callers validating the 
+	 * same user concurrently to share one set of HMACs
+	 * 
+	 * @param code		int of the code to compare
+	 * @param step		long of the current time step
+	 * @param codes		int[] of the window codes from {@link #windowCodes(long)}
+	 * 
+	 * @return 	true - A valid code has been used
+	 * 			false - A valid code was not used
+	 */
+	boolean validate(int code, long step, int[] codes) {
+		if( counterStore != null )
+		{
+			return validateCounter( code );
+		}
+		final long start = metrics == null ? 0 : System.nanoTime();
+		final long firstStep = step - authenticatingUser.getAllowedSteps() +1;
+		long matchedStep = _NO_MATCH;
+		if( driftTable != null )
+		{
+			matchedStep = matchDrift( code, step, codes );
+		} else {
+			for( int i = 0; i < codes.length; i++ )
+			{
+				if( codes[i] == code )
+				{
+					matchedStep = firstStep + i;
+					break;
+				}
+			}
+		}
+		final boolean accepted = accept( matchedStep, step );
+		if( metrics != null )
+		{
+			measured( start, matchedStep, step, accepted );
+		}
+		return accepted;
+	}
+
+	/**
+	 * Reports a validation to the configured {@link OTPMetrics}
+	 * 
+	 * @param start			long of {@link System#nanoTime()} when validation started
+	 * @param matchedStep	long of the matched step, or {@link #_NO_MATCH}
+	 * @param step			long of the current time step
+	 * @param accepted		boolean result of the validation
+	 */
+	private void measured(long start, long matchedStep, long step, boolean accepted) {
+		final long nanos = System.nanoTime() - start;
+		metrics.onValidate( authenticatingUser.getUserID(), nanos, 
+				matchedStep == _NO_MATCH ? OTPMetrics._NO_MATCH : (int) ( matchedStep - step ), accepted );
+	}
+
+	/**
+	 * Validates a code of a counter based user against the look ahead window
+	 * from the user's next expected counter, moving the counter past the 
+	 * matched one. The window codes are cached, so only counters new to the 
+	 * window are computed as it moves forward
+	 * 
+	 * @param code int of the code to compare
+	 * 
+	 * @return 	true - A valid code has been used
+	 * 			false - A valid code was not used
+	 */
+	private boolean validateCounter(int code) {
+		final long start = metrics == null ? 0 : System.nanoTime();
+		final String userID = authenticatingUser.getUserID();
+		long counter;
+		long matched;
+		do {
+			counter = counterStore.getCounter( userID );
+			matched = _NO_MATCH;
+			final int[] codes = counterCodes( counterWindow, counter );
+			for( int i = 0; i < codes.length; i++ )
+			{
+				if( codes[i] == code )
+				{
+					matched = counter + i;
+					break;
+				}
+			}
+		} while( matched != _NO_MATCH && !counterStore.advance( userID, counter, matched + 1 ) );
+		if( metrics != null )
+		{
+			metrics.onValidate( userID, System.nanoTime() - start, 
+					matched == _NO_MATCH ? OTPMetrics._NO_MATCH : (int) ( matched - counter ), matched != _NO_MATCH );
+		}
+		return matched != _NO_MATCH;
+	}
+
+	/**
+	 * Resynchronizes a counter based user whose token has moved beyond the look 
+	 * ahead window, searching the resynchronization window for two consecutive 
+	 * codes and moving the counter past the second. The window codes are cached,
+	 * so repeated attempts compare ints rather than recomputing HMACs
+	 * 
+	 * A time based user with a {@link OTPDriftTable} is resynchronized by 
+	 * searching the steps up to the table's maximum drift either side of the 
+	 * current step, recording the drift of the second code. This is how a 
+	 * device running ahead is first followed, as validation only checks 
+	 * steps after the current step for a user already recorded as ahead
+	 * 
+	 * @param first		String of the first code shown by the token
+	 * @param second	String of the code shown by the token after the first
+	 * 
+	 * @return 	true - the codes were found and the counter or drift moved
+	 * 			false - the codes were not found or the user is time based without a drift table
+	 */
+	public boolean resynchronize(String first, String second) {
+		if( counterStore == null && driftTable == null )
+		{
+			return false;
+		}
+		final int firstCode = parseCode( first );
+		final int secondCode = parseCode( second );
+		if( firstCode < 0 || secondCode < 0 )
+		{
+			return false;
+		}
+		if( counterStore == null )
+		{
+			return resynchronizeDrift( firstCode, secondCode, getCurrentStep() );
+		}
+		final String userID = authenticatingUser.getUserID();
+		long counter;
+		long matched;
+		do {
+			counter = counterStore.getCounter( userID );
+			matched = _NO_MATCH;
+			final int[] codes = counterCodes( resyncWindow, counter );
+			for( int i = 0; i < codes.length - 1; i++ )
+			{
+				if( codes[i] == firstCode && codes[i + 1] == secondCode )
+				{
+					matched = counter + i;
+					break;
+				}
+			}
+			if( matched == _NO_MATCH )
+			{
+				return false;
+			}
+		} while( !counterStore.advance( userID, counter, matched + 2 ) );
+		return true;
+	}
+
+	/**
+	 * Finds two consecutive codes within the maximum drift of the current
+	 * step, recording the offset of the second as the user's drift. The
+	 * second step is recorded with the {@link OTPReplayStore}, so neither
+	 * code can then be used to log in
+	 * 
+	 * @param first		int of the first code shown by the device
+	 * @param second	int of the code shown after the first
+	 * @param step		long of the current time step
+	 * 
+	 * @return true when the codes were found and the drift recorded
+	 */
+	private boolean resynchronizeDrift(int first, int second, long step) {
+		final int maxDrift = driftTable.getMaxDrift();
+		final OTPMacPool.MacContext context = macPool.acquire();
+		int hmacs = 1;
+		try {
+			int previous = generateCode( context, step - maxDrift );
+			for( int offset = -maxDrift + 1; offset <= maxDrift; offset++ )
+			{
+				final int generated = generateCode( context, step + offset );
+				hmacs++;
+				if( previous == first && generated == second )
+				{
+					if( !record( step + offset ) )
+					{
+						return false;
+					}
+					driftTable.record( userKey, offset );
+					return true;
+				}
+				previous = generated;
+			}
+			return false;
+		} finally {
+			macPool.release( context );
+			if( metrics != null )
+			{
+				metrics.onHmac( hmacs );
+			}
+		}
+	}
+
+	/**
+	 * Gets the codes of the counters of a window starting at the given counter
+	 * 
+	 * @param window	{@link OTPCodeWindow} caching the codes
+	 * @param counter	long of the first counter in the window
+	 * 
+	 * @return int[] of the window codes, index 0 being the given counter
+	 */
+	private int[] counterCodes(OTPCodeWindow window, long counter) {
+		return getWindowCodes( window, counter + window.size() - 1 );
+	}
+
+	/**
+	 * Accepts a matched step when the {@link OTPReplayStore} allows it,
+	 * recording the user's drift when a {@link OTPDriftTable} is configured
+	 * 
+	 * @param matchedStep	long of the step that generated the code, or {@link #_NO_MATCH}
+	 * @param step			long of the current time step
+	 * 
+	 * @return true when the code is accepted
+	 */
+	private boolean accept(long matchedStep, long step) {
+		if( matchedStep == _NO_MATCH || !record( matchedStep ) )
+		{
+			return false;
+		}
+		if( driftTable != null )
+		{
+			driftTable.record( userKey, (int) ( matchedStep - step ) );
+		}
+		return true;
+	}
+
+	/**
+	 * Records an accepted step with the {@link OTPReplayStore}, if configured
+	 * 
+	 * @param matchedStep long of the step that generated the code
+	 * 
+	 * @return true when the step had not already been used
+	 */
+	private boolean record(long matchedStep) {
+		return replayStore == null 
+				|| replayStore.checkAndRecord( userKey, matchedStep, ( matchedStep + authenticatingUser.getAllowedSteps() ) * periodMillis );
+	}
+
+	/**
+	 * Gets the codes of the window ending at the given step, oldest first.
+	 * The array may be shared with other callers and must not be modified
+	 * 
+	 * @param step long of the current time step
+	 * 
+	 * @return int[] of the window codes
+	 */
+	int[] windowCodes(long step) {
+		if( counterStore != null )
+		{
+			return _NO_CODES;
+		}
+		if( codeWindow != null )
+		{
+			return getWindowCodes( codeWindow, step );
+		}
+		final int[] codes = new int[Math.max( 0, authenticatingUser.getAllowedSteps() )];
+		final long firstStep = step - codes.length +1;
+		final OTPMacPool.MacContext context = macPool.acquire();
+		try {
+			generateCodes( context, firstStep, codes, 0, codes.length );
+			if( metrics != null )
+			{
+				metrics.onHmac( codes.length );
+			}
+			return codes;
+		} finally {
+			macPool.release( context );
+		}
+	}
+
+	/**
+	 * Gets the current step using the configured {@link OTPClock}
+	 * 
+	 * @return long of the time step
+	 */
+	long currentStep() {
+		return getCurrentStep();
+	}
+
+	/**
+	 * Gets the built in engine when the window of this instance may be 
+	 * hashed alongside other users' windows by {@link OTPBatchValidator}, 
+	 * which is for a time based user without a code window cache
+	 * 
+	 * @return {@link OTPMidstateHmac} of the key, or null to validate on its own
+	 */
+	OTPMidstateHmac laneEngine() {
+		if( counterStore != null || codeWindow != null || authenticatingUser.getAllowedSteps() < 1 )
+		{
+			return null;
+		}
+		return macPool.getMidstate();
+	}
+
+	/**
+	 * Drops the pooled Macs and buffers of this instance, called when it
+	 * leaves the cache of {@link OTPValidationEngine}. A thread still
+	 * validating with the instance is unaffected
+	 */
+	void release() {
+		macPool.clear();
+	}
+
+	/**
+	 * Gets the number of steps in the validation window
+	 * 
+	 * @return int of the allowed steps
+	 */
+	int windowSize() {
+		return Math.max( 0, authenticatingUser.getAllowedSteps() );
+	}
+
+	/**
+	 * Reports HMACs computed for this instance by a caller, such as a batch
+	 * 
+	 * @param count int of the number of HMACs
+	 */
+	void hmacsComputed(int count) {
+		if( metrics != null )
+		{
+			metrics.onHmac( count );
+		}
+	}
+
+	/**
+	 * Finds the step of the window ending at the given step 
+	 * that generates the given code
+	 * 
+	 * @param code int of the code to compare
+	 * @param step long of the current time step
+	 * 
+	 * @return long of the matched step, or {@link #_NO_MATCH}
+	 */
+	long match(int code, long step) {
+		if( driftTable != null )
+		{
+			return matchDrift( code, step, codeWindow != null ? getWindowCodes( codeWindow, step ) : null );
+		}
 		long lastStep = step - authenticatingUser.getAllowedSteps() +1;
-		while( lastStep <= step )
+		if( codeWindow != null )
+		{
+			final int[] codes = getWindowCodes( codeWindow, step );
+			for( int i = 0; i < codes.length; i++ )
+			{
+				if( codes[i] == code )
+				{
+					return lastStep + i;
+				}
+			}
+			return _NO_MATCH;
+		}
+		final OTPMacPool.MacContext context = macPool.acquire();
+		try {
+			final long firstStep = lastStep;
+			final OTPMultiBufferHmac lanes = step - lastStep + 1 >= _MIN_VECTOR_STEPS ? context.lanes() : null;
+			if( lanes != null )
+			{
+				return matchLanes( context.midstate, lanes, code, firstStep, step );
+			}
+			while( lastStep <= step )
+			{
+				if( generateCode( context, lastStep ) == code )
+				{
+					if( metrics != null )
+					{
+						metrics.onHmac( (int) ( lastStep - firstStep ) + 1 );
+					}
+					return lastStep;
+				}
+				lastStep++;
+			}
+			if( metrics != null )
+			{
+				metrics.onHmac( (int) ( lastStep - firstStep ) );
+			}
+			return _NO_MATCH;
+		} finally {
+			macPool.release( context );
+		}
+	}
+
+	/**
+	 * Finds the step of a window that generates the given code, hashing 
+	 * as many steps at once as the multi buffer working set has lanes
+	 * 
+	 * @param engine	{@link OTPMidstateHmac} of the user's key
+	 * @param lanes		{@link OTPMultiBufferHmac} of the acquired context
+	 * @param code		int of the code to compare
+	 * @param firstStep	long of the oldest step in the window
+	 * @param step		long of the current time step
+	 * 
+	 * @return long of the matched step, or {@link #_NO_MATCH}
+	 */
+	private long matchLanes(OTPMidstateHmac engine, OTPMultiBufferHmac lanes, int code, long firstStep, long step) {
+		long matchedStep = _NO_MATCH;
+		long nextStep = firstStep;
+		while( matchedStep == _NO_MATCH && nextStep <= step )
 		{
-			String currentOTP = getOTP( getStepAsBytes( lastStep ) );
-			if( input.compareTo( currentOTP ) ==0 )
+			final int count = (int) Math.min( lanes.getLanes(), step - nextStep + 1 );
+			lanes.hash( engine, nextStep, count );
+			for( int lane = 0; lane < count; lane++ )
 			{
-				return true;
+				if( truncate( lanes.truncate( lane ) ) == code )
+				{
+					matchedStep = nextStep + lane;
+					break;
+				}
+			}
+			nextStep += count;
+		}
+		if( metrics != null )
+		{
+			metrics.onHmac( (int) ( nextStep - firstStep ) );
+		}
+		return matchedStep;
+	}
+
+	/**
+	 * Finds the step that generates the given code, checking the user's 
+	 * recorded drift and the steps either side of it first. Steps after the
+	 * current step are only checked for a user recorded as running ahead.
+	 * The rest of the window, from the current step back, is then checked 
+	 * for every user, so a recorded drift never rejects a code the window 
+	 * alone would accept. Steps further than the table's maximum drift from 
+	 * the current step are only checked when inside the window
+	 * 
+	 * @param code		int of the code to compare
+	 * @param step		long of the current time step
+	 * @param window	int[] of the window codes, oldest first, or null to generate them
+	 * 
+	 * @return long of the matched step, or {@link #_NO_MATCH}
+	 */
+	private long matchDrift(int code, long step, int[] window) {
+		final long firstStep = step - Math.max( 0, authenticatingUser.getAllowedSteps() ) +1;
+		final int maxDrift = driftTable.getMaxDrift();
+		final int drift = driftTable.drift( userKey );
+		OTPMacPool.MacContext context = null;
+		int hmacs = 0;
+		try {
+			for( int i = 0; i < _NEAR_DRIFT.length; i++ )
+			{
+				final int offset = drift + _NEAR_DRIFT[i];
+				if( offset < -maxDrift || offset > maxDrift || ( offset > 0 && drift <= 0 ) )
+				{
+					continue;
+				}
+				final long candidate = step + offset;
+				final int generated;
+				if( window != null && candidate >= firstStep && candidate <= step )
+				{
+					generated = window[(int) ( candidate - firstStep )];
+				} else {
+					if( context == null )
+					{
+						context = macPool.acquire();
+					}
+					generated = generateCode( context, candidate );
+					hmacs++;
+				}
+				if( generated == code )
+				{
+					return candidate;
+				}
+			}
+			for( long candidate = step; candidate >= firstStep; candidate-- )
+			{
+				final int offset = (int) ( candidate - step );
+				if( offset >= -maxDrift && offset >= drift - 1 && offset <= drift + 1 )
+				{
+					continue;
+				}
+				final int generated;
+				if( window != null )
+				{
+					generated = window[(int) ( candidate - firstStep )];
+				} else {
+					if( context == null )
+					{
+						context = macPool.acquire();
+					}
+					generated = generateCode( context, candidate );
+					hmacs++;
+				}
+				if( generated == code )
+				{
+					return candidate;
+				}
+			}
+			return _NO_MATCH;
+		} finally {
+			if( context != null )
+			{
+				macPool.release( context );
+			}
+			if( metrics != null && hmacs > 0 )
+			{
+				metrics.onHmac( hmacs );
 			}
-			lastStep++;
 		}
-		return false;
 	}
 
 	/**
@@ -96,7 +732,19 @@ public final class OTPImplementation {
 	 */
 	private OTPImplementation() throws NoSuchAlgorithmException, InvalidKeyException {
 		this.authenticatingUser = null;
-		this.mac = null;
+		this.digits = 0;
+		this.modulus = 0;
+		this.periodMillis = 0;
+		this.clock = null;
+		this.replayStore = null;
+		this.userKey = 0;
+		this.macPool = null;
+		this.codeWindow = null;
+		this.metrics = null;
+		this.driftTable = null;
+		this.counterStore = null;
+		this.counterWindow = null;
+		this.resyncWindow = null;
 	}
 
 	/**
@@ -105,101 +753,287 @@ public final class OTPImplementation {
 	 * with the required user details
 	 * 
 	 * @param authUser		{@link OTPUserCredentialProvider} for configuration
+	 * @param options		{@link OTPOptions} for the optional behaviour
 	 * 
 	 * @throws NoSuchAlgorithmException
 	 * @throws InvalidKeyException
 	 * @throws OTPGenericException
 	 */
-	private OTPImplementation( OTPUserCredentialProvider authUser ) throws NoSuchAlgorithmException, InvalidKeyException, OTPGenericException {
+	private OTPImplementation( OTPUserCredentialProvider authUser, OTPOptions options ) throws NoSuchAlgorithmException, InvalidKeyException, OTPGenericException {
 		this.authenticatingUser = authUser;
-		mac = Mac.getInstance( _OTP_METHOD_ALGO );
-		if( this.authenticatingUser != null && this.authenticatingUser.getSecretKey() != null ) 
+		if( this.authenticatingUser != null ) 
 		{
-			mac.init(new SecretKeySpec(this.authenticatingUser.getSecretByteArray(), "RAW"));
+			macPool = new OTPMacPool( authUser.getAlgorithm().getMacName(), this.authenticatingUser.secret(), 
+					options.isBuiltInHmac() ? OTPMidstateHmac.createInstance( authUser.getAlgorithm(), this.authenticatingUser.secret() ) : null );
 		} else {
 			throw new OTPGenericException(OTPGenericException._USER_AND_KEY_BLANK);
 		}
+		digits = authUser.getDigits();
+		modulus = _DIGITS_POWER[digits];
+		periodMillis = authUser.getPeriod() * 1000L;
+		clock = options.getClock();
+		replayStore = options.getReplayStore();
+		userKey = OTPUserKeys.of( authUser.getUserID() );
+		codeWindow = options.isCodeWindowCache() ? new OTPCodeWindow( authUser.getAllowedSteps() ) : null;
+		metrics = options.getMetrics() == OTPMetrics.NONE ? null : options.getMetrics();
+		driftTable = options.getDriftTable();
+		if( authUser.isCounterBased() )
+		{
+			counterStore = options.getCounterStore() == null ? OTPMemoryCounterStore.createInstance() : options.getCounterStore();
+			counterWindow = new OTPCodeWindow( Math.max( 1, authUser.getAllowedSteps() ) );
+			resyncWindow = new OTPCodeWindow( options.getResyncWindow() );
+		} else {
+			counterStore = null;
+			counterWindow = null;
+			resyncWindow = null;
+		}
+	}
+
+	/**
+	 * Gets the codes of the window ending at the given step from a 
+	 * code window cache, computing only the steps not already cached
+	 * 
+	 * @param window	{@link OTPCodeWindow} caching the codes
+	 * @param step		long of the last step, or counter, in the window
+	 * 
+	 * @return int[] of the window codes
+	 */
+	private int[] getWindowCodes( final OTPCodeWindow window, final long step ) {
+		final int[] codes = window.cached( step );
+		if( codes != null )
+		{
+			if( metrics != null )
+			{
+				metrics.onCodeWindow( true );
+			}
+			return codes;
+		}
+		final OTPMacPool.MacContext context = macPool.acquire();
+		try {
+			if( metrics == null )
+			{
+				return window.advance( step, ( firstStep, windowCodes, from, count ) -> generateCodes( context, firstStep, windowCodes, from, count ) );
+			}
+			final int[] hmacs = new int[1];
+			final int[] advanced = window.advance( step, ( firstStep, windowCodes, from, count ) -> {
+				hmacs[0] += count;
+				generateCodes( context, firstStep, windowCodes, from, count );
+			} );
+			metrics.onCodeWindow( false );
+			metrics.onHmac( hmacs[0] );
+			return advanced;
+		} finally {
+			macPool.release( context );
+		}
 	}
 
 	/**
-	 * Gets the current 30s step in time 
-	 * from the beginning of the epoc
+	 * Gets the current step in time 
+	 * from the beginning of the epoc using the configured {@link OTPClock}
 	 * 
 	 * @return long of the time step
 	 */
 	private long getCurrentStep() {
-		return System.currentTimeMillis() / 30000;
+		if( clock == OTPClock.SYSTEM )
+		{
+			return getStep( System.currentTimeMillis() );
+		}
+		return clock.currentStep( periodMillis );
 	}
 
 	/**
-	 * Converts the long form of step into a byte array needed for processing
+	 * Gets the step containing the given time. The default 30s step
+	 * divides by a constant so the JIT can avoid the division
 	 * 
-	 * @param step long of the time step
+	 * @param timeMillis long of the time in milliseconds from the beginning of the epoc
+	 * 
+	 * @return long of the time step
+	 */
+	long getStep( final long timeMillis ) {
+		if( periodMillis == 30000 )
+		{
+			return timeMillis / 30000;
+		}
+		return timeMillis / periodMillis;
+	}
+
+	/**
+	 * Writes the long form of step into the context's 8 byte counter buffer
+	 * in big endian order as required by RFC 4226
+	 * 
+	 * @param context	{@link OTPMacPool.MacContext} owning the buffer
+	 * @param step 		long of the time step
 	 * 
 	 * @return byte[] of the time step for processing
 	 */
-	private byte[] getStepAsBytes(long step) {
-		String steps = Long.toHexString( step ).toUpperCase();
-		steps = padding(steps, 16);
-		final byte[] cleanupArray = new BigInteger( "10" + steps, 16 ).toByteArray();
-		final byte[] stepAsByte = new byte[cleanupArray.length - 1];
-		System.arraycopy( cleanupArray, 1, stepAsByte, 0, stepAsByte.length );
+	private static byte[] getStepAsBytes( final OTPMacPool.MacContext context, long step ) {
+		final byte[] stepAsByte = context.counter;
+		for( int i = stepAsByte.length - 1; i >= 0; i-- )
+		{
+			stepAsByte[i] = (byte) step;
+			step >>>= 8;
+		}
 		return stepAsByte;
 	}
 
 	/**
-	 * carry out the cryptographic function for HMAC SHA 1
+	 * carry out the cryptographic function for the configured HMAC algorithm
+	 * writing the result into the context's hash buffer
 	 * 
-	 * @param text byte[] to be processed
+	 * @param context {@link OTPMacPool.MacContext} holding the counter to be processed
 	 * 
 	 * @return byte[] representation of the hash
 	 */
-	private byte[] doHMACSHA1(final byte[] text)
+	private static byte[] doHMAC( final OTPMacPool.MacContext context )
 	{
-		return mac.doFinal( text );
+		return context.doFinal();
 	}
 
 	/**
 	 * Generate the OTP by
-	 * 1) Call the hash function
-	 * 2) Getting the relevant information from the hash to generate the OTP
-	 * 3) Convert the value to a String
-	 * 4) Pad the string to 6 chars 
+	 * 1) Encoding the step into the counter buffer
+	 * 2) Call the hash function
+	 * 3) Getting the relevant information from the hash to generate the OTP
+	 * or, with the built in engine, hashing the step from the cached midstates
 	 * 
-	 * @param stepsBytes - bytes representing the steps
+	 * @param context	{@link OTPMacPool.MacContext} acquired by the caller
+	 * @param step 		long of the time step
 	 * 
-	 * @return 6 char representing the OTP
+	 * @return int value of the OTP
 	 */
-	private String getOTP( final byte[] stepsBytes )
+	private int generateCode( final OTPMacPool.MacContext context, final long step )
 	{
-		String otp = "";
-		final byte[] hash = doHMACSHA1( stepsBytes );
+		if( context.midstate != null )
+		{
+			return truncate( context.midstate.truncate( step, context.work ) );
+		}
+		getStepAsBytes( context, step );
+		final byte[] hash = doHMAC( context );
 		final int offset = hash[hash.length - 1] & 0xf;
 		final int binary = ( ( hash[offset] & 0x7f) << 24 ) 
 				| ( ( hash[offset + 1] & 0xff ) << 16 ) 
 				| ( ( hash[offset + 2] & 0xff ) << 8 ) 
 				| ( hash[offset + 3] & 0xff );
-		final int otpVal = binary % 1000000;
+		return truncate( binary );
+	}
 
-		otp = Integer.toString( otpVal );
-		otp = padding(otp, 6);
-		return otp;
+	/**
+	 * Generates the codes of consecutive steps into part of an array. With 
+	 * the built in engine and the Vector API the steps are hashed as many at 
+	 * once as there are lanes, otherwise, or for runs too short to gain from 
+	 * it, one step at a time
+	 * 
+	 * @param context	{@link OTPMacPool.MacContext} acquired by the caller
+	 * @param firstStep	long of the first time step, or counter
+	 * @param codes		int[] the codes are written to
+	 * @param from		int index of the first step's code
+	 * @param count		int number of steps
+	 */
+	private void generateCodes( final OTPMacPool.MacContext context, final long firstStep, final int[] codes, final int from, final int count )
+	{
+		final OTPMultiBufferHmac lanes = count >= _MIN_VECTOR_STEPS ? context.lanes() : null;
+		if( lanes == null )
+		{
+			for( int i = 0; i < count; i++ )
+			{
+				codes[from + i] = generateCode( context, firstStep + i );
+			}
+			return;
+		}
+		for( int done = 0; done < count; done += lanes.getLanes() )
+		{
+			final int lanesUsed = Math.min( lanes.getLanes(), count - done );
+			lanes.hash( context.midstate, firstStep + done, lanesUsed );
+			for( int lane = 0; lane < lanesUsed; lane++ )
+			{
+				codes[from + done + lane] = truncate( lanes.truncate( lane ) );
+			}
+		}
+	}
+
+	/**
+	 * Reduces the dynamic truncation of the hash to the configured number 
+	 * of digits. The common 6 and 8 digit lengths divide by a constant 
+	 * so the JIT can replace the division with a multiplication
+	 * 
+	 * @param binary int of the dynamically truncated hash
+	 * 
+	 * @return int value of the OTP
+	 */
+	int truncate( final int binary )
+	{
+		switch( digits ) {
+			case 6:
+				return binary % 1000000;
+			case 8:
+				return binary % 100000000;
+			default:
+				return binary % modulus;
+		}
 	}
 
 	/**
-	 * Helper method designed to pad a given string by a given length
-	 * Uses "0" for padding
+	 * Converts a numeric OTP into its char form, 
+	 * using "0" for padding
 	 * 
-	 * @param input String for padding
-	 * @param length int of end length
+	 * @param code int value of the OTP
 	 * 
-	 * @return String with padding if required
+	 * @return String of the configured number of digits representing the OTP
 	 */
-	private String padding(String input, int length)
+	String formatCode( int code )
 	{
-		while ( input.length() < length ) {
-			input = "0" + input;
+		final char[] otp = new char[digits];
+		for( int i = otp.length - 1; i >= 0; i-- )
+		{
+			otp[i] = (char) ( '0' + code % 10 );
+			code /= 10;
+		}
+		return new String( otp );
+	}
+
+	/**
+	 * Parses a submitted code into its numeric form without
+	 * creating any intermediate Strings. Shorter codes are treated 
+	 * as if padded with "0"
+	 * 
+	 * @param input String of the submitted code
+	 * 
+	 * @return int value of the code, or -1 when the input can not be a valid code
+	 */
+	int parseCode( final String input )
+	{
+		if( input == null || input.isEmpty() || input.length() > digits )
+		{
+			return -1;
 		}
-		return input;
+		int code = 0;
+		for( int i = 0; i < input.length(); i++ )
+		{
+			final char c = input.charAt( i );
+			if( c < '0' || c > '9' )
+			{
+				return -1;
+			}
+			code = code * 10 + ( c - '0' );
+		}
+		return code;
+	}
+
+	/**
+	 * WindowSource supplies the codes of a window, allowing callers
+	 * such as {@link OTPAsyncValidationEngine} to share one computation
+	 */
+	@FunctionalInterface
+	interface WindowSource {
+
+		/**
+		 * Gets the codes of the window ending at the given step
+		 * 
+		 * @param otp	the {@link OTPImplementation} of the user
+		 * @param step	long of the current time step
+		 * 
+		 * @return int[] of the window codes, oldest first
+		 */
+		int[] codes( OTPImplementation otp, long step );
 	}
 }
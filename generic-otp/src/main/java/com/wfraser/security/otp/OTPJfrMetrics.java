@@ -0,0 +1,196 @@
+package com.wfraser.security.otp;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * OTPJfrMetrics is an {@link OTPMetrics} emitting JDK Flight Recorder events
+ *
+ * Each generation, validation and throttled attempt is an event,
+ * <code>com.wfraser.security.otp.Generate</code>, <code>.Validate</code> and
+ * <code>.Throttle</code>, created only while a recording has the event enabled.
+ * HMAC and cache counts are too frequent for an event each, so they are summed
+ * and emitted as a periodic <code>com.wfraser.security.otp.Statistics</code> event,
+ * once a second by default. Validation and throttle events carry the User's ID.
+ *
+ * {@link #close()} stops the periodic event when the instance is no longer used.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPJfrMetrics implements OTPMetrics, Closeable {
+
+	private final LongAdder hmacs = new LongAdder();
+	private final LongAdder codeWindowHits = new LongAdder();
+	private final LongAdder codeWindowMisses = new LongAdder();
+	private final LongAdder userCacheHits = new LongAdder();
+	private final LongAdder userCacheMisses = new LongAdder();
+	private final Runnable statistics = this::emitStatistics;
+
+	/**
+	 * Creates an instance of {@link OTPJfrMetrics}, registering its periodic event
+	 *
+	 * @return instance of {@link OTPJfrMetrics}
+	 */
+	public static OTPJfrMetrics createInstance() {
+		final OTPJfrMetrics metrics = new OTPJfrMetrics();
+		FlightRecorder.addPeriodicEvent( StatisticsEvent.class, metrics.statistics );
+		return metrics;
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 */
+	private OTPJfrMetrics() {
+
+	}
+
+	@Override
+	public void onGenerate( final long nanos ) {
+		final GenerateEvent event = new GenerateEvent();
+		if( event.isEnabled() )
+		{
+			event.latency = nanos;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void onValidate( final String userID, final long nanos, final int matchedOffset, final boolean accepted ) {
+		final ValidateEvent event = new ValidateEvent();
+		if( event.isEnabled() )
+		{
+			event.userID = userID;
+			event.latency = nanos;
+			event.matched = matchedOffset != _NO_MATCH;
+			event.matchedOffset = event.matched ? matchedOffset : 0;
+			event.accepted = accepted;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void onHmac( final int count ) {
+		hmacs.add( count );
+	}
+
+	@Override
+	public void onCodeWindow( final boolean hit ) {
+		( hit ? codeWindowHits : codeWindowMisses ).increment();
+	}
+
+	@Override
+	public void onUserCache( final boolean hit ) {
+		( hit ? userCacheHits : userCacheMisses ).increment();
+	}
+
+	@Override
+	public void onThrottle( final String userID ) {
+		final ThrottleEvent event = new ThrottleEvent();
+		if( event.isEnabled() )
+		{
+			event.userID = userID;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Stops emitting the periodic statistics event
+	 */
+	@Override
+	public void close() {
+		FlightRecorder.removePeriodicEvent( statistics );
+	}
+
+	private void emitStatistics() {
+		final StatisticsEvent event = new StatisticsEvent();
+		event.hmacs = hmacs.sum();
+		event.codeWindowHits = codeWindowHits.sum();
+		event.codeWindowMisses = codeWindowMisses.sum();
+		event.userCacheHits = userCacheHits.sum();
+		event.userCacheMisses = userCacheMisses.sum();
+		event.commit();
+	}
+
+	@Name( "com.wfraser.security.otp.Generate" )
+	@Label( "OTP Generate" )
+	@Category( { "Security", "OTP" } )
+	@StackTrace( false )
+	static final class GenerateEvent extends Event {
+
+		@Label( "Latency" )
+		@Timespan( Timespan.NANOSECONDS )
+		long latency;
+	}
+
+	@Name( "com.wfraser.security.otp.Validate" )
+	@Label( "OTP Validate" )
+	@Category( { "Security", "OTP" } )
+	@StackTrace( false )
+	static final class ValidateEvent extends Event {
+
+		@Label( "User ID" )
+		String userID;
+
+		@Label( "Latency" )
+		@Timespan( Timespan.NANOSECONDS )
+		long latency;
+
+		@Label( "Matched" )
+		boolean matched;
+
+		@Label( "Matched Offset" )
+		@Description( "Steps between the matched step and the current step, negative for earlier steps" )
+		int matchedOffset;
+
+		@Label( "Accepted" )
+		boolean accepted;
+	}
+
+	@Name( "com.wfraser.security.otp.Throttle" )
+	@Label( "OTP Throttle" )
+	@Category( { "Security", "OTP" } )
+	@StackTrace( false )
+	static final class ThrottleEvent extends Event {
+
+		@Label( "User ID" )
+		String userID;
+	}
+
+	@Name( "com.wfraser.security.otp.Statistics" )
+	@Label( "OTP Statistics" )
+	@Description( "Counts since the metrics were created" )
+	@Category( { "Security", "OTP" } )
+	@Period( "1 s" )
+	@StackTrace( false )
+	static final class StatisticsEvent extends Event {
+
+		@Label( "HMACs" )
+		long hmacs;
+
+		@Label( "Code Window Hits" )
+		long codeWindowHits;
+
+		@Label( "Code Window Misses" )
+		long codeWindowMisses;
+
+		@Label( "User Cache Hits" )
+		long userCacheHits;
+
+		@Label( "User Cache Misses" )
+		long userCacheMisses;
+	}
+}
@@ -0,0 +1,44 @@
+package com.wfraser.security.otp;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+
+/**
+ * OTPKeyStore is the lookup used by {@link OTPValidationEngine}
+ * to find the credentials of a user by their ID
+ * 
+ * Implementations typically wrap the application's user database
+ * and are only called when the engine's cache does not already hold
+ * the user.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+@FunctionalInterface
+public interface OTPKeyStore {
+
+	/**
+	 * Looks up the credentials of a user
+	 * 
+	 * @param userID	the String for the User's ID
+	 * 
+	 * @return			the {@link OTPUserCredentialProvider} for the user, or null if the user is unknown
+	 * 
+	 * @throws OTPGenericException when the store can not be read
+	 */
+	OTPUserCredentialProvider getCredential( String userID ) throws OTPGenericException;
+
+	/**
+	 * Called by {@link OTPValidationEngine} once it has built the keys of a user
+	 * from a credential returned by {@link #getCredential(String)}, so stores
+	 * creating a fresh credential per lookup can wipe its secret. The default
+	 * leaves the credential untouched, as it may be shared by the application
+	 * 
+	 * @param credential	the {@link OTPUserCredentialProvider} no longer needed by the engine
+	 */
+	default void release( OTPUserCredentialProvider credential ) {
+	}
+
+}
@@ -0,0 +1,325 @@
+package com.wfraser.security.otp;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * OTPMacPool is a small lock-free pool of initialised {@link Mac} instances
+ * for a single secret key, allowing one {@link OTPImplementation} to be shared
+ * by any number of request threads.
+ *
+ * Each pooled {@link MacContext} carries its own counter and hash buffers so
+ * a thread holding a context can generate codes without allocating. When all
+ * pooled contexts are in use a new one is cloned from an initialised prototype
+ * that is never used for hashing, so the pool never blocks and never
+ * re-decodes the key.
+ *
+ * When given an {@link OTPMidstateHmac} the pool holds no {@link Mac} at all,
+ * each context instead carries the int work buffer of the built in engine,
+ * and, when the Vector API is available, an {@link OTPMultiBufferHmac} for 
+ * hashing whole windows created on first use.
+ *
+ * The key is only kept as a {@link SecretKeySpec} when the provider's Macs
+ * can not be cloned, and {@link #clear()} drops the pooled contexts and
+ * overwrites the midstate of the built in engine once the owning 
+ * {@link OTPImplementation} leaves a cache.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+final class OTPMacPool {
+
+	private static final int _MAX_POOL_SIZE = 16;
+
+	private final String algorithm;
+	private final SecretKeySpec keySpec;
+	private final Mac prototype;
+	private final OTPMidstateHmac midstate;
+	private final AtomicReferenceArray<MacContext> slots;
+	private final int mask;
+
+	/**
+	 * Creates a pool with a single initialised context for the given key
+	 *
+	 * @param algorithm		the String name of the JCE Mac algorithm
+	 * @param keyBytes		the byte[] of the raw secret key
+	 *
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 */
+	OTPMacPool( final String algorithm, final byte[] keyBytes ) throws NoSuchAlgorithmException, InvalidKeyException {
+		this( algorithm, keyBytes, null );
+	}
+
+	/**
+	 * Creates a pool with a single context for the given key, using the
+	 * built in engine when one is given
+	 *
+	 * @param algorithm		the String name of the JCE Mac algorithm
+	 * @param keyBytes		the byte[] of the raw secret key
+	 * @param midstate		the {@link OTPMidstateHmac} for the key, or null to use JCE
+	 *
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 */
+	OTPMacPool( final String algorithm, final byte[] keyBytes, final OTPMidstateHmac midstate ) throws NoSuchAlgorithmException, InvalidKeyException {
+		this.algorithm = algorithm;
+		this.midstate = midstate;
+		if( midstate == null )
+		{
+			final SecretKeySpec spec = new SecretKeySpec( keyBytes, "RAW" );
+			this.prototype = newMac( algorithm, spec );
+			this.keySpec = isCloneable( prototype ) ? null : spec;
+		} else {
+			this.prototype = null;
+			this.keySpec = null;
+		}
+		final int size = Math.min( _MAX_POOL_SIZE, Integer.highestOneBit( Math.max( 1, Runtime.getRuntime().availableProcessors() ) * 2 - 1 ) );
+		this.slots = new AtomicReferenceArray<>( size );
+		this.mask = size - 1;
+		slots.set( 0, newContext() );
+	}
+
+	/**
+	 * Takes a context out of the pool, creating one when the pool is empty.
+	 * The context must be handed back with {@link #release(MacContext)}
+	 *
+	 * @return a {@link MacContext} owned by the caller until released
+	 */
+	MacContext acquire() {
+		final int start = probe();
+		for( int i = 0; i <= mask; i++ )
+		{
+			final int index = ( start + i ) & mask;
+			final MacContext context = slots.get( index );
+			if( context != null && slots.compareAndSet( index, context, null ) )
+			{
+				return context;
+			}
+		}
+		return newContext();
+	}
+
+	/**
+	 * Returns a context to the pool. If the pool is full the
+	 * context is dropped
+	 *
+	 * @param context the {@link MacContext} previously acquired
+	 */
+	void release( final MacContext context ) {
+		final int start = probe();
+		for( int i = 0; i <= mask; i++ )
+		{
+			final int index = ( start + i ) & mask;
+			if( slots.get( index ) == null && slots.compareAndSet( index, null, context ) )
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Empties the pool, overwriting the buffers of the pooled contexts and the
+	 * midstate of the built in engine. JCE contexts in use are unaffected and
+	 * any later acquire creates a new context, while codes the built in engine
+	 * computes after clearing no longer match, so a thread still holding the
+	 * owning implementation fails closed
+	 */
+	void clear() {
+		for( int i = 0; i <= mask; i++ )
+		{
+			final MacContext context = slots.getAndSet( i, null );
+			if( context != null )
+			{
+				context.wipe();
+			}
+		}
+		if( midstate != null )
+		{
+			midstate.wipe();
+		}
+	}
+
+	/**
+	 * Gets the length of the Mac output in bytes
+	 *
+	 * @return int of the Mac length
+	 */
+	int getMacLength() {
+		return midstate == null ? prototype.getMacLength() : midstate.getMacLength();
+	}
+
+	/**
+	 * Getter for the built in engine of the pooled key
+	 *
+	 * @return {@link OTPMidstateHmac} of the key, or null when JCE is used
+	 */
+	OTPMidstateHmac getMidstate() {
+		return midstate;
+	}
+
+	/**
+	 * Spreads threads over the slots to reduce contention on slot 0
+	 *
+	 * @return int of the first slot to probe
+	 */
+	private int probe() {
+		final long id = Thread.currentThread().getId();
+		return (int) ( id ^ ( id >>> 16 ) ) & mask;
+	}
+
+	/**
+	 * Creates a context for the built in engine or a cloned Mac
+	 *
+	 * @return a new {@link MacContext}
+	 */
+	private MacContext newContext() {
+		return midstate == null ? new MacContext( copyMac() ) : new MacContext( midstate );
+	}
+
+	/**
+	 * Creates a Mac by cloning the prototype, falling back to
+	 * a new initialised instance when the provider does not support cloning
+	 *
+	 * @return a new initialised {@link Mac}
+	 */
+	private Mac copyMac() {
+		try {
+			return (Mac) prototype.clone();
+		} catch ( CloneNotSupportedException e ) {
+			try {
+				return newMac( algorithm, keySpec );
+			} catch ( NoSuchAlgorithmException | InvalidKeyException ex ) {
+				throw new IllegalStateException( ex );
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the provider's Macs can be cloned, so the
+	 * key is not needed to create more contexts
+	 *
+	 * @param mac	the initialised {@link Mac} to try
+	 *
+	 * @return boolean true when the Mac can be cloned
+	 */
+	private static boolean isCloneable( final Mac mac ) {
+		try {
+			mac.clone();
+			return true;
+		} catch ( CloneNotSupportedException e ) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates and initialises a new Mac for a key
+	 *
+	 * @param algorithm		the String name of the JCE Mac algorithm
+	 * @param keySpec		the {@link SecretKeySpec} of the key
+	 *
+	 * @return a new initialised {@link Mac}
+	 *
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 */
+	private static Mac newMac( final String algorithm, final SecretKeySpec keySpec ) throws NoSuchAlgorithmException, InvalidKeyException {
+		final Mac mac = Mac.getInstance( algorithm );
+		mac.init( keySpec );
+		return mac;
+	}
+
+	/**
+	 * MacContext is a single threaded working set of an initialised
+	 * {@link Mac} plus the reused counter and hash buffers, or of the 
+	 * built in engine and its work buffers
+	 */
+	static final class MacContext {
+
+		final Mac mac;
+		final byte[] counter = new byte[8];
+		final byte[] hash;
+		final OTPMidstateHmac midstate;
+		final int[] work;
+		private OTPMultiBufferHmac lanes;
+
+		private MacContext( final Mac mac ) {
+			this.mac = mac;
+			this.hash = new byte[mac.getMacLength()];
+			this.midstate = null;
+			this.work = null;
+		}
+
+		private MacContext( final OTPMidstateHmac midstate ) {
+			this.mac = null;
+			this.hash = null;
+			this.midstate = midstate;
+			this.work = midstate.newWorkBuffer();
+		}
+
+		/**
+		 * Gets the multi buffer working set of the built in engine,
+		 * created the first time a window is hashed
+		 *
+		 * @return {@link OTPMultiBufferHmac} owned by this context, or null 
+		 * 			when using JCE or the Vector API is unavailable
+		 */
+		OTPMultiBufferHmac lanes() {
+			if( lanes == null && midstate != null && OTPMultiBufferHmac.isAvailable() )
+			{
+				lanes = OTPMultiBufferHmac.createInstance( midstate );
+			}
+			return lanes;
+		}
+
+		/**
+		 * Overwrites the buffers of the context, including those of its
+		 * multi buffer working set, and resets its Mac
+		 */
+		void wipe() {
+			Arrays.fill( counter, (byte) 0 );
+			if( hash != null )
+			{
+				Arrays.fill( hash, (byte) 0 );
+			}
+			if( work != null )
+			{
+				Arrays.fill( work, 0 );
+			}
+			if( lanes != null )
+			{
+				Arrays.fill( lanes.w, 0 );
+				Arrays.fill( lanes.state, 0 );
+			}
+			if( mac != null )
+			{
+				mac.reset();
+			}
+		}
+
+		/**
+		 * carry out the cryptographic function over the counter buffer
+		 * writing the result into the hash buffer
+		 *
+		 * @return byte[] representation of the hash
+		 */
+		byte[] doFinal() {
+			mac.update( counter );
+			try {
+				mac.doFinal( hash, 0 );
+			} catch ( ShortBufferException e ) {
+				throw new IllegalStateException( e );
+			}
+			return hash;
+		}
+	}
+}
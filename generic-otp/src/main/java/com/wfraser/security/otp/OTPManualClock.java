@@ -0,0 +1,52 @@
+package com.wfraser.security.otp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OTPManualClock is an {@link OTPClock} that only moves when told to,
+ * for deterministic tests and benchmarks
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPManualClock implements OTPClock {
+
+	private final AtomicLong timeMillis;
+
+	/**
+	 * Class Constructor
+	 * 
+	 * @param timeMillis	the long starting time in milliseconds from the beginning of the epoc
+	 */
+	public OTPManualClock( final long timeMillis ) {
+		this.timeMillis = new AtomicLong( timeMillis );
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return timeMillis.get();
+	}
+
+	/**
+	 * Sets the current time
+	 * 
+	 * @param timeMillis	the long time in milliseconds from the beginning of the epoc
+	 */
+	public void setTimeMillis( final long timeMillis ) {
+		this.timeMillis.set( timeMillis );
+	}
+
+	/**
+	 * Moves the clock forward, or back when given a negative duration
+	 * 
+	 * @param duration	the long amount of time to move by
+	 * @param unit		the {@link TimeUnit} of duration
+	 */
+	public void advance( final long duration, final TimeUnit unit ) {
+		timeMillis.addAndGet( unit.toMillis( duration ) );
+	}
+}
@@ -0,0 +1,765 @@
+package com.wfraser.security.otp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+
+/**
+ * OTPMappedKeyStore is a file backed {@link OTPKeyStore} of fixed width records,
+ * opened with a memory mapped {@link FileChannel} so a store of millions of users
+ * is ready as soon as it is opened, without reading it onto the heap
+ *
+ * The file is a header, a linear probing table of records found by the 64 bit
+ * hash of the user's ID, then an append region. A record is the hash, the packed
+ * algorithm, digits, period, allowed steps and key length, and the raw key padded
+ * to the store's key width. Changes are appended as whole records, a record of
+ * zero parameters marking a removed user, with only the appended records indexed
+ * on the heap, in a primitive table of hash and file offset. Compaction folds the
+ * append region into a new table, written beside the store and moved over it,
+ * and runs once the given number of records has been appended or when
+ * {@link #compact()} is called. The new table is written under the read lock, so
+ * lookups carry on during a compaction and only writers wait for it.
+ *
+ * The hash is the keyed SipHash-2-4 of the ID, seeded with random bits saved in
+ * the header when the store is created, so an ID colliding with another user's
+ * can not be searched for without reading the store. As with
+ * {@link OTPCredentialTable}, only the hash of a user's ID is kept. The store
+ * and its compaction file are created readable by their owner alone.
+ *
+ * The table is mapped read only and the whole file must stay below 2GB, about
+ * 50 million users with 20 byte keys.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPMappedKeyStore implements OTPKeyStore, Closeable {
+
+	public static final int _DEFAULT_COMPACT_AFTER = 65536;
+
+	private static final long _MAGIC = 0x4f54504b45595331L;
+	private static final int _VERSION = 2;
+	private static final int _HEADER_SIZE = 48;
+	private static final int _MIN_SLOTS = 16;
+	private static final String _COMPACT_SUFFIX = ".compact";
+
+	private final Path file;
+	private final int keyWidth;
+	private final int recordSize;
+	private final int compactAfter;
+	private final long seed0;
+	private final long seed1;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Object compaction = new Object();
+
+	/*
+	 *	Appended records by user hash, holding the file offset of the latest
+	 *	record, negated when the record removes the user
+	 */
+	private final AppendIndex appended = new AppendIndex();
+
+	private FileChannel channel;
+	private MappedByteBuffer table;
+	private int mask;
+	private long end;
+	private int size;
+
+	/**
+	 * Opens a store, creating an empty one when the file does not exist,
+	 * compacting after the default number of appended records
+	 *
+	 * @param file			the {@link Path} of the store
+	 * @param maxKeyLength	the int longest key in bytes for a new store, ignored for an existing store
+	 *
+	 * @return instance of {@link OTPMappedKeyStore}
+	 *
+	 * @throws OTPGenericException when the store can not be read or created
+	 */
+	public static OTPMappedKeyStore createInstance( final Path file, final int maxKeyLength ) throws OTPGenericException {
+		return createInstance( file, maxKeyLength, _DEFAULT_COMPACT_AFTER );
+	}
+
+	/**
+	 * Opens a store, creating an empty one when the file does not exist. An existing
+	 * file is never overwritten, one that is not a store of this version is refused
+	 *
+	 * @param file			the {@link Path} of the store
+	 * @param maxKeyLength	the int longest key in bytes for a new store, ignored for an existing store
+	 * @param compactAfter	the int number of appended records that triggers compaction, 0 to only compact on request
+	 *
+	 * @return instance of {@link OTPMappedKeyStore}
+	 *
+	 * @throws OTPGenericException when the store can not be read or created
+	 */
+	public static OTPMappedKeyStore createInstance( final Path file, final int maxKeyLength, final int compactAfter ) throws OTPGenericException {
+		if( maxKeyLength < 1 || maxKeyLength > 0xff || compactAfter < 0 )
+			throw new IllegalArgumentException( "maxKeyLength must be between 1 and 255 and compactAfter not negative" );
+		try {
+			if( Files.notExists( file ) )
+			{
+				writeTable( file, maxKeyLength, _MIN_SLOTS, OTPUserKeys.seed(), OTPUserKeys.seed(), null, null );
+			}
+			final ByteBuffer header;
+			try( FileChannel existing = FileChannel.open( file, StandardOpenOption.READ ) ) {
+				header = readHeader( existing );
+			}
+			final OTPMappedKeyStore store = new OTPMappedKeyStore( file, header.getInt( 12 ), compactAfter, header.getLong( 24 ), header.getLong( 32 ) );
+			store.open();
+			return store;
+		} catch( IOException e ) {
+			throw new OTPGenericException( OTPGenericException._ERROR_READING_KEY_STORE, e );
+		}
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 *
+	 * @param file			the {@link Path} of the store
+	 * @param keyWidth		the int width of a key in bytes
+	 * @param compactAfter	the int number of appended records that triggers compaction
+	 * @param seed0			the long first half of the hash seed
+	 * @param seed1			the long second half of the hash seed
+	 */
+	private OTPMappedKeyStore( final Path file, final int keyWidth, final int compactAfter, final long seed0, final long seed1 ) {
+		this.file = file;
+		this.keyWidth = keyWidth;
+		this.recordSize = recordSize( keyWidth );
+		this.compactAfter = compactAfter;
+		this.seed0 = seed0;
+		this.seed1 = seed1;
+	}
+
+	/**
+	 * Appends the record of a user from their credentials
+	 *
+	 * @param credential	the {@link OTPUserCredentialProvider} of the user
+	 *
+	 * @throws OTPGenericException when the key is too long or the store can not be written
+	 */
+	public void put( final OTPUserCredentialProvider credential ) throws OTPGenericException {
+		put( credential.getUserID(), credential.secret(), credential.getAllowedSteps(),
+				credential.getAlgorithm(), credential.getDigits(), credential.getPeriod(), credential.isCounterBased() );
+	}
+
+	/**
+	 * Appends the record of a user, replacing any earlier record
+	 *
+	 * @param userID		the String for the User's ID
+	 * @param secretKey		the byte[] of the raw secret key
+	 * @param steps			the int for the number of steps to be valid for
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 *
+	 * @throws OTPGenericException when the record is not valid or the store can not be written
+	 */
+	public void put( final String userID, final byte[] secretKey, final int steps,
+			final OTPAlgorithm algorithm, final int digits, final int period ) throws OTPGenericException {
+		put( userID, secretKey, steps, algorithm, digits, period, false );
+	}
+
+	/**
+	 * Appends the record of a time based or counter based user, replacing any earlier record
+	 *
+	 * @param userID		the String for the User's ID
+	 * @param secretKey		the byte[] of the raw secret key
+	 * @param steps			the int for the number of steps, or counters, to be valid for
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 * @param counterBased	the boolean for an RFC 4226 HOTP user
+	 *
+	 * @throws OTPGenericException when the record is not valid or the store can not be written
+	 */
+	public void put( final String userID, final byte[] secretKey, final int steps,
+			final OTPAlgorithm algorithm, final int digits, final int period, final boolean counterBased ) throws OTPGenericException {
+		if( userID == null || userID.equals( "" ) || secretKey == null || secretKey.length == 0 )
+			throw new OTPGenericException( OTPGenericException._USER_AND_KEY_BLANK );
+		if( secretKey.length > keyWidth || steps < 0 || steps > 0xffff )
+			throw new OTPGenericException( OTPGenericException._INVALID_OTP_CONFIGURATION );
+		final long packed = OTPCredentialTable.pack( algorithm, digits, period, steps, secretKey.length, counterBased );
+		append( hash( userID ), packed, secretKey );
+	}
+
+	/**
+	 * Appends the removal of a user
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return true when the user was held
+	 *
+	 * @throws OTPGenericException when the store can not be written
+	 */
+	public boolean remove( final String userID ) throws OTPGenericException {
+		return append( hash( userID ), 0, null );
+	}
+
+	/**
+	 * Looks up the credentials of a user, read from the store on each call.
+	 * The returned provider has no company, so is suited to validation rather than export
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return			the {@link OTPUserCredentialProvider} for the user, or null if the user is unknown
+	 *
+	 * @throws OTPGenericException when the store can not be read
+	 */
+	@Override
+	public OTPUserCredentialProvider getCredential( final String userID ) throws OTPGenericException {
+		if( userID == null )
+			return null;
+		final long hash = hash( userID );
+		final byte[] key = new byte[keyWidth];
+		final long packed;
+		lock.readLock().lock();
+		try {
+			packed = read( hash, key );
+		} catch( IOException e ) {
+			throw new OTPGenericException( OTPGenericException._ERROR_READING_KEY_STORE, e );
+		} finally {
+			lock.readLock().unlock();
+		}
+		if( packed == 0 )
+			return null;
+		try {
+			return OTPUserCredentialProvider.createRawKeyUserObject( Arrays.copyOf( key, OTPCredentialTable.keyLength( packed ) ), userID, null,
+					OTPCredentialTable.allowedSteps( packed ), OTPCredentialTable.algorithm( packed ),
+					OTPCredentialTable.digits( packed ), OTPCredentialTable.period( packed ), OTPCredentialTable.counterBased( packed ) );
+		} finally {
+			Arrays.fill( key, (byte) 0 );
+		}
+	}
+
+	/**
+	 * Wipes a credential returned by {@link #getCredential(String)}, which
+	 * holds its own copy of the key
+	 *
+	 * @param credential	the {@link OTPUserCredentialProvider} no longer needed
+	 */
+	@Override
+	public void release( final OTPUserCredentialProvider credential ) {
+		credential.wipe();
+	}
+
+	/**
+	 * Rewrites the store with every appended record folded into the table.
+	 * Lookups carry on while the table is written, writers wait for it
+	 *
+	 * @throws OTPGenericException when the store can not be written
+	 */
+	public void compact() throws OTPGenericException {
+		try {
+			while( !tryCompact() )
+			{
+				// a record was appended while the table was written, write it again
+			}
+		} catch( IOException e ) {
+			throw new OTPGenericException( OTPGenericException._ERROR_READING_KEY_STORE, e );
+		}
+	}
+
+	/**
+	 * Forces appended records to the storage device
+	 *
+	 * @throws OTPGenericException when the store can not be written
+	 */
+	public void flush() throws OTPGenericException {
+		lock.readLock().lock();
+		try {
+			channel().force( false );
+		} catch( IOException e ) {
+			throw new OTPGenericException( OTPGenericException._ERROR_READING_KEY_STORE, e );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of users held
+	 *
+	 * @return int of the number of users
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of records appended since the store was last compacted
+	 *
+	 * @return int of the number of appended records
+	 */
+	public int getAppendedCount() {
+		lock.readLock().lock();
+		try {
+			return appended.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if( channel != null )
+				channel.close();
+			channel = null;
+			table = null;
+			appended.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Maps the table of the store and indexes its append region,
+	 * dropping any partly written record at the end of the file
+	 *
+	 * @throws IOException
+	 */
+	private void open() throws IOException {
+		channel = FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		final ByteBuffer header = readHeader( channel );
+		final int slots = header.getInt( 16 );
+		final long tableEnd = _HEADER_SIZE + (long) slots * recordSize;
+		table = channel.map( FileChannel.MapMode.READ_ONLY, 0, tableEnd );
+		mask = slots - 1;
+		size = header.getInt( 20 );
+		appended.clear();
+		final long records = ( channel.size() - tableEnd ) / recordSize;
+		end = tableEnd + records * recordSize;
+		if( channel.size() > end )
+			channel.truncate( end );
+		final ByteBuffer record = ByteBuffer.allocate( 16 );
+		for( long offset = tableEnd; offset < end; offset += recordSize )
+		{
+			record.clear();
+			readFully( record, offset );
+			index( record.getLong( 0 ), record.getLong( 8 ) != 0, offset );
+		}
+	}
+
+	/**
+	 * Appends a record under the write lock, then compacts the
+	 * store once enough records have been appended
+	 *
+	 * @param hash		the long hash of the User's ID
+	 * @param packed	the long packed parameters, 0 to remove the user
+	 * @param secretKey	the byte[] of the key or null when removing
+	 *
+	 * @return true when the user was held before the record
+	 *
+	 * @throws OTPGenericException when the store can not be written
+	 */
+	private boolean append( final long hash, final long packed, final byte[] secretKey ) throws OTPGenericException {
+		final ByteBuffer record = ByteBuffer.allocate( recordSize );
+		record.putLong( 0, hash ).putLong( 8, packed );
+		if( secretKey != null )
+			record.position( 16 ).put( secretKey ).clear();
+		final boolean existed;
+		final boolean due;
+		lock.writeLock().lock();
+		try {
+			if( packed == 0 && !exists( hash ) )
+				return false;
+			final FileChannel out = channel();
+			while( record.hasRemaining() )
+			{
+				out.write( record, end + record.position() );
+			}
+			existed = index( hash, packed != 0, end );
+			end += recordSize;
+			due = compactAfter > 0 && appended.size() >= compactAfter;
+		} catch( IOException e ) {
+			throw new OTPGenericException( OTPGenericException._ERROR_READING_KEY_STORE, e );
+		} finally {
+			lock.writeLock().unlock();
+			Arrays.fill( record.array(), (byte) 0 );
+		}
+		if( due )
+		{
+			try {
+				tryCompact();
+			} catch( IOException e ) {
+				throw new OTPGenericException( OTPGenericException._ERROR_READING_KEY_STORE, e );
+			}
+		}
+		return existed;
+	}
+
+	/**
+	 * Records an appended record in the heap index, keeping the user count
+	 *
+	 * @return true when the user was held before the record
+	 */
+	private boolean index( final long hash, final boolean live, final long offset ) {
+		final boolean existed = exists( hash );
+		appended.put( hash, live ? offset : -offset );
+		if( live && !existed )
+			size++;
+		else if( !live && existed )
+			size--;
+		return existed;
+	}
+
+	private boolean exists( final long hash ) {
+		final long offset = appended.get( hash );
+		return offset != 0 ? offset > 0 : find( hash ) >= 0;
+	}
+
+	private long hash( final String userID ) {
+		return OTPUserKeys.keyed( userID, seed0, seed1 );
+	}
+
+	/**
+	 * Copies the key of a user into the given array
+	 *
+	 * @param hash	the long hash of the User's ID
+	 * @param key	the byte[] of the key width to copy into
+	 *
+	 * @return long of the packed parameters or 0 when the user is not held
+	 *
+	 * @throws IOException
+	 */
+	private long read( final long hash, final byte[] key ) throws IOException {
+		channel();
+		final long offset = appended.get( hash );
+		if( offset != 0 )
+		{
+			if( offset < 0 )
+				return 0;
+			final ByteBuffer record = ByteBuffer.allocate( recordSize );
+			try {
+				readFully( record, offset );
+				record.position( 16 );
+				record.get( key );
+				return record.getLong( 8 );
+			} finally {
+				Arrays.fill( record.array(), (byte) 0 );
+			}
+		}
+		final int slot = find( hash );
+		if( slot < 0 )
+			return 0;
+		final int position = _HEADER_SIZE + slot * recordSize;
+		for( int i = 0; i < keyWidth; i++ )
+		{
+			key[i] = table.get( position + 16 + i );
+		}
+		return table.getLong( position + 8 );
+	}
+
+	/**
+	 * Finds the table slot of a user
+	 *
+	 * @param hash	the long hash of the User's ID
+	 *
+	 * @return int of the slot or -1
+	 */
+	private int find( final long hash ) {
+		int slot = (int) hash & mask;
+		for( int probes = 0; probes <= mask; probes++ )
+		{
+			final long current = table.getLong( _HEADER_SIZE + slot * recordSize );
+			if( current == hash )
+				return slot;
+			if( current == 0 )
+				return -1;
+			slot = ( slot + 1 ) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Writes the live records into a new table under the read lock, then
+	 * moves it over the store and reopens the store under the write lock.
+	 * One compaction runs at a time
+	 *
+	 * @return true when the store was compacted or had nothing appended, false
+	 * 			when a record was appended while the table was written
+	 *
+	 * @throws IOException
+	 */
+	private boolean tryCompact() throws IOException {
+		synchronized( compaction ) {
+			final Path target = file.resolveSibling( file.getFileName() + _COMPACT_SUFFIX );
+			final long compactedEnd;
+			lock.readLock().lock();
+			try {
+				channel();
+				if( appended.size() == 0 )
+					return true;
+				final long slots = Long.highestOneBit( Math.max( _MIN_SLOTS, size + ( size / 3 ) ) - 1L ) << 1;
+				if( _HEADER_SIZE + slots * recordSize > Integer.MAX_VALUE )
+					throw new IOException( OTPGenericException._CREDENTIAL_STORE_FULL );
+				Files.deleteIfExists( target );
+				writeTable( target, keyWidth, (int) slots, seed0, seed1, this, appended.liveOffsets() );
+				compactedEnd = end;
+			} finally {
+				lock.readLock().unlock();
+			}
+			lock.writeLock().lock();
+			try {
+				if( channel == null || end != compactedEnd )
+				{
+					Files.deleteIfExists( target );
+					channel();
+					return false;
+				}
+				channel.close();
+				try {
+					Files.move( target, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+				} finally {
+					open();
+				}
+				return true;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes a table holding the live records of a store, or an empty table,
+	 * to a new file readable by its owner alone
+	 *
+	 * @param target		the {@link Path} to write, which must not exist
+	 * @param keyWidth		the int width of a key in bytes
+	 * @param slots			the power of two int number of table slots
+	 * @param seed0			the long first half of the hash seed
+	 * @param seed1			the long second half of the hash seed
+	 * @param source		the {@link OTPMappedKeyStore} being compacted or null
+	 * @param appendedLive	the long[] of offsets of live appended records or null
+	 *
+	 * @throws IOException
+	 */
+	private static void writeTable( final Path target, final int keyWidth, final int slots, final long seed0, final long seed1,
+			final OTPMappedKeyStore source, final long[] appendedLive ) throws IOException {
+		final int recordSize = recordSize( keyWidth );
+		try( FileChannel out = createOwnerOnly( target ) ) {
+			final MappedByteBuffer buffer = out.map( FileChannel.MapMode.READ_WRITE, 0, _HEADER_SIZE + (long) slots * recordSize );
+			int live = 0;
+			if( source != null )
+			{
+				final int mask = slots - 1;
+				final int sourceSlots = source.mask + 1;
+				for( int i = 0; i < sourceSlots; i++ )
+				{
+					final int position = _HEADER_SIZE + i * recordSize;
+					final long hash = source.table.getLong( position );
+					if( hash != 0 && source.appended.get( hash ) == 0 )
+					{
+						place( source.table, position, buffer, hash, mask, recordSize );
+						live++;
+					}
+				}
+				final ByteBuffer record = ByteBuffer.allocate( recordSize );
+				try {
+					for( long offset : appendedLive )
+					{
+						record.clear();
+						source.readFully( record, offset );
+						place( record, 0, buffer, record.getLong( 0 ), mask, recordSize );
+						live++;
+					}
+				} finally {
+					Arrays.fill( record.array(), (byte) 0 );
+				}
+			}
+			buffer.putLong( 0, _MAGIC ).putInt( 8, _VERSION ).putInt( 12, keyWidth ).putInt( 16, slots ).putInt( 20, live )
+					.putLong( 24, seed0 ).putLong( 32, seed1 );
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Creates a file readable and writable by its owner alone, where the
+	 * file system has POSIX permissions
+	 *
+	 * @param target	the {@link Path} to create, which must not exist
+	 *
+	 * @return {@link FileChannel} open for reading and writing
+	 *
+	 * @throws IOException when the file exists or can not be created
+	 */
+	private static FileChannel createOwnerOnly( final Path target ) throws IOException {
+		final Set<StandardOpenOption> options = EnumSet.of( StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		if( target.getFileSystem().supportedFileAttributeViews().contains( "posix" ) )
+			return FileChannel.open( target, options, PosixFilePermissions.asFileAttribute( PosixFilePermissions.fromString( "rw-------" ) ) );
+		return FileChannel.open( target, options );
+	}
+
+	/**
+	 * Copies a record into the first free slot of its probe run in the target table
+	 */
+	private static void place( final ByteBuffer from, final int fromPosition, final ByteBuffer to,
+			final long hash, final int mask, final int recordSize ) {
+		int slot = (int) hash & mask;
+		while( to.getLong( _HEADER_SIZE + slot * recordSize ) != 0 )
+		{
+			slot = ( slot + 1 ) & mask;
+		}
+		final int toPosition = _HEADER_SIZE + slot * recordSize;
+		for( int i = 0; i < recordSize; i += 8 )
+		{
+			to.putLong( toPosition + i, from.getLong( fromPosition + i ) );
+		}
+	}
+
+	/**
+	 * Reads and checks the header of a store, the magic number and version,
+	 * the key width and that the file holds the whole table
+	 *
+	 * @throws IOException when the file is not a key store
+	 */
+	private static ByteBuffer readHeader( final FileChannel channel ) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate( _HEADER_SIZE );
+		while( header.hasRemaining() )
+		{
+			if( channel.read( header, header.position() ) < 0 )
+				throw new IOException( "key store header is truncated" );
+		}
+		if( header.getLong( 0 ) != _MAGIC || header.getInt( 8 ) != _VERSION )
+			throw new IOException( "not a key store of a supported version" );
+		final int keyWidth = header.getInt( 12 );
+		final int slots = header.getInt( 16 );
+		final int live = header.getInt( 20 );
+		if( keyWidth < 1 || keyWidth > 0xff || slots < 1 || Integer.bitCount( slots ) != 1 || live < 0 || live > slots
+				|| channel.size() < _HEADER_SIZE + (long) slots * recordSize( keyWidth ) )
+			throw new IOException( "key store header is corrupt" );
+		return header;
+	}
+
+	private void readFully( final ByteBuffer buffer, final long offset ) throws IOException {
+		while( buffer.hasRemaining() )
+		{
+			if( channel.read( buffer, offset + buffer.position() ) < 0 )
+				throw new IOException( "key store record is truncated" );
+		}
+	}
+
+	private FileChannel channel() throws IOException {
+		if( channel == null )
+			throw new IOException( "key store is closed" );
+		return channel;
+	}
+
+	/**
+	 * Gets the size of a record, the hash, parameters and key rounded up to whole longs
+	 */
+	private static int recordSize( final int keyWidth ) {
+		return 16 + ( ( keyWidth + 7 ) & ~7 );
+	}
+
+	/**
+	 * AppendIndex is a linear probing table of user hash and file offset,
+	 * growing as records are appended and emptied when the store is compacted.
+	 * A hash of zero marks an empty slot, and no offset is zero as records
+	 * follow the header. Guarded by the store's lock
+	 */
+	private static final class AppendIndex {
+
+		private long[] hashes = new long[_MIN_SLOTS];
+		private long[] offsets = new long[_MIN_SLOTS];
+		private int size;
+
+		/**
+		 * Gets the offset of a user's latest appended record
+		 *
+		 * @return long of the offset, negative for a removal, 0 when none was appended
+		 */
+		long get( final long hash ) {
+			final int mask = hashes.length - 1;
+			int index = (int) hash & mask;
+			while( hashes[index] != 0 )
+			{
+				if( hashes[index] == hash )
+					return offsets[index];
+				index = ( index + 1 ) & mask;
+			}
+			return 0;
+		}
+
+		void put( final long hash, final long offset ) {
+			if( size + 1 > ( hashes.length >>> 1 ) + ( hashes.length >>> 2 ) )
+				resize();
+			final int mask = hashes.length - 1;
+			int index = (int) hash & mask;
+			while( hashes[index] != 0 && hashes[index] != hash )
+			{
+				index = ( index + 1 ) & mask;
+			}
+			if( hashes[index] == 0 )
+				size++;
+			hashes[index] = hash;
+			offsets[index] = offset;
+		}
+
+		int size() {
+			return size;
+		}
+
+		/**
+		 * Gets the offsets of the appended records of users still held
+		 *
+		 * @return long[] of the offsets
+		 */
+		long[] liveOffsets() {
+			final long[] live = new long[size];
+			int count = 0;
+			for( int i = 0; i < offsets.length; i++ )
+			{
+				if( offsets[i] > 0 )
+					live[count++] = offsets[i];
+			}
+			return Arrays.copyOf( live, count );
+		}
+
+		void clear() {
+			hashes = new long[_MIN_SLOTS];
+			offsets = new long[_MIN_SLOTS];
+			size = 0;
+		}
+
+		private void resize() {
+			final long[] oldHashes = hashes;
+			final long[] oldOffsets = offsets;
+			hashes = new long[oldHashes.length << 1];
+			offsets = new long[oldHashes.length << 1];
+			final int mask = hashes.length - 1;
+			for( int i = 0; i < oldHashes.length; i++ )
+			{
+				if( oldHashes[i] != 0 )
+				{
+					int index = (int) oldHashes[i] & mask;
+					while( hashes[index] != 0 )
+					{
+						index = ( index + 1 ) & mask;
+					}
+					hashes[index] = oldHashes[i];
+					offsets[index] = oldOffsets[i];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.wfraser.security.otp;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * OTPMemoryCounterStore is the in memory {@link OTPCounterStore}
+ *
+ * Counters are lost on restart, so applications either load them with
+ * {@link #setCounter(String, long)} at startup or supply their own
+ * persistent {@link OTPCounterStore}.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPMemoryCounterStore implements OTPCounterStore {
+
+	private final ConcurrentHashMap<String, Long> counters = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates an empty store, every user starting at counter 0
+	 *
+	 * @return instance of {@link OTPMemoryCounterStore}
+	 */
+	public static OTPMemoryCounterStore createInstance() {
+		return new OTPMemoryCounterStore();
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 */
+	private OTPMemoryCounterStore() {
+
+	}
+
+	@Override
+	public long getCounter( final String userID ) {
+		final Long counter = counters.get( userID );
+		return counter == null ? 0 : counter;
+	}
+
+	@Override
+	public boolean advance( final String userID, final long expected, final long next ) {
+		if( next <= expected )
+			return false;
+		if( expected == 0 && counters.putIfAbsent( userID, next ) == null )
+			return true;
+		return counters.replace( userID, expected, next );
+	}
+
+	/**
+	 * Sets a user's counter, such as when loading counters or issuing a token
+	 *
+	 * @param userID	the String for the User's ID
+	 * @param counter	the long next counter expected from the user's token
+	 */
+	public void setCounter( final String userID, final long counter ) {
+		counters.put( userID, counter );
+	}
+
+	/**
+	 * Gets the number of users held
+	 *
+	 * @return int of the number of counters
+	 */
+	public int size() {
+		return counters.size();
+	}
+}
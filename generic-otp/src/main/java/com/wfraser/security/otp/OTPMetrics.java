@@ -0,0 +1,92 @@
+package com.wfraser.security.otp;
+
+/**
+ * OTPMetrics receives measurements from the OTP hot path, configured
+ * with {@link OTPOptions#withMetrics(OTPMetrics)}
+ *
+ * Every method has an empty default so implementations override only
+ * what they record. The default {@link #NONE} is never called: instances
+ * configured with it skip measurement entirely, so disabled metrics cost
+ * a single branch. Methods are called on the request thread and must be
+ * thread safe and quick; {@link OTPCounterMetrics} keeps lock free counters
+ * and histograms and {@link OTPJfrMetrics} emits JDK Flight Recorder events.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public interface OTPMetrics {
+
+	/**
+	 * Passed as the matched offset of a code that matched no step in the window
+	 */
+	int _NO_MATCH = Integer.MIN_VALUE;
+
+	/**
+	 * Records nothing, the default
+	 */
+	OTPMetrics NONE = new OTPMetrics() { };
+
+	/**
+	 * Called after a code is generated by {@link OTPImplementation#getOTP()}
+	 *
+	 * @param nanos		the long time taken in nanoseconds
+	 */
+	default void onGenerate( final long nanos ) {
+
+	}
+
+	/**
+	 * Called after a code is validated. A code that matched a step but was
+	 * not accepted was rejected by the {@link OTPReplayStore}
+	 *
+	 * @param userID		the String for the User's ID
+	 * @param nanos			the long time taken in nanoseconds
+	 * @param matchedOffset	the int offset of the matched step from the current step,
+	 * 						0 for the current step and negative for earlier steps,
+	 * 						or {@link #_NO_MATCH}. A user whose codes keep matching
+	 * 						earlier steps has a device clock running slow
+	 * @param accepted		the boolean result of the validation
+	 */
+	default void onValidate( final String userID, final long nanos, final int matchedOffset, final boolean accepted ) {
+
+	}
+
+	/**
+	 * Called with the number of HMACs computed by a generation or validation
+	 *
+	 * @param count		the int number of HMACs
+	 */
+	default void onHmac( final int count ) {
+
+	}
+
+	/**
+	 * Called when the code window cache is read
+	 *
+	 * @param hit	true when the window was already cached, false when it advanced
+	 */
+	default void onCodeWindow( final boolean hit ) {
+
+	}
+
+	/**
+	 * Called when {@link OTPValidationEngine} looks up a user
+	 *
+	 * @param hit	true when the user's {@link OTPImplementation} was cached
+	 */
+	default void onUserCache( final boolean hit ) {
+
+	}
+
+	/**
+	 * Called when {@link OTPValidationEngine} throttles an attempt
+	 *
+	 * @param userID	the String for the User's ID
+	 */
+	default void onThrottle( final String userID ) {
+
+	}
+}
@@ -0,0 +1,337 @@
+package com.wfraser.security.otp;
+
+import java.util.Arrays;
+
+/**
+ * OTPMidstateHmac is a built in HMAC-SHA1 and HMAC-SHA256 for the single
+ * 8 byte counter hashed for every code
+ *
+ * HMAC hashes the key, padded to a 64 byte block, before both the inner
+ * and the outer message. Those two blocks never change for a credential, so
+ * the hash state after each, the midstate, is computed once when the engine
+ * is created. A code then needs only two compression function calls, the
+ * counter block into a copy of the inner midstate and the inner hash into a
+ * copy of the outer midstate, both of fixed length so their padding is
+ * constant. All work happens in an int buffer owned by the caller, with no
+ * provider lookup and no allocation.
+ *
+ * Instances hold only the two midstates and are shared by every thread.
+ * {@link OTPMultiBufferHmac} reads the midstates to hash several counters,
+ * or several keys, at once.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+final class OTPMidstateHmac {
+
+	static final int _BLOCK_LENGTH = 64;
+
+	private static final int[] _SHA1_IV = { 0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476, 0xc3d2e1f0 };
+
+	private static final int[] _SHA256_IV = { 0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+			0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19 };
+
+	static final int[] _SHA256_K = {
+			0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+			0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+			0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+			0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+			0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+			0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+			0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+			0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2 };
+
+	final boolean sha256;
+	final int stateLength;
+	private final int scheduleLength;
+	final int[] inner;
+	final int[] outer;
+
+	/**
+	 * Creates an engine for the given algorithm and key
+	 *
+	 * @param algorithm		the {@link OTPAlgorithm} of the credential
+	 * @param key			the byte[] of the raw secret key, not modified or kept
+	 *
+	 * @return instance of {@link OTPMidstateHmac}, or null when the algorithm is not built in
+	 */
+	static OTPMidstateHmac createInstance( final OTPAlgorithm algorithm, final byte[] key ) {
+		switch( algorithm ) {
+			case SHA1:
+				return new OTPMidstateHmac( false, key );
+			case SHA256:
+				return new OTPMidstateHmac( true, key );
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 *
+	 * @param sha256	the boolean for SHA-256 rather than SHA-1
+	 * @param key		the byte[] of the raw secret key
+	 */
+	private OTPMidstateHmac( final boolean sha256, final byte[] key ) {
+		this.sha256 = sha256;
+		this.stateLength = sha256 ? 8 : 5;
+		this.scheduleLength = sha256 ? 64 : 80;
+		final byte[] block = new byte[_BLOCK_LENGTH];
+		final byte[] hashedKey = key.length > _BLOCK_LENGTH ? digest( key ) : key;
+		System.arraycopy( hashedKey, 0, block, 0, hashedKey.length );
+		final int[] work = newWorkBuffer();
+		this.inner = midstate( block, (byte) 0x36, work );
+		this.outer = midstate( block, (byte) 0x5c, work );
+		Arrays.fill( block, (byte) 0 );
+		Arrays.fill( work, 0 );
+		if( hashedKey != key )
+			Arrays.fill( hashedKey, (byte) 0 );
+	}
+
+	/**
+	 * Overwrites the inner and outer midstates, which stand in for the key.
+	 * Codes computed afterwards no longer match those of the key
+	 */
+	void wipe() {
+		Arrays.fill( inner, 0 );
+		Arrays.fill( outer, 0 );
+	}
+
+	/**
+	 * Creates a work buffer for {@link #truncate(long, int[])}, to be reused
+	 * by a single thread
+	 *
+	 * @return int[] of the message schedule followed by the hash state
+	 */
+	int[] newWorkBuffer() {
+		return new int[scheduleLength + stateLength];
+	}
+
+	/**
+	 * Computes the HMAC of the 8 byte big endian counter and applies the
+	 * RFC 4226 dynamic truncation
+	 *
+	 * @param counter	long of the counter or time step
+	 * @param work		int[] from {@link #newWorkBuffer()}, owned by the caller
+	 *
+	 * @return int of the 31 bit truncated hash
+	 */
+	int truncate( final long counter, final int[] work ) {
+		hash( counter, work );
+		final int state = scheduleLength;
+		final int offset = work[state + stateLength - 1] & 0xf;
+		final int index = state + ( offset >>> 2 );
+		final int shift = ( offset & 3 ) << 3;
+		final int binary = shift == 0 ? work[index] : ( work[index] << shift ) | ( work[index + 1] >>> ( 32 - shift ) );
+		return binary & 0x7fffffff;
+	}
+
+	/**
+	 * Computes the HMAC of the 8 byte big endian counter, leaving the
+	 * hash as big endian words at the end of the work buffer
+	 *
+	 * @param counter	long of the counter or time step
+	 * @param work		int[] from {@link #newWorkBuffer()}, owned by the caller
+	 */
+	void hash( final long counter, final int[] work ) {
+		final int state = scheduleLength;
+		System.arraycopy( inner, 0, work, state, stateLength );
+		work[0] = (int) ( counter >>> 32 );
+		work[1] = (int) counter;
+		work[2] = 0x80000000;
+		for( int i = 3; i < 15; i++ )
+		{
+			work[i] = 0;
+		}
+		work[15] = ( _BLOCK_LENGTH + 8 ) << 3;
+		compress( work );
+		System.arraycopy( work, state, work, 0, stateLength );
+		work[stateLength] = 0x80000000;
+		for( int i = stateLength + 1; i < 15; i++ )
+		{
+			work[i] = 0;
+		}
+		work[15] = ( _BLOCK_LENGTH + stateLength * 4 ) << 3;
+		System.arraycopy( outer, 0, work, state, stateLength );
+		compress( work );
+	}
+
+	/**
+	 * Gets the length of the hash
+	 *
+	 * @return int of the hash length in bytes
+	 */
+	int getMacLength() {
+		return stateLength * 4;
+	}
+
+	/**
+	 * Hashes the key block xored with the given pad from the initial state
+	 *
+	 * @param block		the byte[] key block
+	 * @param pad		the byte of the inner or outer pad
+	 * @param work		the int[] work buffer
+	 *
+	 * @return int[] of the midstate
+	 */
+	private int[] midstate( final byte[] block, final byte pad, final int[] work ) {
+		for( int i = 0; i < 16; i++ )
+		{
+			work[i] = ( ( block[i * 4] ^ pad ) & 0xff ) << 24 | ( ( block[i * 4 + 1] ^ pad ) & 0xff ) << 16
+					| ( ( block[i * 4 + 2] ^ pad ) & 0xff ) << 8 | ( ( block[i * 4 + 3] ^ pad ) & 0xff );
+		}
+		System.arraycopy( sha256 ? _SHA256_IV : _SHA1_IV, 0, work, scheduleLength, stateLength );
+		compress( work );
+		final int[] midstate = new int[stateLength];
+		System.arraycopy( work, scheduleLength, midstate, 0, stateLength );
+		return midstate;
+	}
+
+	/**
+	 * Hashes a whole message, used only for keys longer than a block
+	 *
+	 * @param message	the byte[] to hash
+	 *
+	 * @return byte[] of the hash
+	 */
+	private byte[] digest( final byte[] message ) {
+		final int[] work = newWorkBuffer();
+		System.arraycopy( sha256 ? _SHA256_IV : _SHA1_IV, 0, work, scheduleLength, stateLength );
+		final int blocks = ( message.length + 8 ) / _BLOCK_LENGTH + 1;
+		final byte[] padded = new byte[blocks * _BLOCK_LENGTH];
+		System.arraycopy( message, 0, padded, 0, message.length );
+		padded[message.length] = (byte) 0x80;
+		final long bits = (long) message.length << 3;
+		for( int i = 0; i < 8; i++ )
+		{
+			padded[padded.length - 1 - i] = (byte) ( bits >>> ( i * 8 ) );
+		}
+		for( int b = 0; b < blocks; b++ )
+		{
+			for( int i = 0; i < 16; i++ )
+			{
+				final int at = b * _BLOCK_LENGTH + i * 4;
+				work[i] = ( padded[at] & 0xff ) << 24 | ( padded[at + 1] & 0xff ) << 16 | ( padded[at + 2] & 0xff ) << 8 | ( padded[at + 3] & 0xff );
+			}
+			compress( work );
+		}
+		final byte[] hash = new byte[stateLength * 4];
+		for( int i = 0; i < hash.length; i++ )
+		{
+			hash[i] = (byte) ( work[scheduleLength + ( i >>> 2 )] >>> ( 24 - ( ( i & 3 ) << 3 ) ) );
+		}
+		Arrays.fill( padded, (byte) 0 );
+		return hash;
+	}
+
+	/**
+	 * Runs the compression function over the 16 words at the start of the
+	 * work buffer, updating the state held after the message schedule
+	 *
+	 * @param work	the int[] work buffer
+	 */
+	private void compress( final int[] work ) {
+		if( sha256 )
+		{
+			compressSHA256( work, scheduleLength );
+		} else {
+			compressSHA1( work, scheduleLength );
+		}
+	}
+
+	private static void compressSHA1( final int[] w, final int state ) {
+		for( int t = 16; t < 80; t++ )
+		{
+			w[t] = Integer.rotateLeft( w[t - 3] ^ w[t - 8] ^ w[t - 14] ^ w[t - 16], 1 );
+		}
+		int a = w[state];
+		int b = w[state + 1];
+		int c = w[state + 2];
+		int d = w[state + 3];
+		int e = w[state + 4];
+		for( int t = 0; t < 20; t++ )
+		{
+			final int temp = Integer.rotateLeft( a, 5 ) + ( ( b & c ) | ( ~b & d ) ) + e + 0x5a827999 + w[t];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft( b, 30 );
+			b = a;
+			a = temp;
+		}
+		for( int t = 20; t < 40; t++ )
+		{
+			final int temp = Integer.rotateLeft( a, 5 ) + ( b ^ c ^ d ) + e + 0x6ed9eba1 + w[t];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft( b, 30 );
+			b = a;
+			a = temp;
+		}
+		for( int t = 40; t < 60; t++ )
+		{
+			final int temp = Integer.rotateLeft( a, 5 ) + ( ( b & c ) | ( b & d ) | ( c & d ) ) + e + 0x8f1bbcdc + w[t];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft( b, 30 );
+			b = a;
+			a = temp;
+		}
+		for( int t = 60; t < 80; t++ )
+		{
+			final int temp = Integer.rotateLeft( a, 5 ) + ( b ^ c ^ d ) + e + 0xca62c1d6 + w[t];
+			e = d;
+			d = c;
+			c = Integer.rotateLeft( b, 30 );
+			b = a;
+			a = temp;
+		}
+		w[state] += a;
+		w[state + 1] += b;
+		w[state + 2] += c;
+		w[state + 3] += d;
+		w[state + 4] += e;
+	}
+
+	private static void compressSHA256( final int[] w, final int state ) {
+		for( int t = 16; t < 64; t++ )
+		{
+			final int s0 = Integer.rotateRight( w[t - 15], 7 ) ^ Integer.rotateRight( w[t - 15], 18 ) ^ ( w[t - 15] >>> 3 );
+			final int s1 = Integer.rotateRight( w[t - 2], 17 ) ^ Integer.rotateRight( w[t - 2], 19 ) ^ ( w[t - 2] >>> 10 );
+			w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+		}
+		int a = w[state];
+		int b = w[state + 1];
+		int c = w[state + 2];
+		int d = w[state + 3];
+		int e = w[state + 4];
+		int f = w[state + 5];
+		int g = w[state + 6];
+		int h = w[state + 7];
+		for( int t = 0; t < 64; t++ )
+		{
+			final int s1 = Integer.rotateRight( e, 6 ) ^ Integer.rotateRight( e, 11 ) ^ Integer.rotateRight( e, 25 );
+			final int t1 = h + s1 + ( ( e & f ) ^ ( ~e & g ) ) + _SHA256_K[t] + w[t];
+			final int s0 = Integer.rotateRight( a, 2 ) ^ Integer.rotateRight( a, 13 ) ^ Integer.rotateRight( a, 22 );
+			final int t2 = s0 + ( ( a & b ) ^ ( a & c ) ^ ( b & c ) );
+			h = g;
+			g = f;
+			f = e;
+			e = d + t1;
+			d = c;
+			c = b;
+			b = a;
+			a = t1 + t2;
+		}
+		w[state] += a;
+		w[state + 1] += b;
+		w[state + 2] += c;
+		w[state + 3] += d;
+		w[state + 4] += e;
+		w[state + 5] += f;
+		w[state + 6] += g;
+		w[state + 7] += h;
+	}
+}
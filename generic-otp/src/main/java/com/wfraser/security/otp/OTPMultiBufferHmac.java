@@ -0,0 +1,212 @@
+package com.wfraser.security.otp;
+
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * OTPMultiBufferHmac runs the {@link OTPMidstateHmac} hash of several
+ * independent (key, counter) lanes at once
+ *
+ * The lanes are interleaved, word t of lane l held at t * lanes + l, so each
+ * word of the message schedule and of the hash state is one SIMD vector. The
+ * compression functions are implemented by OTPVectorHmac with the JDK Vector
+ * API, 16 lanes on AVX-512 and 8 on AVX2. The Vector API is still an incubator
+ * module, so that class is only built by JDK 17 and later and only used when
+ * the application is started with <code>--add-modules jdk.incubator.vector</code>.
+ * Otherwise {@link #createInstance(OTPMidstateHmac)} returns null and callers
+ * hash one counter at a time.
+ *
+ * The lanes of a window share one key and differ only in counter; the lanes
+ * of a batch may each hold a different key, as long as all use the same
+ * algorithm. Instances are single threaded working sets, held by a pooled
+ * {@link OTPMacPool.MacContext} or created per batch.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+abstract class OTPMultiBufferHmac {
+
+	private static final String _VECTOR_MODULE = "jdk.incubator.vector";
+	private static final String _VECTOR_CLASS = "com.wfraser.security.otp.OTPVectorHmac";
+	private static final int _MIN_LANES = 4;
+
+	private static final Constructor<? extends OTPMultiBufferHmac> _VECTOR = vectorConstructor();
+
+	final boolean sha256;
+	final int stateLength;
+	final int lanes;
+	final int[] w;
+	final int[] state;
+	private final OTPMidstateHmac[] engines;
+	private final long[] counters;
+
+	/**
+	 * Creates a working set for engines of the same algorithm as the given
+	 * engine, lanes of one working set must not mix SHA-1 and SHA-256
+	 *
+	 * @param engine	the {@link OTPMidstateHmac} setting the algorithm
+	 *
+	 * @return instance of {@link OTPMultiBufferHmac}, or null when the Vector API is unavailable
+	 */
+	static OTPMultiBufferHmac createInstance( final OTPMidstateHmac engine ) {
+		if( _VECTOR == null )
+			return null;
+		try {
+			return _VECTOR.newInstance( engine.sha256, engine.stateLength );
+		} catch ( ReflectiveOperationException e ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Checks whether multi buffer hashing is available in this JVM
+	 *
+	 * @return	true - OTPVectorHmac was loaded
+	 * 			false - codes are hashed one at a time
+	 */
+	static boolean isAvailable() {
+		return _VECTOR != null;
+	}
+
+	/**
+	 * Class Constructor
+	 *
+	 * @param sha256		the boolean for SHA-256 rather than SHA-1
+	 * @param stateLength	the int number of words in the hash state
+	 * @param lanes			the int number of lanes
+	 */
+	OTPMultiBufferHmac( final boolean sha256, final int stateLength, final int lanes ) {
+		this.sha256 = sha256;
+		this.stateLength = stateLength;
+		this.lanes = lanes;
+		this.w = new int[( sha256 ? 64 : 80 ) * lanes];
+		this.state = new int[stateLength * lanes];
+		this.engines = new OTPMidstateHmac[lanes];
+		this.counters = new long[lanes];
+	}
+
+	/**
+	 * Gets the number of lanes hashed at once
+	 *
+	 * @return int of the lanes
+	 */
+	final int getLanes() {
+		return lanes;
+	}
+
+	/**
+	 * Sets the key and counter of a lane for the next {@link #hash(int)}
+	 *
+	 * @param lane		the int lane, below {@link #getLanes()}
+	 * @param engine	the {@link OTPMidstateHmac} of the lane's key
+	 * @param counter	the long counter or time step
+	 */
+	final void load( final int lane, final OTPMidstateHmac engine, final long counter ) {
+		engines[lane] = engine;
+		counters[lane] = counter;
+	}
+
+	/**
+	 * Hashes consecutive counters of a single key, one per lane
+	 *
+	 * @param engine		the {@link OTPMidstateHmac} of the key
+	 * @param firstCounter	the long counter of lane 0
+	 * @param count			the int number of lanes, between 1 and {@link #getLanes()}
+	 */
+	final void hash( final OTPMidstateHmac engine, final long firstCounter, final int count ) {
+		for( int lane = 0; lane < count; lane++ )
+		{
+			engines[lane] = engine;
+			counters[lane] = firstCounter + lane;
+		}
+		hash( count );
+	}
+
+	/**
+	 * Computes the HMAC of the counter of each loaded lane, leaving the
+	 * hashes for {@link #truncate(int)}. Lanes above the count are hashed
+	 * too but hold nothing of use
+	 *
+	 * @param count		the int number of lanes loaded, between 1 and {@link #getLanes()}
+	 */
+	final void hash( final int count ) {
+		for( int i = 0; i < stateLength; i++ )
+		{
+			for( int lane = 0; lane < count; lane++ )
+			{
+				state[i * lanes + lane] = engines[lane].inner[i];
+			}
+		}
+		Arrays.fill( w, 0, 16 * lanes, 0 );
+		for( int lane = 0; lane < count; lane++ )
+		{
+			w[lane] = (int) ( counters[lane] >>> 32 );
+			w[lanes + lane] = (int) counters[lane];
+			w[2 * lanes + lane] = 0x80000000;
+			w[15 * lanes + lane] = ( OTPMidstateHmac._BLOCK_LENGTH + 8 ) << 3;
+		}
+		compress();
+		System.arraycopy( state, 0, w, 0, stateLength * lanes );
+		for( int lane = 0; lane < count; lane++ )
+		{
+			w[stateLength * lanes + lane] = 0x80000000;
+			w[15 * lanes + lane] = ( OTPMidstateHmac._BLOCK_LENGTH + stateLength * 4 ) << 3;
+		}
+		for( int i = 0; i < stateLength; i++ )
+		{
+			for( int lane = 0; lane < count; lane++ )
+			{
+				state[i * lanes + lane] = engines[lane].outer[i];
+			}
+		}
+		compress();
+		Arrays.fill( engines, 0, count, null );
+	}
+
+	/**
+	 * Applies the RFC 4226 dynamic truncation to the hash of a lane
+	 *
+	 * @param lane	the int lane hashed by the last {@link #hash(int)}
+	 *
+	 * @return int of the 31 bit truncated hash
+	 */
+	final int truncate( final int lane ) {
+		final int offset = state[( stateLength - 1 ) * lanes + lane] & 0xf;
+		final int index = ( offset >>> 2 ) * lanes + lane;
+		final int shift = ( offset & 3 ) << 3;
+		final int binary = shift == 0 ? state[index] : ( state[index] << shift ) | ( state[index + lanes] >>> ( 32 - shift ) );
+		return binary & 0x7fffffff;
+	}
+
+	/**
+	 * Runs the compression function of every lane over the 16 words at the
+	 * start of the interleaved schedule, adding the result into the state
+	 */
+	abstract void compress();
+
+	/**
+	 * Finds the vector implementation when the incubator module is in the
+	 * boot layer, creating one instance to make sure it links and has
+	 * enough lanes to be worth using. On the module path the incubator
+	 * module is not required by module-info, so the read is added here
+	 *
+	 * @return {@link Constructor} of OTPVectorHmac, or null
+	 */
+	private static Constructor<? extends OTPMultiBufferHmac> vectorConstructor() {
+		final Optional<Module> vector = ModuleLayer.boot().findModule( _VECTOR_MODULE );
+		if( !vector.isPresent() )
+			return null;
+		try {
+			OTPMultiBufferHmac.class.getModule().addReads( vector.get() );
+			final Constructor<? extends OTPMultiBufferHmac> constructor = Class.forName( _VECTOR_CLASS )
+					.asSubclass( OTPMultiBufferHmac.class ).getDeclaredConstructor( boolean.class, int.class );
+			return constructor.newInstance( false, 5 ).getLanes() >= _MIN_LANES ? constructor : null;
+		} catch ( ReflectiveOperationException | LinkageError | RuntimeException e ) {
+			return null;
+		}
+	}
+}
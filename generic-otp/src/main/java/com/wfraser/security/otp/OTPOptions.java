@@ -0,0 +1,242 @@
+package com.wfraser.security.otp;
+
+/**
+ * OTPOptions holds the optional behaviour of an {@link OTPImplementation}
+ * 
+ * Options are immutable, each <code>with</code> method returns a copy 
+ * with the one setting changed, so a single configured instance can be 
+ * shared when creating the implementation for every user.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPOptions {
+
+	public static final int _DEFAULT_RESYNC_WINDOW = 100;
+
+	private static final OTPOptions _DEFAULTS = new OTPOptions( false, OTPClock.SYSTEM, null, OTPMetrics.NONE, null, null, _DEFAULT_RESYNC_WINDOW, false );
+
+	private final boolean codeWindowCache;
+	private final OTPClock clock;
+	private final OTPReplayStore replayStore;
+	private final OTPMetrics metrics;
+	private final OTPDriftTable driftTable;
+	private final OTPCounterStore counterStore;
+	private final int resyncWindow;
+	private final boolean builtInHmac;
+
+	/**
+	 * Gets the default options, as used by {@link OTPImplementation#createInstance(OTPUserCredentialProvider)}
+	 * 
+	 * @return the default {@link OTPOptions}
+	 */
+	public static OTPOptions defaults() {
+		return _DEFAULTS;
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 * 
+	 * @param codeWindowCache	the boolean for keeping the codes of the current window
+	 * @param clock				the {@link OTPClock} used to find the current step
+	 * @param replayStore		the {@link OTPReplayStore} recording used codes, or null
+	 * @param metrics			the {@link OTPMetrics} receiving measurements
+	 * @param driftTable		the {@link OTPDriftTable} of each user's drift, or null
+	 * @param counterStore		the {@link OTPCounterStore} of counter based users, or null
+	 * @param resyncWindow		the int number of counters searched when resynchronizing
+	 * @param builtInHmac		the boolean for using the built in HMAC engine
+	 */
+	private OTPOptions( final boolean codeWindowCache, final OTPClock clock, final OTPReplayStore replayStore, final OTPMetrics metrics, 
+			final OTPDriftTable driftTable, final OTPCounterStore counterStore, final int resyncWindow, final boolean builtInHmac ) {
+		this.codeWindowCache = codeWindowCache;
+		this.clock = clock;
+		this.replayStore = replayStore;
+		this.metrics = metrics;
+		this.driftTable = driftTable;
+		this.counterStore = counterStore;
+		this.resyncWindow = resyncWindow;
+		this.builtInHmac = builtInHmac;
+	}
+
+	/**
+	 * Keeps the codes of the current validation window as an int array that
+	 * advances by one HMAC per step, so validation becomes int comparisons.
+	 * Recommended for long lived instances such as those held by {@link OTPValidationEngine}
+	 * 
+	 * @param enabled	the boolean for enabling the code window cache
+	 * 
+	 * @return a copy of these {@link OTPOptions} with the setting changed
+	 */
+	public OTPOptions withCodeWindowCache( final boolean enabled ) {
+		return new OTPOptions( enabled, clock, replayStore, metrics, driftTable, counterStore, resyncWindow, builtInHmac );
+	}
+
+	/**
+	 * Sets the clock used to find the current step
+	 * 
+	 * @param clock		the {@link OTPClock}, null for the system clock
+	 * 
+	 * @return a copy of these {@link OTPOptions} with the setting changed
+	 */
+	public OTPOptions withClock( final OTPClock clock ) {
+		return new OTPOptions( codeWindowCache, clock == null ? OTPClock.SYSTEM : clock, replayStore, metrics, driftTable, counterStore, resyncWindow, builtInHmac );
+	}
+
+	/**
+	 * Rejects any code from the same or an earlier step than the last code 
+	 * accepted for the user, so each code can only be used once. The store 
+	 * should be shared by every instance validating the same users
+	 * 
+	 * @param replayStore	the {@link OTPReplayStore} recording used codes, null to allow reuse within the window
+	 * 
+	 * @return a copy of these {@link OTPOptions} with the setting changed
+	 */
+	public OTPOptions withReplayStore( final OTPReplayStore replayStore ) {
+		return new OTPOptions( codeWindowCache, clock, replayStore, metrics, driftTable, counterStore, resyncWindow, builtInHmac );
+	}
+
+	/**
+	 * Sets the {@link OTPMetrics} receiving latency, HMAC, cache and rejection
+	 * measurements. With the default {@link OTPMetrics#NONE} nothing is measured
+	 * 
+	 * @param metrics	the {@link OTPMetrics}, null for none
+	 * 
+	 * @return a copy of these {@link OTPOptions} with the setting changed
+	 */
+	public OTPOptions withMetrics( final OTPMetrics metrics ) {
+		return new OTPOptions( codeWindowCache, clock, replayStore, metrics == null ? OTPMetrics.NONE : metrics, driftTable, counterStore, resyncWindow, builtInHmac );
+	}
+
+	/**
+	 * Follows each user's device clock. The step offset of every accepted code is
+	 * recorded in the table, and later codes are checked first against that offset
+	 * and the steps either side of it, before the rest of the window. Most codes then
+	 * cost one HMAC, and every code inside the window is still accepted. A device 
+	 * drifting slowly behind is followed beyond the window up to
+	 * the table's maximum drift, and a device running ahead once it is recorded by
+	 * {@link OTPImplementation#resynchronize(String, String)}
+	 * 
+	 * @param driftTable	the {@link OTPDriftTable} shared by every instance, null to check only the window
+	 * 
+	 * @return a copy of these {@link OTPOptions} with the setting changed
+	 */
+	public OTPOptions withDriftTable( final OTPDriftTable driftTable ) {
+		return new OTPOptions( codeWindowCache, clock, replayStore, metrics, driftTable, counterStore, resyncWindow, builtInHmac );
+	}
+
+	/**
+	 * Sets the store of counters for counter based (HOTP) users, see
+	 * {@link OTPUserCredentialProvider#createCounterUserObject(String, String, String, int)}.
+	 * Share one store across every instance validating the same users
+	 * 
+	 * @param counterStore	the {@link OTPCounterStore}, null for a store private to each instance
+	 * 
+	 * @return a copy of these {@link OTPOptions} with the setting changed
+	 */
+	public OTPOptions withCounterStore( final OTPCounterStore counterStore ) {
+		return new OTPOptions( codeWindowCache, clock, replayStore, metrics, driftTable, counterStore, resyncWindow, builtInHmac );
+	}
+
+	/**
+	 * Sets the number of counters, from the next expected, searched for two
+	 * consecutive codes by {@link OTPImplementation#resynchronize(String, String)}
+	 * 
+	 * @param resyncWindow	the int number of counters, {@value #_DEFAULT_RESYNC_WINDOW} by default
+	 * 
+	 * @return a copy of these {@link OTPOptions} with the setting changed
+	 */
+	public OTPOptions withResyncWindow( final int resyncWindow ) {
+		if( resyncWindow < 2 )
+			throw new IllegalArgumentException( "resyncWindow must be at least 2" );
+		return new OTPOptions( codeWindowCache, clock, replayStore, metrics, driftTable, counterStore, resyncWindow, builtInHmac );
+	}
+
+	/**
+	 * Computes SHA1 and SHA256 codes with a built in HMAC engine instead of
+	 * the JCE {@link javax.crypto.Mac}. The hash states after the key blocks 
+	 * are computed once per user, so each code takes two compression function 
+	 * calls with no provider dispatch or allocation. SHA512 always uses JCE
+	 * 
+	 * @param enabled	the boolean for using the built in HMAC engine
+	 * 
+	 * @return a copy of these {@link OTPOptions} with the setting changed
+	 */
+	public OTPOptions withBuiltInHmac( final boolean enabled ) {
+		return new OTPOptions( codeWindowCache, clock, replayStore, metrics, driftTable, counterStore, resyncWindow, enabled );
+	}
+
+	/**
+	 * Getter for the code window cache setting
+	 * 
+	 * @return the boolean for keeping the codes of the current window
+	 */
+	public boolean isCodeWindowCache() {
+		return codeWindowCache;
+	}
+
+	/**
+	 * Getter for the clock
+	 * 
+	 * @return the {@link OTPClock} used to find the current step
+	 */
+	public OTPClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Getter for the replay store
+	 * 
+	 * @return the {@link OTPReplayStore} recording used codes, or null when codes may be reused
+	 */
+	public OTPReplayStore getReplayStore() {
+		return replayStore;
+	}
+
+	/**
+	 * Getter for the metrics
+	 * 
+	 * @return the {@link OTPMetrics} receiving measurements, {@link OTPMetrics#NONE} when disabled
+	 */
+	public OTPMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Getter for the drift table
+	 * 
+	 * @return the {@link OTPDriftTable} of each user's drift, or null when drift is not followed
+	 */
+	public OTPDriftTable getDriftTable() {
+		return driftTable;
+	}
+
+	/**
+	 * Getter for the counter store
+	 * 
+	 * @return the {@link OTPCounterStore} of counter based users, or null
+	 */
+	public OTPCounterStore getCounterStore() {
+		return counterStore;
+	}
+
+	/**
+	 * Getter for the resynchronization window
+	 * 
+	 * @return the int number of counters searched when resynchronizing
+	 */
+	public int getResyncWindow() {
+		return resyncWindow;
+	}
+
+	/**
+	 * Getter for the built in HMAC engine setting
+	 * 
+	 * @return the boolean for using the built in HMAC engine
+	 */
+	public boolean isBuiltInHmac() {
+		return builtInHmac;
+	}
+}
@@ -0,0 +1,36 @@
+package com.wfraser.security.otp;
+
+/**
+ * OTPReplayStore records the last step accepted for each user so a code
+ * can only be used once, as recommended by RFC 6238 section 5.2
+ * 
+ * The check and the record are a single atomic call on the validation hot
+ * path. Users are identified by a 64 bit key derived from their ID. Each 
+ * record carries the time after which its step has left every validation 
+ * window, allowing implementations to drop it. The default implementation 
+ * is the in memory {@link OTPStripedReplayStore}; a cluster can supply one 
+ * backed by shared memory, a file or a shared cache.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+@FunctionalInterface
+public interface OTPReplayStore {
+
+	/**
+	 * Atomically accepts a step for a user when it is later than the last
+	 * step accepted for that user, recording it as the new last step
+	 * 
+	 * @param userKey			the long key of the user
+	 * @param step				the long step the submitted code matched
+	 * @param expiresAtMillis	the long time in milliseconds after which the record is no longer needed
+	 * 
+	 * @return 	true - the step was accepted and recorded
+	 * 			false - the step, or a later one, has already been used
+	 */
+	boolean checkAndRecord( long userKey, long step, long expiresAtMillis );
+
+}
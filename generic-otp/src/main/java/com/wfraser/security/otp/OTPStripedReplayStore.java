@@ -0,0 +1,207 @@
+package com.wfraser.security.otp;
+
+/**
+ * OTPStripedReplayStore is the in memory {@link OTPReplayStore}
+ *
+ * Records are held in primitive open addressing tables, one per stripe,
+ * with each stripe guarded by its own lock so users on different stripes
+ * never contend. A record is three longs, the user key, the last accepted
+ * step and the time it expires, with no boxing or per entry objects.
+ *
+ * Expired records are reused in place by later inserts and dropped whenever
+ * a stripe is resized, so the store stays sized to the users that have
+ * validated within their window rather than every user ever seen.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPStripedReplayStore implements OTPReplayStore {
+
+	private static final int _MAX_STRIPES = 64;
+	private static final int _MIN_STRIPE_CAPACITY = 16;
+
+	private final Stripe[] stripes;
+	private final int stripeShift;
+	private final OTPClock clock;
+
+	/**
+	 * Creates a store sized for the given number of concurrently recorded users,
+	 * expiring records using the system clock
+	 *
+	 * @param expectedUsers		the int number of users expected to validate within one window
+	 *
+	 * @return instance of {@link OTPStripedReplayStore}
+	 */
+	public static OTPStripedReplayStore createInstance( final int expectedUsers ) {
+		return createInstance( expectedUsers, OTPClock.SYSTEM );
+	}
+
+	/**
+	 * Creates a store sized for the given number of concurrently recorded users,
+	 * expiring records using the given clock, which should be the clock of the
+	 * {@link OTPImplementation}s sharing the store
+	 *
+	 * @param expectedUsers		the int number of users expected to validate within one window
+	 * @param clock				the {@link OTPClock} used to expire records
+	 *
+	 * @return instance of {@link OTPStripedReplayStore}
+	 */
+	public static OTPStripedReplayStore createInstance( final int expectedUsers, final OTPClock clock ) {
+		return new OTPStripedReplayStore( expectedUsers, clock == null ? OTPClock.SYSTEM : clock );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 *
+	 * @param expectedUsers		the int number of users expected to validate within one window
+	 * @param clock				the {@link OTPClock} used to expire records
+	 */
+	private OTPStripedReplayStore( final int expectedUsers, final OTPClock clock ) {
+		final int stripeCount = Math.min( _MAX_STRIPES, Integer.highestOneBit( Math.max( 1, Runtime.getRuntime().availableProcessors() ) * 4 - 1 ) );
+		this.stripes = new Stripe[stripeCount];
+		this.stripeShift = 64 - Integer.numberOfTrailingZeros( stripeCount );
+		final int perStripe = Math.max( _MIN_STRIPE_CAPACITY, tableSizeFor( Math.max( 1, expectedUsers ) / stripeCount * 2 ) );
+		for( int i = 0; i < stripeCount; i++ )
+		{
+			stripes[i] = new Stripe( perStripe );
+		}
+		this.clock = clock;
+	}
+
+	@Override
+	public boolean checkAndRecord( final long userKey, final long step, final long expiresAtMillis ) {
+		final long key = userKey == 0 ? 1 : userKey;
+		final Stripe stripe = stripes[stripeShift == 64 ? 0 : (int) ( key >>> stripeShift )];
+		synchronized( stripe ) {
+			return stripe.checkAndRecord( key, step, expiresAtMillis, clock.currentTimeMillis() );
+		}
+	}
+
+	/**
+	 * Gets the number of records held, including expired records not yet reused
+	 *
+	 * @return int of the number of records
+	 */
+	public int size() {
+		int size = 0;
+		for( Stripe stripe : stripes )
+		{
+			synchronized( stripe ) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the power of two table size holding at least the given number of slots
+	 *
+	 * @param slots	the int number of slots
+	 *
+	 * @return int of the table size
+	 */
+	private static int tableSizeFor( final int slots ) {
+		return slots <= 1 ? 1 : Integer.highestOneBit( slots - 1 ) << 1;
+	}
+
+	/**
+	 * Stripe is a linear probing table of user key, last step and expiry,
+	 * always accessed while holding the stripe's lock. A key of zero marks
+	 * an empty slot
+	 */
+	private static final class Stripe {
+
+		private long[] keys;
+		private long[] steps;
+		private long[] expiries;
+		private int size;
+
+		Stripe( final int capacity ) {
+			allocate( capacity );
+		}
+
+		boolean checkAndRecord( final long key, final long step, final long expiresAtMillis, final long now ) {
+			final int mask = keys.length - 1;
+			int reusable = -1;
+			int index = (int) key & mask;
+			while( keys[index] != 0 )
+			{
+				if( keys[index] == key )
+				{
+					if( expiries[index] > now && steps[index] >= step )
+					{
+						return false;
+					}
+					steps[index] = step;
+					expiries[index] = expiresAtMillis;
+					return true;
+				}
+				if( reusable < 0 && expiries[index] <= now )
+				{
+					reusable = index;
+				}
+				index = ( index + 1 ) & mask;
+			}
+			if( reusable >= 0 )
+			{
+				index = reusable;
+			} else {
+				if( size + 1 > ( keys.length >>> 1 ) + ( keys.length >>> 2 ) )
+				{
+					resize( now );
+					return checkAndRecord( key, step, expiresAtMillis, now );
+				}
+				size++;
+			}
+			keys[index] = key;
+			steps[index] = step;
+			expiries[index] = expiresAtMillis;
+			return true;
+		}
+
+		/**
+		 * Rebuilds the table without expired records, doubling it
+		 * when the live records still fill more than half of it
+		 *
+		 * @param now	the long current time in milliseconds
+		 */
+		private void resize( final long now ) {
+			final long[] oldKeys = keys;
+			final long[] oldSteps = steps;
+			final long[] oldExpiries = expiries;
+			int live = 0;
+			for( int i = 0; i < oldKeys.length; i++ )
+			{
+				if( oldKeys[i] != 0 && oldExpiries[i] > now )
+					live++;
+			}
+			allocate( live * 2 + 1 > oldKeys.length ? oldKeys.length << 1 : oldKeys.length );
+			for( int i = 0; i < oldKeys.length; i++ )
+			{
+				if( oldKeys[i] != 0 && oldExpiries[i] > now )
+				{
+					final int mask = keys.length - 1;
+					int index = (int) oldKeys[i] & mask;
+					while( keys[index] != 0 )
+					{
+						index = ( index + 1 ) & mask;
+					}
+					keys[index] = oldKeys[i];
+					steps[index] = oldSteps[i];
+					expiries[index] = oldExpiries[i];
+					size++;
+				}
+			}
+		}
+
+		private void allocate( final int capacity ) {
+			keys = new long[capacity];
+			steps = new long[capacity];
+			expiries = new long[capacity];
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package com.wfraser.security.otp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OTPThrottle limits validation attempts per user and per source
+ * (such as a client IP address) using token buckets
+ *
+ * Each bucket holds up to a fixed number of attempts and regains one attempt
+ * per refill interval. Buckets are kept in their generic cell rate form, a
+ * single long per key holding the time at which the bucket will next be full,
+ * so the state of a key is two longs in a primitive striped table with no
+ * per key objects. A key whose bucket has refilled is indistinguishable from
+ * one never seen, and its slot is reused.
+ *
+ * {@link OTPValidationEngine} takes attempts before looking up the user or
+ * computing any HMAC, so an attacker locked out costs a table lookup only.
+ * A successful validation refills the user's bucket.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPThrottle {
+
+	private final Buckets users;
+	private final Buckets sources;
+	private final OTPClock clock;
+
+	/**
+	 * Creates a throttle of users only, using the system clock
+	 *
+	 * @param userAttempts		the int attempts a user may make in a burst
+	 * @param userRefill		the long time for a user to regain one attempt
+	 * @param unit				the {@link TimeUnit} of userRefill
+	 *
+	 * @return instance of {@link OTPThrottle}
+	 */
+	public static OTPThrottle createInstance( final int userAttempts, final long userRefill, final TimeUnit unit ) {
+		return createInstance( userAttempts, userRefill, unit, 0, 0, unit, OTPClock.SYSTEM );
+	}
+
+	/**
+	 * Creates a throttle of users and sources
+	 *
+	 * @param userAttempts		the int attempts a user may make in a burst
+	 * @param userRefill		the long time for a user to regain one attempt
+	 * @param userUnit			the {@link TimeUnit} of userRefill
+	 * @param sourceAttempts	the int attempts a source may make in a burst, 0 to not throttle sources
+	 * @param sourceRefill		the long time for a source to regain one attempt
+	 * @param sourceUnit		the {@link TimeUnit} of sourceRefill
+	 * @param clock				the {@link OTPClock} used to refill buckets
+	 *
+	 * @return instance of {@link OTPThrottle}
+	 */
+	public static OTPThrottle createInstance( final int userAttempts, final long userRefill, final TimeUnit userUnit,
+			final int sourceAttempts, final long sourceRefill, final TimeUnit sourceUnit, final OTPClock clock ) {
+		if( userAttempts < 1 || userRefill < 1 || ( sourceAttempts > 0 && sourceRefill < 1 ) )
+			throw new IllegalArgumentException( "attempts and refill must be positive" );
+		return new OTPThrottle( new Buckets( userAttempts, userUnit.toMillis( userRefill ) ),
+				sourceAttempts > 0 ? new Buckets( sourceAttempts, sourceUnit.toMillis( sourceRefill ) ) : null,
+				clock == null ? OTPClock.SYSTEM : clock );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 *
+	 * @param users		the {@link Buckets} of users
+	 * @param sources	the {@link Buckets} of sources or null
+	 * @param clock		the {@link OTPClock} used to refill buckets
+	 */
+	private OTPThrottle( final Buckets users, final Buckets sources, final OTPClock clock ) {
+		this.users = users;
+		this.sources = sources;
+		this.clock = clock;
+	}
+
+	/**
+	 * Takes an attempt from the user's bucket and, when given, the source's bucket
+	 *
+	 * @param userID	the String for the User's ID
+	 * @param source	the String identifying the source of the attempt, may be null
+	 *
+	 * @return 	true - the attempt may go ahead
+	 * 			false - the user or source is locked out
+	 */
+	public boolean tryAcquire( final String userID, final String source ) {
+		final long now = clock.currentTimeMillis();
+		if( sources != null && source != null && !sources.tryAcquire( OTPUserKeys.of( source ), now ) )
+		{
+			return false;
+		}
+		return users.tryAcquire( OTPUserKeys.of( userID ), now );
+	}
+
+	/**
+	 * Refills the user's bucket, called after a successful validation
+	 *
+	 * @param userID	the String for the User's ID
+	 */
+	public void reset( final String userID ) {
+		users.reset( OTPUserKeys.of( userID ), clock.currentTimeMillis() );
+	}
+
+	/**
+	 * Checks whether a user is currently locked out, without taking an attempt
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return true when the user has no attempts left
+	 */
+	public boolean isLocked( final String userID ) {
+		return users.isLocked( OTPUserKeys.of( userID ), clock.currentTimeMillis() );
+	}
+
+	/**
+	 * Buckets is a set of token buckets sharing one policy, striped by key
+	 */
+	private static final class Buckets {
+
+		private static final int _STRIPES = 64;
+
+		private final long interval;
+		private final long tolerance;
+		private final Stripe[] stripes = new Stripe[_STRIPES];
+
+		Buckets( final int attempts, final long intervalMillis ) {
+			this.interval = Math.max( 1, intervalMillis );
+			this.tolerance = this.interval * ( attempts - 1 );
+			for( int i = 0; i < _STRIPES; i++ )
+			{
+				stripes[i] = new Stripe();
+			}
+		}
+
+		boolean tryAcquire( final long key, final long now ) {
+			final Stripe stripe = stripeFor( key );
+			synchronized( stripe ) {
+				final int index = stripe.find( key, now );
+				final long full = index >= 0 ? stripe.fullAt[index] : now;
+				final long start = Math.max( full, now );
+				if( start - now > tolerance )
+				{
+					return false;
+				}
+				stripe.put( index, key, start + interval, now );
+				return true;
+			}
+		}
+
+		void reset( final long key, final long now ) {
+			final Stripe stripe = stripeFor( key );
+			synchronized( stripe ) {
+				final int index = stripe.find( key, now );
+				if( index >= 0 )
+					stripe.fullAt[index] = now;
+			}
+		}
+
+		boolean isLocked( final long key, final long now ) {
+			final Stripe stripe = stripeFor( key );
+			synchronized( stripe ) {
+				final int index = stripe.find( key, now );
+				return index >= 0 && stripe.fullAt[index] - now > tolerance;
+			}
+		}
+
+		private Stripe stripeFor( final long key ) {
+			return stripes[(int) ( key >>> 58 )];
+		}
+	}
+
+	/**
+	 * Stripe is a linear probing table of key and the time the key's bucket
+	 * is next full, always accessed while holding the stripe's lock. A key of
+	 * zero marks an empty slot and a slot whose bucket is full may be reused
+	 */
+	private static final class Stripe {
+
+		private long[] keys = new long[16];
+		private long[] fullAt = new long[16];
+		private int size;
+
+		/**
+		 * Finds the slot of a live key
+		 *
+		 * @return int of the slot or -1
+		 */
+		int find( final long key, final long now ) {
+			final int mask = keys.length - 1;
+			int index = (int) key & mask;
+			while( keys[index] != 0 )
+			{
+				if( keys[index] == key )
+				{
+					return fullAt[index] > now ? index : -1;
+				}
+				index = ( index + 1 ) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * Sets the bucket of a key, in its existing slot when known
+		 */
+		void put( final int existing, final long key, final long full, final long now ) {
+			if( existing >= 0 )
+			{
+				fullAt[existing] = full;
+				return;
+			}
+			final int mask = keys.length - 1;
+			int reusable = -1;
+			int index = (int) key & mask;
+			while( keys[index] != 0 )
+			{
+				if( keys[index] == key )
+				{
+					fullAt[index] = full;
+					return;
+				}
+				if( reusable < 0 && fullAt[index] <= now )
+				{
+					reusable = index;
+				}
+				index = ( index + 1 ) & mask;
+			}
+			if( reusable >= 0 )
+			{
+				index = reusable;
+			} else {
+				if( size + 1 > ( keys.length >>> 1 ) + ( keys.length >>> 2 ) )
+				{
+					resize( now );
+					put( -1, key, full, now );
+					return;
+				}
+				size++;
+			}
+			keys[index] = key;
+			fullAt[index] = full;
+		}
+
+		/**
+		 * Rebuilds the table without refilled buckets, doubling it
+		 * when the live buckets still fill more than half of it
+		 */
+		private void resize( final long now ) {
+			final long[] oldKeys = keys;
+			final long[] oldFullAt = fullAt;
+			int live = 0;
+			for( int i = 0; i < oldKeys.length; i++ )
+			{
+				if( oldKeys[i] != 0 && oldFullAt[i] > now )
+					live++;
+			}
+			final int capacity = live * 2 + 1 > oldKeys.length ? oldKeys.length << 1 : oldKeys.length;
+			keys = new long[capacity];
+			fullAt = new long[capacity];
+			size = 0;
+			final int mask = capacity - 1;
+			for( int i = 0; i < oldKeys.length; i++ )
+			{
+				if( oldKeys[i] != 0 && oldFullAt[i] > now )
+				{
+					int index = (int) oldKeys[i] & mask;
+					while( keys[index] != 0 )
+					{
+						index = ( index + 1 ) & mask;
+					}
+					keys[index] = oldKeys[i];
+					fullAt[index] = oldFullAt[i];
+					size++;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.wfraser.security.otp;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OTPTickingClock is an {@link OTPClock} that caches the current step
+ * of one step length in a volatile field
+ * 
+ * A single daemon thread wakes at each step boundary and publishes the new
+ * step, so every {@link OTPImplementation} sharing the clock reads a volatile 
+ * long instead of calling {@link System#currentTimeMillis()} and dividing.
+ * Steps of any other length are computed from the system clock as normal.
+ * 
+ * The published step may trail the real step by the scheduling delay of the 
+ * ticker thread, usually well under a millisecond. Call {@link #close()} to 
+ * stop the ticker.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPTickingClock implements OTPClock, AutoCloseable {
+
+	private final long periodMillis;
+	private final ScheduledExecutorService ticker;
+	private volatile long step;
+
+	/**
+	 * Creates and starts a clock ticking on the default 30s step
+	 * 
+	 * @return a started {@link OTPTickingClock}
+	 */
+	public static OTPTickingClock createInstance() {
+		return createInstance( OTPUserCredentialProvider._DEFAULT_PERIOD );
+	}
+
+	/**
+	 * Creates and starts a clock ticking on the given step length
+	 * 
+	 * @param period	the int length of a step in seconds
+	 * 
+	 * @return a started {@link OTPTickingClock}
+	 */
+	public static OTPTickingClock createInstance( final int period ) {
+		if( period < 1 )
+			throw new IllegalArgumentException( "period must be positive" );
+		final OTPTickingClock clock = new OTPTickingClock( period * 1000L );
+		clock.tick();
+		return clock;
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 * 
+	 * @param periodMillis	the long length of a step in milliseconds
+	 */
+	private OTPTickingClock( final long periodMillis ) {
+		this.periodMillis = periodMillis;
+		this.ticker = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			final Thread thread = new Thread( runnable, "otp-ticking-clock" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public long currentStep( final long periodMillis ) {
+		if( periodMillis == this.periodMillis )
+		{
+			return step;
+		}
+		return currentTimeMillis() / periodMillis;
+	}
+
+	/**
+	 * Stops the ticker thread
+	 */
+	@Override
+	public void close() {
+		ticker.shutdownNow();
+	}
+
+	/**
+	 * Publishes the current step and schedules the next tick at the
+	 * following step boundary
+	 */
+	private void tick() {
+		final long now = System.currentTimeMillis();
+		step = now / periodMillis;
+		try {
+			ticker.schedule( this::tick, periodMillis - ( now % periodMillis ), TimeUnit.MILLISECONDS );
+		} catch ( RejectedExecutionException e ) {
+			// closed while ticking
+		}
+	}
+}
@@ -1,9 +1,8 @@
 package com.wfraser.security.otp;
 
-import java.math.BigInteger;
+import java.util.Arrays;
 
 import org.apache.commons.codec.binary.Base32;
-import org.apache.commons.codec.binary.Hex;
 
 import com.wfraser.security.exceptions.OTPGenericException;
 import com.wfraser.security.utils.OTPUtils;
@@ -12,6 +11,11 @@ import com.wfraser.security.utils.OTPUtils;
  * OTPUserCredentialProvider is the object to be added to users
  * when looking to add OTP ability to a user
  *  
+ * The secret is decoded from Base32 once, when the provider is created, and
+ * held as its raw key bytes. The Base32 form is only rebuilt on request for
+ * exporting the key, such as in an otpauth URL, and the raw key can be
+ * wiped once the provider is no longer needed.
+ *  
  * 
  * @author 	William Fraser
  * @version	%I%, %G%
@@ -20,36 +24,109 @@ import com.wfraser.security.utils.OTPUtils;
  */
 public class OTPUserCredentialProvider {
 
-	private String secretKey; 
+	/*
+	 *	Defaults matching the Google Authenticator App
+	 */
+	public static final OTPAlgorithm _DEFAULT_ALGORITHM = OTPAlgorithm.SHA1;
+	public static final int _DEFAULT_DIGITS = 6;
+	public static final int _DEFAULT_PERIOD = 30;
+	public static final int _MIN_DIGITS = 6;
+	public static final int _MAX_DIGITS = 8;
+
+	private static final Base32 _BASE32 = new Base32();
+
+	private final byte[] secret; 
 	private String userID;
 	private String company; 
 	private int allowedSteps;
+	private OTPAlgorithm algorithm = _DEFAULT_ALGORITHM;
+	private int digits = _DEFAULT_DIGITS;
+	private int period = _DEFAULT_PERIOD;
+	private boolean counterBased;
 
 	/**
 	 * Private Constructor to prevent instantiation
+	 * 
+	 * @param secretKey		the String representing the secret key (base32 as String)
+	 * @param userID		the String for the User's ID 
+	 * @param company		the String for the company name
+	 * @param steps			the int for the number of 30s steps to be valid for
+	 * @throws OTPGenericException 
 	 */
-	private OTPUserCredentialProvider() {
-
+	private OTPUserCredentialProvider( final String secretKey, final String userID, final String company, final int steps ) throws OTPGenericException {
+		this( secretKey == null || secretKey.equals( "" ) ? null : _BASE32.decode( secretKey ), userID, company, steps );
 	}
 
 	/**
-	 * Private Constructor to prevent instantiation
+	 * Private Constructor to prevent instantiation, taking ownership of the key bytes
 	 * 
-	 * @param secretKey		the String representing the secret key (base32 as String)
+	 * @param secret		the byte[] of the raw secret key
 	 * @param userID		the String for the User's ID 
 	 * @param company		the String for the company name
-	 * @param steps			the int for the number of 30s steps to be valid for
+	 * @param steps			the int for the number of steps to be valid for
 	 * @throws OTPGenericException 
 	 */
-	private OTPUserCredentialProvider( final String secretKey, final String userID, final String company, final int steps ) throws OTPGenericException {
-		if( secretKey == null || secretKey.equals( "" ) || userID == null || userID.equals( "" ) )
+	private OTPUserCredentialProvider( final byte[] secret, final String userID, final String company, final int steps ) throws OTPGenericException {
+		if( secret == null || secret.length == 0 || userID == null || userID.equals( "" ) )
 			throw new OTPGenericException( OTPGenericException._USER_AND_KEY_BLANK );
-		this.secretKey = secretKey;
+		this.secret = secret;
 		this.userID = userID;
 		allowedSteps = steps;
 		this.company = company;
 	}
 
+	/**
+	 * Private Constructor to prevent instantiation
+	 * 
+	 * @param secretKey		the String representing the secret key (base32 as String)
+	 * @param userID		the String for the User's ID 
+	 * @param company		the String for the company name
+	 * @param steps			the int for the number of steps to be valid for
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 * @throws OTPGenericException 
+	 */
+	private OTPUserCredentialProvider( final String secretKey, final String userID, final String company, final int steps, 
+			final OTPAlgorithm algorithm, final int digits, final int period ) throws OTPGenericException {
+		this( secretKey, userID, company, steps );
+		configure( algorithm, digits, period );
+	}
+
+	/**
+	 * Private Constructor to prevent instantiation, taking ownership of the key bytes
+	 * 
+	 * @param secret		the byte[] of the raw secret key
+	 * @param userID		the String for the User's ID 
+	 * @param company		the String for the company name
+	 * @param steps			the int for the number of steps to be valid for
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 * @throws OTPGenericException 
+	 */
+	private OTPUserCredentialProvider( final byte[] secret, final String userID, final String company, final int steps, 
+			final OTPAlgorithm algorithm, final int digits, final int period ) throws OTPGenericException {
+		this( secret, userID, company, steps );
+		configure( algorithm, digits, period );
+	}
+
+	/**
+	 * Sets the code parameters after checking they are supported
+	 * 
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 * @throws OTPGenericException when the configuration is not supported
+	 */
+	private void configure( final OTPAlgorithm algorithm, final int digits, final int period ) throws OTPGenericException {
+		if( algorithm == null || digits < _MIN_DIGITS || digits > _MAX_DIGITS || period < 1 )
+			throw new OTPGenericException( OTPGenericException._INVALID_OTP_CONFIGURATION );
+		this.algorithm = algorithm;
+		this.digits = digits;
+		this.period = period;
+	}
+
 	/**
 	 * Static method for creating a OTPUserCredentialProvider for the use with 
 	 * the Google Authenticator APP 
@@ -71,6 +148,116 @@ public class OTPUserCredentialProvider {
 		return user;
 	}
 
+	/**
+	 * Static method for creating a OTPUserCredentialProvider for the use with 
+	 * an Authenticator APP using a non default algorithm, code length or step length
+	 * 
+	 * @param secretKey		the String representing the secret key (base32 as String)
+	 * @param userID		the String for the User's ID 
+	 * @param company		the String for the company name
+	 * @param steps			the int for the number of steps to be valid for
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 * 
+	 * @return 				instance of OTPUserCredentialProvider with configuration
+	 * 
+	 * @throws OTPGenericException when the secretKey is blank or the configuration is not supported
+	 */
+	public static OTPUserCredentialProvider createAuthenticatorUserObject( final String secretKey, final String userID, final String company, final int steps, 
+			final OTPAlgorithm algorithm, final int digits, final int period ) throws OTPGenericException {
+		if( company == null || company.equals("") )
+			throw new OTPGenericException( OTPGenericException._USER_AND_KEY_BLANK );
+		var user = new OTPUserCredentialProvider( secretKey, userID, company, steps, algorithm, digits, period );
+		return user;
+	}
+
+	/**
+	 * Static method for creating a OTPUserCredentialProvider from a raw secret key,
+	 * such as one read from an {@link OTPCredentialTable} or other binary store. 
+	 * The key bytes are copied, so the caller may wipe its own array
+	 * 
+	 * @param secretKey		the byte[] of the raw secret key
+	 * @param userID		the String for the User's ID 
+	 * @param company		the String for the company name, may be null when the key is not exported
+	 * @param steps			the int for the number of steps to be valid for
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 * 
+	 * @return 				instance of OTPUserCredentialProvider with configuration
+	 * 
+	 * @throws OTPGenericException when the secretKey is blank or the configuration is not supported
+	 */
+	public static OTPUserCredentialProvider createRawKeyUserObject( final byte[] secretKey, final String userID, final String company, final int steps, 
+			final OTPAlgorithm algorithm, final int digits, final int period ) throws OTPGenericException {
+		return createRawKeyUserObject( secretKey, userID, company, steps, algorithm, digits, period, false );
+	}
+
+	/**
+	 * Static method for creating a OTPUserCredentialProvider from a raw secret key
+	 * read from a store, for a time based or a counter based user. 
+	 * The key bytes are copied, so the caller may wipe its own array
+	 * 
+	 * @param secretKey		the byte[] of the raw secret key
+	 * @param userID		the String for the User's ID 
+	 * @param company		the String for the company name, may be null when the key is not exported
+	 * @param steps			the int for the number of steps, or counters for a counter based user, to be valid for
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 * @param counterBased	the boolean for an RFC 4226 HOTP user, see {@link #isCounterBased()}
+	 * 
+	 * @return 				instance of OTPUserCredentialProvider with configuration
+	 * 
+	 * @throws OTPGenericException when the secretKey is blank or the configuration is not supported
+	 */
+	public static OTPUserCredentialProvider createRawKeyUserObject( final byte[] secretKey, final String userID, final String company, final int steps, 
+			final OTPAlgorithm algorithm, final int digits, final int period, final boolean counterBased ) throws OTPGenericException {
+		var user = new OTPUserCredentialProvider( secretKey == null ? null : secretKey.clone(), userID, company, steps, algorithm, digits, period );
+		user.counterBased = counterBased;
+		return user;
+	}
+
+	/**
+	 * Static method for creating a OTPUserCredentialProvider for a counter based
+	 * RFC 4226 HOTP token, such as a hardware token, instead of a time based one
+	 * 
+	 * @param secretKey		the String representing the secret key (base32 as String)
+	 * @param userID		the String for the User's ID 
+	 * @param company		the String for the company name, may be null when the key is not exported
+	 * @param lookAhead		the int number of counters, from the next expected, a code is accepted from
+	 * 
+	 * @return 				instance of OTPUserCredentialProvider with configuration
+	 * 
+	 * @throws OTPGenericException when the secretKey is blank
+	 */
+	public static OTPUserCredentialProvider createCounterUserObject( final String secretKey, final String userID, final String company, final int lookAhead ) throws OTPGenericException {
+		return createCounterUserObject( secretKey, userID, company, lookAhead, _DEFAULT_ALGORITHM, _DEFAULT_DIGITS );
+	}
+
+	/**
+	 * Static method for creating a OTPUserCredentialProvider for a counter based
+	 * RFC 4226 HOTP token using a non default algorithm or code length
+	 * 
+	 * @param secretKey		the String representing the secret key (base32 as String)
+	 * @param userID		the String for the User's ID 
+	 * @param company		the String for the company name, may be null when the key is not exported
+	 * @param lookAhead		the int number of counters, from the next expected, a code is accepted from
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * 
+	 * @return 				instance of OTPUserCredentialProvider with configuration
+	 * 
+	 * @throws OTPGenericException when the secretKey is blank or the configuration is not supported
+	 */
+	public static OTPUserCredentialProvider createCounterUserObject( final String secretKey, final String userID, final String company, final int lookAhead, 
+			final OTPAlgorithm algorithm, final int digits ) throws OTPGenericException {
+		var user = new OTPUserCredentialProvider( secretKey, userID, company, lookAhead, algorithm, digits, _DEFAULT_PERIOD );
+		user.counterBased = true;
+		return user;
+	}
+
 	/**
 	 * Static method for creating OTPUserCredentialProvider for generating just
 	 * OTP codes.
@@ -103,30 +290,72 @@ public class OTPUserCredentialProvider {
 	}
 
 	/**
-	 * Getter for Secret Key
+	 * Static method for creating OTPUserCredentialProvider for generating a new Authenticator User
+	 * using a non default algorithm, code length or step length
+	 * 
+	 * @param userID		the String for the User's ID 
+	 * @param steps			the int for the number of steps to be valid for
+	 * @param companyName	the String for the Users company name
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 * 
+	 * @return				instance of OTPUserCredentialProvider with configuration 
+	 * 
+	 * @throws OTPGenericException when the configuration is not supported
+	 */
+	public static OTPUserCredentialProvider createNewAuthenticatorUserObject( final String userID, final int steps, final String companyName, 
+			final OTPAlgorithm algorithm, final int digits, final int period ) throws OTPGenericException {
+		if( companyName == null || companyName.equals("") )
+			throw new OTPGenericException( OTPGenericException._USER_AND_KEY_BLANK );
+		var user = new OTPUserCredentialProvider( OTPUtils.generateSecretKey( algorithm ), userID, companyName, steps, algorithm, digits, period );
+		return user;
+	}
+
+	/**
+	 * Getter for Secret Key, encoding the raw key on each call
+	 * so it is only held as a String while being exported
 	 * 
-	 * @return the String representing the key in base32
+	 * @return the String representing the key in base32, without padding
 	 */
 	public String getSecretKey() {
-		return secretKey;
+		return OTPUtils.encodeBase32( secret );
 	}
 
 	/**
 	 * Getter for the secret key as a byte array
 	 * 
-	 * As key will be handled in Base32 String this is needed to convert back to
-	 * array for processing
-	 * 
-	 * @return secret key in a form usable by the OTPImplementation
+	 * @return a copy of the raw secret key in a form usable by the OTPImplementation
 	 */
 	public byte[] getSecretByteArray() {
-		var base = new Base32();
-		var base32 = base.decode(secretKey);
-		var hexString = Hex.encodeHexString(base32);
-		var hexToByte = new BigInteger("10" + hexString, 16).toByteArray();
-		var keyBytes = new byte[hexToByte.length - 1];
-		System.arraycopy(hexToByte, 1, keyBytes, 0, keyBytes.length);
-		return keyBytes;
+		return secret.clone();
+	}
+
+	/**
+	 * Gets the raw secret key without copying, for use within the package only
+	 * 
+	 * @return byte[] of the raw secret key, which must not be modified
+	 */
+	byte[] secret() {
+		return secret;
+	}
+
+	/**
+	 * Gets the length of the raw secret key
+	 * 
+	 * @return the int of the key length in bytes
+	 */
+	public int getSecretLength() {
+		return secret.length;
+	}
+
+	/**
+	 * Overwrites the raw secret key with zeros. Any {@link OTPImplementation} already
+	 * created for the user keeps working, as it holds its own initialised key, but the
+	 * provider must not be used to create new ones afterwards
+	 */
+	public void wipe() {
+		Arrays.fill( secret, (byte) 0 );
 	}
 
 	/**
@@ -156,4 +385,41 @@ public class OTPUserCredentialProvider {
 		return company;
 	}
 
+	/**
+	 * Getter for the HMAC algorithm
+	 * 
+	 * @return the {@link OTPAlgorithm} used to generate codes
+	 */
+	public OTPAlgorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Getter for the number of digits in a code
+	 * 
+	 * @return the int of the code length
+	 */
+	public int getDigits() {
+		return digits;
+	}
+
+	/**
+	 * Getter for the length of a step
+	 * 
+	 * @return the int of the step length in seconds
+	 */
+	public int getPeriod() {
+		return period;
+	}
+
+	/**
+	 * Getter for the token type. A counter based user's allowed steps are
+	 * the number of counters looked ahead and the period is not used
+	 * 
+	 * @return true for a counter based HOTP user, false for a time based TOTP user
+	 */
+	public boolean isCounterBased() {
+		return counterBased;
+	}
+
 }
\ No newline at end of file
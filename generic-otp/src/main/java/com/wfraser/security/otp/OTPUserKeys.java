@@ -0,0 +1,160 @@
+package com.wfraser.security.otp;
+
+import java.security.SecureRandom;
+
+/**
+ * OTPUserKeys reduces a user ID to the 64 bit key used by the
+ * primitive, per user tables such as {@link OTPStripedReplayStore}
+ * 
+ * The key is a 64 bit FNV-1a hash of the ID's chars passed through a
+ * final avalanche mix, so keys spread evenly across hash table slots.
+ * Zero is never returned, allowing tables to use it as the empty marker.
+ * 
+ * FNV-1a is unkeyed and each of its steps can be undone, so an ID sharing 
+ * the key of another user can be found with about 2^32 work. Tables that
+ * hold a user's secret, or release one on a match, instead use the keyed 
+ * SipHash-2-4 key of {@link #keyed(String, long, long)} with a random seed
+ * of their own, so colliding IDs can not be searched for offline.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+final class OTPUserKeys {
+
+	private static final long _FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long _FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Holder for the lazily created source of seeds
+	 */
+	private static final class SeedHolder {
+		static final SecureRandom _RANDOM = new SecureRandom();
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 */
+	private OTPUserKeys() {
+	}
+
+	/**
+	 * Gets the key of a user ID
+	 * 
+	 * @param userID	the String for the User's ID
+	 * 
+	 * @return long of the non zero user key
+	 */
+	static long of( final String userID ) {
+		long hash = _FNV_OFFSET;
+		for( int i = 0; i < userID.length(); i++ )
+		{
+			final char c = userID.charAt( i );
+			hash = ( hash ^ ( c & 0xff ) ) * _FNV_PRIME;
+			hash = ( hash ^ ( c >>> 8 ) ) * _FNV_PRIME;
+		}
+		return mix( hash );
+	}
+
+	/**
+	 * Gets the SipHash-2-4 key of a user ID under a 128 bit seed, 
+	 * hashing the ID's chars as little endian UTF-16
+	 * 
+	 * @param userID	the String for the User's ID
+	 * @param k0		the long first half of the seed
+	 * @param k1		the long second half of the seed
+	 * 
+	 * @return long of the non zero user key
+	 */
+	static long keyed( final String userID, final long k0, final long k1 ) {
+		final SipHash state = new SipHash( k0, k1 );
+		final int length = userID.length();
+		final int whole = length & ~3;
+		for( int i = 0; i < whole; i += 4 )
+		{
+			state.compress( userID.charAt( i ) | (long) userID.charAt( i + 1 ) << 16
+					| (long) userID.charAt( i + 2 ) << 32 | (long) userID.charAt( i + 3 ) << 48 );
+		}
+		long last = (long) ( length * 2 ) << 56;
+		for( int i = whole; i < length; i++ )
+		{
+			last |= (long) userID.charAt( i ) << ( ( i - whole ) * 16 );
+		}
+		state.compress( last );
+		final long hash = state.finish();
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * Draws one half of a random seed for {@link #keyed(String, long, long)}
+	 * 
+	 * @return long of random bits
+	 */
+	static long seed() {
+		return SeedHolder._RANDOM.nextLong();
+	}
+
+	/**
+	 * Spreads the bits of a hash and avoids the zero key
+	 * 
+	 * @param hash	the long hash to mix
+	 * 
+	 * @return long of the mixed, non zero hash
+	 */
+	static long mix( long hash ) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * SipHash is the state of one SipHash-2-4 hash
+	 */
+	private static final class SipHash {
+
+		private long v0;
+		private long v1;
+		private long v2;
+		private long v3;
+
+		SipHash( final long k0, final long k1 ) {
+			v0 = k0 ^ 0x736f6d6570736575L;
+			v1 = k1 ^ 0x646f72616e646f6dL;
+			v2 = k0 ^ 0x6c7967656e657261L;
+			v3 = k1 ^ 0x7465646279746573L;
+		}
+
+		void compress( final long word ) {
+			v3 ^= word;
+			rounds( 2 );
+			v0 ^= word;
+		}
+
+		long finish() {
+			v2 ^= 0xff;
+			rounds( 4 );
+			return v0 ^ v1 ^ v2 ^ v3;
+		}
+
+		private void rounds( final int count ) {
+			for( int i = 0; i < count; i++ )
+			{
+				v0 += v1;
+				v1 = Long.rotateLeft( v1, 13 ) ^ v0;
+				v0 = Long.rotateLeft( v0, 32 );
+				v2 += v3;
+				v3 = Long.rotateLeft( v3, 16 ) ^ v2;
+				v0 += v3;
+				v3 = Long.rotateLeft( v3, 21 ) ^ v0;
+				v2 += v1;
+				v1 = Long.rotateLeft( v1, 17 ) ^ v2;
+				v2 = Long.rotateLeft( v2, 32 );
+			}
+		}
+	}
+}
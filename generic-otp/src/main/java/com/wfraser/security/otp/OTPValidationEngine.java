@@ -0,0 +1,399 @@
+package com.wfraser.security.otp;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.utils.OTPBoundedCache;
+
+/**
+ * OTPValidationEngine validates codes for many users by user ID
+ * 
+ * Credentials are looked up through a pluggable {@link OTPKeyStore} and the
+ * resulting {@link OTPImplementation}, holding the decoded key and its pool of
+ * initialised Macs, is kept in an {@link OTPBoundedCache}. Repeated validations
+ * for a user therefore neither decode the Base32 secret nor initialise a Mac.
+ * The credential is handed back to {@link OTPKeyStore#release} once the keys
+ * are built, and an instance leaving the cache drops its pooled Macs.
+ * 
+ * An optional {@link OTPThrottle} limits attempts per user and per source,
+ * refusing locked out attempts before the user is looked up.
+ * 
+ * The engine is thread safe and is intended to be shared by the whole application.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPValidationEngine {
+
+	private final OTPKeyStore keyStore;
+	private final OTPBoundedCache<String, OTPImplementation> instances;
+	private final OTPOptions options;
+	private final OTPThrottle throttle;
+	private final OTPMetrics metrics;
+	private final OTPBatchValidator sequentialValidator;
+	private final LongAdder throttled = new LongAdder();
+
+	/**
+	 * Creates an instance of {@link OTPValidationEngine}
+	 * 
+	 * @param keyStore			the {@link OTPKeyStore} used to look up users
+	 * @param maximumUsers		the int maximum number of users held in the cache
+	 * @param expireAfter		the long time a cached user is kept before being looked up again
+	 * @param unit				the {@link TimeUnit} of expireAfter
+	 * 
+	 * @return instance of {@link OTPValidationEngine}
+	 * 
+	 * @throws OTPGenericException when the keyStore is missing
+	 */
+	public static OTPValidationEngine createInstance( final OTPKeyStore keyStore, final int maximumUsers, final long expireAfter, final TimeUnit unit ) throws OTPGenericException {
+		return createInstance( keyStore, maximumUsers, expireAfter, unit, OTPOptions.defaults() );
+	}
+
+	/**
+	 * Creates an instance of {@link OTPValidationEngine} with the given {@link OTPOptions}
+	 * applied to every user
+	 * 
+	 * @param keyStore			the {@link OTPKeyStore} used to look up users
+	 * @param maximumUsers		the int maximum number of users held in the cache
+	 * @param expireAfter		the long time a cached user is kept before being looked up again
+	 * @param unit				the {@link TimeUnit} of expireAfter
+	 * @param options			the {@link OTPOptions} used when creating each user's {@link OTPImplementation}
+	 * 
+	 * @return instance of {@link OTPValidationEngine}
+	 * 
+	 * @throws OTPGenericException when the keyStore is missing
+	 */
+	public static OTPValidationEngine createInstance( final OTPKeyStore keyStore, final int maximumUsers, final long expireAfter, final TimeUnit unit, final OTPOptions options ) throws OTPGenericException {
+		return createInstance( keyStore, maximumUsers, expireAfter, unit, options, null );
+	}
+
+	/**
+	 * Creates an instance of {@link OTPValidationEngine} with the given {@link OTPOptions}
+	 * applied to every user and attempts limited by the given {@link OTPThrottle}
+	 * 
+	 * @param keyStore			the {@link OTPKeyStore} used to look up users
+	 * @param maximumUsers		the int maximum number of users held in the cache
+	 * @param expireAfter		the long time a cached user is kept before being looked up again
+	 * @param unit				the {@link TimeUnit} of expireAfter
+	 * @param options			the {@link OTPOptions} used when creating each user's {@link OTPImplementation}
+	 * @param throttle			the {@link OTPThrottle} limiting attempts, or null for no limit
+	 * 
+	 * @return instance of {@link OTPValidationEngine}
+	 * 
+	 * @throws OTPGenericException when the keyStore is missing
+	 */
+	public static OTPValidationEngine createInstance( final OTPKeyStore keyStore, final int maximumUsers, final long expireAfter, final TimeUnit unit, 
+			final OTPOptions options, final OTPThrottle throttle ) throws OTPGenericException {
+		if( keyStore == null )
+			throw new OTPGenericException( OTPGenericException._ERROR_CREATING_OTP_INSTANCE );
+		return new OTPValidationEngine( keyStore, new OTPBoundedCache<>( maximumUsers, expireAfter, unit, ( userID, otp ) -> otp.release() ),
+				options == null ? OTPOptions.defaults() : options, throttle );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 * 
+	 * @param keyStore		the {@link OTPKeyStore} used to look up users
+	 * @param instances		the {@link OTPBoundedCache} of configured instances
+	 * @param options		the {@link OTPOptions} used when creating instances
+	 * @param throttle		the {@link OTPThrottle} limiting attempts, or null
+	 */
+	private OTPValidationEngine( final OTPKeyStore keyStore, final OTPBoundedCache<String, OTPImplementation> instances, final OTPOptions options, final OTPThrottle throttle ) {
+		this.keyStore = keyStore;
+		this.instances = instances;
+		this.options = options;
+		this.sequentialValidator = OTPBatchValidator.createInstance( options.getClock() );
+		this.throttle = throttle;
+		this.metrics = options.getMetrics() == OTPMetrics.NONE ? null : options.getMetrics();
+	}
+
+	/**
+	 * Validates a given code for a user
+	 * 
+	 * @param userID	the String for the User's ID
+	 * @param input		String of the code to compare
+	 * 
+	 * @return 	True - A valid code has been used
+	 * 			False - A valid code was not used or the user is unknown
+	 * 
+	 * @throws OTPGenericException when the user can not be loaded
+	 */
+	public Boolean validate( final String userID, final String input ) throws OTPGenericException {
+		return verify( userID, input, null ) == OTPValidationResult.ACCEPTED;
+	}
+
+	/**
+	 * Validates a given code for a user, counting the attempt against 
+	 * both the user and the source it came from
+	 * 
+	 * @param userID	the String for the User's ID
+	 * @param input		String of the code to compare
+	 * @param source	the String identifying the source, such as the client address, may be null
+	 * 
+	 * @return 	True - A valid code has been used
+	 * 			False - A valid code was not used, the user is unknown or the attempt was throttled
+	 * 
+	 * @throws OTPGenericException when the user can not be loaded
+	 */
+	public Boolean validate( final String userID, final String input, final String source ) throws OTPGenericException {
+		return verify( userID, input, source ) == OTPValidationResult.ACCEPTED;
+	}
+
+	/**
+	 * Validates a given code for a user, reporting why a code was not accepted.
+	 * When a {@link OTPThrottle} is configured the attempt is taken before the 
+	 * user is looked up, so a locked out user or source costs no HMAC
+	 * 
+	 * @param userID	the String for the User's ID
+	 * @param input		String of the code to compare
+	 * @param source	the String identifying the source, such as the client address, may be null
+	 * 
+	 * @return the {@link OTPValidationResult}
+	 * 
+	 * @throws OTPGenericException when the user can not be loaded
+	 */
+	public OTPValidationResult verify( final String userID, final String input, final String source ) throws OTPGenericException {
+		return verify( userID, input, source, null );
+	}
+
+	/**
+	 * Validates a code, taking the window codes from the given source 
+	 * so concurrent callers can share them
+	 * 
+	 * @param userID	the String for the User's ID
+	 * @param input		the String code submitted by the user
+	 * @param source	the String identifying the source of the attempt, may be null
+	 * @param window	the {@link OTPImplementation.WindowSource} of codes, or null to generate them
+	 * 
+	 * @return {@link OTPValidationResult} of the attempt
+	 * 
+	 * @throws OTPGenericException when the user can not be loaded
+	 */
+	OTPValidationResult verify( final String userID, final String input, final String source, final OTPImplementation.WindowSource window ) throws OTPGenericException {
+		if( userID == null )
+			return OTPValidationResult.UNKNOWN_USER;
+		if( throttle != null && !throttle.tryAcquire( userID, source ) )
+		{
+			throttled.increment();
+			if( metrics != null )
+				metrics.onThrottle( userID );
+			return OTPValidationResult.THROTTLED;
+		}
+		final OTPImplementation otp = getInstance( userID );
+		if( otp == null )
+			return OTPValidationResult.UNKNOWN_USER;
+		if( window == null ? !otp.validate( input ) : !validate( otp, input, window ) )
+			return OTPValidationResult.REJECTED;
+		if( throttle != null )
+			throttle.reset( userID );
+		return OTPValidationResult.ACCEPTED;
+	}
+
+	private static boolean validate( final OTPImplementation otp, final String input, final OTPImplementation.WindowSource window ) {
+		final int code = otp.parseCode( input );
+		if( code < 0 )
+			return false;
+		final long step = otp.currentStep();
+		return otp.validate( code, step, window.codes( otp, step ) );
+	}
+
+	/**
+	 * Validates a batch of codes, each against the user at the same index,
+	 * on the calling thread
+	 * 
+	 * @param userIDs	the String User's ID per entry
+	 * @param inputs	the String code per entry
+	 * 
+	 * @return {@link BitSet} with bit i set when entry i holds a valid code
+	 * 
+	 * @throws OTPGenericException when a user can not be loaded
+	 */
+	public BitSet validate( final String[] userIDs, final String[] inputs ) throws OTPGenericException {
+		return validate( userIDs, inputs, sequentialValidator );
+	}
+
+	/**
+	 * Validates a batch of codes, each against the user at the same index,
+	 * using the given {@link OTPBatchValidator}
+	 * 
+	 * @param userIDs		the String User's ID per entry
+	 * @param inputs		the String code per entry
+	 * @param validator		the {@link OTPBatchValidator} to validate with
+	 * 
+	 * @return {@link BitSet} with bit i set when entry i holds a valid code
+	 * 
+	 * @throws OTPGenericException when a user can not be loaded
+	 */
+	public BitSet validate( final String[] userIDs, final String[] inputs, final OTPBatchValidator validator ) throws OTPGenericException {
+		final OTPImplementation[] users = new OTPImplementation[userIDs.length];
+		for( int i = 0; i < userIDs.length; i++ )
+		{
+			if( throttle != null && userIDs[i] != null && !throttle.tryAcquire( userIDs[i], null ) )
+			{
+				throttled.increment();
+				if( metrics != null )
+					metrics.onThrottle( userIDs[i] );
+				continue;
+			}
+			users[i] = getInstance( userIDs[i] );
+		}
+		final BitSet results = validator.validate( users, inputs );
+		if( throttle != null )
+		{
+			for( int i = results.nextSetBit( 0 ); i >= 0; i = results.nextSetBit( i + 1 ) )
+			{
+				throttle.reset( userIDs[i] );
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Generates the current OTP for a user
+	 * 
+	 * @param userID	the String for the User's ID
+	 * 
+	 * @return String representing the code, or null if the user is unknown
+	 * 
+	 * @throws OTPGenericException when the user can not be loaded
+	 */
+	public String getOTP( final String userID ) throws OTPGenericException {
+		final OTPImplementation otp = getInstance( userID );
+		return otp == null ? null : otp.getOTP();
+	}
+
+	/**
+	 * Resynchronizes a counter based user whose token has moved beyond the
+	 * look ahead window, or records the drift of a time based user when a 
+	 * {@link OTPDriftTable} is configured, see {@link OTPImplementation#resynchronize(String, String)}
+	 * 
+	 * @param userID	the String for the User's ID
+	 * @param first		the String first code shown by the token
+	 * @param second	the String code shown by the token after the first
+	 * 
+	 * @return 	True - the counter or drift was resynchronized
+	 * 			False - the codes were not found, the user is unknown or can not be resynchronized, or the attempt was throttled
+	 * 
+	 * @throws OTPGenericException when the user can not be loaded
+	 */
+	public boolean resynchronize( final String userID, final String first, final String second ) throws OTPGenericException {
+		if( userID == null )
+			return false;
+		if( throttle != null && !throttle.tryAcquire( userID, null ) )
+		{
+			throttled.increment();
+			if( metrics != null )
+				metrics.onThrottle( userID );
+			return false;
+		}
+		final OTPImplementation otp = getInstance( userID );
+		if( otp == null || !otp.resynchronize( first, second ) )
+			return false;
+		if( throttle != null )
+			throttle.reset( userID );
+		return true;
+	}
+
+	/**
+	 * Removes a user from the cache, to be called when a user's 
+	 * secret key is changed or removed
+	 * 
+	 * @param userID	the String for the User's ID
+	 */
+	public void invalidate( final String userID ) {
+		instances.invalidate( userID );
+	}
+
+	/**
+	 * Gets the configured {@link OTPImplementation} for a user, loading
+	 * it from the {@link OTPKeyStore} when not already cached
+	 * 
+	 * @param userID	the String for the User's ID
+	 * 
+	 * @return	the {@link OTPImplementation} for the user or null if the user is unknown
+	 * 
+	 * @throws OTPGenericException when the user can not be loaded
+	 */
+	public OTPImplementation getInstance( final String userID ) throws OTPGenericException {
+		if( userID == null )
+			return null;
+		OTPImplementation otp = instances.get( userID );
+		if( metrics != null )
+			metrics.onUserCache( otp != null );
+		if( otp == null )
+		{
+			final OTPUserCredentialProvider credential = keyStore.getCredential( userID );
+			if( credential == null )
+				return null;
+			final OTPImplementation created;
+			try {
+				created = OTPImplementation.createInstance( credential, options );
+			} finally {
+				keyStore.release( credential );
+			}
+			otp = instances.putIfAbsent( userID, created );
+			if( otp != created )
+				created.release();
+		}
+		return otp;
+	}
+
+	/**
+	 * Getter for the number of validations served from the cache
+	 * 
+	 * @return long of the cache hit count
+	 */
+	public long getCacheHitCount() {
+		return instances.getHitCount();
+	}
+
+	/**
+	 * Getter for the number of validations that had to use the {@link OTPKeyStore}
+	 * 
+	 * @return long of the cache miss count
+	 */
+	public long getCacheMissCount() {
+		return instances.getMissCount();
+	}
+
+	/**
+	 * Getter for the number of users evicted to keep the cache within its size
+	 * 
+	 * @return long of the cache eviction count
+	 */
+	public long getCacheEvictionCount() {
+		return instances.getEvictionCount();
+	}
+
+	/**
+	 * Getter for the number of users removed from the cache as they expired
+	 * 
+	 * @return long of the cache expiry count
+	 */
+	public long getCacheExpiredCount() {
+		return instances.getExpiredCount();
+	}
+
+	/**
+	 * Getter for the number of attempts refused by the {@link OTPThrottle}
+	 * 
+	 * @return long of the throttled attempt count
+	 */
+	public long getThrottledCount() {
+		return throttled.sum();
+	}
+
+	/**
+	 * Getter for the number of users currently cached
+	 * 
+	 * @return int of the cache size
+	 */
+	public int getCacheSize() {
+		return instances.size();
+	}
+}
@@ -0,0 +1,34 @@
+package com.wfraser.security.otp;
+
+/**
+ * OTPValidationResult is the detailed outcome of an
+ * {@link OTPValidationEngine} validation
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public enum OTPValidationResult {
+
+	/**
+	 * The code was valid
+	 */
+	ACCEPTED,
+
+	/**
+	 * The code was not valid, or had already been used
+	 */
+	REJECTED,
+
+	/**
+	 * The user or source is locked out, the code was not checked
+	 */
+	THROTTLED,
+
+	/**
+	 * The user is not known to the {@link OTPKeyStore}
+	 */
+	UNKNOWN_USER
+}
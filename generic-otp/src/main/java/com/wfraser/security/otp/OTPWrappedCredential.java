@@ -0,0 +1,184 @@
+package com.wfraser.security.otp;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+
+/**
+ * OTPWrappedCredential is the at rest form of a user's credentials, holding
+ * the secret key wrapped by an {@link com.wfraser.security.utils.OTPKeyWrapper}
+ * alongside the code parameters, which are not secret
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPWrappedCredential {
+
+	private final byte[] wrappedKey;
+	private final String userID;
+	private final String company;
+	private final int allowedSteps;
+	private final OTPAlgorithm algorithm;
+	private final int digits;
+	private final int period;
+	private final boolean counterBased;
+
+	/**
+	 * Creates the wrapped credentials of a user with the default algorithm, code length and step length
+	 *
+	 * @param wrappedKey	the byte[] of the wrapped secret key
+	 * @param userID		the String for the User's ID
+	 * @param company		the String for the company name, may be null
+	 * @param steps			the int for the number of steps to be valid for
+	 *
+	 * @return instance of {@link OTPWrappedCredential}
+	 *
+	 * @throws OTPGenericException when the wrapped key or user is blank
+	 */
+	public static OTPWrappedCredential createInstance( final byte[] wrappedKey, final String userID, final String company, final int steps ) throws OTPGenericException {
+		return createInstance( wrappedKey, userID, company, steps, OTPUserCredentialProvider._DEFAULT_ALGORITHM,
+				OTPUserCredentialProvider._DEFAULT_DIGITS, OTPUserCredentialProvider._DEFAULT_PERIOD );
+	}
+
+	/**
+	 * Creates the wrapped credentials of a user
+	 *
+	 * @param wrappedKey	the byte[] of the wrapped secret key
+	 * @param userID		the String for the User's ID
+	 * @param company		the String for the company name, may be null
+	 * @param steps			the int for the number of steps to be valid for
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 *
+	 * @return instance of {@link OTPWrappedCredential}
+	 *
+	 * @throws OTPGenericException when the wrapped key or user is blank or the configuration is not supported
+	 */
+	public static OTPWrappedCredential createInstance( final byte[] wrappedKey, final String userID, final String company, final int steps,
+			final OTPAlgorithm algorithm, final int digits, final int period ) throws OTPGenericException {
+		return createInstance( wrappedKey, userID, company, steps, algorithm, digits, period, false );
+	}
+
+	/**
+	 * Creates the wrapped credentials of a time based or counter based user
+	 *
+	 * @param wrappedKey	the byte[] of the wrapped secret key
+	 * @param userID		the String for the User's ID
+	 * @param company		the String for the company name, may be null
+	 * @param steps			the int for the number of steps, or counters, to be valid for
+	 * @param algorithm		the {@link OTPAlgorithm} used to generate codes
+	 * @param digits		the int number of digits in a code, between 6 and 8
+	 * @param period		the int length of a step in seconds
+	 * @param counterBased	the boolean for an RFC 4226 HOTP user
+	 *
+	 * @return instance of {@link OTPWrappedCredential}
+	 *
+	 * @throws OTPGenericException when the wrapped key or user is blank or the configuration is not supported
+	 */
+	public static OTPWrappedCredential createInstance( final byte[] wrappedKey, final String userID, final String company, final int steps,
+			final OTPAlgorithm algorithm, final int digits, final int period, final boolean counterBased ) throws OTPGenericException {
+		if( wrappedKey == null || wrappedKey.length == 0 || userID == null || userID.equals( "" ) )
+			throw new OTPGenericException( OTPGenericException._USER_AND_KEY_BLANK );
+		if( algorithm == null || digits < OTPUserCredentialProvider._MIN_DIGITS || digits > OTPUserCredentialProvider._MAX_DIGITS || period < 1 )
+			throw new OTPGenericException( OTPGenericException._INVALID_OTP_CONFIGURATION );
+		return new OTPWrappedCredential( wrappedKey.clone(), userID, company, steps, algorithm, digits, period, counterBased );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 */
+	private OTPWrappedCredential( final byte[] wrappedKey, final String userID, final String company, final int steps,
+			final OTPAlgorithm algorithm, final int digits, final int period, final boolean counterBased ) {
+		this.wrappedKey = wrappedKey;
+		this.userID = userID;
+		this.company = company;
+		this.allowedSteps = steps;
+		this.algorithm = algorithm;
+		this.digits = digits;
+		this.period = period;
+		this.counterBased = counterBased;
+	}
+
+	/**
+	 * Getter for the wrapped secret key
+	 *
+	 * @return a copy of the byte[] of the wrapped key
+	 */
+	public byte[] getWrappedKey() {
+		return wrappedKey.clone();
+	}
+
+	/**
+	 * Gets the wrapped secret key without copying, for use within the package only
+	 *
+	 * @return byte[] of the wrapped key, which must not be modified
+	 */
+	byte[] wrappedKey() {
+		return wrappedKey;
+	}
+
+	/**
+	 * Getter for UserID
+	 *
+	 * @return the String of the User's ID
+	 */
+	public String getUserID() {
+		return userID;
+	}
+
+	/**
+	 * Getter for the company name
+	 *
+	 * @return the String of the company name
+	 */
+	public String getCompany() {
+		return company;
+	}
+
+	/**
+	 * Getter for the allowed steps
+	 *
+	 * @return the int of the allowedSteps
+	 */
+	public int getAllowedSteps() {
+		return allowedSteps;
+	}
+
+	/**
+	 * Getter for the HMAC algorithm
+	 *
+	 * @return the {@link OTPAlgorithm} used to generate codes
+	 */
+	public OTPAlgorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Getter for the number of digits in a code
+	 *
+	 * @return the int of the code length
+	 */
+	public int getDigits() {
+		return digits;
+	}
+
+	/**
+	 * Getter for the length of a step
+	 *
+	 * @return the int of the step length in seconds
+	 */
+	public int getPeriod() {
+		return period;
+	}
+
+	/**
+	 * Getter for whether the user has a counter based RFC 4226 HOTP token
+	 *
+	 * @return boolean true when codes follow a counter rather than the clock
+	 */
+	public boolean isCounterBased() {
+		return counterBased;
+	}
+}
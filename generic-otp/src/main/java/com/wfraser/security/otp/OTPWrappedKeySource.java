@@ -0,0 +1,32 @@
+package com.wfraser.security.otp;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+
+/**
+ * OTPWrappedKeySource is the lookup used by {@link OTPWrappedKeyStore}
+ * to find the wrapped credentials of a user by their ID
+ *
+ * Implementations typically wrap the application's user database,
+ * which then only ever holds encrypted secret keys.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+@FunctionalInterface
+public interface OTPWrappedKeySource {
+
+	/**
+	 * Looks up the wrapped credentials of a user
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return			the {@link OTPWrappedCredential} for the user, or null if the user is unknown
+	 *
+	 * @throws OTPGenericException when the source can not be read
+	 */
+	OTPWrappedCredential getWrappedCredential( String userID ) throws OTPGenericException;
+
+}
@@ -0,0 +1,194 @@
+package com.wfraser.security.otp;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.utils.OTPBoundedCache;
+import com.wfraser.security.utils.OTPKeyWrapper;
+
+/**
+ * OTPWrappedKeyStore is an {@link OTPKeyStore} over wrapped secret keys,
+ * unwrapping them with an {@link OTPKeyWrapper} as users are looked up
+ *
+ * Unwrapped keys are held in a small {@link OTPBoundedCache} for a short time
+ * so users validating often are not unwrapped on every lookup. Every key
+ * leaving the cache, through eviction, expiry or invalidation, is overwritten,
+ * so keys of users that have gone quiet do not stay decrypted in memory. A
+ * cached key is only used while the wrapped key it came from is unchanged.
+ *
+ * The credentials returned hold their own copy of the key, which the caller
+ * may {@link OTPUserCredentialProvider#wipe()} once the {@link OTPImplementation}
+ * has been created. {@link OTPValidationEngine} does so through {@link #release}.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPWrappedKeyStore implements OTPKeyStore {
+
+	private final OTPWrappedKeySource source;
+	private final OTPKeyWrapper wrapper;
+	private final OTPBoundedCache<String, Unwrapped> unwrapped;
+
+	/**
+	 * Creates a store unwrapping the keys of the given source
+	 *
+	 * @param source		the {@link OTPWrappedKeySource} of wrapped credentials
+	 * @param wrapper		the {@link OTPKeyWrapper} holding the master key
+	 * @param maxKeys		the int maximum number of unwrapped keys held
+	 * @param expireAfter	the long time an unwrapped key is held for
+	 * @param unit			the {@link TimeUnit} of expireAfter
+	 *
+	 * @return instance of {@link OTPWrappedKeyStore}
+	 */
+	public static OTPWrappedKeyStore createInstance( final OTPWrappedKeySource source, final OTPKeyWrapper wrapper,
+			final int maxKeys, final long expireAfter, final TimeUnit unit ) {
+		if( source == null || wrapper == null )
+			throw new IllegalArgumentException( "source and wrapper are required" );
+		return new OTPWrappedKeyStore( source, wrapper, new OTPBoundedCache<>( maxKeys, expireAfter, unit, ( userID, key ) -> key.wipe() ) );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 *
+	 * @param source		the {@link OTPWrappedKeySource} of wrapped credentials
+	 * @param wrapper		the {@link OTPKeyWrapper} holding the master key
+	 * @param unwrapped		the {@link OTPBoundedCache} of unwrapped keys
+	 */
+	private OTPWrappedKeyStore( final OTPWrappedKeySource source, final OTPKeyWrapper wrapper, final OTPBoundedCache<String, Unwrapped> unwrapped ) {
+		this.source = source;
+		this.wrapper = wrapper;
+		this.unwrapped = unwrapped;
+	}
+
+	/**
+	 * Looks up the credentials of a user, unwrapping their key unless it is cached
+	 *
+	 * @param userID	the String for the User's ID
+	 *
+	 * @return			the {@link OTPUserCredentialProvider} for the user, or null if the user is unknown
+	 *
+	 * @throws OTPGenericException when the source can not be read or the key can not be unwrapped
+	 */
+	@Override
+	public OTPUserCredentialProvider getCredential( final String userID ) throws OTPGenericException {
+		final OTPWrappedCredential credential = source.getWrappedCredential( userID );
+		if( credential == null )
+		{
+			unwrapped.invalidate( userID );
+			return null;
+		}
+		byte[] rawKey = null;
+		final Unwrapped cached = unwrapped.get( userID );
+		if( cached != null )
+			rawKey = cached.copy( credential.wrappedKey() );
+		if( rawKey == null )
+		{
+			final Unwrapped fresh = new Unwrapped( credential.wrappedKey(), wrapper.unwrap( credential.wrappedKey(), userID ) );
+			rawKey = fresh.copy( credential.wrappedKey() );
+			unwrapped.put( userID, fresh );
+		}
+		try {
+			return OTPUserCredentialProvider.createRawKeyUserObject( rawKey, userID, credential.getCompany(), credential.getAllowedSteps(),
+					credential.getAlgorithm(), credential.getDigits(), credential.getPeriod(), credential.isCounterBased() );
+		} finally {
+			Arrays.fill( rawKey, (byte) 0 );
+		}
+	}
+
+	/**
+	 * Wipes a credential returned by {@link #getCredential(String)}, which
+	 * holds its own copy of the key
+	 *
+	 * @param credential	the {@link OTPUserCredentialProvider} no longer needed
+	 */
+	@Override
+	public void release( final OTPUserCredentialProvider credential ) {
+		credential.wipe();
+	}
+
+	/**
+	 * Drops and overwrites the cached key of a user, to be called when their key changes
+	 *
+	 * @param userID	the String for the User's ID
+	 */
+	public void invalidate( final String userID ) {
+		unwrapped.invalidate( userID );
+	}
+
+	/**
+	 * Drops and overwrites every cached key
+	 */
+	public void invalidateAll() {
+		unwrapped.invalidateAll();
+	}
+
+	/**
+	 * Drops and overwrites every expired key, allowing callers to clear
+	 * keys of users that are no longer being looked up
+	 */
+	public void cleanUp() {
+		unwrapped.cleanUp();
+	}
+
+	/**
+	 * Getter for the number of lookups that used a cached key
+	 *
+	 * @return long of the hit count
+	 */
+	public long getCacheHitCount() {
+		return unwrapped.getHitCount();
+	}
+
+	/**
+	 * Getter for the number of lookups that had to unwrap a key
+	 *
+	 * @return long of the miss count
+	 */
+	public long getCacheMissCount() {
+		return unwrapped.getMissCount();
+	}
+
+	/**
+	 * Gets the number of cached keys
+	 *
+	 * @return int of the cache size
+	 */
+	public int getCacheSize() {
+		return unwrapped.size();
+	}
+
+	/**
+	 * Unwrapped holds an unwrapped key with the wrapped key it came from.
+	 * Copying and wiping are synchronized so a key being copied out is never
+	 * overwritten part way through
+	 */
+	private static final class Unwrapped {
+
+		private final byte[] wrappedKey;
+		private byte[] rawKey;
+
+		Unwrapped( final byte[] wrappedKey, final byte[] rawKey ) {
+			this.wrappedKey = wrappedKey;
+			this.rawKey = rawKey;
+		}
+
+		/**
+		 * Copies the key when it is still held and was unwrapped from the given wrapped key
+		 *
+		 * @return byte[] copy of the raw key or null
+		 */
+		synchronized byte[] copy( final byte[] wrapped ) {
+			return rawKey != null && Arrays.equals( wrappedKey, wrapped ) ? rawKey.clone() : null;
+		}
+
+		synchronized void wipe() {
+			if( rawKey != null )
+				Arrays.fill( rawKey, (byte) 0 );
+			rawKey = null;
+		}
+	}
+}
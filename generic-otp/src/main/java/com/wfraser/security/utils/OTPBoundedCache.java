@@ -0,0 +1,358 @@
+package com.wfraser.security.utils;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * OTPBoundedCache is a size and time bounded cache with
+ * least recently used eviction
+ *
+ * The cache is split into independently locked segments, each an access ordered
+ * {@link LinkedHashMap}, so lookups for different keys rarely contend. Entries
+ * expire a fixed time after they were written and are removed lazily when
+ * next touched. An optional listener is told about every entry leaving the
+ * cache, which allows sensitive values to be wiped.
+ *
+ * Hit, miss, eviction and expiry counters are kept in {@link LongAdder}s.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ * @param <K>	the type of the cache keys
+ * @param <V>	the type of the cached values
+ */
+public final class OTPBoundedCache<K, V> {
+
+	private static final int _MAX_SEGMENTS = 16;
+
+	private final Segment<K, V>[] segments;
+	private final int segmentMask;
+	private final long expireAfterNanos;
+	private final BiConsumer<K, V> removalListener;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+
+	/**
+	 * Class Constructor
+	 *
+	 * @param maximumSize		the int maximum number of entries held
+	 * @param expireAfterWrite	the long time an entry is valid for, 0 or less for no expiry
+	 * @param unit				the {@link TimeUnit} of expireAfterWrite
+	 */
+	public OTPBoundedCache( final int maximumSize, final long expireAfterWrite, final TimeUnit unit ) {
+		this( maximumSize, expireAfterWrite, unit, null );
+	}
+
+	/**
+	 * Class Constructor
+	 *
+	 * @param maximumSize		the int maximum number of entries held
+	 * @param expireAfterWrite	the long time an entry is valid for, 0 or less for no expiry
+	 * @param unit				the {@link TimeUnit} of expireAfterWrite
+	 * @param removalListener	the {@link BiConsumer} told of every entry evicted, expired or invalidated, may be null
+	 */
+	@SuppressWarnings( "unchecked" )
+	public OTPBoundedCache( final int maximumSize, final long expireAfterWrite, final TimeUnit unit, final BiConsumer<K, V> removalListener ) {
+		if( maximumSize < 1 )
+			throw new IllegalArgumentException( "maximumSize must be positive" );
+		int segmentCount = Integer.highestOneBit( Math.min( _MAX_SEGMENTS, Math.max( 1, maximumSize / 64 ) ) );
+		this.segments = new Segment[segmentCount];
+		this.segmentMask = segmentCount - 1;
+		final int perSegment = ( maximumSize + segmentCount - 1 ) / segmentCount;
+		for( int i = 0; i < segmentCount; i++ )
+		{
+			segments[i] = new Segment<>( perSegment );
+		}
+		this.expireAfterNanos = expireAfterWrite > 0 ? unit.toNanos( expireAfterWrite ) : 0;
+		this.removalListener = removalListener;
+	}
+
+	/**
+	 * Gets a cached value, marking it as recently used
+	 *
+	 * @param key	the key to look up
+	 *
+	 * @return	the cached value or null if absent or expired
+	 */
+	public V get( final K key ) {
+		final Segment<K, V> segment = segmentFor( key );
+		V expired = null;
+		V value = null;
+		synchronized( segment ) {
+			final Entry<V> entry = segment.get( key );
+			if( entry != null )
+			{
+				if( isExpired( entry ) )
+				{
+					segment.remove( key );
+					expired = entry.value;
+				} else {
+					value = entry.value;
+				}
+			}
+		}
+		if( expired != null )
+		{
+			expirations.increment();
+			notifyRemoval( key, expired );
+		}
+		if( value != null )
+			hits.increment();
+		else
+			misses.increment();
+		return value;
+	}
+
+	/**
+	 * Adds a value unless a live value is already cached for the key
+	 *
+	 * @param key	the key to store against
+	 * @param value	the value to store
+	 *
+	 * @return	the value now held by the cache, either the existing or the given value
+	 */
+	public V putIfAbsent( final K key, final V value ) {
+		final Segment<K, V> segment = segmentFor( key );
+		V replaced = null;
+		V result;
+		Map.Entry<K, V> evicted = null;
+		synchronized( segment ) {
+			final Entry<V> entry = segment.get( key );
+			if( entry != null && !isExpired( entry ) )
+			{
+				result = entry.value;
+			} else {
+				if( entry != null )
+					replaced = entry.value;
+				segment.put( key, new Entry<>( value, System.nanoTime() ) );
+				evicted = segment.takeEvicted();
+				result = value;
+			}
+		}
+		if( replaced != null )
+		{
+			expirations.increment();
+			notifyRemoval( key, replaced );
+		}
+		notifyEviction( evicted );
+		return result;
+	}
+
+	/**
+	 * Adds or replaces a cached value
+	 *
+	 * @param key	the key to store against
+	 * @param value	the value to store
+	 */
+	public void put( final K key, final V value ) {
+		final Segment<K, V> segment = segmentFor( key );
+		final Entry<V> previous;
+		final Map.Entry<K, V> evicted;
+		synchronized( segment ) {
+			previous = segment.put( key, new Entry<>( value, System.nanoTime() ) );
+			evicted = segment.takeEvicted();
+		}
+		if( previous != null && previous.value != value )
+			notifyRemoval( key, previous.value );
+		notifyEviction( evicted );
+	}
+
+	/**
+	 * Removes a cached value
+	 *
+	 * @param key	the key to remove
+	 */
+	public void invalidate( final K key ) {
+		final Segment<K, V> segment = segmentFor( key );
+		final Entry<V> previous;
+		synchronized( segment ) {
+			previous = segment.remove( key );
+		}
+		if( previous != null )
+			notifyRemoval( key, previous.value );
+	}
+
+	/**
+	 * Removes all cached values
+	 */
+	public void invalidateAll() {
+		for( Segment<K, V> segment : segments )
+		{
+			final Map<K, Entry<V>> removed;
+			synchronized( segment ) {
+				removed = new LinkedHashMap<>( segment );
+				segment.clear();
+			}
+			for( Map.Entry<K, Entry<V>> entry : removed.entrySet() )
+			{
+				notifyRemoval( entry.getKey(), entry.getValue().value );
+			}
+		}
+	}
+
+	/**
+	 * Removes every expired entry, allowing callers to reclaim memory
+	 * from entries that are no longer being looked up
+	 */
+	public void cleanUp() {
+		for( Segment<K, V> segment : segments )
+		{
+			final Map<K, V> removed = new LinkedHashMap<>();
+			synchronized( segment ) {
+				final Iterator<Map.Entry<K, Entry<V>>> it = segment.entrySet().iterator();
+				while( it.hasNext() )
+				{
+					final Map.Entry<K, Entry<V>> entry = it.next();
+					if( isExpired( entry.getValue() ) )
+					{
+						removed.put( entry.getKey(), entry.getValue().value );
+						it.remove();
+					}
+				}
+			}
+			for( Map.Entry<K, V> entry : removed.entrySet() )
+			{
+				expirations.increment();
+				notifyRemoval( entry.getKey(), entry.getValue() );
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of cached entries, including any not yet removed expired entries
+	 *
+	 * @return int of the cache size
+	 */
+	public int size() {
+		int size = 0;
+		for( Segment<K, V> segment : segments )
+		{
+			synchronized( segment ) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Getter for the number of lookups that found a live value
+	 *
+	 * @return long of the hit count
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Getter for the number of lookups that did not find a live value
+	 *
+	 * @return long of the miss count
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Getter for the number of entries removed to respect the size bound
+	 *
+	 * @return long of the eviction count
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Getter for the number of entries removed because they expired
+	 *
+	 * @return long of the expiry count
+	 */
+	public long getExpiredCount() {
+		return expirations.sum();
+	}
+
+	private Segment<K, V> segmentFor( final Object key ) {
+		final int h = key.hashCode();
+		return segments[( h ^ ( h >>> 16 ) ) & segmentMask];
+	}
+
+	private boolean isExpired( final Entry<V> entry ) {
+		return expireAfterNanos > 0 && System.nanoTime() - entry.written > expireAfterNanos;
+	}
+
+	private void notifyRemoval( final K key, final V value ) {
+		if( removalListener != null )
+			removalListener.accept( key, value );
+	}
+
+	private void notifyEviction( final Map.Entry<K, V> evicted ) {
+		if( evicted != null )
+		{
+			evictions.increment();
+			notifyRemoval( evicted.getKey(), evicted.getValue() );
+		}
+	}
+
+	/**
+	 * Entry holds a cached value with the time it was written
+	 */
+	private static final class Entry<V> {
+
+		final V value;
+		final long written;
+
+		Entry( final V value, final long written ) {
+			this.value = value;
+			this.written = written;
+		}
+	}
+
+	/**
+	 * Segment is an access ordered {@link LinkedHashMap} evicting its eldest
+	 * entry once over capacity. The evicted entry is taken while the segment
+	 * lock is held and handed to the removal listener after it is released
+	 */
+	private static final class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+		private transient Map.Entry<K, V> evicted;
+
+		Segment( final int capacity ) {
+			super( 16, 0.75f, true );
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry<K, Entry<V>> eldest ) {
+			if( size() > capacity )
+			{
+				evicted = new AbstractMap.SimpleImmutableEntry<>( eldest.getKey(), eldest.getValue().value );
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Takes the entry evicted by the last write, must be called 
+		 * while holding the segment lock
+		 *
+		 * @return the evicted entry or null
+		 */
+		Map.Entry<K, V> takeEvicted() {
+			final Map.Entry<K, V> entry = evicted;
+			evicted = null;
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package com.wfraser.security.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+
+/**
+ * OTPKeyGenerator generates random secret keys without any global lock
+ * 
+ * Keys are drawn from a fixed set of striped {@link SecureRandom} instances,
+ * created and seeded once, with each thread mapped to a stripe. Threads 
+ * enrolling users in parallel therefore neither share one generator nor pay
+ * for seeding a new one per key. The stripes default to DRBG, as the
+ * platform default on Linux, NativePRNG, reads through one global lock
+ * whichever instance is used. Bulk methods fill a caller supplied buffer
+ * or stream with many keys in one call.
+ * 
+ * Instances are thread safe.
+ * 
+ * 
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPKeyGenerator {
+
+	/*
+	 *	Key lengths in bytes, RFC 4226 requires at least 128 bits and recommends 160 bits.
+	 *	A key longer than the largest HMAC block, that of SHA512, is hashed before use
+	 */
+	public static final int _DEFAULT_KEY_LENGTH = 20;
+	public static final int _MIN_KEY_LENGTH = 16;
+	public static final int _MAX_KEY_LENGTH = 128;
+
+	private static final int _MAX_STRIPES = 64;
+	private static final int _CHUNK_LENGTH = 4096;
+	private static final String _DEFAULT_ALGORITHM = "DRBG";
+
+	private final SecureRandom[] stripes;
+	private final int mask;
+	private final int keyLength;
+
+	/**
+	 * Holder for the lazily created default generator
+	 */
+	private static final class DefaultHolder {
+		static final OTPKeyGenerator _INSTANCE = new OTPKeyGenerator( _DEFAULT_KEY_LENGTH, null );
+	}
+
+	/**
+	 * Gets the shared generator of {@value #_DEFAULT_KEY_LENGTH} byte keys
+	 * 
+	 * @return the default {@link OTPKeyGenerator}
+	 */
+	public static OTPKeyGenerator getDefault() {
+		return DefaultHolder._INSTANCE;
+	}
+
+	/**
+	 * Creates a generator of keys of the given length using DRBG, or the
+	 * platform's default {@link SecureRandom} algorithm where DRBG is not available
+	 * 
+	 * @param keyLength		the int key length in bytes, between {@value #_MIN_KEY_LENGTH} and {@value #_MAX_KEY_LENGTH}
+	 * 
+	 * @return instance of {@link OTPKeyGenerator}
+	 * 
+	 * @throws OTPGenericException when the key length is not supported
+	 */
+	public static OTPKeyGenerator createInstance( final int keyLength ) throws OTPGenericException {
+		return createInstance( keyLength, null );
+	}
+
+	/**
+	 * Creates a generator of keys of the given length using the given
+	 * {@link SecureRandom} algorithm
+	 * 
+	 * @param keyLength		the int key length in bytes, between {@value #_MIN_KEY_LENGTH} and {@value #_MAX_KEY_LENGTH}
+	 * @param algorithm		the String {@link SecureRandom} algorithm such as SHA1PRNG, null for DRBG
+	 * 
+	 * @return instance of {@link OTPKeyGenerator}
+	 * 
+	 * @throws OTPGenericException when the key length is not supported or the algorithm is not available
+	 */
+	public static OTPKeyGenerator createInstance( final int keyLength, final String algorithm ) throws OTPGenericException {
+		if( keyLength < _MIN_KEY_LENGTH || keyLength > _MAX_KEY_LENGTH )
+			throw new OTPGenericException( OTPGenericException._ERROR_GENERATING_KEY );
+		try {
+			return new OTPKeyGenerator( keyLength, algorithm );
+		} catch ( IllegalArgumentException e ) {
+			throw new OTPGenericException( OTPGenericException._ERROR_GENERATING_KEY, e );
+		}
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 * 
+	 * @param keyLength		the int key length in bytes
+	 * @param algorithm		the String {@link SecureRandom} algorithm, null for DRBG
+	 */
+	private OTPKeyGenerator( final int keyLength, final String algorithm ) {
+		final int count = Math.min( _MAX_STRIPES, Integer.highestOneBit( Math.max( 1, Runtime.getRuntime().availableProcessors() ) * 2 - 1 ) );
+		this.stripes = new SecureRandom[count];
+		this.mask = count - 1;
+		this.keyLength = keyLength;
+		for( int i = 0; i < count; i++ )
+		{
+			try {
+				stripes[i] = algorithm == null ? newDefault() : SecureRandom.getInstance( algorithm );
+			} catch ( NoSuchAlgorithmException e ) {
+				throw new IllegalArgumentException( e );
+			}
+		}
+	}
+
+	/**
+	 * Getter for the key length
+	 * 
+	 * @return the int key length in bytes
+	 */
+	public int getKeyLength() {
+		return keyLength;
+	}
+
+	/**
+	 * Generates a new random secret key
+	 * 
+	 * @return the String representation of an unpadded Base32 SecretKey
+	 */
+	public String generateSecretKey() {
+		final byte[] bytes = generateKeyBytes();
+		try {
+			return OTPUtils.encodeBase32( bytes );
+		} finally {
+			Arrays.fill( bytes, (byte) 0 );
+		}
+	}
+
+	/**
+	 * Generates a new random secret key as raw bytes
+	 * 
+	 * @return the byte[] of the raw key
+	 */
+	public byte[] generateKeyBytes() {
+		final byte[] bytes = new byte[keyLength];
+		stripe().nextBytes( bytes );
+		return bytes;
+	}
+
+	/**
+	 * Fills a caller supplied buffer with a number of consecutive raw keys
+	 * 
+	 * @param buffer	the byte[] to fill
+	 * @param offset	the int offset of the first key in the buffer
+	 * @param count		the int number of keys to generate
+	 * 
+	 * @throws IndexOutOfBoundsException when the keys do not fit in the buffer
+	 */
+	public void generateKeys( final byte[] buffer, final int offset, final int count ) {
+		final int length = Math.multiplyExact( count, keyLength );
+		Objects.checkFromIndexSize( offset, length, buffer.length );
+		final byte[] chunk = new byte[Math.min( length, Math.max( keyLength, _CHUNK_LENGTH - _CHUNK_LENGTH % keyLength ) )];
+		final SecureRandom random = stripe();
+		int written = 0;
+		while( written < length )
+		{
+			final int size = Math.min( chunk.length, length - written );
+			random.nextBytes( chunk );
+			System.arraycopy( chunk, 0, buffer, offset + written, size );
+			written += size;
+		}
+		Arrays.fill( chunk, (byte) 0 );
+	}
+
+	/**
+	 * Writes a number of consecutive raw keys, each {@link #getKeyLength()} bytes, to a stream. 
+	 * The stream is not closed
+	 * 
+	 * @param count			the int number of keys to generate
+	 * @param outputStream	the {@link OutputStream} to write to
+	 * 
+	 * @throws IOException when the stream can not be written
+	 */
+	public void generateKeys( final int count, final OutputStream outputStream ) throws IOException {
+		final int perChunk = Math.max( 1, _CHUNK_LENGTH / keyLength );
+		final byte[] chunk = new byte[perChunk * keyLength];
+		try {
+			int remaining = count;
+			while( remaining > 0 )
+			{
+				final int keys = Math.min( perChunk, remaining );
+				generateKeys( chunk, 0, keys );
+				outputStream.write( chunk, 0, keys * keyLength );
+				remaining -= keys;
+			}
+		} finally {
+			Arrays.fill( chunk, (byte) 0 );
+		}
+	}
+
+	/**
+	 * Generates a number of Base32 secret keys, handing each to the consumer
+	 * 
+	 * @param count		the int number of keys to generate
+	 * @param consumer	the {@link Consumer} receiving each Base32 key
+	 */
+	public void generateSecretKeys( final int count, final Consumer<String> consumer ) {
+		final byte[] bytes = new byte[keyLength];
+		final SecureRandom random = stripe();
+		try {
+			for( int i = 0; i < count; i++ )
+			{
+				random.nextBytes( bytes );
+				consumer.accept( OTPUtils.encodeBase32( bytes ) );
+			}
+		} finally {
+			Arrays.fill( bytes, (byte) 0 );
+		}
+	}
+
+	/**
+	 * Creates a DRBG stripe, falling back to the platform default
+	 * 
+	 * @return a new {@link SecureRandom}
+	 */
+	private static SecureRandom newDefault() {
+		try {
+			return SecureRandom.getInstance( _DEFAULT_ALGORITHM );
+		} catch ( NoSuchAlgorithmException e ) {
+			return new SecureRandom();
+		}
+	}
+
+	/**
+	 * Gets the {@link SecureRandom} stripe of the calling thread
+	 * 
+	 * @return the {@link SecureRandom} to use
+	 */
+	private SecureRandom stripe() {
+		final long id = Thread.currentThread().getId();
+		return stripes[(int) ( id ^ ( id >>> 16 ) ) & mask];
+	}
+}
@@ -0,0 +1,145 @@
+package com.wfraser.security.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.otp.OTPUserCredentialProvider;
+import com.wfraser.security.otp.OTPWrappedCredential;
+
+/**
+ * OTPKeyWrapper encrypts secret keys at rest under a local AES master key
+ *
+ * Keys are sealed with AES-GCM using a random 96 bit nonce, with the user's ID
+ * as additional authenticated data so a wrapped key only unwraps for the user
+ * it was wrapped for. A wrapped key is a format byte, the nonce, then the
+ * ciphertext and 128 bit tag, 49 bytes for a 20 byte key.
+ *
+ * Instances are thread safe.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+public final class OTPKeyWrapper {
+
+	private static final String _CIPHER = "AES/GCM/NoPadding";
+	private static final byte _FORMAT = 1;
+	private static final int _NONCE_LENGTH = 12;
+	private static final int _TAG_BITS = 128;
+	private static final int _OVERHEAD = 1 + _NONCE_LENGTH + _TAG_BITS / 8;
+
+	private final SecretKeySpec masterKey;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Creates a wrapper for the given master key
+	 *
+	 * @param masterKey		the byte[] of a 16, 24 or 32 byte AES key, copied by the wrapper
+	 *
+	 * @return instance of {@link OTPKeyWrapper}
+	 *
+	 * @throws OTPGenericException when the master key is not a valid AES key
+	 */
+	public static OTPKeyWrapper createInstance( final byte[] masterKey ) throws OTPGenericException {
+		if( masterKey == null || ( masterKey.length != 16 && masterKey.length != 24 && masterKey.length != 32 ) )
+			throw new OTPGenericException( OTPGenericException._INVALID_MASTER_KEY );
+		return new OTPKeyWrapper( new SecretKeySpec( masterKey, "AES" ) );
+	}
+
+	/**
+	 * Private constructor to prevent instantiation
+	 *
+	 * @param masterKey		the {@link SecretKeySpec} of the master key
+	 */
+	private OTPKeyWrapper( final SecretKeySpec masterKey ) {
+		this.masterKey = masterKey;
+	}
+
+	/**
+	 * Wraps the secret key of a user's credentials, keeping their code parameters
+	 *
+	 * @param credential	the {@link OTPUserCredentialProvider} holding the raw key
+	 *
+	 * @return {@link OTPWrappedCredential} safe to store
+	 *
+	 * @throws OTPGenericException when the key can not be wrapped
+	 */
+	public OTPWrappedCredential wrap( final OTPUserCredentialProvider credential ) throws OTPGenericException {
+		final byte[] rawKey = credential.getSecretByteArray();
+		try {
+			return OTPWrappedCredential.createInstance( wrap( rawKey, credential.getUserID() ), credential.getUserID(), credential.getCompany(),
+					credential.getAllowedSteps(), credential.getAlgorithm(), credential.getDigits(), credential.getPeriod(), credential.isCounterBased() );
+		} finally {
+			Arrays.fill( rawKey, (byte) 0 );
+		}
+	}
+
+	/**
+	 * Wraps a raw secret key
+	 *
+	 * @param rawKey	the byte[] of the raw secret key
+	 * @param userID	the String for the User's ID the key belongs to
+	 *
+	 * @return byte[] of the wrapped key
+	 *
+	 * @throws OTPGenericException when the key can not be wrapped
+	 */
+	public byte[] wrap( final byte[] rawKey, final String userID ) throws OTPGenericException {
+		if( rawKey == null || rawKey.length == 0 || userID == null )
+			throw new OTPGenericException( OTPGenericException._USER_AND_KEY_BLANK );
+		final byte[] wrapped = new byte[_OVERHEAD + rawKey.length];
+		wrapped[0] = _FORMAT;
+		final byte[] nonce = new byte[_NONCE_LENGTH];
+		random.nextBytes( nonce );
+		System.arraycopy( nonce, 0, wrapped, 1, _NONCE_LENGTH );
+		try {
+			final Cipher cipher = cipher( Cipher.ENCRYPT_MODE, nonce, userID );
+			cipher.doFinal( rawKey, 0, rawKey.length, wrapped, 1 + _NONCE_LENGTH );
+			return wrapped;
+		} catch( GeneralSecurityException e ) {
+			throw new OTPGenericException( OTPGenericException._ERROR_WRAPPING_KEY, e );
+		}
+	}
+
+	/**
+	 * Unwraps a secret key, checking it was wrapped under this master key for the given user
+	 *
+	 * @param wrapped	the byte[] of the wrapped key
+	 * @param userID	the String for the User's ID the key belongs to
+	 *
+	 * @return byte[] of the raw secret key, which the caller should wipe when done
+	 *
+	 * @throws OTPGenericException when the key was altered, wrapped for another user or under another master key
+	 */
+	public byte[] unwrap( final byte[] wrapped, final String userID ) throws OTPGenericException {
+		if( wrapped == null || wrapped.length <= _OVERHEAD || wrapped[0] != _FORMAT || userID == null )
+			throw new OTPGenericException( OTPGenericException._ERROR_WRAPPING_KEY );
+		try {
+			final Cipher cipher = cipher( Cipher.DECRYPT_MODE, Arrays.copyOfRange( wrapped, 1, 1 + _NONCE_LENGTH ), userID );
+			return cipher.doFinal( wrapped, 1 + _NONCE_LENGTH, wrapped.length - 1 - _NONCE_LENGTH );
+		} catch( GeneralSecurityException e ) {
+			throw new OTPGenericException( OTPGenericException._ERROR_WRAPPING_KEY, e );
+		}
+	}
+
+	/**
+	 * Creates a cipher bound to the nonce and the user's ID
+	 *
+	 * @throws GeneralSecurityException
+	 */
+	private Cipher cipher( final int mode, final byte[] nonce, final String userID ) throws GeneralSecurityException {
+		final Cipher cipher = Cipher.getInstance( _CIPHER );
+		cipher.init( mode, masterKey, new GCMParameterSpec( _TAG_BITS, nonce ) );
+		cipher.updateAAD( userID.getBytes( StandardCharsets.UTF_8 ) );
+		return cipher;
+	}
+}
@@ -7,9 +7,11 @@ package com.wfraser.security.utils;
  * <ul>
  * <li> Generating a new random secret key 
  * <li> Generating a Google Authenticator Bar Code
- * <li> Generating a Google Authenticator QR Code
  * </ul>
  * 
+ * QR Codes are generated by OTPQRUtils in the generic-otp-enrollment 
+ * module, keeping ZXing and AWT out of this one
+ * 
  * 
  * @author 	William Fraser
  * @version	%I%, %G%
@@ -17,45 +19,72 @@ package com.wfraser.security.utils;
  *
  */
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.security.SecureRandom;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.codec.binary.Base32;
 
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.MultiFormatWriter;
-import com.google.zxing.WriterException;
-import com.google.zxing.client.j2se.MatrixToImageWriter;
-import com.google.zxing.common.BitMatrix;
 import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.otp.OTPAlgorithm;
 import com.wfraser.security.otp.OTPUserCredentialProvider;
 
 public class OTPUtils {
 
-	private final static Object locker = new Object();
+	private final static Map<Integer, OTPKeyGenerator> keyGenerators = new ConcurrentHashMap<>();
+	private final static Base32 _BASE32 = new Base32();
 
 	/**
 	 * Generates a new random Secret Key using {@link SecureRandom}
 	 * The random key is in Base32 presented as a String
 	 * 
+	 * Keys are drawn from the shared {@link OTPKeyGenerator}, which reuses 
+	 * striped {@link SecureRandom} instances and takes no global lock
+	 * 
 	 * @return 	the String representation of a {@link Base32} SecretKey
 	 */
 	public static String generateSecretKey() {
-		synchronized( locker ) {
-			SecureRandom random = new SecureRandom();
-			byte[] bytes = new byte[20];
-			random.nextBytes( bytes );
-			Base32 base32 = new Base32();
-			return base32.encodeToString( bytes );
+		return OTPKeyGenerator.getDefault().generateSecretKey();
+	}
+
+	/**
+	 * Generates a new random Secret Key with the length recommended 
+	 * for the given algorithm, the length of its hash output
+	 * 
+	 * @param algorithm		the {@link OTPAlgorithm} the key will be used with
+	 * 
+	 * @return 	the String representation of a {@link Base32} SecretKey
+	 */
+	public static String generateSecretKey( OTPAlgorithm algorithm ) {
+		if( algorithm == null || algorithm.getKeyLength() == OTPKeyGenerator._DEFAULT_KEY_LENGTH )
+			return generateSecretKey();
+		return keyGenerators.computeIfAbsent( algorithm.getKeyLength(), OTPUtils::newKeyGenerator ).generateSecretKey();
+	}
+
+	/**
+	 * Creates the shared generator for a key length
+	 * 
+	 * @param keyLength	the Integer key length in bytes
+	 * 
+	 * @return a new {@link OTPKeyGenerator}
+	 */
+	private static OTPKeyGenerator newKeyGenerator( Integer keyLength ) {
+		try {
+			return OTPKeyGenerator.createInstance( keyLength );
+		} catch ( OTPGenericException e ) {
+			throw new IllegalArgumentException( e );
 		}
 	}
 
 	/**
 	 * Generates a url representation of a Google Authenticator 
-	 * otpauth
+	 * otpauth. No lock is held so URLs can be built in parallel
+	 * 
+	 * The algorithm, digits and period parameters are only added when 
+	 * they differ from the Google Authenticator defaults. A counter based
+	 * user gets a hotp URL starting from counter 0
 	 * 
 	 * @param user		the {@link OTPUserCredentialProvider} representing the authenticating user
 	 * 
@@ -63,45 +92,53 @@ public class OTPUtils {
 	 * @throws OTPGenericException 
 	 */
 	public static String getAuthenticatorURL(OTPUserCredentialProvider user) throws OTPGenericException {
-		synchronized( locker ) {
-			try {
-				String totpuser = URLEncoder.encode( user.getCompany() + ":" + user.getUserID(), "UTF-8" ).replace( "+", "%20" );
-				String totpKey =  URLEncoder.encode( user.getSecretKey(), "UTF-8" ).replace( "+", "%20" );
-				String totpIssuer  = URLEncoder.encode( user.getCompany(), "UTF-8" ).replace( "+", "%20" );
-				return "otpauth://totp/" + totpuser + "?secret=" + totpKey + "&issuer=" + totpIssuer;
-			} catch ( UnsupportedEncodingException e ) {
-				throw new OTPGenericException( OTPGenericException._ERROR_GETTING_URL, e );
-			}
-		}
+		if( user == null )
+			throw new OTPGenericException( OTPGenericException._ERROR_GETTING_URL );
+		String totpuser = encode( user.getCompany() + ":" + user.getUserID() );
+		String totpKey =  encode( user.getSecretKey() );
+		String totpIssuer  = encode( user.getCompany() );
+		StringBuilder url = new StringBuilder( user.isCounterBased() ? "otpauth://hotp/" : "otpauth://totp/" ).append( totpuser )
+				.append( "?secret=" ).append( totpKey ).append( "&issuer=" ).append( totpIssuer );
+		if( user.isCounterBased() )
+			url.append( "&counter=0" );
+		if( user.getAlgorithm() != OTPUserCredentialProvider._DEFAULT_ALGORITHM )
+			url.append( "&algorithm=" ).append( user.getAlgorithm().getUrlName() );
+		if( user.getDigits() != OTPUserCredentialProvider._DEFAULT_DIGITS )
+			url.append( "&digits=" ).append( user.getDigits() );
+		if( !user.isCounterBased() && user.getPeriod() != OTPUserCredentialProvider._DEFAULT_PERIOD )
+			url.append( "&period=" ).append( user.getPeriod() );
+		return url.toString();
 	}
 
 	/**
-	 * Takes a Google Authenticator barcode @see#getGoogleAuthenticatorBarCode()
-	 * and generates a QR Code representation then feeds that representation to the chosen 
-	 * {@link OutputStream}. Finally closing the output stream. 
-	 * 
-	 * IMPORTANT the provided OutputStream is closed on completion!
+	 * Encodes a raw key in Base32 without the trailing '=' padding, 
+	 * which authenticator apps neither need nor expect in an otpauth URL.
+	 * The unpadded form still decodes to the same key
 	 * 
+	 * @param key		the byte[] of the raw key
 	 * 
-	 * @param barCodeData		the String of the Google Authenticator URL
-	 * @param filePath			the chosen {@link OutputStream} type to feed to
-	 * @param heightAndWidth	the chosen hight and width of the QRCode
-	 * @throws OTPGenericException 
+	 * @return the String representation of the key in {@link Base32}
 	 */
-	public static void getAuthenticatorQRCode( String url, OutputStream outputStream, int heightAndWidth ) throws OTPGenericException {
-		synchronized( locker ) {
-			try {
-				BitMatrix matrix = new MultiFormatWriter().encode( url, BarcodeFormat.QR_CODE,
-						heightAndWidth, heightAndWidth );
-				try {
-					MatrixToImageWriter.writeToStream( matrix, "png", outputStream );
-				} finally {
-					outputStream.close();
-				}
-			} catch ( IOException | WriterException pe ) {
-				throw new OTPGenericException( OTPGenericException._ERROR_GETTING_QRCODE, pe );
-			} 
+	public static String encodeBase32( byte[] key ) {
+		final String encoded = _BASE32.encodeToString( key );
+		int end = encoded.length();
+		while( end > 0 && encoded.charAt( end - 1 ) == '=' )
+		{
+			end--;
 		}
+		return encoded.substring( 0, end );
+	}
+
+	/**
+	 * URL encodes a value for use in an otpauth URL, 
+	 * encoding spaces as %20
+	 * 
+	 * @param value		the String to encode
+	 * 
+	 * @return the encoded String
+	 */
+	private static String encode( String value ) {
+		return URLEncoder.encode( value, StandardCharsets.UTF_8 ).replace( "+", "%20" );
 	}
 
 }
@@ -0,0 +1,21 @@
+/*
+ *	The generic-otp core, code generation and validation needing only
+ *	commons-codec. QR codes and bulk enrollment are in the
+ *	com.wfraser.security.enrollment module, so this one runs in a runtime
+ *	linked with java.base alone.
+ *
+ *	jdk.jfr is only read by OTPJfrMetrics, add it with --add-modules when
+ *	using that class from the module path. The Vector API hashing in
+ *	OTPVectorHmac is found by reflection, and OTPMultiBufferHmac adds the
+ *	read of jdk.incubator.vector itself when the module is in the boot layer,
+ *	so it is not named here and the module still compiles on JDK 11.
+ */
+module com.wfraser.security.otp {
+
+	requires org.apache.commons.codec;
+	requires static jdk.jfr;
+
+	exports com.wfraser.security.exceptions;
+	exports com.wfraser.security.otp;
+	exports com.wfraser.security.utils;
+}
@@ -0,0 +1,163 @@
+package com.wfraser.security.otp;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * OTPVectorHmac is the {@link OTPMultiBufferHmac} running the SHA-1 and
+ * SHA-256 compression functions of every lane at once with the JDK Vector API
+ *
+ * Each word of the schedule and each working variable is one vector of the
+ * preferred species, so a round is the same handful of instructions whether
+ * it hashes one lane or sixteen. The round loops are split by SHA-1 round
+ * function and hold no branches, letting C2 keep the working variables in
+ * vector registers.
+ *
+ * Built only by JDK 17 and later with the incubator module added, and
+ * loaded by {@link OTPMultiBufferHmac} through reflection.
+ *
+ *
+ * @author 	William Fraser
+ * @version	%I%, %G%
+ * @since 	1.2
+ *
+ */
+final class OTPVectorHmac extends OTPMultiBufferHmac {
+
+	private static final VectorSpecies<Integer> _SPECIES = IntVector.SPECIES_PREFERRED;
+
+	/**
+	 * Class Constructor, called by {@link OTPMultiBufferHmac#createInstance(OTPMidstateHmac)}
+	 *
+	 * @param sha256		the boolean for SHA-256 rather than SHA-1
+	 * @param stateLength	the int number of words in the hash state
+	 */
+	OTPVectorHmac( final boolean sha256, final int stateLength ) {
+		super( sha256, stateLength, _SPECIES.length() );
+	}
+
+	@Override
+	void compress() {
+		if( sha256 )
+		{
+			compressSHA256();
+		} else {
+			compressSHA1();
+		}
+	}
+
+	private void compressSHA1() {
+		final int[] w = this.w;
+		final int lanes = this.lanes;
+		for( int t = 16; t < 80; t++ )
+		{
+			IntVector.fromArray( _SPECIES, w, ( t - 3 ) * lanes )
+					.lanewise( VectorOperators.XOR, IntVector.fromArray( _SPECIES, w, ( t - 8 ) * lanes ) )
+					.lanewise( VectorOperators.XOR, IntVector.fromArray( _SPECIES, w, ( t - 14 ) * lanes ) )
+					.lanewise( VectorOperators.XOR, IntVector.fromArray( _SPECIES, w, ( t - 16 ) * lanes ) )
+					.lanewise( VectorOperators.ROL, 1 )
+					.intoArray( w, t * lanes );
+		}
+		IntVector a = IntVector.fromArray( _SPECIES, state, 0 );
+		IntVector b = IntVector.fromArray( _SPECIES, state, lanes );
+		IntVector c = IntVector.fromArray( _SPECIES, state, 2 * lanes );
+		IntVector d = IntVector.fromArray( _SPECIES, state, 3 * lanes );
+		IntVector e = IntVector.fromArray( _SPECIES, state, 4 * lanes );
+		for( int t = 0; t < 20; t++ )
+		{
+			final IntVector f = b.and( c ).or( d.lanewise( VectorOperators.AND_NOT, b ) );
+			final IntVector temp = a.lanewise( VectorOperators.ROL, 5 ).add( f ).add( e ).add( 0x5a827999 ).add( IntVector.fromArray( _SPECIES, w, t * lanes ) );
+			e = d;
+			d = c;
+			c = b.lanewise( VectorOperators.ROL, 30 );
+			b = a;
+			a = temp;
+		}
+		for( int t = 20; t < 40; t++ )
+		{
+			final IntVector f = b.lanewise( VectorOperators.XOR, c ).lanewise( VectorOperators.XOR, d );
+			final IntVector temp = a.lanewise( VectorOperators.ROL, 5 ).add( f ).add( e ).add( 0x6ed9eba1 ).add( IntVector.fromArray( _SPECIES, w, t * lanes ) );
+			e = d;
+			d = c;
+			c = b.lanewise( VectorOperators.ROL, 30 );
+			b = a;
+			a = temp;
+		}
+		for( int t = 40; t < 60; t++ )
+		{
+			final IntVector f = b.and( c ).or( b.and( d ) ).or( c.and( d ) );
+			final IntVector temp = a.lanewise( VectorOperators.ROL, 5 ).add( f ).add( e ).add( 0x8f1bbcdc ).add( IntVector.fromArray( _SPECIES, w, t * lanes ) );
+			e = d;
+			d = c;
+			c = b.lanewise( VectorOperators.ROL, 30 );
+			b = a;
+			a = temp;
+		}
+		for( int t = 60; t < 80; t++ )
+		{
+			final IntVector f = b.lanewise( VectorOperators.XOR, c ).lanewise( VectorOperators.XOR, d );
+			final IntVector temp = a.lanewise( VectorOperators.ROL, 5 ).add( f ).add( e ).add( 0xca62c1d6 ).add( IntVector.fromArray( _SPECIES, w, t * lanes ) );
+			e = d;
+			d = c;
+			c = b.lanewise( VectorOperators.ROL, 30 );
+			b = a;
+			a = temp;
+		}
+		a.add( IntVector.fromArray( _SPECIES, state, 0 ) ).intoArray( state, 0 );
+		b.add( IntVector.fromArray( _SPECIES, state, lanes ) ).intoArray( state, lanes );
+		c.add( IntVector.fromArray( _SPECIES, state, 2 * lanes ) ).intoArray( state, 2 * lanes );
+		d.add( IntVector.fromArray( _SPECIES, state, 3 * lanes ) ).intoArray( state, 3 * lanes );
+		e.add( IntVector.fromArray( _SPECIES, state, 4 * lanes ) ).intoArray( state, 4 * lanes );
+	}
+
+	private void compressSHA256() {
+		final int[] w = this.w;
+		final int lanes = this.lanes;
+		for( int t = 16; t < 64; t++ )
+		{
+			final IntVector x = IntVector.fromArray( _SPECIES, w, ( t - 15 ) * lanes );
+			final IntVector y = IntVector.fromArray( _SPECIES, w, ( t - 2 ) * lanes );
+			final IntVector s0 = x.lanewise( VectorOperators.ROR, 7 ).lanewise( VectorOperators.XOR, x.lanewise( VectorOperators.ROR, 18 ) )
+					.lanewise( VectorOperators.XOR, x.lanewise( VectorOperators.LSHR, 3 ) );
+			final IntVector s1 = y.lanewise( VectorOperators.ROR, 17 ).lanewise( VectorOperators.XOR, y.lanewise( VectorOperators.ROR, 19 ) )
+					.lanewise( VectorOperators.XOR, y.lanewise( VectorOperators.LSHR, 10 ) );
+			IntVector.fromArray( _SPECIES, w, ( t - 16 ) * lanes ).add( s0 ).add( IntVector.fromArray( _SPECIES, w, ( t - 7 ) * lanes ) ).add( s1 )
+					.intoArray( w, t * lanes );
+		}
+		IntVector a = IntVector.fromArray( _SPECIES, state, 0 );
+		IntVector b = IntVector.fromArray( _SPECIES, state, lanes );
+		IntVector c = IntVector.fromArray( _SPECIES, state, 2 * lanes );
+		IntVector d = IntVector.fromArray( _SPECIES, state, 3 * lanes );
+		IntVector e = IntVector.fromArray( _SPECIES, state, 4 * lanes );
+		IntVector f = IntVector.fromArray( _SPECIES, state, 5 * lanes );
+		IntVector g = IntVector.fromArray( _SPECIES, state, 6 * lanes );
+		IntVector h = IntVector.fromArray( _SPECIES, state, 7 * lanes );
+		for( int t = 0; t < 64; t++ )
+		{
+			final IntVector s1 = e.lanewise( VectorOperators.ROR, 6 ).lanewise( VectorOperators.XOR, e.lanewise( VectorOperators.ROR, 11 ) )
+					.lanewise( VectorOperators.XOR, e.lanewise( VectorOperators.ROR, 25 ) );
+			final IntVector ch = e.and( f ).lanewise( VectorOperators.XOR, g.lanewise( VectorOperators.AND_NOT, e ) );
+			final IntVector t1 = h.add( s1 ).add( ch ).add( OTPMidstateHmac._SHA256_K[t] ).add( IntVector.fromArray( _SPECIES, w, t * lanes ) );
+			final IntVector s0 = a.lanewise( VectorOperators.ROR, 2 ).lanewise( VectorOperators.XOR, a.lanewise( VectorOperators.ROR, 13 ) )
+					.lanewise( VectorOperators.XOR, a.lanewise( VectorOperators.ROR, 22 ) );
+			final IntVector maj = a.and( b ).lanewise( VectorOperators.XOR, a.and( c ) ).lanewise( VectorOperators.XOR, b.and( c ) );
+			h = g;
+			g = f;
+			f = e;
+			e = d.add( t1 );
+			d = c;
+			c = b;
+			b = a;
+			a = t1.add( s0 ).add( maj );
+		}
+		a.add( IntVector.fromArray( _SPECIES, state, 0 ) ).intoArray( state, 0 );
+		b.add( IntVector.fromArray( _SPECIES, state, lanes ) ).intoArray( state, lanes );
+		c.add( IntVector.fromArray( _SPECIES, state, 2 * lanes ) ).intoArray( state, 2 * lanes );
+		d.add( IntVector.fromArray( _SPECIES, state, 3 * lanes ) ).intoArray( state, 3 * lanes );
+		e.add( IntVector.fromArray( _SPECIES, state, 4 * lanes ) ).intoArray( state, 4 * lanes );
+		f.add( IntVector.fromArray( _SPECIES, state, 5 * lanes ) ).intoArray( state, 5 * lanes );
+		g.add( IntVector.fromArray( _SPECIES, state, 6 * lanes ) ).intoArray( state, 6 * lanes );
+		h.add( IntVector.fromArray( _SPECIES, state, 7 * lanes ) ).intoArray( state, 7 * lanes );
+	}
+}
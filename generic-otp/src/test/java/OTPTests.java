@@ -1,17 +1,62 @@
 import static org.junit.Assert.*;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import org.apache.commons.codec.binary.Base32;
 import org.junit.Test;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import com.wfraser.security.exceptions.OTPGenericException;
+import com.wfraser.security.otp.OTPAlgorithm;
+import com.wfraser.security.otp.OTPAsyncValidationEngine;
+import com.wfraser.security.otp.OTPBatchValidator;
+import com.wfraser.security.otp.OTPChallengeStore;
+import com.wfraser.security.otp.OTPCounterMetrics;
+import com.wfraser.security.otp.OTPCredentialTable;
+import com.wfraser.security.otp.OTPDriftTable;
 import com.wfraser.security.otp.OTPImplementation;
+import com.wfraser.security.otp.OTPJfrMetrics;
+import com.wfraser.security.otp.OTPManualClock;
+import com.wfraser.security.otp.OTPMemoryCounterStore;
+import com.wfraser.security.otp.OTPKeyStore;
+import com.wfraser.security.otp.OTPMappedKeyStore;
+import com.wfraser.security.otp.OTPOptions;
+import com.wfraser.security.otp.OTPReplayStore;
+import com.wfraser.security.otp.OTPStripedReplayStore;
+import com.wfraser.security.otp.OTPThrottle;
+import com.wfraser.security.otp.OTPUserCredentialProvider;
+import com.wfraser.security.otp.OTPValidationEngine;
+import com.wfraser.security.otp.OTPValidationResult;
+import com.wfraser.security.otp.OTPWrappedCredential;
+import com.wfraser.security.otp.OTPWrappedKeyStore;
+import com.wfraser.security.utils.OTPKeyGenerator;
+import com.wfraser.security.utils.OTPKeyWrapper;
 import com.wfraser.security.utils.OTPUtils;
 
 import test.entities.OTPUserImpl;
@@ -47,14 +92,11 @@ public class OTPTests {
 	{
 		OTPImplementation otp = null;
 		String input = "";
-		otp = OTPImplementation.createInstance(new OTPUserImpl(false, false).getProvider());
+		OTPManualClock clock = new OTPManualClock(System.currentTimeMillis());
+		otp = OTPImplementation.createInstance(new OTPUserImpl(false, false).getProvider(), OTPOptions.defaults().withClock(clock));
 		input = otp.getOTP();
 		System.out.println(input);
-		System.out.println("Please wait 30 seconds");
-		try {
-			TimeUnit.SECONDS.sleep(30);
-		} catch (InterruptedException e1) {
-		}
+		clock.advance(30, TimeUnit.SECONDS);
 		if(otp.validate(input))
 		{
 			System.out.println("they match");
@@ -68,14 +110,11 @@ public class OTPTests {
 		OTPImplementation otp = null;
 		String otpCode = "";
 		OTPUserImpl user = new OTPUserImpl(false, false);
-		otp = OTPImplementation.createInstance(user.getProvider());
+		OTPManualClock clock = new OTPManualClock(System.currentTimeMillis());
+		otp = OTPImplementation.createInstance(user.getProvider(), OTPOptions.defaults().withClock(clock));
 		otpCode = otp.getOTP();
 		System.out.println(otpCode);
-		System.out.println("Please wait " + ((user.getAllowedSteps()) * 30) + " Seconds");
-		try {
-			TimeUnit.SECONDS.sleep(user.getAllowedSteps() * 30);
-		} catch (InterruptedException e1) {
-		}
+		clock.advance(user.getAllowedSteps() * 30, TimeUnit.SECONDS);
 		if(!otp.validate(otpCode))
 		{
 			System.out.println("they dont match");
@@ -84,61 +123,801 @@ public class OTPTests {
 	}
 
 	@Test
-	public void testGoogleAuthURL() throws OTPGenericException
+	public void testCodeWindowCacheValidation() throws OTPGenericException
 	{
 		OTPUserImpl user = new OTPUserImpl(true, false);
-		System.out.println( OTPUtils.getAuthenticatorURL(user.getProvider()) );
-		assertTrue(true);
+		OTPManualClock clock = new OTPManualClock(System.currentTimeMillis());
+		OTPImplementation cached = OTPImplementation.createInstance(user.getProvider(), OTPOptions.defaults().withCodeWindowCache(true).withClock(clock));
+		OTPImplementation uncached = OTPImplementation.createInstance(user.getProvider(), OTPOptions.defaults().withClock(clock));
+		String input = uncached.getOTP();
+		assertEquals(input, cached.getOTP());
+		assertTrue(cached.validate(input));
+		assertTrue(cached.validate(input));
+		assertFalse(cached.validate("1234567"));
+		clock.advance(30, TimeUnit.SECONDS);
+		assertEquals(uncached.getOTP(), cached.getOTP());
+		assertTrue(cached.validate(input));
+		clock.advance(30, TimeUnit.SECONDS);
+		assertFalse(cached.validate(input));
+	}
+
+	@Test
+	public void testAlgorithmDigitsAndPeriod() throws OTPGenericException
+	{
+		OTPUserImpl user = new OTPUserImpl(true, false);
+		OTPUserCredentialProvider provider = OTPUserCredentialProvider.createAuthenticatorUserObject(user.getSecretKey(),
+				user.getUserID(), user.getCompany(), user.getAllowedSteps(), OTPAlgorithm.SHA256, 8, 60);
+		OTPImplementation otp = OTPImplementation.createInstance(provider);
+		String input = otp.getOTP();
+		assertEquals(8, input.length());
+		assertTrue(otp.validate(input));
+		assertTrue(OTPUtils.getAuthenticatorURL(provider).endsWith("&algorithm=SHA256&digits=8&period=60"));
+		assertFalse(OTPUtils.getAuthenticatorURL(user.getProvider()).contains("&algorithm="));
+		OTPUserCredentialProvider generated = OTPUserCredentialProvider.createNewAuthenticatorUserObject("USERS", 2, "COMPANYA", OTPAlgorithm.SHA256, 6, 30);
+		String url = OTPUtils.getAuthenticatorURL(generated);
+		assertFalse(url.contains("%3D"));
+		String secret = url.substring(url.indexOf("secret=") + 7, url.indexOf("&issuer="));
+		assertArrayEquals(generated.getSecretByteArray(), new Base32().decode(secret));
+		assertEquals(32, new Base32().decode(OTPUtils.generateSecretKey(OTPAlgorithm.SHA256)).length);
+		assertFalse(OTPUtils.generateSecretKey(OTPAlgorithm.SHA256).contains("="));
+	}
+
+	@Test
+	public void testRFC6238Vectors() throws OTPGenericException
+	{
+		Base32 base32 = new Base32();
+		long[] times = { 59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L };
+		String[][] expected = {
+				{ "94287082", "07081804", "14050471", "89005924", "69279037", "65353130" },
+				{ "46119246", "68084774", "67062674", "91819424", "90698825", "77737706" },
+				{ "90693936", "25091201", "99943326", "93441116", "38618901", "47863826" } };
+		String[] keys = { "12345678901234567890", "12345678901234567890123456789012",
+				"1234567890123456789012345678901234567890123456789012345678901234" };
+		OTPAlgorithm[] algorithms = { OTPAlgorithm.SHA1, OTPAlgorithm.SHA256, OTPAlgorithm.SHA512 };
+		OTPManualClock clock = new OTPManualClock(0);
+		for(int a = 0; a < algorithms.length * 2; a++)
+		{
+			OTPUserCredentialProvider provider = OTPUserCredentialProvider.createAuthenticatorUserObject(
+					base32.encodeToString(keys[a % 3].getBytes(StandardCharsets.US_ASCII)), "USERA", "COMPANYA", 1, algorithms[a % 3], 8, 30);
+			OTPImplementation otp = OTPImplementation.createInstance(provider, OTPOptions.defaults().withClock(clock).withBuiltInHmac(a >= 3));
+			for(int t = 0; t < times.length; t++)
+			{
+				clock.setTimeMillis(times[t] * 1000);
+				assertEquals(expected[a % 3][t], otp.getOTP());
+				assertTrue(otp.validate(expected[a % 3][t]));
+			}
+		}
+	}
+
+	@Test
+	public void testCodeParsing() throws OTPGenericException
+	{
+		String secret = new Base32().encodeToString("12345678901234567890".getBytes(StandardCharsets.US_ASCII));
+		OTPManualClock clock = new OTPManualClock(59000L);
+		OTPImplementation otp = OTPImplementation.createInstance(OTPUserCredentialProvider.createAuthenticatorUserObject(
+				secret, "USERA", "COMPANYA", 1, OTPAlgorithm.SHA1, 8, 30), OTPOptions.defaults().withClock(clock));
+		assertEquals("94287082", otp.getOTP());
+		assertTrue(otp.validate("94287082"));
+		assertTrue(otp.validate(94287082));
+		assertFalse(otp.validate(""));
+		assertFalse(otp.validate((String) null));
+		assertFalse(otp.validate("942870820"));
+		assertFalse(otp.validate("0094287082"));
+		assertFalse(otp.validate("9428708a"));
+		assertFalse(otp.validate(" 4287082"));
+		assertFalse(otp.validate("-4287082"));
+		assertFalse(otp.validate("+4287082"));
+		assertFalse(otp.validate("9428708" + (char) 0x0662));
+		assertFalse(otp.validate(-1));
+		assertFalse(otp.validate(Integer.MAX_VALUE));
+		OTPImplementation six = OTPImplementation.createInstance(OTPUserCredentialProvider.createAuthenticatorUserObject(
+				secret, "USERA", "COMPANYA", 1), OTPOptions.defaults().withClock(clock));
+		assertEquals("287082", six.getOTP());
+		assertTrue(six.validate("287082"));
+		assertFalse(six.validate("94287082"));
+		clock.setTimeMillis(1111111109000L);
+		assertEquals("081804", six.getOTP());
+		assertTrue(six.validate("081804"));
+	}
+
+	@Test
+	public void testBuiltInHmac() throws OTPGenericException
+	{
+		String secret = new Base32().encodeAsString("12345678901234567890".getBytes(StandardCharsets.US_ASCII));
+		String[] expected = { "755224", "287082", "359152", "969429", "338314", "254676", "287922", "162583", "399871", "520489" };
+		OTPImplementation hotp = OTPImplementation.createInstance(OTPUserCredentialProvider.createCounterUserObject(secret, "TOKENA", null, 1),
+				OTPOptions.defaults().withBuiltInHmac(true));
+		for(int counter = 0; counter < expected.length; counter++)
+		{
+			assertEquals(expected[counter], hotp.getOTP(counter));
+		}
+		Random random = new Random(42);
+		int[] keyLengths = { 1, 10, 20, 32, 63, 64, 65, 100, 200 };
+		for(OTPAlgorithm algorithm : OTPAlgorithm.values())
+		{
+			for(int keyLength : keyLengths)
+			{
+				byte[] key = new byte[keyLength];
+				random.nextBytes(key);
+				OTPUserCredentialProvider provider = OTPUserCredentialProvider.createRawKeyUserObject(key, "USERA", null, 1, algorithm, 8, 30);
+				OTPImplementation jce = OTPImplementation.createInstance(provider);
+				OTPImplementation builtIn = OTPImplementation.createInstance(provider, OTPOptions.defaults().withBuiltInHmac(true));
+				for(int i = 0; i < 200; i++)
+				{
+					long counter = i < 100 ? i : random.nextLong() >>> 1;
+					assertEquals(jce.getOTP(counter), builtIn.getOTP(counter));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testMultiBufferHmac() throws OTPGenericException
+	{
+		OTPManualClock clock = new OTPManualClock(1234567890000L);
+		long step = clock.currentTimeMillis() / 30000;
+		Random random = new Random(7);
+		int[] windows = { 1, 2, 3, 7, 8, 9, 17 };
+		List<OTPImplementation> users = new ArrayList<>();
+		List<String> inputs = new ArrayList<>();
+		BitSet expected = new BitSet();
+		for(OTPAlgorithm algorithm : OTPAlgorithm.values())
+		{
+			for(int window : windows)
+			{
+				byte[] key = new byte[20];
+				random.nextBytes(key);
+				OTPUserCredentialProvider provider = OTPUserCredentialProvider.createRawKeyUserObject(key, "USER" + users.size(), null, window, algorithm, 8, 30);
+				OTPImplementation jce = OTPImplementation.createInstance(provider);
+				OTPImplementation builtIn = OTPImplementation.createInstance(provider, OTPOptions.defaults().withClock(clock).withBuiltInHmac(true));
+				OTPImplementation cached = OTPImplementation.createInstance(provider, OTPOptions.defaults().withClock(clock).withBuiltInHmac(true).withCodeWindowCache(true));
+				for(int offset = 0; offset < window; offset++)
+				{
+					String code = jce.getOTP(step - offset);
+					assertTrue(builtIn.validate(code));
+					assertTrue(cached.validate(code));
+				}
+				assertFalse(builtIn.validate(jce.getOTP(step + 1)));
+				assertFalse(cached.validate(jce.getOTP(step + 1)));
+				expected.set(users.size());
+				users.add(builtIn);
+				inputs.add(jce.getOTP(step - random.nextInt(window)));
+				users.add(builtIn);
+				inputs.add(jce.getOTP(step - window));
+			}
+		}
+		assertEquals(expected, OTPBatchValidator.createInstance(clock).validate(users, inputs));
+		String secret = new Base32().encodeAsString("12345678901234567890".getBytes(StandardCharsets.US_ASCII));
+		OTPImplementation hotp = OTPImplementation.createInstance(OTPUserCredentialProvider.createCounterUserObject(secret, "TOKENA", null, 10),
+				OTPOptions.defaults().withBuiltInHmac(true).withCounterStore(OTPMemoryCounterStore.createInstance()));
+		assertTrue(hotp.validate("162583"));
+		assertFalse(hotp.validate("287922"));
+		assertTrue(hotp.validate("520489"));
 	}
 
 	@Test
-	public void testBarcode() throws OTPGenericException
+	public void testReplayProtection() throws OTPGenericException
 	{
 		OTPUserImpl user = new OTPUserImpl(true, false);
-		String barcode =  OTPUtils.getAuthenticatorURL(user.getProvider());
-		FileOutputStream fileOut = null;
+		OTPManualClock clock = new OTPManualClock(System.currentTimeMillis());
+		OTPReplayStore store = OTPStripedReplayStore.createInstance(16, clock);
+		OTPImplementation otp = OTPImplementation.createInstance(user.getProvider(), OTPOptions.defaults().withClock(clock).withReplayStore(store));
+		String first = otp.getOTP();
+		assertTrue(otp.validate(first));
+		assertFalse(otp.validate(first));
+		clock.advance(30, TimeUnit.SECONDS);
+		String second = otp.getOTP();
+		assertFalse(otp.validate(first));
+		assertTrue(otp.validate(second));
+		assertFalse(otp.validate(second));
+		OTPStripedReplayStore bulk = OTPStripedReplayStore.createInstance(16, clock);
+		for(long key = 1; key <= 10000; key++)
+		{
+			assertTrue(bulk.checkAndRecord(key * 0x9E3779B97F4A7C15L, 5, clock.currentTimeMillis() + 1000));
+		}
+		assertFalse(bulk.checkAndRecord(0x9E3779B97F4A7C15L, 5, clock.currentTimeMillis() + 1000));
+		clock.advance(2, TimeUnit.SECONDS);
+		assertTrue(bulk.checkAndRecord(0x9E3779B97F4A7C15L, 5, clock.currentTimeMillis() + 1000));
+	}
+
+	@Test
+	public void testConcurrentValidation() throws OTPGenericException, InterruptedException, ExecutionException
+	{
+		final OTPImplementation otp = OTPImplementation.createInstance(new OTPUserImpl(true, false).getProvider());
+		final String input = otp.getOTP();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
 		try {
-			fileOut = new FileOutputStream("C:\\tmp\\temp.png");
-			OTPUtils.getAuthenticatorQRCode(barcode, fileOut, 150);
-		} catch (FileNotFoundException e) {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for(int i = 0; i < 8; i++)
+			{
+				results.add(executor.submit(() -> {
+					for(int j = 0; j < 2000; j++)
+					{
+						if(!otp.validate(input) || otp.validate(-1))
+							return false;
+					}
+					return true;
+				}));
+			}
+			for(Future<Boolean> result : results)
+			{
+				assertTrue(result.get());
+			}
 		} finally {
-			try {
-				fileOut.close();
-			} catch (IOException e) {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testValidationEngineCache() throws OTPGenericException
+	{
+		final OTPUserImpl user = new OTPUserImpl(true, false);
+		OTPValidationEngine engine = OTPValidationEngine.createInstance(
+				userID -> user.getUserID().equals(userID) ? user.getProvider() : null, 1, 1, TimeUnit.MINUTES);
+		String input = engine.getOTP(user.getUserID());
+		assertTrue(engine.validate(user.getUserID(), input));
+		assertTrue(engine.validate(user.getUserID(), input));
+		assertFalse(engine.validate("UNKNOWN", input));
+		assertEquals(2, engine.getCacheHitCount());
+		assertEquals(2, engine.getCacheMissCount());
+		assertEquals(0, engine.getCacheEvictionCount());
+		assertFalse(Arrays.equals(new byte[20], user.getProvider().getSecretByteArray()));
+
+		OTPCredentialTable table = OTPCredentialTable.createInstance(16, 32, false);
+		table.put(user.getProvider());
+		table.put(OTPUserCredentialProvider.createNewAuthenticatorUserObject("USERB", 2, "COMPANYA"));
+		List<OTPUserCredentialProvider> loaded = new ArrayList<>();
+		engine = OTPValidationEngine.createInstance(new OTPKeyStore() {
+			@Override
+			public OTPUserCredentialProvider getCredential(String userID) throws OTPGenericException {
+				OTPUserCredentialProvider credential = table.getCredential(userID);
+				loaded.add(credential);
+				return credential;
+			}
+
+			@Override
+			public void release(OTPUserCredentialProvider credential) {
+				table.release(credential);
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+		assertTrue(engine.validate(user.getUserID(), input));
+		assertArrayEquals(new byte[20], loaded.get(0).getSecretByteArray());
+		assertNotNull(engine.getInstance("USERB"));
+		assertEquals(1, engine.getCacheEvictionCount());
+		assertTrue(engine.validate(user.getUserID(), OTPImplementation.createInstance(user.getProvider()).getOTP()));
+	}
+
+	@Test
+	public void testAsyncValidation() throws OTPGenericException, InterruptedException, ExecutionException
+	{
+		OTPUserImpl user = new OTPUserImpl(true, false);
+		String code = OTPImplementation.createInstance(user.getProvider()).getOTP();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			OTPValidationEngine engine = OTPValidationEngine.createInstance(userID -> user.getUserID().equals(userID) ? user.getProvider() : null,
+					100, 1, TimeUnit.MINUTES, OTPOptions.defaults().withReplayStore(OTPStripedReplayStore.createInstance(100)));
+			OTPAsyncValidationEngine async = OTPAsyncValidationEngine.createInstance(engine, executor);
+			List<CompletableFuture<OTPValidationResult>> results = new ArrayList<>();
+			for(int i = 0; i < 64; i++)
+			{
+				results.add(async.verify(user.getUserID(), code, null));
+			}
+			int accepted = 0;
+			for(CompletableFuture<OTPValidationResult> result : results)
+			{
+				if(result.get() == OTPValidationResult.ACCEPTED)
+					accepted++;
 			}
+			assertEquals(1, accepted);
+			assertEquals(code, async.getOTP(user.getUserID()).get());
+			assertNull(async.getOTP("unknown").get());
+			List<OTPValidationResult> published = new ArrayList<>();
+			CompletableFuture<Void> complete = new CompletableFuture<>();
+			async.verifyPublisher("unknown", code, null).subscribe(new Flow.Subscriber<OTPValidationResult>() {
+				public void onSubscribe(Flow.Subscription subscription) { subscription.request(1); }
+				public void onNext(OTPValidationResult item) { published.add(item); }
+				public void onError(Throwable throwable) { complete.completeExceptionally(throwable); }
+				public void onComplete() { complete.complete(null); }
+			});
+			complete.get();
+			assertEquals(Arrays.asList(OTPValidationResult.UNKNOWN_USER), published);
+			assertTrue(OTPAsyncValidationEngine.createInstance(engine).validate("unknown", code).thenApply(valid -> !valid).get());
+		} finally {
+			executor.shutdown();
 		}
-		File file = new File("C:\\tmp\\temp.png");
-		assertTrue(file.exists());
 	}
 
 	@Test
-	public void testGoogleAuth() throws OTPGenericException {
+	public void testValidationEngineThrottle() throws OTPGenericException
+	{
+		final OTPUserImpl user = new OTPUserImpl(true, false);
+		OTPManualClock clock = new OTPManualClock(System.currentTimeMillis());
+		OTPThrottle throttle = OTPThrottle.createInstance(3, 20, TimeUnit.SECONDS, 10, 1, TimeUnit.MINUTES, clock);
+		OTPValidationEngine engine = OTPValidationEngine.createInstance(userID -> user.getProvider(), 16, 1, TimeUnit.MINUTES,
+				OTPOptions.defaults().withClock(clock), throttle);
+		String input = engine.getOTP(user.getUserID());
+		String wrong = input.equals("000000") ? "000001" : "000000";
+		for(int i = 0; i < 3; i++)
+		{
+			assertEquals(OTPValidationResult.REJECTED, engine.verify(user.getUserID(), wrong, "10.0.0.1"));
+		}
+		assertEquals(OTPValidationResult.THROTTLED, engine.verify(user.getUserID(), input, "10.0.0.1"));
+		assertTrue(throttle.isLocked(user.getUserID()));
+		assertEquals(1, engine.getThrottledCount());
+		clock.advance(20, TimeUnit.SECONDS);
+		assertEquals(OTPValidationResult.ACCEPTED, engine.verify(user.getUserID(), input, "10.0.0.1"));
+		assertFalse(throttle.isLocked(user.getUserID()));
+	}
 
-		OTPUserImpl user = new OTPUserImpl(false, true);
-		String barcode =  OTPUtils.getAuthenticatorURL(user.getProvider());		
-		FileOutputStream fileOut = null;
-		System.out.println(user.getProvider().getSecretKey());
+	@Test
+	public void testDriftTracking() throws OTPGenericException
+	{
+		OTPUserImpl user = new OTPUserImpl(true, false);
+		long now = System.currentTimeMillis();
+		OTPManualClock clock = new OTPManualClock(now);
+		OTPManualClock device = new OTPManualClock(now);
+		OTPDriftTable drift = OTPDriftTable.createInstance(16, 3);
+		OTPCounterMetrics metrics = OTPCounterMetrics.createInstance();
+		OTPImplementation otp = OTPImplementation.createInstance(user.getProvider(), OTPOptions.defaults().withClock(clock).withDriftTable(drift).withMetrics(metrics));
+		OTPImplementation plain = OTPImplementation.createInstance(user.getProvider(), OTPOptions.defaults().withClock(clock));
+		OTPImplementation phone = OTPImplementation.createInstance(user.getProvider(), OTPOptions.defaults().withClock(device));
+		assertTrue(otp.validate(phone.getOTP()));
+		assertEquals(1, metrics.getHmacCount());
+		assertEquals(0, drift.size());
+		device.advance(30, TimeUnit.SECONDS);
+		assertFalse(otp.validate(phone.getOTP()));
+		String first = phone.getOTP();
+		device.advance(30, TimeUnit.SECONDS);
+		assertFalse(plain.resynchronize(first, phone.getOTP()));
+		assertTrue(otp.resynchronize(first, phone.getOTP()));
+		assertEquals(2, drift.getDrift(user.getUserID()));
+		device.advance(30, TimeUnit.SECONDS);
+		assertFalse(plain.validate(phone.getOTP()));
+		assertTrue(otp.validate(phone.getOTP()));
+		assertEquals(3, drift.getDrift(user.getUserID()));
+		device.advance(30, TimeUnit.SECONDS);
+		assertFalse(otp.validate(phone.getOTP()));
+		device.setTimeMillis(clock.currentTimeMillis());
+		assertTrue(otp.validate(phone.getOTP()));
+		assertEquals(0, drift.size());
+		device.setTimeMillis(now);
+		clock.advance(30, TimeUnit.SECONDS);
+		assertTrue(otp.validate(phone.getOTP()));
+		assertEquals(-1, drift.getDrift(user.getUserID()));
+		assertEquals(1, drift.size());
+		device.setTimeMillis(clock.currentTimeMillis());
+		assertTrue(otp.validate(phone.getOTP()));
+		assertEquals(0, drift.size());
+
+		OTPUserCredentialProvider wide = OTPUserCredentialProvider.createAuthenticatorUserObject(user.getSecretKey(), "USERW", user.getCompany(), 6);
+		otp = OTPImplementation.createInstance(wide, OTPOptions.defaults().withClock(clock).withDriftTable(drift).withMetrics(metrics));
+		phone = OTPImplementation.createInstance(wide, OTPOptions.defaults().withClock(device));
+		device.advance(-120, TimeUnit.SECONDS);
+		assertTrue(otp.validate(phone.getOTP()));
+		assertEquals(-3, drift.getDrift("USERW"));
+		device.setTimeMillis(clock.currentTimeMillis() - 30000);
+		assertTrue(otp.validate(phone.getOTP()));
+		assertEquals(-1, drift.getDrift("USERW"));
+		device.advance(-90, TimeUnit.SECONDS);
+		long hmacs = metrics.getHmacCount();
+		assertTrue(otp.validate(phone.getOTP()));
+		assertEquals(hmacs + 5, metrics.getHmacCount());
+		drift.reset("USERW");
+		device.setTimeMillis(clock.currentTimeMillis() - 30000);
+		assertTrue(otp.validate(phone.getOTP()));
+		assertEquals(-1, drift.getDrift("USERW"));
+		device.advance(-180, TimeUnit.SECONDS);
+		hmacs = metrics.getHmacCount();
+		assertFalse(otp.validate(phone.getOTP()));
+		assertEquals(hmacs + 6, metrics.getHmacCount());
+		drift.reset("USERW");
+		OTPDriftTable bulk = OTPDriftTable.createInstance(4);
+		OTPImplementation[] users = new OTPImplementation[500];
+		for(int i = 0; i < users.length; i++)
+		{
+			users[i] = OTPImplementation.createInstance(OTPUserCredentialProvider.createAuthenticatorUserObject(user.getSecretKey(), "USER" + i, user.getCompany(), 2),
+					OTPOptions.defaults().withClock(clock).withDriftTable(bulk));
+			assertTrue(users[i].validate(users[i].getOTP()));
+		}
+		clock.advance(30, TimeUnit.SECONDS);
+		for(int i = 0; i < users.length; i += 2)
+		{
+			device.setTimeMillis(clock.currentTimeMillis() - 30000);
+			assertTrue(users[i].validate(OTPImplementation.createInstance(OTPUserCredentialProvider.createAuthenticatorUserObject(user.getSecretKey(), "USER" + i, user.getCompany(), 2),
+					OTPOptions.defaults().withClock(device)).getOTP()));
+		}
+		assertEquals(users.length / 2, bulk.size());
+		for(int i = 0; i < users.length; i++)
+		{
+			assertEquals(i % 2 == 0 ? -1 : 0, bulk.getDrift("USER" + i));
+		}
+		bulk.reset("USER0");
+		assertEquals(0, bulk.getDrift("USER0"));
+		assertEquals(users.length / 2 - 1, bulk.size());
+	}
+
+	@Test
+	public void testCounterMode() throws OTPGenericException
+	{
+		String[] expected = { "755224", "287082", "359152", "969429", "338314", "254676", "287922", "162583", "399871", "520489" };
+		String secret = new Base32().encodeAsString("12345678901234567890".getBytes(StandardCharsets.US_ASCII));
+		OTPUserCredentialProvider token = OTPUserCredentialProvider.createCounterUserObject(secret, "TOKENA", "COMPANYA", 3);
+		assertTrue(token.isCounterBased());
+		assertTrue(OTPUtils.getAuthenticatorURL(token).startsWith("otpauth://hotp/COMPANYA%3ATOKENA?"));
+		assertTrue(OTPUtils.getAuthenticatorURL(token).contains("&counter=0"));
+		OTPMemoryCounterStore counters = OTPMemoryCounterStore.createInstance();
+		OTPCounterMetrics metrics = OTPCounterMetrics.createInstance();
+		OTPImplementation otp = OTPImplementation.createInstance(token, OTPOptions.defaults().withCounterStore(counters).withResyncWindow(10).withMetrics(metrics));
+		for(int counter = 0; counter < expected.length; counter++)
+		{
+			assertEquals(expected[counter], otp.getOTP(counter));
+		}
+		assertEquals(expected[0], otp.getOTP());
+		assertTrue(otp.validate(expected[0]));
+		assertEquals(1, counters.getCounter("TOKENA"));
+		assertFalse(otp.validate(expected[0]));
+		assertTrue(otp.validate(expected[3]));
+		assertEquals(4, counters.getCounter("TOKENA"));
+		assertFalse(otp.validate(expected[9]));
+		long hmacs = metrics.getHmacCount();
+		assertFalse(otp.validate(expected[9]));
+		assertEquals(hmacs, metrics.getHmacCount());
+		assertFalse(otp.resynchronize(expected[8], expected[7]));
+		hmacs = metrics.getHmacCount();
+		assertFalse(otp.resynchronize(expected[2], expected[3]));
+		assertEquals(hmacs, metrics.getHmacCount());
+		assertTrue(otp.resynchronize(expected[7], expected[8]));
+		assertEquals(9, counters.getCounter("TOKENA"));
+		assertTrue(otp.validate(expected[9]));
+		assertFalse(OTPImplementation.createInstance(new OTPUserImpl(true, false).getProvider()).resynchronize(expected[0], expected[1]));
+
+		OTPValidationEngine engine = OTPValidationEngine.createInstance(userID -> "TOKENA".equals(userID) ? token : null, 16, 1, TimeUnit.MINUTES,
+				OTPOptions.defaults().withCounterStore(counters).withResyncWindow(10));
+		counters.setCounter("TOKENA", 0);
+		assertTrue(engine.resynchronize("TOKENA", expected[4], expected[5]));
+		assertEquals(OTPValidationResult.ACCEPTED, engine.verify("TOKENA", expected[6], null));
+		assertEquals(OTPValidationResult.REJECTED, engine.verify("TOKENA", expected[6], null));
+		assertFalse(engine.resynchronize("UNKNOWN", expected[7], expected[8]));
+	}
+
+	@Test
+	public void testChallengeStore() throws OTPGenericException
+	{
+		OTPManualClock clock = new OTPManualClock(System.currentTimeMillis());
+		OTPChallengeStore store = OTPChallengeStore.createInstance(1000, 5, TimeUnit.MINUTES, 6, 3, clock);
+		String code = store.issue("USER1");
+		assertEquals(6, code.length());
+		assertEquals(1, store.size());
+		assertFalse(store.verify("USER2", code));
+		assertTrue(store.verify("USER1", code));
+		assertFalse(store.verify("USER1", code));
+		assertEquals(0, store.size());
+		String first = store.issue("USER1");
+		String second = store.issue("USER1");
+		assertEquals(1, store.size());
+		if(!first.equals(second))
+			assertFalse(store.verify("USER1", first));
+		assertTrue(store.verify("USER1", second));
+		code = store.issue("USER1");
+		String wrong = String.format("%06d", (Integer.parseInt(code) + 1) % 1000000);
+		assertFalse(store.verify("USER1", wrong));
+		assertFalse(store.verify("USER1", "12345a"));
+		assertFalse(store.verify("USER1", wrong));
+		assertFalse(store.verify("USER1", code));
+		assertEquals(0, store.size());
+		for(int i = 0; i < 500; i++)
+		{
+			store.issue("USER" + i);
+		}
+		assertEquals(500, store.size());
+		clock.advance(4, TimeUnit.MINUTES);
+		code = store.issue("USER0");
+		assertEquals(0, store.expire());
+		clock.advance(2, TimeUnit.MINUTES);
+		assertEquals(499, store.expire());
+		assertTrue(store.verify("USER0", code));
+		clock.advance(6, TimeUnit.MINUTES);
+		assertEquals(0, store.expire());
+		OTPChallengeStore small = OTPChallengeStore.createInstance(1, 1, TimeUnit.MINUTES, 8, 3, clock);
+		int issued = 0;
 		try {
-			fileOut = new FileOutputStream("C:\\tmp\\temp.png");
-			OTPUtils.getAuthenticatorQRCode(barcode, fileOut, 150);
-		} catch (FileNotFoundException e) {
+			while(issued <= 64)
+			{
+				assertEquals(8, small.issue("USER" + issued).length());
+				issued++;
+			}
+			fail("challenge store was not bounded");
+		} catch (OTPGenericException e) {
+			assertEquals(OTPGenericException._CHALLENGE_STORE_FULL, e.getMessage());
+		}
+		assertEquals(issued, small.size());
+		clock.advance(2, TimeUnit.MINUTES);
+		assertEquals(issued, small.expire());
+		small.issue("USER" + issued);
+		assertEquals(1, small.size());
+	}
+
+	@Test
+	public void testMetrics() throws OTPGenericException, IOException
+	{
+		final OTPUserImpl user = new OTPUserImpl(true, false);
+		OTPManualClock clock = new OTPManualClock(System.currentTimeMillis());
+		OTPCounterMetrics metrics = OTPCounterMetrics.createInstance();
+		OTPImplementation otp = OTPImplementation.createInstance(user.getProvider(), OTPOptions.defaults().withClock(clock)
+				.withReplayStore(OTPStripedReplayStore.createInstance(16, clock)).withMetrics(metrics));
+		String previous = otp.getOTP();
+		clock.advance(30, TimeUnit.SECONDS);
+		String current = otp.getOTP();
+		int candidate = 0;
+		while(String.format("%06d", candidate).equals(previous) || String.format("%06d", candidate).equals(current))
+		{
+			candidate++;
+		}
+		String wrong = String.format("%06d", candidate);
+		assertFalse(otp.validate(wrong));
+		assertTrue(otp.validate(previous));
+		assertFalse(otp.validate(previous));
+		assertTrue(otp.validate(current));
+		assertEquals(2, metrics.getGeneratedCount());
+		assertEquals(4, metrics.getValidatedCount());
+		assertEquals(1, metrics.getRejectedCount());
+		assertEquals(2, metrics.getAcceptedCount());
+		assertEquals(1, metrics.getReplayedCount());
+		assertEquals(2, metrics.getOffsetCount(-1));
+		assertEquals(1, metrics.getOffsetCount(0));
+		assertEquals(8, metrics.getHmacCount());
+		assertTrue(metrics.getValidateLatency(50) > 0);
+		assertTrue(metrics.getValidateLatency(100) >= metrics.getValidateLatency(50));
+
+		OTPCounterMetrics engineMetrics = OTPCounterMetrics.createInstance();
+		OTPValidationEngine engine = OTPValidationEngine.createInstance(userID -> user.getUserID().equals(userID) ? user.getProvider() : null,
+				16, 1, TimeUnit.MINUTES, OTPOptions.defaults().withClock(clock).withCodeWindowCache(true).withMetrics(engineMetrics));
+		assertTrue(engine.validate(user.getUserID(), current));
+		assertTrue(engine.validate(user.getUserID(), previous));
+		assertEquals(1, engineMetrics.getUserCacheMissCount());
+		assertEquals(1, engineMetrics.getUserCacheHitCount());
+		assertEquals(1, engineMetrics.getCodeWindowMissCount());
+		assertEquals(1, engineMetrics.getCodeWindowHitCount());
+		assertEquals(2, engineMetrics.getHmacCount());
+
+		Path file = Files.createTempFile("otp", ".jfr");
+		try(Recording recording = new Recording(); OTPJfrMetrics jfr = OTPJfrMetrics.createInstance()) {
+			recording.enable("com.wfraser.security.otp.Validate");
+			recording.start();
+			OTPImplementation.createInstance(user.getProvider(), OTPOptions.defaults().withClock(clock).withMetrics(jfr))
+					.validate(wrong);
+			recording.stop();
+			recording.dump(file);
+			List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+					.filter(event -> event.getEventType().getName().equals("com.wfraser.security.otp.Validate"))
+					.collect(Collectors.toList());
+			assertEquals(1, events.size());
+			assertEquals(user.getUserID(), events.get(0).getString("userID"));
+			assertFalse(events.get(0).getBoolean("matched"));
+			assertFalse(events.get(0).getBoolean("accepted"));
 		} finally {
-			try {
-				fileOut.close();
-			} catch (IOException e) {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testBatchValidation() throws OTPGenericException
+	{
+		OTPImplementation[] users = new OTPImplementation[3000];
+		String[] inputs = new String[users.length];
+		for(int i = 0; i < users.length; i++)
+		{
+			users[i] = OTPImplementation.createInstance(new OTPUserImpl(i % 2 == 0, false).getProvider());
+			inputs[i] = i % 3 == 0 ? "abc" : users[i].getOTP();
+		}
+		BitSet sequential = OTPBatchValidator.createInstance().validate(users, inputs);
+		BitSet parallel = OTPBatchValidator.createParallelInstance(ForkJoinPool.commonPool(), 64).validate(users, inputs);
+		assertEquals(users.length - users.length / 3, sequential.cardinality());
+		assertEquals(sequential, parallel);
+	}
+
+	@Test
+	public void testBulkKeyGeneration() throws OTPGenericException, IOException
+	{
+		OTPKeyGenerator generator = OTPKeyGenerator.createInstance(32);
+		byte[] buffer = new byte[100 * 32];
+		generator.generateKeys(buffer, 0, 100);
+		Set<String> keys = new HashSet<>();
+		for(int i = 0; i < 100; i++)
+		{
+			keys.add(Arrays.toString(Arrays.copyOfRange(buffer, i * 32, (i + 1) * 32)));
+		}
+		assertEquals(100, keys.size());
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		generator.generateKeys(300, stream);
+		assertEquals(300 * 32, stream.size());
+		assertEquals(32, new Base32().decode(OTPUtils.generateSecretKey(OTPAlgorithm.SHA256)).length);
+		assertEquals(20, new Base32().decode(OTPUtils.generateSecretKey()).length);
+		byte[] longest = new byte[3 * OTPKeyGenerator._MAX_KEY_LENGTH];
+		OTPKeyGenerator.createInstance(OTPKeyGenerator._MAX_KEY_LENGTH).generateKeys(longest, 0, 3);
+		assertFalse(Arrays.equals(new byte[OTPKeyGenerator._MAX_KEY_LENGTH], Arrays.copyOfRange(longest, 2 * OTPKeyGenerator._MAX_KEY_LENGTH, longest.length)));
+		try {
+			OTPKeyGenerator.createInstance(OTPKeyGenerator._MAX_KEY_LENGTH + 1);
+			fail("key length above the maximum accepted");
+		} catch (OTPGenericException e) {
+		}
+		try {
+			generator.generateKeys(buffer, Integer.MAX_VALUE - 16, 1);
+			fail("keys written past the end of the buffer");
+		} catch (IndexOutOfBoundsException e) {
+		}
+		try {
+			generator.generateKeys(buffer, 32, 100);
+			fail("keys written past the end of the buffer");
+		} catch (IndexOutOfBoundsException e) {
+		}
+	}
+
+	@Test
+	public void testCompactCredentials() throws OTPGenericException
+	{
+		OTPUserImpl user = new OTPUserImpl(true, false);
+		OTPUserCredentialProvider provider = user.getProvider();
+		assertEquals(user.getSecretKey(), provider.getSecretKey());
+		assertArrayEquals(new Base32().decode(user.getSecretKey()), provider.getSecretByteArray());
+		OTPCredentialTable table = OTPCredentialTable.createInstance(1000, 64, true);
+		for(int i = 0; i < 900; i++)
+		{
+			table.put(OTPUserCredentialProvider.createNewAuthenticatorUserObject("user" + i, 2, "COMPANYA", OTPAlgorithm.SHA256, 8, 30));
+		}
+		table.put(provider);
+		assertEquals(901, table.size());
+		OTPValidationEngine engine = OTPValidationEngine.createInstance(table, 100, 1, TimeUnit.MINUTES);
+		String code = OTPImplementation.createInstance(provider).getOTP();
+		assertTrue(engine.validate(user.getUserID(), code));
+		OTPManualClock clock = new OTPManualClock(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10));
+		OTPOptions options = OTPOptions.defaults().withClock(clock);
+		OTPValidationEngine past = OTPValidationEngine.createInstance(table, 100, 1, TimeUnit.MINUTES, options);
+		String pastCode = OTPImplementation.createInstance(provider, options).getOTP();
+		assertTrue(past.validate(new String[] { user.getUserID() }, new String[] { pastCode }).get(0));
+		OTPUserCredentialProvider stored = table.getCredential("user42");
+		assertEquals(OTPAlgorithm.SHA256, stored.getAlgorithm());
+		assertEquals(8, stored.getDigits());
+		assertEquals(32, stored.getSecretLength());
+		byte[] kept = table.getCredential("user43").getSecretByteArray();
+		for(int i = 0; i < 900; i += 2)
+		{
+			assertTrue(table.remove("user" + i));
+		}
+		assertFalse(table.contains("user42"));
+		assertArrayEquals(kept, table.getCredential("user43").getSecretByteArray());
+		for(int i = 1; i < 900; i += 2)
+		{
+			assertTrue(table.contains("user" + i));
+		}
+		assertNull(table.getCredential("unknown"));
+		provider.wipe();
+		assertArrayEquals(new byte[20], provider.getSecretByteArray());
+	}
+
+	@Test
+	public void testMappedKeyStore() throws OTPGenericException, IOException
+	{
+		OTPUserImpl user = new OTPUserImpl(true, false);
+		Path file = Files.createTempDirectory("otp").resolve("keys.otp");
+		List<byte[]> keys = new ArrayList<>();
+		try (OTPMappedKeyStore store = OTPMappedKeyStore.createInstance(file, 32, 128)) {
+			for(int i = 0; i < 500; i++)
+			{
+				OTPUserCredentialProvider credential = OTPUserCredentialProvider.createNewAuthenticatorUserObject("user" + i, 2, "COMPANYA", OTPAlgorithm.SHA256, 6, 30);
+				keys.add(credential.getSecretByteArray());
+				store.put(credential);
 			}
+			store.put(user.getProvider());
+			assertTrue(store.remove("user7"));
+			assertFalse(store.remove("user7"));
+			assertEquals(500, store.size());
+			assertTrue(store.getAppendedCount() < 128);
 		}
-		System.out.println("Open C:\\tmp\\temp.png and scan with google auth");
-		String input = "";
-		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+		try (OTPMappedKeyStore store = OTPMappedKeyStore.createInstance(file, 32, 0)) {
+			assertEquals(500, store.size());
+			assertNull(store.getCredential("user7"));
+			assertArrayEquals(keys.get(499), store.getCredential("user499").getSecretByteArray());
+			store.put("user499", keys.get(0), 2, OTPAlgorithm.SHA1, 8, 30);
+			store.compact();
+			assertEquals(0, store.getAppendedCount());
+			OTPUserCredentialProvider changed = store.getCredential("user499");
+			assertArrayEquals(keys.get(0), changed.getSecretByteArray());
+			assertEquals(8, changed.getDigits());
+			OTPValidationEngine engine = OTPValidationEngine.createInstance(store, 100, 1, TimeUnit.MINUTES);
+			assertTrue(engine.validate(user.getUserID(), OTPImplementation.createInstance(user.getProvider()).getOTP()));
+		}
+		if (file.getFileSystem().supportedFileAttributeViews().contains("posix"))
+			assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+		Files.delete(file);
+		Path other = file.resolveSibling("other.otp");
+		Files.write(other, "not a key store".getBytes(StandardCharsets.US_ASCII));
 		try {
-			input = reader.readLine();
-		} catch (IOException e) {
+			OTPMappedKeyStore.createInstance(other, 32, 0);
+			fail("opened a file that is not a key store");
+		} catch (OTPGenericException e) {
+			assertEquals("not a key store", new String(Files.readAllBytes(other), StandardCharsets.US_ASCII).substring(0, 15));
 		}
-		OTPImplementation otp = OTPImplementation.createInstance(user.getProvider());
-		assertTrue(otp.validate(input));
+		Files.delete(other);
+		Files.delete(file.getParent());
+	}
 
+	@Test
+	public void testWrappedKeys() throws OTPGenericException
+	{
+		OTPUserImpl user = new OTPUserImpl(true, false);
+		OTPKeyWrapper wrapper = OTPKeyWrapper.createInstance(OTPKeyGenerator.createInstance(32).generateKeyBytes());
+		OTPWrappedCredential wrapped = wrapper.wrap(user.getProvider());
+		assertArrayEquals(user.getProvider().getSecretByteArray(), wrapper.unwrap(wrapped.getWrappedKey(), user.getUserID()));
+		try {
+			wrapper.unwrap(wrapped.getWrappedKey(), "USERB");
+			fail("key unwrapped for another user");
+		} catch (OTPGenericException e) {
+		}
+		Map<String, OTPWrappedCredential> database = new HashMap<>();
+		database.put(user.getUserID(), wrapped);
+		database.put("USERB", wrapper.wrap(OTPUserCredentialProvider.createNewAuthenticatorUserObject("USERB", 2, "COMPANYA")));
+		OTPWrappedKeyStore store = OTPWrappedKeyStore.createInstance(database::get, wrapper, 1, 1, TimeUnit.MINUTES);
+		OTPValidationEngine engine = OTPValidationEngine.createInstance(store, 100, 1, TimeUnit.MINUTES);
+		assertTrue(engine.validate(user.getUserID(), OTPImplementation.createInstance(user.getProvider()).getOTP()));
+		assertArrayEquals(user.getProvider().getSecretByteArray(), store.getCredential(user.getUserID()).getSecretByteArray());
+		assertEquals(1, store.getCacheHitCount());
+		assertNotNull(store.getCredential("USERB"));
+		assertEquals(1, store.getCacheSize());
+		assertArrayEquals(user.getProvider().getSecretByteArray(), store.getCredential(user.getUserID()).getSecretByteArray());
+		assertEquals(3, store.getCacheMissCount());
+		assertNull(store.getCredential("USERC"));
+	}
+
+	@Test
+	public void testCounterCredentialStores() throws OTPGenericException, IOException
+	{
+		String secret = new Base32().encodeAsString("12345678901234567890".getBytes(StandardCharsets.US_ASCII));
+		OTPUserCredentialProvider token = OTPUserCredentialProvider.createCounterUserObject(secret, "TOKENA", "COMPANYA", 3);
+		OTPUserCredentialProvider timed = OTPUserCredentialProvider.createAuthenticatorUserObject(secret, "USERA", "COMPANYA", 2);
+		List<OTPUserCredentialProvider> stored = new ArrayList<>();
+
+		OTPCredentialTable table = OTPCredentialTable.createInstance(16, 32, false);
+		table.put(token);
+		table.put(timed);
+		stored.add(table.getCredential("TOKENA"));
+		assertFalse(table.getCredential("USERA").isCounterBased());
+
+		Path file = Files.createTempDirectory("otp").resolve("keys.otp");
+		try (OTPMappedKeyStore store = OTPMappedKeyStore.createInstance(file, 32, 16)) {
+			store.put(token);
+			store.put(timed);
+		}
+		try (OTPMappedKeyStore store = OTPMappedKeyStore.createInstance(file, 32, 0)) {
+			stored.add(store.getCredential("TOKENA"));
+			assertFalse(store.getCredential("USERA").isCounterBased());
+		}
+		Files.delete(file);
+		Files.delete(file.getParent());
+
+		OTPKeyWrapper wrapper = OTPKeyWrapper.createInstance(OTPKeyGenerator.createInstance(32).generateKeyBytes());
+		OTPWrappedCredential wrapped = wrapper.wrap(token);
+		assertTrue(wrapped.isCounterBased());
+		assertFalse(wrapper.wrap(timed).isCounterBased());
+		stored.add(OTPWrappedKeyStore.createInstance(userID -> "TOKENA".equals(userID) ? wrapped : null, wrapper, 1, 1, TimeUnit.MINUTES).getCredential("TOKENA"));
+
+		for(OTPUserCredentialProvider credential : stored)
+		{
+			assertTrue(credential.isCounterBased());
+			assertEquals(3, credential.getAllowedSteps());
+			OTPMemoryCounterStore counters = OTPMemoryCounterStore.createInstance();
+			OTPImplementation otp = OTPImplementation.createInstance(credential, OTPOptions.defaults().withCounterStore(counters));
+			assertTrue(otp.validate("287082"));
+			assertEquals(2, counters.getCounter("TOKENA"));
+		}
 	}
 
+	@Test
+	public void testGoogleAuthURL() throws OTPGenericException
+	{
+		OTPUserImpl user = new OTPUserImpl(true, false);
+		System.out.println( OTPUtils.getAuthenticatorURL(user.getProvider()) );
+		assertTrue(true);
+	}
 
 }